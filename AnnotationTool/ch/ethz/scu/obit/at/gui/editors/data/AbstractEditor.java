@@ -104,6 +104,16 @@ implements ActionListener, Observer {
      */
     public abstract String getCurrentProjectIdentifier();
 
+    /**
+     * Return the experiment currently displayed in the editor. Its widgets
+     * are updated when an incremental scan completes.
+     * @return current experiment node, or null if the widgets do not need
+     * to be updated after an incremental scan.
+     */
+    protected ExperimentNode getCurrentExperimentNode() {
+        return null;
+    }
+
     /**
      * Observer update method
      * @param obs Observable object
@@ -150,6 +160,21 @@ implements ActionListener, Observer {
                 e.printStackTrace();
             }
             break;
+        case INCREMENTAL_SCAN_COMPLETE:
+            // The content of the current experiment may have changed:
+            // refresh the widgets that depend on it
+            ExperimentNode currentExperiment = getCurrentExperimentNode();
+            if (currentExperiment != null) {
+                try {
+                    updateUIElements(new ObserverActionParameters(
+                            ObserverActionParameters.Action.EXPERIMENT_CHANGED,
+                            currentExperiment));
+                } catch (Exception e) {
+                    // TODO Auto-generated catch block
+                    e.printStackTrace();
+                }
+            }
+            break;
         case READY_TO_SEND:
             // Nothing to do
             break;
@@ -15,9 +15,11 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Observable;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 
 import javax.swing.JButton;
@@ -27,12 +29,14 @@ import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JPopupMenu;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JSplitPane;
 import javax.swing.JTable;
 import javax.swing.RowSorter.SortKey;
 import javax.swing.SortOrder;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
 import javax.swing.event.TreeSelectionListener;
 import javax.swing.table.DefaultTableModel;
@@ -52,7 +56,9 @@ import ch.ethz.scu.obit.at.gui.viewers.data.model.RootNode;
 import ch.ethz.scu.obit.at.gui.viewers.data.view.DataViewerTree;
 import ch.ethz.scu.obit.at.gui.viewers.data.view.DataViewerTreeToXML;
 import ch.ethz.scu.obit.common.settings.GlobalSettingsManager;
+import ch.ethz.scu.obit.common.utils.FolderWatcher;
 import ch.ethz.scu.obit.common.utils.QueryOS;
+import ch.ethz.scu.obit.processors.ScanContext;
 import ch.ethz.scu.obit.processors.data.model.ExperimentDescriptor;
 import ch.ethz.scu.obit.processors.data.model.RootDescriptor;
 
@@ -86,6 +92,7 @@ abstract public class AbstractViewer extends Observable
     protected DefaultMutableTreeNode rootNode;
     protected JScrollPane treeView;
     protected JButton scanButton;
+    protected JProgressBar scanProgressBar;
     protected JLabel metadataView;
     protected JTable metadataViewTable;
     protected JScrollPane metadataViewPane;
@@ -95,6 +102,16 @@ abstract public class AbstractViewer extends Observable
     protected JScrollPane invalidDatasetsPane;
     protected OutputPane outputPane;
 
+    // After a successful scan, viewers that support incremental scans watch
+    // the user folder and update the data model when it changes.
+    private FolderWatcher folderWatcher = null;
+    private boolean isScanningIncrementally = false;
+    private Set<File> pendingChanges = new HashSet<File>();
+
+    // Context of the running scan (null if no scan is running): it is used
+    // to cancel the scan.
+    private ScanContext scanContext = null;
+
     /**
      * Read-only table model.
      *
@@ -131,11 +148,91 @@ abstract public class AbstractViewer extends Observable
      * Parses current dataset (file or folder) by doing the necessary
      * preparation work and then calling the needed Processor.
      *
-     * @param folder Full folder (or file) name
+     * @param folder  Full folder (or file) name
+     * @param context Scan context to be passed to the Processor: it collects
+     *                the progress of the scan and tells when to stop.
      * @return true if the scanning of the dataset was successful, false
-     *         otherwise.
+     *         otherwise (also if the scan was cancelled).
+     */
+    abstract public boolean parse(File folder, ScanContext context);
+
+    /**
+     * Applies the result of parse() to the data model, to the tree and to
+     * the table of invalid datasets. This is called on the Event Dispatch
+     * Thread when the scan started with the given context completes and was
+     * neither cancelled nor replaced by a new scan.
+     *
+     * parse() runs in a background thread and may still be running after
+     * its scan was replaced. Viewers that keep the result of parse() for the
+     * given context and apply it here never write stale results into the
+     * tree of the new scan.
+     *
+     * @param context Scan context of the completed scan.
+     * @param status  Value returned by parse().
+     * @return true if the scanned dataset is valid, false otherwise.
+     */
+    protected boolean applyScan(ScanContext context, boolean status) {
+        return status;
+    }
+
+    /**
+     * Return true if the viewer can update its data model when files in the
+     * user folder change, without a full scan. In that case the user folder
+     * is watched after every successful scan, and prepareIncrementalScan(),
+     * parseIncrementally() and applyIncrementalScan() are called for every
+     * batch of changes.
+     *
+     * Viewers that support incremental scans must override this method and
+     * return true.
+     *
+     * @return true if incremental scans are supported, false otherwise.
      */
-    abstract public boolean parse(File folder);
+    protected boolean supportsIncrementalScan() {
+        return false;
+    }
+
+    /**
+     * Prepares an incremental scan. This is called on the Event Dispatch
+     * Thread before the changes are parsed, and returns the parts of the
+     * data model that parseIncrementally() needs: a full scan may reset the
+     * data model while the changes are parsed in the background.
+     *
+     * @return state of the data model to be passed to parseIncrementally(),
+     *         or null if a full scan is needed.
+     */
+    protected Object prepareIncrementalScan() {
+        return null;
+    }
+
+    /**
+     * Parses the changes in the user folder. This is called in a background
+     * thread and must neither modify the tree or the data model nor read
+     * them: everything it needs is in the given state.
+     *
+     * @param folder       Full folder name.
+     * @param changedFiles Files and folders that were added, removed or
+     *                     modified since the last scan.
+     * @param state        State returned by prepareIncrementalScan().
+     * @return changes to be applied with applyIncrementalScan(), or null if
+     *         a full scan is needed.
+     */
+    protected Object parseIncrementally(File folder, Set<File> changedFiles,
+            Object state) {
+        return null;
+    }
+
+    /**
+     * Applies the changes parsed by parseIncrementally() to the data model
+     * and to the tree. This is called on the Event Dispatch Thread, and only
+     * if no full scan was started since the changes were prepared.
+     *
+     * @param changes Changes returned by parseIncrementally().
+     * @return true if the updated data model is valid, false otherwise (the
+     *         invalid datasets must be listed in the table).
+     */
+    protected boolean applyIncrementalScan(Object changes) {
+        return false;
+    }
 
     /**
      * Constructor The constructor creates the actual panel to be displayed on
@@ -230,8 +327,17 @@ abstract public class AbstractViewer extends Observable
      */
     public void scan() {
 
-        // Disable the "scan" button
-        scanButton.setEnabled(false);
+        // A new scan replaces the running one
+        if (scanContext != null) {
+            scanContext.cancel();
+        }
+
+        // The "scan" button cancels the scan until it is complete
+        scanButton.setText("Cancel");
+        scanButton.setEnabled(true);
+
+        // Changes in the folder will be picked up by the scan
+        stopWatchingUserFolder();
 
         // Clear the tree
         clearTree();
@@ -267,10 +373,12 @@ abstract public class AbstractViewer extends Observable
                 new File(globalSettingsManager.getUserDataRootDir())));
 
         // Then define and start the worker
-        class Worker extends SwingWorker<Boolean, Void> {
+        class Worker extends SwingWorker<Boolean, String>
+                implements ScanContext.Listener {
 
             final private File userDataFolder;
             final private AbstractViewer ref;
+            final private ScanContext context;
 
             /**
              * Constructor
@@ -281,6 +389,7 @@ abstract public class AbstractViewer extends Observable
             public Worker(File userDataFolder, AbstractViewer ref) {
                 this.userDataFolder = userDataFolder;
                 this.ref = ref;
+                this.context = new ScanContext(this);
             }
 
             @Override
@@ -288,13 +397,38 @@ abstract public class AbstractViewer extends Observable
 
                 // We parse the user folder: the actual processing is done
                 // by the processor.
-                return (parse(userDataFolder));
+                return (parse(userDataFolder, context));
+
+            }
 
+            @Override
+            public void progress(ScanContext context, File file) {
+
+                // Called from the scanning threads: the progress is
+                // displayed by process() on the Event Dispatch Thread
+                publish(context.getProgress());
+            }
+
+            @Override
+            protected void process(List<String> chunks) {
+
+                // Only the latest progress is of interest
+                if (context == scanContext) {
+                    scanProgressBar.setString(chunks.get(chunks.size() - 1));
+                }
             }
 
             @Override
             public void done() {
 
+                // The scan was replaced by a new one: nothing to do
+                if (context != scanContext) {
+                    return;
+                }
+                scanContext = null;
+                scanProgressBar.setVisible(false);
+                scanButton.setText("Scan");
+
                 boolean status = false;
 
                 // Retrieve the status
@@ -304,6 +438,11 @@ abstract public class AbstractViewer extends Observable
                     status = false;
                 }
 
+                // Apply the result of the scan
+                if (!context.isCancelled()) {
+                    status = applyScan(context, status);
+                }
+
                 // Create a tree that allows one selection at a time.
                 tree.setModel(new DefaultTreeModel(rootNode));
 
@@ -334,10 +473,12 @@ abstract public class AbstractViewer extends Observable
                 clearMetadataTable();
 
                 // Set isReady to globalStatus
-                isReady = status;
+                isReady = status && !context.isCancelled();
 
                 // Inform the user if isReady is false
-                if (!isReady) {
+                if (context.isCancelled()) {
+                    outputPane.warn("Scanning user data folder cancelled.");
+                } else if (!isReady) {
                     outputPane.err(
                             "Please fix the invalid datasets to continue!");
                 }
@@ -354,15 +495,231 @@ abstract public class AbstractViewer extends Observable
                 scanButton.setEnabled(true);
 
                 // Inform
-                outputPane.log("Scanning user data folder completed.");
+                if (!context.isCancelled()) {
+                    outputPane.log("Scanning user data folder completed.");
+                }
+
+                // Report the files that made the scan slow
+                outputPane.log(context.getSummary());
+
+                // Keep the data model up-to-date with the user folder
+                if (isReady && supportsIncrementalScan()) {
+                    startWatchingUserFolder(userDataFolder);
+                }
+
+            }
+
+        }
+        ;
+
+        // Run the worker!
+        Worker worker = new Worker(userDataFolder, this);
+        scanContext = worker.context;
+        scanProgressBar.setString("Scanning...");
+        scanProgressBar.setVisible(true);
+        worker.execute();
+    }
+
+    /**
+     * Cancels the running scan (if any). The processor stops at the next
+     * file and the data model is left empty.
+     */
+    public void cancelScan() {
+
+        if (scanContext == null || scanContext.isCancelled()) {
+            return;
+        }
+
+        // The "scan" button is re-enabled when the scan has stopped
+        scanContext.cancel();
+        scanButton.setEnabled(false);
+        outputPane.log("Cancelling scan...");
+    }
+
+    /**
+     * Start watching the user folder for changes.
+     *
+     * @param userDataFolder User folder.
+     */
+    private void startWatchingUserFolder(File userDataFolder) {
+
+        stopWatchingUserFolder();
+
+        folderWatcher = new FolderWatcher(userDataFolder,
+                new FolderWatcher.Listener() {
+                    @Override
+                    public void folderChanged(final Set<File> changedFiles) {
+                        SwingUtilities.invokeLater(new Runnable() {
+                            @Override
+                            public void run() {
+                                scanIncrementally(changedFiles);
+                            }
+                        });
+                    }
+                });
+        folderWatcher.start();
+
+        if (folderWatcher.isPolling()) {
+            outputPane.log("Checking the user data folder for changes every "
+                    + FolderWatcher.DEFAULT_POLL_INTERVAL / 1000
+                    + " seconds.");
+        }
+    }
+
+    /**
+     * Stop watching the user folder for changes.
+     */
+    private void stopWatchingUserFolder() {
+        if (folderWatcher != null) {
+            folderWatcher.stop();
+            folderWatcher = null;
+        }
+        pendingChanges.clear();
+
+        // A running incremental scan is discarded when it completes
+        isScanningIncrementally = false;
+    }
+
+    /**
+     * Updates the data model with the changes in the user folder, without
+     * resetting the metadata entered in the editor. This must be called on
+     * the Event Dispatch Thread.
+     *
+     * @param changedFiles Files and folders that were added, removed or
+     *                     modified since the last scan.
+     */
+    protected void scanIncrementally(Set<File> changedFiles) {
+
+        // The folder is no longer watched (e.g. a full scan started)
+        if (folderWatcher == null) {
+            return;
+        }
 
+        // An incremental scan is running: process the changes when it is done
+        pendingChanges.addAll(changedFiles);
+        if (isScanningIncrementally) {
+            return;
+        }
+
+        final Set<File> changes = pendingChanges;
+        pendingChanges = new HashSet<File>();
+        isScanningIncrementally = true;
+
+        // Disable the "scan" button
+        scanButton.setEnabled(false);
+
+        // Notify observers that the data model is about to change
+        synchronized (this) {
+            setChanged();
+            notifyObservers(new ObserverActionParameters(
+                    ObserverActionParameters.Action.ABOUT_TO_SCAN_INCREMENTALLY,
+                    null));
+        }
+
+        // Inform
+        outputPane.log("Updating user data folder...");
+
+        // Then define and start the worker
+        class Worker extends SwingWorker<Object, Void> {
+
+            final private File userDataFolder;
+            final private FolderWatcher watcher;
+            final private Object state;
+
+            /**
+             * Constructor
+             *
+             * @param watcher Watcher of the folder to be parsed.
+             * @param state   State of the data model to be updated.
+             */
+            public Worker(FolderWatcher watcher, Object state) {
+                this.userDataFolder = watcher.getFolder();
+                this.watcher = watcher;
+                this.state = state;
+            }
+
+            @Override
+            public Object doInBackground() {
+
+                // A full scan is needed
+                if (state == null) {
+                    return null;
+                }
+
+                // Parse the changes: the actual processing is done by the
+                // processor.
+                return (parseIncrementally(userDataFolder, changes, state));
+
+            }
+
+            @Override
+            public void done() {
+
+                // A full scan was started in the meanwhile: the changes
+                // belong to a data model that was replaced
+                if (watcher != folderWatcher) {
+                    return;
+                }
+
+                Object result = null;
+
+                // Retrieve the changes
+                try {
+                    result = get();
+                } catch (InterruptedException | ExecutionException e) {
+                    result = null;
+                }
+
+                isScanningIncrementally = false;
+
+                // Re-enable the "scan" button
+                scanButton.setEnabled(true);
+
+                if (result == null) {
+
+                    // The changes cannot be applied: the user must rescan
+                    stopWatchingUserFolder();
+                    isReady = false;
+                    outputPane.err("The user data folder changed: please "
+                            + "rescan it to continue!");
+                    return;
+                }
+
+                // Update the data model and the tree
+                isReady = applyIncrementalScan(result);
+
+                if (isReady) {
+
+                    // Notify observers that the data model was updated
+                    synchronized (this) {
+                        setChanged();
+                        notifyObservers(new ObserverActionParameters(
+                                ObserverActionParameters.Action.INCREMENTAL_SCAN_COMPLETE,
+                                null));
+                    }
+
+                    // Inform
+                    outputPane.log("Updating user data folder completed.");
+
+                } else {
+
+                    // The folder is still watched: the data model will be
+                    // updated as soon as the datasets are fixed
+                    outputPane.err(
+                            "Please fix the invalid datasets to continue!");
+                }
+
+                // Process the changes that arrived in the meanwhile
+                if (!pendingChanges.isEmpty()) {
+                    scanIncrementally(new HashSet<File>());
+                }
             }
 
         }
         ;
 
         // Run the worker!
-        (new Worker(userDataFolder, this)).execute();
+        (new Worker(folderWatcher, prepareIncrementalScan())).execute();
     }
 
     /**
@@ -1166,19 +1523,37 @@ abstract public class AbstractViewer extends Observable
         constraints.insets = new Insets(5, 0, 0, 5);
         dataViewerPanel.add(treeView, constraints);
 
-        // Add a rescan button
+        // Add a progress bar for the scan (only visible while scanning)
+        scanProgressBar = new JProgressBar();
+        scanProgressBar.setIndeterminate(true);
+        scanProgressBar.setStringPainted(true);
+        scanProgressBar.setVisible(false);
+
+        // Add to the layout
+        constraints.gridx = 0;
+        constraints.gridy = 1;
+        constraints.weightx = 1.0;
+        constraints.weighty = 0.0;
+        constraints.insets = new Insets(5, 0, 0, 5);
+        dataViewerPanel.add(scanProgressBar, constraints);
+
+        // Add a rescan button (it cancels the scan while scanning)
         scanButton = new JButton("Scan");
         scanButton.addActionListener(new ActionListener() {
 
             @Override
             public void actionPerformed(ActionEvent e) {
-                scan();
+                if (scanContext != null) {
+                    cancelScan();
+                } else {
+                    scan();
+                }
             }
         });
 
         // Add to the layout
         constraints.gridx = 0;
-        constraints.gridy = 1;
+        constraints.gridy = 2;
         constraints.weightx = 1.0;
         constraints.weighty = 0.0;
         constraints.insets = new Insets(5, 0, 5, 5);
@@ -0,0 +1,79 @@
+package ch.ethz.scu.obit.at.gui.viewers.data.model;
+
+import java.util.List;
+
+import ch.ethz.scu.obit.at.interfaces.ILazyNode;
+import ch.ethz.scu.obit.processors.data.model.AbstractDescriptor;
+
+/**
+ * Node whose children are only added when it is expanded for the first time
+ * (see loadChildren()). Until then, the children can still be created from
+ * the descriptor with createChildren(), e.g. to export the whole data model.
+ * @author Aaron Ponti
+ */
+public abstract class AbstractLazyNode extends AbstractNode
+	implements ILazyNode {
+
+	private static final long serialVersionUID = 1L;
+
+	protected boolean isLoaded = false;
+
+	/**
+	 * Constructor.
+	 * @param object A descriptor.
+	 */
+	public AbstractLazyNode(AbstractDescriptor object) {
+		super(object);
+	}
+
+	/**
+	 * Create the child nodes from the descriptor of the node. The children
+	 * are not added to the node.
+	 * @return child nodes (possibly lazy themselves).
+	 */
+	public abstract List<AbstractNode> createChildren();
+
+	/**
+	 * Add the child nodes unless they were added already.
+	 * @return true if the children were added, false if they were loaded
+	 * already.
+	 */
+	public boolean loadChildren() {
+		if (isLoaded) {
+			return false;
+		}
+		for (AbstractNode child : createChildren()) {
+			add(child);
+		}
+		setLoaded();
+		return true;
+	}
+
+	/**
+	 * A node that was not loaded yet is not a leaf (so that it can be
+	 * expanded).
+	 * @return true if the node is a leaf, false otherwise.
+	 */
+	@Override
+	public boolean isLeaf() {
+		return isLoaded && super.isLeaf();
+	}
+
+	/**
+	 * Return true if the node children were (lazy) loaded already
+	 * @return true if the children were loaded, false otherwise
+	 */
+	@Override
+	public boolean isLoaded() {
+		return isLoaded;
+	}
+
+	/**
+	 * Indicate that the children of current node were (lazy-)loaded
+	 */
+	@Override
+	public void setLoaded() {
+		isLoaded = true;
+	}
+
+}
@@ -22,6 +22,7 @@ import org.w3c.dom.DOMException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import ch.ethz.scu.obit.at.gui.viewers.data.model.AbstractLazyNode;
 import ch.ethz.scu.obit.at.gui.viewers.data.model.AbstractNode;
 import ch.ethz.scu.obit.at.gui.viewers.data.model.ExperimentNode;
 import ch.ethz.scu.obit.at.gui.viewers.data.model.RootNode;
@@ -143,13 +144,25 @@ public class DataViewerTreeToXML {
     }
 
     /**
-     * Add a all children of JTree node as nodes to the XML document
+     * Add a all children of JTree node as nodes to the XML document. The
+     * children of lazy nodes that were never expanded are created on the fly
+     * from their descriptors (and not added to the JTree).
      * @param document  XML document to which the node has to be added.
      * @param parentNode The XML parent node to which to append
      * @param treeNode The JTree node to append
      */
     protected void addNodeChildren(Document document, Element parentNode,
             AbstractNode treeNode) {
+        if (treeNode instanceof AbstractLazyNode
+                && !((AbstractLazyNode) treeNode).isLoaded()) {
+            for (AbstractNode node :
+                    ((AbstractLazyNode) treeNode).createChildren()) {
+                final Element element = createElement(document, node);
+                parentNode.appendChild(element);
+                addNodeChildren(document, element, node);
+            }
+            return;
+        }
         // DefaultMutableTreeNode (since Java 1.2) returns a raw enumeration.
         // This causes a warning in Java > 5.
         @SuppressWarnings("unchecked")
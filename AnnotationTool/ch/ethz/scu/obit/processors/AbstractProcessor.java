@@ -40,6 +40,41 @@ abstract public class AbstractProcessor {
      */
     abstract public boolean parse() throws Exception;
 
+    /**
+     * Context of the current scan. Processors report the files they visit
+     * and read to it, and stop when it is cancelled.
+     */
+    protected ScanContext scanContext = new ScanContext();
+
+    /**
+     * Parses the file or folder and reports the progress to the passed
+     * scan context (see parse()).
+     *
+     * If the scan is cancelled, parse() stops at the next file and this
+     * method returns false; the error message is then "Scan cancelled.".
+     *
+     * @param context Scan context.
+     * @return true if parsing was successful, false otherwise.
+     */
+    public boolean parse(ScanContext context) {
+
+        scanContext = context;
+
+        boolean success;
+        try {
+            success = parse();
+        } catch (Exception e) {
+            errorMessage = e.getMessage();
+            success = false;
+        }
+
+        if (context.isCancelled()) {
+            errorMessage = "Scan cancelled.";
+            return false;
+        }
+        return success;
+    }
+
     /**
      * Information regarding the file format handled by the Processor.
      * @return descriptive String for the Processor.
@@ -74,16 +109,27 @@ abstract public class AbstractProcessor {
      * processed.
      */
     protected boolean deleteIfKnownUselessFile(File file) {
-        if (file.isDirectory()) {
-            return false;
-        }
-        String name = file.getName();
-        if (name.endsWith(".DS_Store") ||
-                name.startsWith("._") ||
-                name.equals("Thumbs.db")) {
+        // Check the name first: it does not cost a file system access
+        if (isKnownUselessFile(file.getName())) {
+            if (file.isDirectory()) {
+                return false;
+            }
             return file.delete();
         } else {
             return false;
         }
     }
+
+    /**
+     * Checks whether a file name is the name of a safely-to-remove file
+     * like .DS_Store, Thumbs.db, ... (see deleteIfKnownUselessFile()).
+     * @param name File name.
+     * @return true if the name is the name of a useless hidden file,
+     * false otherwise.
+     */
+    protected static boolean isKnownUselessFile(String name) {
+        return name.endsWith(".DS_Store") ||
+                name.startsWith("._") ||
+                name.equals("Thumbs.db");
+    }
 }
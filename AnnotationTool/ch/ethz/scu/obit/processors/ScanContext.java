@@ -0,0 +1,321 @@
+package ch.ethz.scu.obit.processors;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+/**
+ * Context of a scan: the processors report their progress to it (files
+ * visited, bytes read and the time spent reading each file) and check it
+ * regularly to stop as soon as the scan is cancelled.
+ *
+ * The context keeps the slowest files read by the scan, to find the datasets
+ * that make scanning slow. All methods can be called from any thread.
+ *
+ * @author Aaron Ponti
+ */
+public class ScanContext {
+
+    /**
+     * Listener for the progress of a scan.
+     *
+     * @author Aaron Ponti
+     */
+    public interface Listener {
+
+        /**
+         * Called every time a file was visited or read. This is called from
+         * the scanning threads: it must return quickly.
+         *
+         * @param context Scan context.
+         * @param file    File that was visited or read.
+         */
+        public void progress(ScanContext context, File file);
+    }
+
+    /**
+     * Time spent reading a file.
+     *
+     * @author Aaron Ponti
+     */
+    public static class FileTiming {
+
+        private final File file;
+        private final long bytes;
+        private final long nanos;
+
+        /**
+         * Constructor
+         *
+         * @param file  File (or folder) that was read.
+         * @param bytes Number of bytes read.
+         * @param nanos Time spent reading the file in ns.
+         */
+        private FileTiming(File file, long bytes, long nanos) {
+            this.file = file;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Return the file that was read.
+         *
+         * @return file (or folder).
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Return the number of bytes read from the file.
+         *
+         * @return number of bytes.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Return the time spent reading the file.
+         *
+         * @return time in ms.
+         */
+        public double getTime() {
+            return nanos / 1e6;
+        }
+    }
+
+    /**
+     * Default number of slowest files kept by the context
+     */
+    public static final int DEFAULT_NUM_SLOWEST_FILES = 10;
+
+    /* Orders the timings from the fastest to the slowest file */
+    private static final Comparator<FileTiming> FASTEST_FIRST =
+            new Comparator<FileTiming>() {
+                @Override
+                public int compare(FileTiming a, FileTiming b) {
+                    return Long.compare(a.nanos, b.nanos);
+                }
+            };
+
+    /* Private instance variables */
+    private final Listener listener;
+    private final int numSlowestFiles;
+    private final long startTime = System.nanoTime();
+    private volatile boolean cancelled = false;
+    private int filesVisited = 0;
+    private int filesRead = 0;
+    private long bytesRead = 0;
+    private final PriorityQueue<FileTiming> slowestFiles;
+
+    /**
+     * Constructor: a context without listener (e.g. for scans that are not
+     * run from the user interface).
+     */
+    public ScanContext() {
+        this(null, DEFAULT_NUM_SLOWEST_FILES);
+    }
+
+    /**
+     * Alternative constructor
+     *
+     * @param listener Listener to be notified of the progress (can be null).
+     */
+    public ScanContext(Listener listener) {
+        this(listener, DEFAULT_NUM_SLOWEST_FILES);
+    }
+
+    /**
+     * Alternative constructor
+     *
+     * @param listener        Listener to be notified of the progress (can be
+     *                        null).
+     * @param numSlowestFiles Number of slowest files to keep.
+     */
+    public ScanContext(Listener listener, int numSlowestFiles) {
+        this.listener = listener;
+        this.numSlowestFiles = numSlowestFiles;
+        this.slowestFiles = new PriorityQueue<FileTiming>(
+                Math.max(1, numSlowestFiles), FASTEST_FIRST);
+    }
+
+    /**
+     * Cancel the scan. The processors stop at the next file.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Return true if the scan was cancelled.
+     *
+     * @return true if the scan was cancelled, false otherwise.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Throw an exception if the scan was cancelled. Since the exception is
+     * an IOException, it ends the scan through the usual error path of the
+     * processors.
+     *
+     * @throws InterruptedIOException if the scan was cancelled.
+     */
+    public void checkCancelled() throws InterruptedIOException {
+        if (cancelled) {
+            throw new InterruptedIOException("Scan cancelled.");
+        }
+    }
+
+    /**
+     * Report that a file was visited.
+     *
+     * @param file File that was visited.
+     */
+    public void fileVisited(File file) {
+        synchronized (this) {
+            filesVisited++;
+        }
+        notifyListener(file);
+    }
+
+    /**
+     * Report that a file (or a folder containing a composite dataset) was
+     * read.
+     *
+     * @param file  File (or folder) that was read.
+     * @param bytes Number of bytes read.
+     * @param nanos Time spent reading the file in ns (see System.nanoTime()).
+     */
+    public void fileRead(File file, long bytes, long nanos) {
+        synchronized (this) {
+            filesRead++;
+            bytesRead += bytes;
+            if (numSlowestFiles > 0) {
+                slowestFiles.add(new FileTiming(file, bytes, nanos));
+                if (slowestFiles.size() > numSlowestFiles) {
+                    slowestFiles.poll();
+                }
+            }
+        }
+        notifyListener(file);
+    }
+
+    /**
+     * Return the number of files visited so far.
+     *
+     * @return number of files visited.
+     */
+    public synchronized int getFilesVisited() {
+        return filesVisited;
+    }
+
+    /**
+     * Return the number of files read so far.
+     *
+     * @return number of files read.
+     */
+    public synchronized int getFilesRead() {
+        return filesRead;
+    }
+
+    /**
+     * Return the number of bytes read so far.
+     *
+     * @return number of bytes read.
+     */
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Return the time elapsed since the scan started.
+     *
+     * @return time in ms.
+     */
+    public double getElapsedTime() {
+        return (System.nanoTime() - startTime) / 1e6;
+    }
+
+    /**
+     * Return the slowest files read so far.
+     *
+     * @return list of the slowest files, from the slowest to the fastest.
+     */
+    public synchronized List<FileTiming> getSlowestFiles() {
+        List<FileTiming> timings = new ArrayList<FileTiming>(slowestFiles);
+        Collections.sort(timings, Collections.reverseOrder(FASTEST_FIRST));
+        return timings;
+    }
+
+    /**
+     * Return a one-line description of the progress of the scan.
+     *
+     * @return progress String.
+     */
+    public String getProgress() {
+        return getFilesVisited() + " files visited, "
+                + formatBytes(getBytesRead()) + " read";
+    }
+
+    /**
+     * Return a summary of the scan with the list of the slowest files.
+     *
+     * @return summary String (one line per slowest file).
+     */
+    public String getSummary() {
+
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format(Locale.US,
+                "Scanned %d files (%d read, %s) in %.1f s.",
+                getFilesVisited(), getFilesRead(),
+                formatBytes(getBytesRead()), getElapsedTime() / 1000.0));
+
+        List<FileTiming> timings = getSlowestFiles();
+        if (!timings.isEmpty()) {
+            summary.append(" Slowest files:");
+            for (FileTiming timing : timings) {
+                summary.append(String.format(Locale.US,
+                        "\n    %8.1f ms  %10s  %s", timing.getTime(),
+                        formatBytes(timing.getBytes()), timing.getFile()));
+            }
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Format a number of bytes for display.
+     *
+     * @param bytes Number of bytes.
+     * @return formatted String (e.g. "12.3 MB").
+     */
+    public static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        String units = "KMGTPE";
+        int exp = (int) (Math.log(bytes) / Math.log(1024));
+        exp = Math.min(exp, units.length());
+        return String.format(Locale.US, "%.1f %sB",
+                bytes / Math.pow(1024, exp), units.charAt(exp - 1));
+    }
+
+    /**
+     * Notify the listener (if any) of the progress.
+     *
+     * @param file File that was visited or read.
+     */
+    private void notifyListener(File file) {
+        if (listener != null) {
+            listener.progress(this, file);
+        }
+    }
+
+}
@@ -0,0 +1,400 @@
+package ch.ethz.scu.obit.processors.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Walks a folder tree and passes its folders and files to a Visitor.
+ *
+ * The entries of a folder are listed with their attributes (type, size and
+ * modification time) in one pass: on network shares, this saves the round
+ * trip that File.isDirectory(), File.length() and the like cost for every
+ * single entry. On Windows, the attributes are even returned with the
+ * directory listing itself.
+ *
+ * Listings are cached: walking the same tree again (e.g. in the second phase
+ * of a scan) does not access the file system. The folders are visited
+ * depth-first in listing order, which the Visitor can change for each
+ * folder.
+ *
+ * A FolderWalker is not thread-safe.
+ *
+ * @author Aaron Ponti
+ */
+public class FolderWalker {
+
+    /**
+     * An entry (file or folder) of a folder listing, with its attributes.
+     *
+     * @author Aaron Ponti
+     */
+    public static class Entry {
+
+        private final File file;
+        private final BasicFileAttributes attributes;
+
+        /**
+         * Constructor
+         *
+         * @param file       File or folder.
+         * @param attributes Attributes of the entry, or null if they could
+         *                   not be read.
+         */
+        private Entry(File file, BasicFileAttributes attributes) {
+            this.file = file;
+            this.attributes = attributes;
+        }
+
+        /**
+         * Return the file or folder.
+         *
+         * @return file.
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Return the name of the file or folder.
+         *
+         * @return name.
+         */
+        public String getName() {
+            return file.getName();
+        }
+
+        /**
+         * Return true if the entry is a folder (or a link to a folder).
+         *
+         * @return true for folders, false otherwise.
+         */
+        public boolean isDirectory() {
+            return attributes != null && attributes.isDirectory();
+        }
+
+        /**
+         * Return the size of the file.
+         *
+         * @return size in bytes, or 0 if it is not known.
+         */
+        public long length() {
+            return attributes == null ? 0L : attributes.size();
+        }
+
+        /**
+         * Return the modification time of the file or folder.
+         *
+         * @return modification time in ms since the epoch, or 0 if it is not
+         *         known.
+         */
+        public long lastModified() {
+            return attributes == null ? 0L
+                    : attributes.lastModifiedTime().toMillis();
+        }
+
+        /**
+         * Return a String representation of the entry.
+         *
+         * @return full path of the file or folder.
+         */
+        @Override
+        public String toString() {
+            return file.toString();
+        }
+    }
+
+    /**
+     * Visitor of a folder tree. The depth of the root folder is 0.
+     *
+     * The methods return FileVisitResult.CONTINUE to go on with the walk,
+     * FileVisitResult.SKIP_SIBLINGS to skip the remaining entries of the
+     * current folder, and FileVisitResult.TERMINATE to end the walk.
+     * FileVisitResult.SKIP_SUBTREE has the meaning given below.
+     *
+     * @author Aaron Ponti
+     */
+    public interface Visitor {
+
+        /**
+         * Called for a folder before it is listed (not for the root).
+         *
+         * @param folder Folder entry.
+         * @param depth  Depth of the folder.
+         * @return SKIP_SUBTREE to skip the folder (e.g. because the Visitor
+         *         processes it otherwise).
+         * @throws IOException if the folder could not be processed.
+         */
+        public FileVisitResult preVisitFolder(Entry folder, int depth)
+                throws IOException;
+
+        /**
+         * Called with the listing of a folder before its entries are
+         * visited. The Visitor can reorder the entries or remove some.
+         *
+         * @param folder  Folder.
+         * @param entries Entries of the folder (modifiable).
+         * @param depth   Depth of the folder.
+         * @return SKIP_SUBTREE to skip the entries of the folder.
+         * @throws IOException if the folder could not be processed.
+         */
+        public FileVisitResult visitEntries(File folder, List<Entry> entries,
+                int depth) throws IOException;
+
+        /**
+         * Called for a folder that could not be listed.
+         *
+         * @param folder Folder.
+         * @param e      Exception thrown when listing the folder.
+         * @param depth  Depth of the folder.
+         * @return visit result.
+         * @throws IOException if the folder could not be processed.
+         */
+        public FileVisitResult visitFolderFailed(File folder, IOException e,
+                int depth) throws IOException;
+
+        /**
+         * Called for a file.
+         *
+         * @param file  File entry.
+         * @param depth Depth of the file (depth of its folder + 1).
+         * @return visit result.
+         * @throws IOException if the file could not be processed.
+         */
+        public FileVisitResult visitFile(Entry file, int depth)
+                throws IOException;
+
+        /**
+         * Called for a folder after all its entries were visited.
+         *
+         * @param folder Folder.
+         * @param depth  Depth of the folder.
+         * @return visit result.
+         * @throws IOException if the folder could not be processed.
+         */
+        public FileVisitResult postVisitFolder(File folder, int depth)
+                throws IOException;
+    }
+
+    /**
+     * Visitor that visits all folders and files: extend it and override the
+     * methods you need.
+     *
+     * @author Aaron Ponti
+     */
+    public static class SimpleVisitor implements Visitor {
+
+        @Override
+        public FileVisitResult preVisitFolder(Entry folder, int depth)
+                throws IOException {
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitEntries(File folder, List<Entry> entries,
+                int depth) throws IOException {
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFolderFailed(File folder, IOException e,
+                int depth) throws IOException {
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Entry file, int depth)
+                throws IOException {
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitFolder(File folder, int depth)
+                throws IOException {
+            return FileVisitResult.CONTINUE;
+        }
+    }
+
+    /* Private instance variables */
+    private final File root;
+    private final Map<File, List<Entry>> listings =
+            new HashMap<File, List<Entry>>();
+    private final Map<File, Entry> entries = new HashMap<File, Entry>();
+
+    /**
+     * Constructor
+     *
+     * @param root Root folder of the tree.
+     */
+    public FolderWalker(File root) {
+        this.root = root;
+    }
+
+    /**
+     * Return the root folder of the tree.
+     *
+     * @return root folder.
+     */
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * Walk the tree.
+     *
+     * @param visitor Visitor.
+     * @throws IOException if the visitor failed.
+     */
+    public void walk(Visitor visitor) throws IOException {
+        walk(root, 0, visitor);
+    }
+
+    /**
+     * Return the entries of a folder, in listing order. The folder is listed
+     * only once.
+     *
+     * @param folder Folder.
+     * @return unmodifiable list of entries.
+     * @throws IOException if the folder could not be listed.
+     */
+    public List<Entry> list(File folder) throws IOException {
+
+        List<Entry> listing = listings.get(folder);
+        if (listing != null) {
+            return listing;
+        }
+
+        // With a depth of 1, the walk reports the entries of the folder
+        // (files and folders alike) with the attributes it read while
+        // listing it
+        final File dir = folder;
+        final List<Entry> found = new ArrayList<Entry>();
+        final IOException[] failure = new IOException[1];
+        Files.walkFileTree(folder.toPath(),
+                EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1,
+                new SimpleFileVisitor<Path>() {
+
+                    @Override
+                    public FileVisitResult visitFile(Path file,
+                            BasicFileAttributes attrs) {
+                        found.add(new Entry(new File(dir,
+                                file.getFileName().toString()), attrs));
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file,
+                            IOException e) {
+                        if (file.equals(dir.toPath())) {
+                            // The folder itself could not be listed
+                            failure[0] = e;
+                            return FileVisitResult.TERMINATE;
+                        }
+                        // Broken links and the like are reported as files
+                        found.add(new Entry(new File(dir,
+                                file.getFileName().toString()), null));
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult postVisitDirectory(Path d,
+                            IOException e) {
+                        failure[0] = e;
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+
+        listing = Collections.unmodifiableList(found);
+        listings.put(folder, listing);
+        for (Entry entry : found) {
+            entries.put(entry.getFile(), entry);
+        }
+        return listing;
+    }
+
+    /**
+     * Return the entry for a file or folder in a folder that was already
+     * listed.
+     *
+     * @param file File or folder.
+     * @return entry, or null if the containing folder was not listed yet.
+     */
+    public Entry getEntry(File file) {
+        return entries.get(file);
+    }
+
+    /**
+     * Walk a folder.
+     *
+     * @param folder  Folder.
+     * @param depth   Depth of the folder.
+     * @param visitor Visitor.
+     * @return TERMINATE if the walk must end, CONTINUE otherwise.
+     * @throws IOException if the visitor failed.
+     */
+    private FileVisitResult walk(File folder, int depth, Visitor visitor)
+            throws IOException {
+
+        // List the folder
+        List<Entry> folderEntries;
+        try {
+            folderEntries = new ArrayList<Entry>(list(folder));
+        } catch (IOException e) {
+            return visitor.visitFolderFailed(folder, e, depth)
+                    == FileVisitResult.TERMINATE ? FileVisitResult.TERMINATE
+                            : FileVisitResult.CONTINUE;
+        }
+
+        FileVisitResult result = visitor.visitEntries(folder, folderEntries,
+                depth);
+        if (result == FileVisitResult.TERMINATE) {
+            return result;
+        }
+        if (result == FileVisitResult.SKIP_SUBTREE) {
+            return FileVisitResult.CONTINUE;
+        }
+
+        // Go over the files and folders
+        if (result == FileVisitResult.CONTINUE) {
+            for (Entry entry : folderEntries) {
+
+                if (entry.isDirectory()) {
+                    result = visitor.preVisitFolder(entry, depth + 1);
+                    if (result == FileVisitResult.CONTINUE) {
+                        result = walk(entry.getFile(), depth + 1, visitor);
+                    } else if (result == FileVisitResult.SKIP_SUBTREE) {
+                        result = FileVisitResult.CONTINUE;
+                    }
+                } else {
+                    result = visitor.visitFile(entry, depth + 1);
+                }
+
+                if (result == FileVisitResult.TERMINATE) {
+                    return result;
+                }
+                if (result == FileVisitResult.SKIP_SIBLINGS) {
+                    break;
+                }
+            }
+        }
+
+        result = visitor.postVisitFolder(folder, depth);
+        return result == FileVisitResult.TERMINATE ? result
+                : FileVisitResult.CONTINUE;
+    }
+
+}
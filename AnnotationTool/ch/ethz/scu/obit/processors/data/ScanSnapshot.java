@@ -0,0 +1,287 @@
+package ch.ethz.scu.obit.processors.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import ch.ethz.scu.obit.common.utils.QueryOS;
+import ch.ethz.scu.obit.common.utils.XXHash64;
+
+/**
+ * Snapshot of the result of a scan: the data model, the invalid files and
+ * folders found by the validator, the modification times of all scanned
+ * folders and the sizes and modification times of the data files.
+ *
+ * Snapshots are saved (compressed) in the user data folder when a scan ends.
+ * When the application is started again, the snapshot of the user folder is
+ * loaded and the processor only scans the sub-folders that changed in the
+ * meanwhile (see getChangedFolders()). Adding, removing or renaming a file
+ * changes the modification time of its folder; files that are modified in
+ * place (e.g. while they are being copied) are detected by their size and
+ * modification time.
+ *
+ * @author Aaron Ponti
+ */
+public class ScanSnapshot implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Version of the snapshot files. Snapshots with another version are
+     * ignored.
+     */
+    public static final int FORMAT_VERSION = 2;
+
+    /* Private instance variables */
+    private final File folder;
+    private final String type;
+    private final Map<File, Long> folderTimes;
+    private final Map<File, Long> fileLengths;
+    private final Map<File, Long> fileTimes;
+    private final Serializable model;
+    private final Map<File, String> invalidFilesOrFolders;
+
+    /**
+     * Constructor
+     *
+     * @param folder                User folder that was scanned.
+     * @param type                  Type of the data in the folder (e.g. the
+     *                              hardware string of the processor).
+     * @param folderTimes           Modification times of the scanned
+     *                              sub-folders.
+     * @param fileLengths           Sizes of the data files found by the
+     *                              scan.
+     * @param fileTimes             Modification times of the data files
+     *                              found by the scan.
+     * @param model                 Data model built by the scan.
+     * @param invalidFilesOrFolders Invalid files and folders found by the
+     *                              scan with the reasons.
+     */
+    public ScanSnapshot(File folder, String type, Map<File, Long> folderTimes,
+            Map<File, Long> fileLengths, Map<File, Long> fileTimes,
+            Serializable model,
+            Map<File, String> invalidFilesOrFolders) {
+        this.folder = folder;
+        this.type = type;
+        this.folderTimes = new HashMap<File, Long>(folderTimes);
+        this.fileLengths = new HashMap<File, Long>(fileLengths);
+        this.fileTimes = new HashMap<File, Long>(fileTimes);
+        this.model = model;
+        this.invalidFilesOrFolders =
+                new HashMap<File, String>(invalidFilesOrFolders);
+    }
+
+    /**
+     * Return the user folder that was scanned.
+     *
+     * @return user folder.
+     */
+    public File getFolder() {
+        return folder;
+    }
+
+    /**
+     * Return the type of the data in the folder.
+     *
+     * @return type (e.g. the hardware string of the processor).
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Return the modification times of the scanned sub-folders.
+     *
+     * @return unmodifiable map of folders to modification times.
+     */
+    public Map<File, Long> getFolderTimes() {
+        return Collections.unmodifiableMap(folderTimes);
+    }
+
+    /**
+     * Return the sizes of the data files found by the scan.
+     *
+     * @return unmodifiable map of files to sizes.
+     */
+    public Map<File, Long> getFileLengths() {
+        return Collections.unmodifiableMap(fileLengths);
+    }
+
+    /**
+     * Return the modification times of the data files found by the scan.
+     *
+     * @return unmodifiable map of files to modification times.
+     */
+    public Map<File, Long> getFileTimes() {
+        return Collections.unmodifiableMap(fileTimes);
+    }
+
+    /**
+     * Return the data model built by the scan.
+     *
+     * @return data model.
+     */
+    public Serializable getModel() {
+        return model;
+    }
+
+    /**
+     * Return the invalid files and folders found by the scan.
+     *
+     * @return unmodifiable map of invalid files and folders to the reasons.
+     */
+    public Map<File, String> getInvalidFilesOrFolders() {
+        return Collections.unmodifiableMap(invalidFilesOrFolders);
+    }
+
+    /**
+     * Return the sub-folders that changed since the scan: the folders that
+     * were modified or do not exist any longer, and the folders of the data
+     * files whose size or modification time changed (files that are written
+     * in place do not change the modification time of their folder).
+     *
+     * @return list of changed folders.
+     */
+    public List<File> getChangedFolders() {
+        Set<File> changed = new LinkedHashSet<File>();
+        for (Map.Entry<File, Long> entry : folderTimes.entrySet()) {
+            // lastModified() returns 0 for folders that do not exist
+            if (entry.getKey().lastModified() != entry.getValue()) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (Map.Entry<File, Long> entry : fileLengths.entrySet()) {
+            File file = entry.getKey();
+            Long time = fileTimes.get(file);
+            if (file.length() != entry.getValue() || time == null
+                    || file.lastModified() != time) {
+                changed.add(file.getParentFile());
+            }
+        }
+        return new ArrayList<File>(changed);
+    }
+
+    /**
+     * Save the snapshot to the snapshot file of its folder. The file is
+     * written to a temporary file first and then moved in place, so that an
+     * interrupted save never leaves a corrupt snapshot behind.
+     *
+     * @throws IOException if the snapshot could not be saved.
+     */
+    public void save() throws IOException {
+
+        File snapshotFile = getSnapshotFile(folder);
+        File snapshotDir = snapshotFile.getParentFile();
+        if (!snapshotDir.isDirectory() && !snapshotDir.mkdirs()) {
+            throw new IOException("Could not create " + snapshotDir);
+        }
+
+        File tmpFile = File.createTempFile("snapshot", ".tmp", snapshotDir);
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(
+                    new BufferedOutputStream(new GZIPOutputStream(
+                            new FileOutputStream(tmpFile))));
+            try {
+                out.writeInt(FORMAT_VERSION);
+                out.writeObject(this);
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move(tmpFile.toPath(), snapshotFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), snapshotFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Load the snapshot of a user folder.
+     *
+     * @param folder User folder.
+     * @return snapshot, or null if there is no (usable) snapshot for the
+     *         folder.
+     */
+    public static ScanSnapshot load(File folder) {
+
+        try {
+            File snapshotFile = getSnapshotFile(folder);
+            if (!snapshotFile.isFile()) {
+                return null;
+            }
+            ObjectInputStream in = new ObjectInputStream(
+                    new BufferedInputStream(new GZIPInputStream(
+                            new FileInputStream(snapshotFile))));
+            try {
+                if (in.readInt() != FORMAT_VERSION) {
+                    return null;
+                }
+                Object snapshot = in.readObject();
+                if (!(snapshot instanceof ScanSnapshot)
+                        || !((ScanSnapshot) snapshot).folder.equals(folder)) {
+                    return null;
+                }
+                return (ScanSnapshot) snapshot;
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            // Outdated or corrupt snapshots are just not used
+            return null;
+        }
+    }
+
+    /**
+     * Return the snapshot file of a user folder. The name of the file is the
+     * hash of the canonical path of the folder.
+     *
+     * @param folder User folder.
+     * @return snapshot file.
+     * @throws IOException if the canonical path of the folder could not be
+     *                     obtained or the operating system is not supported.
+     */
+    public static File getSnapshotFile(File folder) throws IOException {
+
+        byte[] path = folder.getCanonicalPath().getBytes(
+                StandardCharsets.UTF_8);
+        XXHash64 hash = new XXHash64();
+        hash.update(path, 0, path.length);
+
+        File userDataDir;
+        try {
+            userDataDir = QueryOS.getOSSpecificUserDataFolder();
+        } catch (UnsupportedOperationException e) {
+            throw new IOException(e.getMessage());
+        }
+        File snapshotDir = new File(userDataDir + File.separator + "obit"
+                + File.separator + "AnnotationTool" + File.separator
+                + "snapshots");
+        return new File(snapshotDir,
+                String.format("%016x.snapshot", hash.getValue()));
+    }
+
+}
@@ -1,5 +1,6 @@
 package ch.ethz.scu.obit.processors.data.model;
 
+import java.io.Serializable;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.regex.Pattern;
@@ -14,7 +15,9 @@ import java.util.regex.Pattern;
  *  
  * @author Aaron Ponti
  */
-abstract public class AbstractDescriptor {
+abstract public class AbstractDescriptor implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	// Used to filter the name of the Descriptor
 	static final Pattern p = Pattern.compile("[^a-zA-Z0-9\\-\\_]");
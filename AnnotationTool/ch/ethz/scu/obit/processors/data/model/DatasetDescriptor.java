@@ -9,6 +9,8 @@ import java.io.File;
  */
 public class DatasetDescriptor extends PathAwareDescriptor{
 
+	private static final long serialVersionUID = 1L;
+
 	/**
 	 *  Dataset description
 	 */
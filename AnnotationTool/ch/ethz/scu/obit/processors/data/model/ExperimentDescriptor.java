@@ -1,6 +1,8 @@
 package ch.ethz.scu.obit.processors.data.model;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -13,6 +15,8 @@ import java.util.List;
  */
 public class ExperimentDescriptor extends PathAwareDescriptor{
 
+    private static final long serialVersionUID = 1L;
+
     /**
      *  Experiment description
      */
@@ -20,8 +24,10 @@ public class ExperimentDescriptor extends PathAwareDescriptor{
 
     /**
      *  Experiment tags (comma-separated list)
+     *
+     *  Tags are set by the user in the editor: they are not serialized.
      */
-    public List<Tag> tags = new ArrayList<Tag>();
+    public transient List<Tag> tags = new ArrayList<Tag>();
 
     /**
      *  List of accepted attachment file extensions
@@ -40,6 +46,18 @@ public class ExperimentDescriptor extends PathAwareDescriptor{
         super(fullPath, userRootDataPath);
     }
 
+    /**
+     * Restore a serialized experiment (without tags).
+     * @param in Input stream.
+     * @throws IOException if the experiment could not be read.
+     * @throws ClassNotFoundException if a class of the experiment is unknown.
+     */
+    private void readObject(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        tags = new ArrayList<Tag>();
+    }
+
     /**
      * Return a simplified class name to use in XML.
      * @return simplified class name.
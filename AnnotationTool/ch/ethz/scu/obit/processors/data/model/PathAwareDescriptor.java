@@ -11,6 +11,8 @@ import java.io.IOException;
  */
 public abstract class PathAwareDescriptor extends AbstractDescriptor{
 
+	private static final long serialVersionUID = 1L;
+
 	/**
 	 * Global root of the users folder (parent to the current {user} folder). 
 	 */
@@ -11,6 +11,8 @@ import java.io.File;
  */
 public class RootDescriptor extends PathAwareDescriptor{
 
+	private static final long serialVersionUID = 1L;
+
 	/**
 	 * Constructor.
 	 * @param fullUserFolderPath Full path to the global users folder path.
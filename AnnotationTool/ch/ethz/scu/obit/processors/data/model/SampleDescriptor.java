@@ -6,6 +6,8 @@ package ch.ethz.scu.obit.processors.data.model;
  */
 public abstract class SampleDescriptor extends AbstractDescriptor{
 
+	private static final long serialVersionUID = 1L;
+
 	/**
 	 * Return a simplified class name to use in XML.
 	 * @return simplified class name.
@@ -0,0 +1,459 @@
+package ch.ethz.scu.obit.common.utils;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a folder tree for files and folders that are added, removed or
+ * modified.
+ *
+ * Changes are collected and reported in batches once the tree has been quiet
+ * for some time: a file that is still being written (e.g. by an acquisition
+ * software) is reported once, when it is complete.
+ *
+ * The operating system is notified of the changes through a WatchService.
+ * Network shares often do not report changes made by other machines: for
+ * those (and whenever the WatchService is not available) the tree is polled
+ * at regular intervals instead and compared with its previous state
+ * (modification time and size of every entry).
+ *
+ * The listener is called from the watcher thread.
+ *
+ * @author Aaron Ponti
+ */
+public class FolderWatcher {
+
+    /**
+     * Listener for changes in the watched folder.
+     *
+     * @author Aaron Ponti
+     */
+    public interface Listener {
+
+        /**
+         * Called when a batch of changes is complete.
+         *
+         * @param changedFiles Files and folders that were added, removed or
+         *                     modified. If events were lost, the set contains
+         *                     the watched folder itself.
+         */
+        public void folderChanged(Set<File> changedFiles);
+    }
+
+    /**
+     * Default time (in ms) without changes after which a batch is reported
+     */
+    public static final long DEFAULT_QUIET_PERIOD = 2000;
+
+    /**
+     * Default interval (in ms) between two scans of a polled folder
+     */
+    public static final long DEFAULT_POLL_INTERVAL = 5000;
+
+    /* File store types that do not (reliably) report remote changes */
+    private static final String[] NETWORK_FILE_STORES = { "cifs", "smb",
+            "nfs", "afp", "webdav", "fuse", "sshfs" };
+
+    /* Private instance variables */
+    private final File folder;
+    private final Listener listener;
+    private final long quietPeriod;
+    private final long pollInterval;
+    private final boolean forcePolling;
+    private WatchService watchService = null;
+    private Thread thread = null;
+    private volatile boolean running = false;
+    private boolean polling = false;
+
+    /**
+     * Constructor
+     *
+     * @param folder   Folder to be watched (recursively).
+     * @param listener Listener to be notified of the changes.
+     */
+    public FolderWatcher(File folder, Listener listener) {
+        this(folder, listener, DEFAULT_QUIET_PERIOD, DEFAULT_POLL_INTERVAL,
+                false);
+    }
+
+    /**
+     * Alternative constructor
+     *
+     * @param folder       Folder to be watched (recursively).
+     * @param listener     Listener to be notified of the changes.
+     * @param quietPeriod  Time (in ms) without changes after which a batch
+     *                     is reported.
+     * @param pollInterval Interval (in ms) between two scans of a polled
+     *                     folder.
+     * @param forcePolling Set to true to poll the folder even if the
+     *                     WatchService could be used.
+     */
+    public FolderWatcher(File folder, Listener listener, long quietPeriod,
+            long pollInterval, boolean forcePolling) {
+        this.folder = folder;
+        this.listener = listener;
+        this.quietPeriod = quietPeriod;
+        this.pollInterval = pollInterval;
+        this.forcePolling = forcePolling;
+    }
+
+    /**
+     * Return the watched folder.
+     *
+     * @return watched folder.
+     */
+    public File getFolder() {
+        return folder;
+    }
+
+    /**
+     * Return true if the folder is polled instead of being watched through
+     * the WatchService. This is only defined after start() was called.
+     *
+     * @return true if the folder is polled, false otherwise.
+     */
+    public synchronized boolean isPolling() {
+        return polling;
+    }
+
+    /**
+     * Start watching the folder. Calling start() on a running watcher has no
+     * effect.
+     */
+    public synchronized void start() {
+
+        if (thread != null) {
+            return;
+        }
+
+        // Try the WatchService first, unless the folder is on a network share
+        polling = forcePolling || isOnNetworkShare(folder);
+        if (!polling) {
+            try {
+                watchService = FileSystems.getDefault().newWatchService();
+                registerAll(watchService, folder.toPath(), null);
+            } catch (IOException | UnsupportedOperationException e) {
+                closeWatchService();
+                polling = true;
+            }
+        }
+
+        // Changes are reported relative to the state of the folder when
+        // start() is called
+        final Map<File, long[]> initialState;
+        if (polling) {
+            initialState = snapshot(folder);
+        } else {
+            initialState = null;
+        }
+
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (initialState != null) {
+                    poll(initialState);
+                } else {
+                    watch();
+                }
+            }
+        }, "Folder watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop watching the folder. Changes that were not reported yet are
+     * discarded.
+     */
+    public synchronized void stop() {
+
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+        closeWatchService();
+    }
+
+    /**
+     * Check whether a folder is on a network share.
+     *
+     * @param folder Folder to check.
+     * @return true if the folder is (or may be) on a network share.
+     */
+    public static boolean isOnNetworkShare(File folder) {
+
+        // UNC paths on Windows
+        if (folder.getPath().startsWith("\\\\")) {
+            return true;
+        }
+
+        String type;
+        try {
+            type = Files.getFileStore(folder.toPath()).type().toLowerCase();
+        } catch (IOException e) {
+            // Better safe than sorry
+            return true;
+        }
+        for (String networkType : NETWORK_FILE_STORES) {
+            if (type.contains(networkType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Collect the events from the WatchService and report them once no
+     * new events arrived for the quiet period.
+     */
+    private void watch() {
+
+        // stop() clears the field
+        WatchService service;
+        synchronized (this) {
+            service = watchService;
+        }
+        if (service == null) {
+            return;
+        }
+
+        Set<File> changes = new HashSet<File>();
+
+        while (running) {
+
+            // Wait indefinitely for the first event of a batch, and for
+            // at most the quiet period for the next ones
+            WatchKey key;
+            try {
+                if (changes.isEmpty()) {
+                    key = service.take();
+                } else {
+                    key = service.poll(quietPeriod,
+                            TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                // The WatchService was closed by stop()
+                return;
+            }
+
+            // The folder has been quiet: report the changes
+            if (key == null) {
+                notifyListener(changes);
+                changes = new HashSet<File>();
+                continue;
+            }
+
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+
+                // Events were lost
+                if (event.kind() == OVERFLOW) {
+                    changes.add(folder);
+                    continue;
+                }
+
+                Path child = dir.resolve((Path) event.context());
+                changes.add(child.toFile());
+
+                // Watch new subfolders as well. Their content may have been
+                // created before they were registered, so it is reported
+                // as changed.
+                if (event.kind() == ENTRY_CREATE
+                        && Files.isDirectory(child)) {
+                    try {
+                        registerAll(service, child, changes);
+                    } catch (IOException | RuntimeException e) {
+                        changes.add(folder);
+                    }
+                }
+            }
+
+            // Folders that were deleted can no longer be watched
+            key.reset();
+        }
+    }
+
+    /**
+     * Compare the state of the folder tree at regular intervals and report
+     * the changes once two consecutive scans found no new ones.
+     *
+     * @param initialState State of the folder tree when polling started.
+     */
+    private void poll(Map<File, long[]> initialState) {
+
+        Map<File, long[]> previous = initialState;
+        Set<File> changes = new HashSet<File>();
+
+        while (running) {
+
+            try {
+                Thread.sleep(pollInterval);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            Map<File, long[]> current = snapshot(folder);
+            Set<File> newChanges = new HashSet<File>();
+            for (File file : current.keySet()) {
+                long[] before = previous.get(file);
+                long[] after = current.get(file);
+                if (before == null || before[0] != after[0]
+                        || before[1] != after[1]) {
+                    newChanges.add(file);
+                }
+            }
+            for (File file : previous.keySet()) {
+                if (!current.containsKey(file)) {
+                    newChanges.add(file);
+                }
+            }
+            previous = current;
+
+            // Still changing: wait for the next scan
+            if (!newChanges.isEmpty()) {
+                changes.addAll(newChanges);
+                continue;
+            }
+
+            // The folder has been quiet: report the changes
+            if (!changes.isEmpty()) {
+                notifyListener(changes);
+                changes = new HashSet<File>();
+            }
+        }
+    }
+
+    /**
+     * Return the modification time and size of all entries in a folder
+     * tree. The attributes are read once per entry, while walking the tree.
+     *
+     * @param root Root of the folder tree.
+     * @return map of the entries to their modification time and size.
+     */
+    private static Map<File, long[]> snapshot(File root) {
+
+        final Map<File, long[]> entries = new HashMap<File, long[]>();
+        try {
+            Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir,
+                        BasicFileAttributes attrs) {
+                    entries.put(dir.toFile(), new long[] {
+                            attrs.lastModifiedTime().toMillis(), 0 });
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file,
+                        BasicFileAttributes attrs) {
+                    entries.put(file.toFile(), new long[] {
+                            attrs.lastModifiedTime().toMillis(),
+                            attrs.size() });
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file,
+                        IOException e) {
+                    // The entry may have been deleted in the meanwhile
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            // Keep what was collected
+        }
+        return entries;
+    }
+
+    /**
+     * Register a folder and all its subfolders with the WatchService.
+     *
+     * @param service WatchService.
+     * @param root    Folder to be registered.
+     * @param entries If not null, all entries found below root are added to
+     *                this set.
+     * @throws IOException if a folder could not be registered.
+     */
+    private static void registerAll(final WatchService service,
+            final Path root, final Set<File> entries) throws IOException {
+
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir,
+                    BasicFileAttributes attrs) throws IOException {
+                dir.register(service, ENTRY_CREATE, ENTRY_DELETE,
+                        ENTRY_MODIFY);
+                if (entries != null && !dir.equals(root)) {
+                    entries.add(dir.toFile());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file,
+                    BasicFileAttributes attrs) {
+                if (entries != null) {
+                    entries.add(file.toFile());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Report a batch of changes to the listener.
+     *
+     * @param changes Changed files and folders.
+     */
+    private void notifyListener(Set<File> changes) {
+        if (!running) {
+            return;
+        }
+        try {
+            listener.folderChanged(changes);
+        } catch (RuntimeException e) {
+            // Keep watching
+            System.err.println("Folder watcher: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Close the WatchService if it is open.
+     */
+    private synchronized void closeWatchService() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+            watchService = null;
+        }
+    }
+
+}
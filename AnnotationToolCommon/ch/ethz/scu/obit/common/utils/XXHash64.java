@@ -0,0 +1,254 @@
+package ch.ethz.scu.obit.common.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streaming implementation of the xxHash64 non-cryptographic hash function.
+ *
+ * xxHash64 is fast enough to hash large files at the speed they are read
+ * from disk: it is used to recognize files with identical contents. It must
+ * not be used for security purposes.
+ *
+ * @author Aaron Ponti
+ */
+public class XXHash64 {
+
+    /**
+     * Size of the chunks of a file that are read at once.
+     */
+    public static final int CHUNK_SIZE = 1024 * 1024;
+
+    /* Read buffer of each thread, reused for all the files it hashes */
+    private static final ThreadLocal<ByteBuffer> readBuffers =
+            new ThreadLocal<ByteBuffer>() {
+                @Override
+                protected ByteBuffer initialValue() {
+                    return ByteBuffer.allocateDirect(CHUNK_SIZE);
+                }
+            };
+
+    /* Constants of the algorithm */
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+    /* Size of the stripes processed by the main loop */
+    private static final int STRIPE_SIZE = 32;
+
+    /* Private instance variables */
+    private final long seed;
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+    private long totalLength;
+    private final byte[] memory = new byte[STRIPE_SIZE];
+    private final ByteBuffer memoryBuffer =
+            ByteBuffer.wrap(memory).order(ByteOrder.LITTLE_ENDIAN);
+    private int memorySize;
+
+    /**
+     * Constructor: a hash with seed 0.
+     */
+    public XXHash64() {
+        this(0);
+    }
+
+    /**
+     * Alternative constructor
+     *
+     * @param seed Seed of the hash.
+     */
+    public XXHash64(long seed) {
+        this.seed = seed;
+        reset();
+    }
+
+    /**
+     * Reset the hash to its initial state.
+     */
+    public void reset() {
+        v1 = seed + PRIME64_1 + PRIME64_2;
+        v2 = seed + PRIME64_2;
+        v3 = seed;
+        v4 = seed - PRIME64_1;
+        totalLength = 0;
+        memorySize = 0;
+    }
+
+    /**
+     * Add the remaining bytes of a buffer to the hash. The position of the
+     * buffer is moved to its limit.
+     *
+     * @param buffer Buffer with the bytes to add.
+     */
+    public void update(ByteBuffer buffer) {
+
+        ByteBuffer input = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(buffer.limit());
+        totalLength += input.remaining();
+
+        // Complete the stripe left over by the previous update
+        if (memorySize > 0) {
+            int n = Math.min(STRIPE_SIZE - memorySize, input.remaining());
+            input.get(memory, memorySize, n);
+            memorySize += n;
+            if (memorySize < STRIPE_SIZE) {
+                return;
+            }
+            processStripe(memoryBuffer, 0);
+            memorySize = 0;
+        }
+
+        // Process all complete stripes
+        int position = input.position();
+        int limit = input.limit() - STRIPE_SIZE;
+        while (position <= limit) {
+            processStripe(input, position);
+            position += STRIPE_SIZE;
+        }
+
+        // Keep the rest for the next update
+        input.position(position);
+        memorySize = input.remaining();
+        input.get(memory, 0, memorySize);
+    }
+
+    /**
+     * Add bytes to the hash.
+     *
+     * @param bytes  Array with the bytes to add.
+     * @param offset Offset of the first byte to add.
+     * @param length Number of bytes to add.
+     */
+    public void update(byte[] bytes, int offset, int length) {
+        update(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    /**
+     * Return the hash of all bytes added so far. More bytes can be added
+     * after this call.
+     *
+     * @return hash value.
+     */
+    public long getValue() {
+
+        long h;
+        if (totalLength >= STRIPE_SIZE) {
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+                    + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = mergeRound(h, v1);
+            h = mergeRound(h, v2);
+            h = mergeRound(h, v3);
+            h = mergeRound(h, v4);
+        } else {
+            h = seed + PRIME64_5;
+        }
+        h += totalLength;
+
+        // Process the bytes that do not fill a stripe
+        int position = 0;
+        while (position + 8 <= memorySize) {
+            h ^= round(0, memoryBuffer.getLong(position));
+            h = Long.rotateLeft(h, 27) * PRIME64_1 + PRIME64_4;
+            position += 8;
+        }
+        if (position + 4 <= memorySize) {
+            h ^= (memoryBuffer.getInt(position) & 0xFFFFFFFFL) * PRIME64_1;
+            h = Long.rotateLeft(h, 23) * PRIME64_2 + PRIME64_3;
+            position += 4;
+        }
+        while (position < memorySize) {
+            h ^= (memory[position] & 0xFFL) * PRIME64_5;
+            h = Long.rotateLeft(h, 11) * PRIME64_1;
+            position++;
+        }
+
+        // Avalanche
+        h ^= h >>> 33;
+        h *= PRIME64_2;
+        h ^= h >>> 29;
+        h *= PRIME64_3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    /**
+     * Return the hash of the contents of a file. The file is read in chunks
+     * of CHUNK_SIZE bytes into a direct buffer that each thread reuses.
+     *
+     * The file is not memory-mapped: on Windows, a mapping keeps the file
+     * locked until it is garbage collected, and the file could not be moved
+     * or deleted in the meanwhile.
+     *
+     * @param file File to hash.
+     * @return hash value.
+     * @throws IOException if the file could not be read.
+     */
+    public static long hash(File file) throws IOException {
+
+        XXHash64 hash = new XXHash64();
+        ByteBuffer buffer = readBuffers.get();
+        FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ);
+        try {
+            while (true) {
+                buffer.clear();
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+                buffer.flip();
+                hash.update(buffer);
+            }
+        } finally {
+            channel.close();
+        }
+        return hash.getValue();
+    }
+
+    /**
+     * Process a stripe of 32 bytes.
+     *
+     * @param buffer   Little-endian buffer with the stripe.
+     * @param position Position of the stripe in the buffer.
+     */
+    private void processStripe(ByteBuffer buffer, int position) {
+        v1 = round(v1, buffer.getLong(position));
+        v2 = round(v2, buffer.getLong(position + 8));
+        v3 = round(v3, buffer.getLong(position + 16));
+        v4 = round(v4, buffer.getLong(position + 24));
+    }
+
+    /**
+     * Add a lane of 8 bytes to an accumulator.
+     *
+     * @param accumulator Accumulator.
+     * @param lane        8 bytes of input.
+     * @return new accumulator value.
+     */
+    private static long round(long accumulator, long lane) {
+        accumulator += lane * PRIME64_2;
+        accumulator = Long.rotateLeft(accumulator, 31);
+        return accumulator * PRIME64_1;
+    }
+
+    /**
+     * Merge an accumulator into the hash.
+     *
+     * @param hash        Hash.
+     * @param accumulator Accumulator.
+     * @return new hash value.
+     */
+    private static long mergeRound(long hash, long accumulator) {
+        hash ^= round(0, accumulator);
+        return hash * PRIME64_1 + PRIME64_4;
+    }
+
+}
@@ -29,7 +29,6 @@ import javax.swing.event.DocumentListener;
 import ch.ethz.scu.obit.at.gui.editors.data.AbstractEditor;
 import ch.ethz.scu.obit.at.gui.viewers.ObserverActionParameters;
 import ch.ethz.scu.obit.at.gui.viewers.data.AbstractViewer;
-import ch.ethz.scu.obit.at.gui.viewers.data.model.AbstractNode;
 import ch.ethz.scu.obit.at.gui.viewers.data.model.ExperimentNode;
 import ch.ethz.scu.obit.at.gui.viewers.openbis.OpenBISViewer;
 import ch.ethz.scu.obit.at.gui.viewers.openbis.model.OpenBISProjectNode;
@@ -37,8 +36,9 @@ import ch.ethz.scu.obit.common.settings.GlobalSettingsManager;
 import ch.ethz.scu.obit.common.utils.QueryOS;
 import ch.ethz.scu.obit.flow.gui.editors.data.model.FlowMetadataMapper;
 import ch.ethz.scu.obit.flow.processors.data.model.Experiment;
+import ch.ethz.scu.obit.flow.processors.data.model.Specimen;
 import ch.ethz.scu.obit.flow.processors.data.model.Tray;
-import ch.ethz.scu.obit.processors.data.model.AbstractDescriptor;
+import ch.ethz.scu.obit.flow.processors.data.model.Tube;
 import ch.ethz.scu.obit.processors.data.model.DatasetDescriptor;
 import ch.ethz.scu.obit.processors.data.model.SampleDescriptor;
 import ch.ethz.scu.obit.processors.data.model.Tag;
@@ -104,6 +104,22 @@ public final class FlowEditor extends AbstractEditor {
         return identifier;
     }
 
+    /**
+     * Return the experiment currently displayed in the editor, so that its
+     * tray geometry combo boxes are rebuilt after an incremental scan.
+     */
+    @Override
+    protected ExperimentNode getCurrentExperimentNode() {
+
+        // The editor may not have mapped the metadata yet
+        if (currentExperimentIndex < 0
+                || currentExperimentIndex >= metadataMappersList.size()
+                || currentExperimentIndex >= experiments.size()) {
+            return null;
+        }
+        return experiments.get(currentExperimentIndex);
+    }
+
     /**
      * Once the metadata has been completely filled, this method makes sure to
      * update the data model (generated by the Processor) to be ready to be
@@ -143,29 +159,16 @@ public final class FlowEditor extends AbstractEditor {
             expUserAttributes.put("tags", expDescr.getTagIdentifierList());
             expDescr.addUserAttributes(expUserAttributes);
 
-            // Now get the Trays and Specimens children of the Experiment
-            for (int i = 0; i < expNode.getChildCount(); i++) {
-
-                // Get the i-th child node
-                AbstractNode firstLevelSampleNode = (AbstractNode) expNode
-                        .getChildAt(i);
-
-                // Get the Sample Descriptor
-                SampleDescriptor firstLevelSample = (SampleDescriptor) firstLevelSampleNode
-                        .getUserObject();
-
-                // Make sure we have a Tray or a Specimen
-                assert ((firstLevelSample.getType().equals("Tray")
-                        || firstLevelSample.getType().equals("Specimen")));
+            // Now go over the Trays and Specimens of the Experiment. The data
+            // model is used, since the tree only contains the nodes that were
+            // expanded.
+            List<SampleDescriptor> firstLevelSamples = new ArrayList<SampleDescriptor>();
+            firstLevelSamples.addAll(expDescr.trays.values());
+            firstLevelSamples.addAll(expDescr.specimens.values());
+            for (SampleDescriptor firstLevelSample : firstLevelSamples) {
 
                 // Set the openBIS space and experiment identifiers
-                Map<String, String> firstLevelOpenBISAttributes = new Hashtable<String, String>();
-                firstLevelOpenBISAttributes.put("openBISSpaceIdentifier",
-                        metadata.getOpenBISSpaceIdentifier());
-                firstLevelOpenBISAttributes.put("openBISExperimentIdentifier",
-                        metadata.getOpenBISExerimentIdentifier());
-                firstLevelSample
-                        .addOpenBISAttributes(firstLevelOpenBISAttributes);
+                addOpenBISAttributes(firstLevelSample, metadata);
 
                 // In case we have Trays, we set their geometry
                 if (firstLevelSample.getType().equals("Tray")) {
@@ -175,102 +178,24 @@ public final class FlowEditor extends AbstractEditor {
                             tray.getGeometry());
                     firstLevelSample
                             .addUserAttributes(firstLevelUserAttributes);
-                }
-
-                // Now go over the children
-                for (int j = 0; j < firstLevelSampleNode.getChildCount(); j++) {
-
-                    // Get the j-th child node
-                    AbstractNode secondLevelSampleNode = (AbstractNode) firstLevelSampleNode
-                            .getChildAt(j);
-
-                    // Get the Sample Descriptor
-                    SampleDescriptor secondLevelSample = (SampleDescriptor) secondLevelSampleNode
-                            .getUserObject();
-
-                    // Make sure we have a Specimen or a Tube
-                    assert ((secondLevelSample.getType().equals("Specimen")
-                            || secondLevelSample.getType().equals("Tube")));
-
-                    // Set the openBIS space and experiment identifiers
-                    Map<String, String> secondLevelOpenBISAttributes = new Hashtable<String, String>();
-                    secondLevelOpenBISAttributes.put("openBISSpaceIdentifier",
-                            metadata.getOpenBISSpaceIdentifier());
-                    secondLevelOpenBISAttributes.put(
-                            "openBISExperimentIdentifier",
-                            metadata.getOpenBISExerimentIdentifier());
-                    secondLevelSample
-                            .addOpenBISAttributes(secondLevelOpenBISAttributes);
-
-                    // Now go over the children
-                    for (int k = 0; k < secondLevelSampleNode
-                            .getChildCount(); k++) {
-
-                        // Get the j-th child node
-                        AbstractNode thirdLevelSampleNode = (AbstractNode) secondLevelSampleNode
-                                .getChildAt(k);
-
-                        // A third-level node can contain a Tube or an FCS file
-                        AbstractDescriptor abstractSample = (AbstractDescriptor) thirdLevelSampleNode
-                                .getUserObject();
-
-                        // Make sure we have a Well or a FCSFile
-                        assert ((abstractSample.getType().equals("Well")
-                                || abstractSample.getType().equals("FCSFile")));
-
-                        if (abstractSample.getType().equals("Well")) {
-
-                            // Cast
-                            SampleDescriptor thirdLevelSample = (SampleDescriptor) thirdLevelSampleNode
-                                    .getUserObject();
-
-                            // Set the openBIS space and experiment identifiers
-                            Map<String, String> thirdLevelOpenBISAttributes = new Hashtable<String, String>();
-                            thirdLevelOpenBISAttributes.put(
-                                    "openBISSpaceIdentifier",
-                                    metadata.getOpenBISSpaceIdentifier());
-                            thirdLevelOpenBISAttributes.put(
-                                    "openBISExperimentIdentifier",
-                                    metadata.getOpenBISExerimentIdentifier());
-                            thirdLevelSample.addOpenBISAttributes(
-                                    thirdLevelOpenBISAttributes);
-
-                            // And now we set up the associated FCS file
-
-                            // Get the child (one!): the FCS file
-                            assert (thirdLevelSampleNode.getChildCount() == 1);
-
-                            AbstractNode fourthLevelSampleNode = (AbstractNode) thirdLevelSampleNode
-                                    .getChildAt(0);
-                            DatasetDescriptor fcsFile = (DatasetDescriptor) fourthLevelSampleNode
-                                    .getUserObject();
-
-                            // Set the openBIS space and experiment identifiers
-                            Map<String, String> fourthLevelOpenBISAttributes = new Hashtable<String, String>();
-                            fourthLevelOpenBISAttributes.put(
-                                    "openBISExperimentIdentifier",
-                                    metadata.getOpenBISExerimentIdentifier());
-                            fcsFile.addOpenBISAttributes(
-                                    fourthLevelOpenBISAttributes);
-
-                        } else {
-
-                            // Here we have an FCS file
-
-                            // Cast
-                            DatasetDescriptor fcsFile = (DatasetDescriptor) thirdLevelSampleNode
-                                    .getUserObject();
-
-                            // Set the openBIS space and experiment identifiers
-                            Map<String, String> fourthLevelOpenBISAttributes = new Hashtable<String, String>();
-                            fourthLevelOpenBISAttributes.put(
-                                    "openBISExperimentIdentifier",
-                                    metadata.getOpenBISExerimentIdentifier());
-                            fcsFile.addOpenBISAttributes(
-                                    fourthLevelOpenBISAttributes);
 
+                    // Now go over the Specimens and their Wells
+                    for (Specimen specimen : tray.specimens.values()) {
+                        addOpenBISAttributes(specimen, metadata);
+                        for (Tube well : specimen.tubes.values()) {
+                            addOpenBISAttributes(well, metadata);
+                            addOpenBISAttributes(well.fcsFile, metadata);
                         }
                     }
+
+                } else {
+
+                    // Now go over the Tubes
+                    Specimen specimen = (Specimen) firstLevelSample;
+                    for (Tube tube : specimen.tubes.values()) {
+                        addOpenBISAttributes(tube, metadata);
+                        addOpenBISAttributes(tube.fcsFile, metadata);
+                    }
                 }
             }
         }
@@ -278,6 +203,37 @@ public final class FlowEditor extends AbstractEditor {
         return true;
     }
 
+    /**
+     * Set the openBIS space and experiment identifiers of a Tray, Specimen,
+     * Tube or Well.
+     *
+     * @param sample   Sample descriptor.
+     * @param metadata Metadata mapper of the experiment.
+     */
+    private void addOpenBISAttributes(SampleDescriptor sample,
+            FlowMetadataMapper metadata) {
+        Map<String, String> openBISAttributes = new Hashtable<String, String>();
+        openBISAttributes.put("openBISSpaceIdentifier",
+                metadata.getOpenBISSpaceIdentifier());
+        openBISAttributes.put("openBISExperimentIdentifier",
+                metadata.getOpenBISExerimentIdentifier());
+        sample.addOpenBISAttributes(openBISAttributes);
+    }
+
+    /**
+     * Set the openBIS experiment identifier of an FCS file.
+     *
+     * @param fcsFile  FCS file descriptor.
+     * @param metadata Metadata mapper of the experiment.
+     */
+    private void addOpenBISAttributes(DatasetDescriptor fcsFile,
+            FlowMetadataMapper metadata) {
+        Map<String, String> openBISAttributes = new Hashtable<String, String>();
+        openBISAttributes.put("openBISExperimentIdentifier",
+                metadata.getOpenBISExerimentIdentifier());
+        fcsFile.addOpenBISAttributes(openBISAttributes);
+    }
+
     /**
      * Update metadata and UI. Since the number of widgets changes between
      * experiments, we force recreation.
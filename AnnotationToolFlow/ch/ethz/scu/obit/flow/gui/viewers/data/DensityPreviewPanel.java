@@ -0,0 +1,462 @@
+package ch.ethz.scu.obit.flow.gui.viewers.data;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
+import java.awt.Insets;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.JComboBox;
+import javax.swing.JComponent;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.SwingWorker;
+
+import ch.ethz.scu.obit.flow.readers.AxisTransform;
+import ch.ethz.scu.obit.flow.readers.FCSReader;
+import ch.ethz.scu.obit.flow.readers.Hyperlog;
+import ch.ethz.scu.obit.flow.readers.Linear;
+import ch.ethz.scu.obit.flow.readers.QuantileSketch;
+
+/**
+ * Preview of the events of an FCS file as a 2D density plot of two channels.
+ *
+ * The events are sampled from the file in the background, in passes of
+ * increasing size: a coarse plot of a small sample is shown first and is
+ * refined as more events are read. The DATA segment is never loaded: at most
+ * MAX_EVENTS events per channel are kept in memory. Both axes are displayed
+ * with a Hyperlog transform estimated from the sampled events. Selecting
+ * another file or other channels cancels the running preview.
+ *
+ * @author Aaron Ponti
+ */
+public final class DensityPreviewPanel extends JPanel {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Maximum number of events sampled for a preview.
+     */
+    public static final int MAX_EVENTS = 200000;
+
+    /**
+     * Number of bins of the density plot per axis.
+     */
+    public static final int BINS = 256;
+
+    /* Number of events sampled by the successive passes of a preview */
+    private static final int[] PASS_SIZES = { 2000, 20000, MAX_EVENTS };
+
+    /* Private instance variables */
+    private final JComboBox<String> xChannel;
+    private final JComboBox<String> yChannel;
+    private final PlotCanvas plot;
+    private final JLabel status;
+    private File file = null;
+    private boolean isUpdatingChannels = false;
+    private Worker worker = null;
+
+    /**
+     * Constructor
+     */
+    public DensityPreviewPanel() {
+
+        // Set a grid bag layout
+        setLayout(new GridBagLayout());
+
+        // Common constraints
+        GridBagConstraints constraints = new GridBagConstraints();
+        constraints.anchor = GridBagConstraints.NORTHWEST;
+        constraints.fill = GridBagConstraints.BOTH;
+
+        // Add a simple label
+        JLabel title = new JLabel("<html><b>Preview</b></html>");
+        constraints.gridx = 0;
+        constraints.gridy = 0;
+        constraints.weightx = 1.0;
+        constraints.weighty = 0.0;
+        constraints.gridwidth = 4;
+        constraints.insets = new Insets(5, 0, 5, 5);
+        add(title, constraints);
+
+        // Redraw the preview when another channel is chosen
+        ActionListener channelListener = new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (!isUpdatingChannels) {
+                    start();
+                }
+            }
+        };
+
+        // Add the channel selectors
+        xChannel = new JComboBox<String>();
+        xChannel.addActionListener(channelListener);
+        yChannel = new JComboBox<String>();
+        yChannel.addActionListener(channelListener);
+        constraints.gridy = 1;
+        constraints.gridwidth = 1;
+        constraints.weightx = 0.0;
+        constraints.insets = new Insets(0, 0, 5, 5);
+        constraints.gridx = 0;
+        add(new JLabel("X"), constraints);
+        constraints.gridx = 2;
+        add(new JLabel("Y"), constraints);
+        constraints.weightx = 0.5;
+        constraints.gridx = 1;
+        add(xChannel, constraints);
+        constraints.gridx = 3;
+        add(yChannel, constraints);
+
+        // Add the plot
+        plot = new PlotCanvas();
+        constraints.gridx = 0;
+        constraints.gridy = 2;
+        constraints.weightx = 1.0;
+        constraints.weighty = 1.0;
+        constraints.gridwidth = 4;
+        constraints.insets = new Insets(0, 0, 5, 5);
+        add(plot, constraints);
+
+        // Add the status
+        status = new JLabel(" ");
+        constraints.gridy = 3;
+        constraints.weighty = 0.0;
+        add(status, constraints);
+    }
+
+    /**
+     * Show the preview of an FCS file. Only the keywords of the file must be
+     * known: the events are read in the background. By default, the forward
+     * and side scatter are plotted (or the first two channels).
+     *
+     * @param file     FCS file.
+     * @param keywords All keywords of the FCS file (FCSReader.getAllKeywords()).
+     */
+    public void setFile(File file, Map<String, String> keywords) {
+
+        cancel();
+        this.file = file;
+
+        // Fill the channel selectors
+        int nChannels = 0;
+        try {
+            nChannels = Integer.parseInt(keywords.get("$PAR").trim());
+        } catch (Exception e) {
+            // No channels
+        }
+        int x = -1;
+        int y = -1;
+        isUpdatingChannels = true;
+        xChannel.removeAllItems();
+        yChannel.removeAllItems();
+        for (int i = 1; i <= nChannels; i++) {
+            String name = keywords.get("$P" + i + "N");
+            if (name == null) {
+                name = "<not set>";
+            }
+            String label = keywords.get("$P" + i + "S");
+            if (label != null && !label.isEmpty()) {
+                name = name + " (" + label + ")";
+            }
+            xChannel.addItem(name);
+            yChannel.addItem(name);
+            if (x == -1 && name.contains("FSC")) {
+                x = i - 1;
+            } else if (y == -1 && name.contains("SSC")) {
+                y = i - 1;
+            }
+        }
+        if (x == -1 || y == -1) {
+            x = 0;
+            y = Math.min(1, nChannels - 1);
+        }
+        if (nChannels > 0) {
+            xChannel.setSelectedIndex(x);
+            yChannel.setSelectedIndex(y);
+        }
+        isUpdatingChannels = false;
+
+        start();
+    }
+
+    /**
+     * Clear the preview (and cancel it if it is still running).
+     */
+    public void clear() {
+
+        cancel();
+        file = null;
+        isUpdatingChannels = true;
+        xChannel.removeAllItems();
+        yChannel.removeAllItems();
+        isUpdatingChannels = false;
+        plot.setImage(null);
+        status.setText(" ");
+    }
+
+    /**
+     * Start the preview of the current file with the chosen channels.
+     */
+    private void start() {
+
+        cancel();
+        plot.setImage(null);
+        if (file == null || xChannel.getSelectedIndex() < 0
+                || yChannel.getSelectedIndex() < 0) {
+            status.setText(" ");
+            return;
+        }
+        status.setText("Reading the events of " + file.getName() + "...");
+        worker = new Worker(file, xChannel.getSelectedIndex(),
+                yChannel.getSelectedIndex());
+        worker.execute();
+    }
+
+    /**
+     * Cancel the running preview (if any).
+     */
+    private void cancel() {
+        if (worker != null) {
+            worker.cancel(true);
+            worker = null;
+        }
+    }
+
+    /**
+     * Density plot of a sample of events.
+     */
+    private static class Pass {
+
+        final BufferedImage image;
+        final int numSampled;
+        final int numEvents;
+
+        /**
+         * Constructor
+         *
+         * @param image      Density plot.
+         * @param numSampled Number of sampled events.
+         * @param numEvents  Total number of events in the file.
+         */
+        Pass(BufferedImage image, int numSampled, int numEvents) {
+            this.image = image;
+            this.numSampled = numSampled;
+            this.numEvents = numEvents;
+        }
+    }
+
+    /**
+     * Samples the events of a file in passes of increasing size and
+     * publishes the density plot of each pass.
+     */
+    private class Worker extends SwingWorker<Void, Pass> {
+
+        final private File file;
+        final private int xIndex;
+        final private int yIndex;
+
+        /**
+         * Constructor
+         *
+         * @param file   FCS file.
+         * @param xIndex Index of the channel on the X axis.
+         * @param yIndex Index of the channel on the Y axis.
+         */
+        public Worker(File file, int xIndex, int yIndex) {
+            this.file = file;
+            this.xIndex = xIndex;
+            this.yIndex = yIndex;
+        }
+
+        @Override
+        public Void doInBackground() throws IOException {
+
+            // Only the metadata is parsed
+            FCSReader reader = new FCSReader(file, false);
+            if (!reader.parse()) {
+                throw new IOException("Could not parse " + file.getName());
+            }
+            int nEvents = reader.numEvents();
+            if (nEvents == 0) {
+                publish(new Pass(null, 0, 0));
+                return null;
+            }
+
+            int[] columns = { xIndex, yIndex };
+            for (int size : PASS_SIZES) {
+                if (isCancelled()) {
+                    return null;
+                }
+                int n = Math.min(size, nEvents);
+                float[][] values = reader.readSampledEvents(columns, 0,
+                        nEvents / n, n);
+                publish(new Pass(render(values[0], values[1], n), n,
+                        nEvents));
+                if (n == nEvents) {
+                    break;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        protected void process(List<Pass> passes) {
+            if (isCancelled()) {
+                return;
+            }
+            Pass pass = passes.get(passes.size() - 1);
+            plot.setImage(pass.image);
+            if (pass.numEvents == 0) {
+                status.setText(file.getName() + " contains no events.");
+            } else {
+                status.setText(String.format("%,d of %,d events",
+                        pass.numSampled, pass.numEvents));
+            }
+        }
+
+        @Override
+        public void done() {
+            try {
+                get();
+            } catch (CancellationException e) {
+                // Another file or channel was chosen
+            } catch (InterruptedException e) {
+                // Cancelled
+            } catch (ExecutionException e) {
+                status.setText("Could not read the events of "
+                        + file.getName() + "!");
+            }
+        }
+    }
+
+    /**
+     * Render the density plot of a sample of events. The values are
+     * transformed in place.
+     *
+     * @param x Values of the channel on the X axis.
+     * @param y Values of the channel on the Y axis.
+     * @param n Number of events.
+     * @return density plot (BINS x BINS pixels).
+     */
+    private static BufferedImage render(float[] x, float[] y, int n) {
+
+        // Display scale
+        createTransform(x, n).transform(x, x, 0, n);
+        createTransform(y, n).transform(y, y, 0, n);
+
+        // Bin the events (the Y axis points up)
+        int[] counts = new int[BINS * BINS];
+        int max = 0;
+        for (int i = 0; i < n; i++) {
+            if (!(x[i] >= 0.0f && x[i] <= 1.0f && y[i] >= 0.0f
+                    && y[i] <= 1.0f)) {
+                continue;
+            }
+            int bx = Math.min((int) (x[i] * BINS), BINS - 1);
+            int by = Math.min((int) (y[i] * BINS), BINS - 1);
+            int k = (BINS - 1 - by) * BINS + bx;
+            counts[k]++;
+            if (counts[k] > max) {
+                max = counts[k];
+            }
+        }
+
+        // Color the bins by log density (empty bins are white)
+        int[] rgb = new int[BINS * BINS];
+        double logMax = Math.log1p(max);
+        for (int k = 0; k < rgb.length; k++) {
+            if (counts[k] == 0) {
+                rgb[k] = 0xFFFFFF;
+            } else {
+                float t = (float) (Math.log1p(counts[k]) / logMax);
+                rgb[k] = Color.HSBtoRGB(0.67f * (1.0f - t), 1.0f, 1.0f);
+            }
+        }
+        BufferedImage image = new BufferedImage(BINS, BINS,
+                BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, BINS, BINS, rgb, 0, BINS);
+        return image;
+    }
+
+    /**
+     * Create the display transform for a sample of values: a Hyperlog
+     * transform with robust parameters, or a linear transform if the values
+     * do not span enough decades.
+     *
+     * @param values Sampled values.
+     * @param n      Number of values.
+     * @return transform to the display scale [0, 1].
+     */
+    private static AxisTransform createTransform(float[] values, int n) {
+
+        QuantileSketch sketch = new QuantileSketch();
+        sketch.update(values, 0, n);
+        double[] params = Hyperlog.estimateParamHeuristic(sketch);
+        try {
+            return new Hyperlog(params[0], params[1], params[2], params[3],
+                    BINS, Hyperlog.DEFAULT_LUT_SIZE,
+                    Hyperlog.DEFAULT_LUT_TOLERANCE);
+        } catch (Exception e) {
+            // Fall back to a linear scale
+        }
+        try {
+            return new Linear(Math.max(sketch.getMax(), 1.0));
+        } catch (Exception e) {
+            // Cannot happen: the top of scale is positive
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Draws the density plot scaled to its size.
+     */
+    private static class PlotCanvas extends JComponent {
+
+        private static final long serialVersionUID = 1L;
+
+        private BufferedImage image = null;
+
+        /**
+         * Constructor
+         */
+        PlotCanvas() {
+            setPreferredSize(new Dimension(200, 200));
+            setMinimumSize(new Dimension(100, 100));
+        }
+
+        /**
+         * Set the density plot to draw.
+         *
+         * @param image Density plot, or null to draw an empty plot.
+         */
+        void setImage(BufferedImage image) {
+            this.image = image;
+            repaint();
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            int w = getWidth() - 1;
+            int h = getHeight() - 1;
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, w, h);
+            if (image != null) {
+                g.drawImage(image, 0, 0, w, h, null);
+            }
+            g.setColor(Color.GRAY);
+            g.drawRect(0, 0, w, h);
+        }
+    }
+
+}
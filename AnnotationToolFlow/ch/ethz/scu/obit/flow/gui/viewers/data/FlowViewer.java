@@ -1,26 +1,42 @@
 package ch.ethz.scu.obit.flow.gui.viewers.data;
 
+import java.awt.GridBagConstraints;
+import java.awt.Insets;
 import java.awt.event.ActionEvent;
 import java.io.File;
 import java.io.IOException;
-
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.SwingUtilities;
+import javax.swing.event.TreeExpansionEvent;
 import javax.swing.event.TreeSelectionEvent;
+import javax.swing.event.TreeWillExpandListener;
 import javax.swing.table.DefaultTableModel;
+import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.DefaultTreeModel;
+import javax.swing.tree.ExpandVetoException;
 
 import ch.ethz.scu.obit.at.gui.viewers.ObserverActionParameters;
 import ch.ethz.scu.obit.at.gui.viewers.data.AbstractViewer;
+import ch.ethz.scu.obit.at.gui.viewers.data.model.AbstractLazyNode;
 import ch.ethz.scu.obit.at.gui.viewers.data.model.AbstractNode;
 import ch.ethz.scu.obit.at.gui.viewers.data.model.ExperimentNode;
 import ch.ethz.scu.obit.at.gui.viewers.data.model.RootNode;
 import ch.ethz.scu.obit.common.settings.GlobalSettingsManager;
-import ch.ethz.scu.obit.flow.gui.viewers.data.model.FCSFileNode;
-import ch.ethz.scu.obit.flow.gui.viewers.data.model.FCSFileParemeterListNode;
 import ch.ethz.scu.obit.flow.gui.viewers.data.model.SpecimenNode;
 import ch.ethz.scu.obit.flow.gui.viewers.data.model.TrayNode;
-import ch.ethz.scu.obit.flow.gui.viewers.data.model.TubeNode;
-import ch.ethz.scu.obit.flow.gui.viewers.data.model.WellNode;
 import ch.ethz.scu.obit.flow.processors.data.AbstractFlowProcessor;
 import ch.ethz.scu.obit.flow.processors.data.FlowProcessorFactory;
+import ch.ethz.scu.obit.flow.processors.data.FlowScanSession;
 import ch.ethz.scu.obit.flow.processors.data.model.Experiment;
 import ch.ethz.scu.obit.flow.processors.data.model.FCSFile;
 import ch.ethz.scu.obit.flow.processors.data.model.FCSFileParameterList;
@@ -30,6 +46,8 @@ import ch.ethz.scu.obit.flow.processors.data.model.Tube;
 import ch.ethz.scu.obit.flow.processors.data.model.UserFolder;
 import ch.ethz.scu.obit.flow.processors.data.model.Well;
 import ch.ethz.scu.obit.flow.readers.FCSReader;
+import ch.ethz.scu.obit.processors.ScanContext;
+import ch.ethz.scu.obit.processors.data.ScanSnapshot;
 
 /**
  * Simple graphical viewer for the AbstractFlowProcessor
@@ -38,6 +56,75 @@ import ch.ethz.scu.obit.flow.readers.FCSReader;
  */
 public final class FlowViewer extends AbstractViewer {
 
+    // Data model and scan session of the last valid scan: incremental scans
+    // update the data model and reuse the FCS files that did not change.
+    private UserFolder folderDescriptor = null;
+    private FlowScanSession scanSession = null;
+
+    // The snapshot of the user folder is only used by the first scan after
+    // the start: an explicit scan always walks the whole folder
+    private final AtomicBoolean snapshotLoaded = new AtomicBoolean(false);
+
+    // Processor of the last full scan and its context (to be applied to the
+    // model by applyScan() if the scan was not replaced in the meanwhile)
+    private ScanContext completedScanContext = null;
+    private AbstractFlowProcessor completedScanProcessor = null;
+
+    /**
+     * State of an incremental scan: the data model and the scan session it
+     * starts from and, once the changes are parsed, the processor that
+     * found them.
+     */
+    private static final class IncrementalScan {
+
+        final UserFolder folderDescriptor;
+        final FlowScanSession scanSession;
+        AbstractFlowProcessor processor = null;
+
+        IncrementalScan(UserFolder folderDescriptor,
+                FlowScanSession scanSession) {
+            this.folderDescriptor = folderDescriptor;
+            this.scanSession = scanSession;
+        }
+    }
+
+    // Maximum number of FCS files whose keywords are kept in memory
+    private static final int MAX_CACHED_KEYWORDS = 256;
+
+    // Reads the keywords of the selected FCS files in the background (daemon
+    // threads do not keep the application alive)
+    private final ExecutorService keywordLoader =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "FCS keyword loader");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    // Keywords of the FCS files selected last (least recently used first)
+    private final Map<File, Map<String, String>> keywordCache =
+            Collections.synchronizedMap(
+                    new LinkedHashMap<File, Map<String, String>>(16, 0.75f,
+                            true) {
+
+                        private static final long serialVersionUID = 1L;
+
+                        @Override
+                        protected boolean removeEldestEntry(
+                                Map.Entry<File, Map<String, String>> eldest) {
+                            return size() > MAX_CACHED_KEYWORDS;
+                        }
+                    });
+
+    // Number of the current selection in the tree: keywords read for an
+    // earlier selection are not shown
+    private final AtomicInteger selection = new AtomicInteger(0);
+
+    // Density plot of the selected FCS file
+    private final DensityPreviewPanel preview;
+
     /**
      * Constructor
      *
@@ -46,59 +133,275 @@ public final class FlowViewer extends AbstractViewer {
     public FlowViewer(GlobalSettingsManager globalSettingsManager) {
 
         super(globalSettingsManager);
+
+        // Add the preview below the tables
+        preview = new DensityPreviewPanel();
+        GridBagConstraints constraints = new GridBagConstraints();
+        constraints.anchor = GridBagConstraints.NORTHWEST;
+        constraints.fill = GridBagConstraints.BOTH;
+        constraints.gridx = 0;
+        constraints.gridy = 2;
+        constraints.weightx = 1.0;
+        constraints.weighty = 0.0;
+        constraints.gridwidth = 1;
+        constraints.insets = new Insets(0, 0, 0, 0);
+        panel.add(preview, constraints);
+
+        // The children of the trays, specimens, tubes and FCS files are only
+        // created when the nodes are expanded for the first time
+        tree.addTreeWillExpandListener(new TreeWillExpandListener() {
+
+            @Override
+            public void treeWillExpand(TreeExpansionEvent event)
+                    throws ExpandVetoException {
+                Object node = event.getPath().getLastPathComponent();
+                if (node instanceof AbstractLazyNode
+                        && ((AbstractLazyNode) node).loadChildren()) {
+                    ((DefaultTreeModel) tree.getModel())
+                            .nodeStructureChanged((AbstractLazyNode) node);
+                }
+            }
+
+            @Override
+            public void treeWillCollapse(TreeExpansionEvent event)
+                    throws ExpandVetoException {
+                // We do nothing
+            }
+        });
     }
 
     /**
-     * Parse the FCS folder and append the resulting tree to the root
+     * Parse the FCS folder. The resulting tree is appended to the root by
+     * applyScan().
      */
     @Override
-    public boolean parse(File userFolder) {
+    public boolean parse(File userFolder, ScanContext context) {
+
+        // The keywords of the files may have changed
+        keywordCache.clear();
 
-        // Process the user folder
+        // Process the user folder: on the first scan, the top-level folders
+        // that did not change since the last run are taken from its snapshot
         AbstractFlowProcessor flowprocessor;
         try {
-            flowprocessor = FlowProcessorFactory
-                    .createProcessor(userFolder.getCanonicalPath());
+            String folder = userFolder.getCanonicalPath();
+            ScanSnapshot snapshot = null;
+            if (snapshotLoaded.compareAndSet(false, true)) {
+                snapshot = ScanSnapshot.load(new File(folder));
+            }
+            flowprocessor = FlowProcessorFactory.createProcessor(folder,
+                    snapshot);
         } catch (IOException e) {
             outputPane.err(e.getMessage());
             return false;
         }
 
         // We parse. If parsing fails, we just return (the dataset is invalid).
-        if (!flowprocessor.parse()) {
-            outputPane.err("Could not parse the folder " + userFolder + "!");
+        if (!flowprocessor.parse(context)) {
+            if (!context.isCancelled()) {
+                outputPane.err(
+                        "Could not parse the folder " + userFolder + "!");
+            }
             flowprocessor = null;
             return false;
         }
 
+        // The scan was replaced by a new one in the meanwhile
+        if (context.isCancelled()) {
+            return false;
+        }
+
+        // Keep the result for the next start
+        saveSnapshot(flowprocessor);
+
+        // Keep the result for applyScan()
+        synchronized (this) {
+            completedScanContext = context;
+            completedScanProcessor = flowprocessor;
+        }
+
+        return flowprocessor.validator.isValid;
+    }
+
+    /**
+     * Append the tree built by parse() to the root, or list the invalid
+     * datasets it found.
+     */
+    @Override
+    protected boolean applyScan(ScanContext context, boolean status) {
+
+        // Take the result of the scan, if it is the one of this context
+        AbstractFlowProcessor flowprocessor = null;
+        synchronized (this) {
+            if (completedScanContext == context) {
+                flowprocessor = completedScanProcessor;
+            }
+            completedScanContext = null;
+            completedScanProcessor = null;
+        }
+
+        // Forget the previous scan
+        folderDescriptor = null;
+        scanSession = null;
+        if (flowprocessor == null) {
+            return false;
+        }
+
         // Make sure we have a valid dataset
         if (!flowprocessor.validator.isValid) {
-            DefaultTableModel model = (DefaultTableModel) invalidDatasetsTable
-                    .getModel();
-            for (File file : flowprocessor.validator.invalidFilesOrFolders
-                    .keySet()) {
-                String filePath;
-                try {
-                    filePath = file.getCanonicalPath();
-                    // Build a relative path
-                    int indx = filePath.indexOf(userName);
-                    if (indx != -1) {
-                        filePath = filePath.substring(indx);
-                    }
-                } catch (IOException e) {
-                    // TODO Auto-generated catch block
-                    filePath = "Unknown";
-                }
-                model.addRow(new Object[] { filePath,
-                        flowprocessor.validator.invalidFilesOrFolders
-                                .get(file) });
-            }
+            updateInvalidDatasetTable(
+                    flowprocessor.validator.invalidFilesOrFolders);
             return false;
         }
 
         // We will append the experiment nodes directly to the root node
         createNodes((RootNode) rootNode, flowprocessor.folderDescriptor);
 
+        // Keep the data model for the incremental scans
+        folderDescriptor = flowprocessor.folderDescriptor;
+        scanSession = flowprocessor.getScanSession();
+
+        return true;
+    }
+
+    /**
+     * Save the snapshot of a scan. Failures are ignored: the next start just
+     * scans the whole folder.
+     *
+     * @param flowprocessor Processor that completed a scan.
+     */
+    private void saveSnapshot(AbstractFlowProcessor flowprocessor) {
+        try {
+            flowprocessor.createSnapshot().save();
+        } catch (IOException e) {
+            System.err.println("Could not save the scan snapshot: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * The FlowViewer updates the data model when FCS files are added,
+     * removed or modified in existing experiments.
+     */
+    @Override
+    protected boolean supportsIncrementalScan() {
+        return true;
+    }
+
+    /**
+     * Keep the data model and the scan session of the last scan for
+     * parseIncrementally().
+     */
+    @Override
+    protected Object prepareIncrementalScan() {
+
+        if (folderDescriptor == null || scanSession == null) {
+            return null;
+        }
+
+        // The keywords of the changed files must be read again
+        keywordCache.clear();
+
+        return new IncrementalScan(folderDescriptor, scanSession);
+    }
+
+    /**
+     * Parse the FCS folder again after some of its files changed. Only the
+     * new and modified FCS files are read.
+     */
+    @Override
+    protected Object parseIncrementally(File userFolder,
+            Set<File> changedFiles, Object state) {
+
+        IncrementalScan scan = (IncrementalScan) state;
+
+        // Process the user folder with the files of the last scan
+        AbstractFlowProcessor flowprocessor;
+        try {
+            flowprocessor = FlowProcessorFactory.createProcessor(
+                    scan.scanSession.createIncrementalSession(changedFiles));
+        } catch (IOException e) {
+            outputPane.err(e.getMessage());
+            return null;
+        }
+
+        // We parse. If parsing fails, we just return (a full scan is needed).
+        if (!flowprocessor.parse()) {
+            outputPane.err("Could not parse the folder " + userFolder + "!");
+            return null;
+        }
+        saveSnapshot(flowprocessor);
+
+        // Experiments cannot be added or removed without a full scan, since
+        // the editor keeps their metadata
+        if (flowprocessor.validator.isValid && !haveSameExperiments(
+                scan.folderDescriptor, flowprocessor.folderDescriptor)) {
+            return null;
+        }
+
+        scan.processor = flowprocessor;
+        return scan;
+    }
+
+    /**
+     * Apply the changes found by parseIncrementally() to the data model and
+     * to the tree. The changed trays, specimens and tubes are added, removed
+     * or replaced in place: the rest of the tree is left untouched.
+     */
+    @Override
+    protected boolean applyIncrementalScan(Object changes) {
+
+        IncrementalScan scan = (IncrementalScan) changes;
+        AbstractFlowProcessor flowprocessor = scan.processor;
+
+        // The next incremental scan reuses the files of this one
+        scanSession = flowprocessor.getScanSession();
+
+        // Make sure we have a valid dataset
+        clearInvalidDatasetsTable();
+        if (!flowprocessor.validator.isValid) {
+            updateInvalidDatasetTable(
+                    flowprocessor.validator.invalidFilesOrFolders);
+            return false;
+        }
+
+        DefaultTreeModel model = (DefaultTreeModel) tree.getModel();
+        for (String expKey : scan.folderDescriptor.experiments.keySet()) {
+
+            // Get the current and the updated ExperimentDescriptor
+            Experiment e = scan.folderDescriptor.experiments.get(expKey);
+            Experiment updated = flowprocessor.folderDescriptor.experiments
+                    .get(expKey);
+            AbstractNode experiment = findChildNode(rootNode, e);
+
+            // Removed trays
+            for (String trayKey : new ArrayList<String>(e.trays.keySet())) {
+                if (!updated.trays.containsKey(trayKey)) {
+                    model.removeNodeFromParent(
+                            findChildNode(experiment, e.trays.remove(trayKey)));
+                }
+            }
+
+            // New and modified trays (trays come before the specimens)
+            for (String trayKey : updated.trays.keySet()) {
+                Tray t = e.trays.get(trayKey);
+                if (t == null) {
+                    t = updated.trays.get(trayKey);
+                    e.trays.put(trayKey, t);
+                    model.insertNodeInto(new TrayNode(t), experiment,
+                            e.trays.size() - 1);
+                } else {
+                    updateSpecimens(model, findChildNode(experiment, t),
+                            t.specimens,
+                            updated.trays.get(trayKey).specimens);
+                }
+            }
+
+            // Specimens
+            updateSpecimens(model, experiment, e.specimens,
+                    updated.specimens);
+        }
+
         return true;
     }
 
@@ -113,6 +416,9 @@ public final class FlowViewer extends AbstractViewer {
         // Get selected node
         AbstractNode node = (AbstractNode) tree.getLastSelectedPathComponent();
         if (node == null) {
+            // Drop the keywords that are still being read
+            selection.incrementAndGet();
+            preview.clear();
             return;
         }
 
@@ -123,6 +429,8 @@ public final class FlowViewer extends AbstractViewer {
             return;
         }
         lastSelectedNode = node;
+        int request = selection.incrementAndGet();
+        preview.clear();
 
         // Get the node object
         Object nodeInfo = node.getUserObject();
@@ -157,17 +465,8 @@ public final class FlowViewer extends AbstractViewer {
             clearMetadataTable();
             addAttributesToMetadataTable(((Well) nodeInfo).getAttributes());
         } else if (className.equals("FCSFile")) {
-            // Cast
-            FCSFile fcsFile = (FCSFile) nodeInfo;
-            FCSReader fcs = new FCSReader(new File(fcsFile.getFullPath()),
-                    false);
-            try {
-                fcs.parse();
-                clearMetadataTable();
-                addAttributesToMetadataTable(fcs.getAllKeywords());
-            } catch (IOException e1) {
-                outputPane.err("Could not parse file " + fcsFile + "!");
-            }
+            // The keywords are read in the background
+            showKeywords((FCSFile) nodeInfo, request);
         } else if (className.equals("FCSFileParameterList")) {
             clearMetadataTable();
             addAttributesToMetadataTable(
@@ -195,7 +494,75 @@ public final class FlowViewer extends AbstractViewer {
     }
 
     /**
-     * Create the nodes for the tree
+     * Show the keywords of an FCS file in the metadata table. Unless they
+     * are cached, the file is parsed in the background and a placeholder is
+     * shown in the meanwhile. If another node is selected before the file is
+     * parsed, the keywords are not shown: files that are still waiting to be
+     * parsed are skipped altogether. Once the keywords are shown, the
+     * preview of the events is started.
+     *
+     * @param fcsFile FCS file.
+     * @param request Number of the selection that shows the file.
+     */
+    private void showKeywords(final FCSFile fcsFile, final int request) {
+
+        final File file = new File(fcsFile.getFullPath());
+        clearMetadataTable();
+        Map<String, String> keywords = keywordCache.get(file);
+        if (keywords != null) {
+            addAttributesToMetadataTable(keywords);
+            preview.setFile(file, keywords);
+            return;
+        }
+        addAttributesToMetadataTable(Collections.singletonMap("",
+                "Reading the keywords of " + file.getName() + "..."));
+
+        keywordLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                // Another node was selected in the meanwhile
+                if (request != selection.get()) {
+                    return;
+                }
+
+                Map<String, String> keywords = null;
+                FCSReader fcs = new FCSReader(file, false);
+                try {
+                    // Only cache the keywords of a file that could be parsed
+                    if (fcs.parse()) {
+                        keywords = fcs.getAllKeywords();
+                        keywordCache.put(file, keywords);
+                    }
+                } catch (IOException e) {
+                    keywords = null;
+                }
+
+                final Map<String, String> result = keywords;
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (request != selection.get()) {
+                            return;
+                        }
+                        clearMetadataTable();
+                        if (result == null) {
+                            outputPane.err(
+                                    "Could not parse file " + fcsFile + "!");
+                        } else {
+                            addAttributesToMetadataTable(result);
+                            preview.setFile(file, result);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Create the nodes for the tree. Only the experiments and their trays and
+     * specimens are created: the other nodes are created when their parent
+     * is expanded (see AbstractLazyNode).
      *
      * @param top              Root node for the tree
      * @param folderDescriptor A folder descriptor object.
@@ -203,12 +570,6 @@ public final class FlowViewer extends AbstractViewer {
     protected void createNodes(RootNode top, UserFolder folderDescriptor) {
 
         ExperimentNode experiment;
-        TrayNode tray;
-        SpecimenNode specimen;
-        TubeNode tube;
-        WellNode well;
-        FCSFileNode fcs;
-        FCSFileParemeterListNode fcsparam;
 
         for (String expKey : folderDescriptor.experiments.keySet()) {
 
@@ -221,75 +582,199 @@ public final class FlowViewer extends AbstractViewer {
 
             for (String trayKey : e.trays.keySet()) {
 
-                // Get the TrayDescriptor
-                Tray t = e.trays.get(trayKey);
-
                 // Add the trays
-                tray = new TrayNode(t);
-                experiment.add(tray);
-
-                for (String specKey : t.specimens.keySet()) {
+                experiment.add(new TrayNode(e.trays.get(trayKey)));
+            }
 
-                    // Get the SpecimenDescriptor
-                    Specimen s = t.specimens.get(specKey);
+            for (String specKey : e.specimens.keySet()) {
 
-                    // Add the specimens
-                    specimen = new SpecimenNode(s);
-                    tray.add(specimen);
+                // Add the specimens
+                experiment.add(new SpecimenNode(e.specimens.get(specKey)));
+            }
 
-                    for (String wellKey : s.tubes.keySet()) {
+        }
+    }
 
-                        // Get the TubeDescriptor
-                        Well wl = (Well) s.tubes.get(wellKey);
+    /**
+     * Update the specimens of an experiment or a tray in the data model and
+     * in the tree. The tree is only updated if the children of the parent
+     * node were created already.
+     *
+     * @param model            Tree model.
+     * @param parent           Experiment or tray node.
+     * @param specimens        Current specimens (updated in place).
+     * @param updatedSpecimens Specimens found by the incremental scan.
+     */
+    private void updateSpecimens(DefaultTreeModel model, AbstractNode parent,
+            Map<String, Specimen> specimens,
+            Map<String, Specimen> updatedSpecimens) {
+
+        boolean isLoaded = isLoaded(parent);
+
+        // Removed specimens
+        for (String specKey : new ArrayList<String>(specimens.keySet())) {
+            if (!updatedSpecimens.containsKey(specKey)) {
+                Specimen s = specimens.remove(specKey);
+                if (isLoaded) {
+                    model.removeNodeFromParent(findChildNode(parent, s));
+                }
+            }
+        }
 
-                        // Add the tubes
-                        well = new WellNode(wl);
-                        specimen.add(well);
+        // New and modified specimens (specimens are the last children)
+        for (String specKey : updatedSpecimens.keySet()) {
+            Specimen s = specimens.get(specKey);
+            if (s == null) {
+                s = updatedSpecimens.get(specKey);
+                specimens.put(specKey, s);
+                if (isLoaded) {
+                    model.insertNodeInto(new SpecimenNode(s), parent,
+                            parent.getChildCount());
+                }
+            } else {
+                updateTubes(model, isLoaded ? findChildNode(parent, s) : null,
+                        s.tubes, updatedSpecimens.get(specKey).tubes);
+            }
+        }
+    }
 
-                        // Add the fcs files
-                        fcs = new FCSFileNode(wl.fcsFile);
-                        well.add(fcs);
+    /**
+     * Update the tubes (or wells) of a specimen in the data model and in the
+     * tree. The tree is only updated if the children of the specimen node
+     * were created already.
+     *
+     * @param model        Tree model.
+     * @param specimen     Specimen node (null if it is not in the tree yet).
+     * @param tubes        Current tubes (updated in place).
+     * @param updatedTubes Tubes found by the incremental scan.
+     */
+    private void updateTubes(DefaultTreeModel model, AbstractNode specimen,
+            Map<String, Tube> tubes, Map<String, Tube> updatedTubes) {
 
-                        // Add the fcs file parameter list
-                        fcsparam = new FCSFileParemeterListNode(
-                                wl.fcsFile.parameterList);
-                        fcs.add(fcsparam);
-                    }
+        boolean isLoaded = specimen != null && isLoaded(specimen);
 
+        // Removed tubes
+        for (String tubeKey : new ArrayList<String>(tubes.keySet())) {
+            if (!updatedTubes.containsKey(tubeKey)) {
+                Tube tb = tubes.remove(tubeKey);
+                if (isLoaded) {
+                    model.removeNodeFromParent(findChildNode(specimen, tb));
                 }
-
             }
+        }
 
-            for (String specKey : e.specimens.keySet()) {
+        // New and modified tubes
+        for (String tubeKey : updatedTubes.keySet()) {
+            Tube tb = tubes.get(tubeKey);
+            Tube updated = updatedTubes.get(tubeKey);
+            if (tb == null) {
+                tubes.put(tubeKey, updated);
+                if (isLoaded) {
+                    model.insertNodeInto(
+                            SpecimenNode.createTubeNode(updated), specimen,
+                            specimen.getChildCount());
+                }
+            } else if (!tb.getAttributes().equals(updated.getAttributes())
+                    || !tb.fcsFile.getAttributes()
+                            .equals(updated.fcsFile.getAttributes())
+                    || !tb.fcsFile.parameterList.getAttributes().equals(
+                            updated.fcsFile.parameterList.getAttributes())) {
+
+                // The FCS file was modified: replace the tube in place
+                tubes.put(tubeKey, updated);
+                if (isLoaded) {
+                    AbstractNode node = findChildNode(specimen, tb);
+                    int index = specimen.getIndex(node);
+                    model.removeNodeFromParent(node);
+                    model.insertNodeInto(
+                            SpecimenNode.createTubeNode(updated), specimen,
+                            index);
+                }
+            }
+        }
+    }
 
-                // Get the SpecimenDescriptor
-                Specimen s = e.specimens.get(specKey);
+    /**
+     * Check whether the children of a node were created already
+     *
+     * @param node Node.
+     * @return true if the children of the node are in the tree, false if
+     *         they will be created when the node is expanded.
+     */
+    private static boolean isLoaded(AbstractNode node) {
+        return !(node instanceof AbstractLazyNode)
+                || ((AbstractLazyNode) node).isLoaded();
+    }
 
-                // Add the specimens
-                specimen = new SpecimenNode(s);
-                experiment.add(specimen);
+    /**
+     * Find the child node that contains given descriptor
+     *
+     * @param parent     Parent node.
+     * @param descriptor Descriptor stored in the child node.
+     * @return child node, or null if not found.
+     */
+    private static AbstractNode findChildNode(DefaultMutableTreeNode parent,
+            Object descriptor) {
 
-                for (String tubeKey : s.tubes.keySet()) {
+        for (int i = 0; i < parent.getChildCount(); i++) {
+            AbstractNode child = (AbstractNode) parent.getChildAt(i);
+            if (child.getUserObject() == descriptor) {
+                return child;
+            }
+        }
+        return null;
+    }
 
-                    // Get the TubeDescriptor
-                    Tube tb = s.tubes.get(tubeKey);
+    /**
+     * Check that two folder descriptors have the same experiments (with the
+     * same attributes)
+     *
+     * @param current Current folder descriptor.
+     * @param updated Folder descriptor found by an incremental scan.
+     * @return true if the experiments are the same, false otherwise.
+     */
+    private static boolean haveSameExperiments(UserFolder current,
+            UserFolder updated) {
 
-                    // Add the tubes
-                    tube = new TubeNode(tb);
-                    specimen.add(tube);
+        if (!current.experiments.keySet()
+                .equals(updated.experiments.keySet())) {
+            return false;
+        }
+        for (String expKey : current.experiments.keySet()) {
+            if (!current.experiments.get(expKey).getAttributes().equals(
+                    updated.experiments.get(expKey).getAttributes())) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-                    // Add the fcs files
-                    fcs = new FCSFileNode(tb.fcsFile);
-                    tube.add(fcs);
+    /**
+     * Add the invalid files and folders to the invalid dataset table
+     *
+     * @param invalidFilesOrFolders Map of invalid files or folders to the
+     *                              corresponding error messages.
+     */
+    private void updateInvalidDatasetTable(
+            Map<File, String> invalidFilesOrFolders) {
 
-                    // Add the fcs file parameter list
-                    fcsparam = new FCSFileParemeterListNode(
-                            tb.fcsFile.parameterList);
-                    fcs.add(fcsparam);
+        DefaultTableModel model = (DefaultTableModel) invalidDatasetsTable
+                .getModel();
+        for (File file : invalidFilesOrFolders.keySet()) {
+            String filePath;
+            try {
+                filePath = file.getCanonicalPath();
+                // Build a relative path
+                int indx = filePath.indexOf(userName);
+                if (indx != -1) {
+                    filePath = filePath.substring(indx);
                 }
-
+            } catch (IOException e) {
+                // TODO Auto-generated catch block
+                filePath = "Unknown";
             }
-
+            model.addRow(new Object[] { filePath,
+                    invalidFilesOrFolders.get(file) });
         }
     }
 
@@ -1,6 +1,11 @@
 package ch.ethz.scu.obit.flow.gui.viewers.data.model;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.ethz.scu.obit.at.gui.viewers.data.model.AbstractLazyNode;
 import ch.ethz.scu.obit.at.gui.viewers.data.model.AbstractNode;
+import ch.ethz.scu.obit.flow.processors.data.model.FCSFile;
 import ch.ethz.scu.obit.processors.data.model.DatasetDescriptor;
 
 /**
@@ -8,7 +13,7 @@ import ch.ethz.scu.obit.processors.data.model.DatasetDescriptor;
  * Node types
  * @author Aaron Ponti 
  */
-public class FCSFileNode extends AbstractNode {
+public class FCSFileNode extends AbstractLazyNode {
 
 	private static final long serialVersionUID = 1L;
 
@@ -21,6 +26,18 @@ public class FCSFileNode extends AbstractNode {
 		this.type = object.getType();
 	}
 
+	/**
+	 * Create the node of the parameter list of the FCS file.
+	 * @return parameter list node.
+	 */
+	@Override
+	public List<AbstractNode> createChildren() {
+		List<AbstractNode> children = new ArrayList<AbstractNode>();
+		children.add(new FCSFileParemeterListNode(
+				((FCSFile) getUserObject()).parameterList));
+		return children;
+	}
+
 	public javax.swing.Icon getIcon() {
 		return new javax.swing.ImageIcon(
 				getClass().getResource("icons/fcs.png"));
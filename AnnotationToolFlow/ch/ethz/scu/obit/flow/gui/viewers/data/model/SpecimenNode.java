@@ -1,6 +1,13 @@
 package ch.ethz.scu.obit.flow.gui.viewers.data.model;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.ethz.scu.obit.at.gui.viewers.data.model.AbstractLazyNode;
 import ch.ethz.scu.obit.at.gui.viewers.data.model.AbstractNode;
+import ch.ethz.scu.obit.flow.processors.data.model.Specimen;
+import ch.ethz.scu.obit.flow.processors.data.model.Tube;
+import ch.ethz.scu.obit.flow.processors.data.model.Well;
 import ch.ethz.scu.obit.processors.data.model.SampleDescriptor;
 
 /**
@@ -8,7 +15,7 @@ import ch.ethz.scu.obit.processors.data.model.SampleDescriptor;
  * Node types
  * @author Aaron Ponti 
  */
-public class SpecimenNode extends AbstractNode {
+public class SpecimenNode extends AbstractLazyNode {
 
 	private static final long serialVersionUID = 1L;
 
@@ -21,6 +28,33 @@ public class SpecimenNode extends AbstractNode {
 		this.type = object.getType();
 	}
 
+	/**
+	 * Create the node for a tube or a well of a specimen.
+	 * @param tb Tube (or Well) descriptor.
+	 * @return tube or well node.
+	 */
+	public static AbstractNode createTubeNode(Tube tb) {
+		// Wells are the tubes of the specimens in a tray
+		if (tb instanceof Well) {
+			return new WellNode(tb);
+		} else {
+			return new TubeNode(tb);
+		}
+	}
+
+	/**
+	 * Create the nodes of the tubes (or wells) of the specimen.
+	 * @return tube or well nodes.
+	 */
+	@Override
+	public List<AbstractNode> createChildren() {
+		List<AbstractNode> children = new ArrayList<AbstractNode>();
+		for (Tube tb : ((Specimen) getUserObject()).tubes.values()) {
+			children.add(createTubeNode(tb));
+		}
+		return children;
+	}
+
 	public javax.swing.Icon getIcon() {
 		return new javax.swing.ImageIcon(
 				getClass().getResource("icons/specimen.png"));
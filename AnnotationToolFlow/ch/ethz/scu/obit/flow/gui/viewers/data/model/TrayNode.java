@@ -1,6 +1,12 @@
 package ch.ethz.scu.obit.flow.gui.viewers.data.model;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.ethz.scu.obit.at.gui.viewers.data.model.AbstractLazyNode;
 import ch.ethz.scu.obit.at.gui.viewers.data.model.AbstractNode;
+import ch.ethz.scu.obit.flow.processors.data.model.Specimen;
+import ch.ethz.scu.obit.flow.processors.data.model.Tray;
 import ch.ethz.scu.obit.processors.data.model.SampleDescriptor;
 
 /**
@@ -8,7 +14,7 @@ import ch.ethz.scu.obit.processors.data.model.SampleDescriptor;
  * Node types
  * @author Aaron Ponti 
  */
-public class TrayNode extends AbstractNode {
+public class TrayNode extends AbstractLazyNode {
 
 	private static final long serialVersionUID = 1L;
 
@@ -21,6 +27,19 @@ public class TrayNode extends AbstractNode {
 		this.type = object.getType();
 	}
 
+	/**
+	 * Create the nodes of the specimens in the tray.
+	 * @return specimen nodes.
+	 */
+	@Override
+	public List<AbstractNode> createChildren() {
+		List<AbstractNode> children = new ArrayList<AbstractNode>();
+		for (Specimen s : ((Tray) getUserObject()).specimens.values()) {
+			children.add(new SpecimenNode(s));
+		}
+		return children;
+	}
+
 	public javax.swing.Icon getIcon() {
 		return new javax.swing.ImageIcon(
 				getClass().getResource("icons/plate.png"));
@@ -1,6 +1,11 @@
 package ch.ethz.scu.obit.flow.gui.viewers.data.model;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.ethz.scu.obit.at.gui.viewers.data.model.AbstractLazyNode;
 import ch.ethz.scu.obit.at.gui.viewers.data.model.AbstractNode;
+import ch.ethz.scu.obit.flow.processors.data.model.Tube;
 import ch.ethz.scu.obit.processors.data.model.SampleDescriptor;
 
 /**
@@ -8,7 +13,7 @@ import ch.ethz.scu.obit.processors.data.model.SampleDescriptor;
  * Node types
  * @author Aaron Ponti 
  */
-public class TubeNode extends AbstractNode {
+public class TubeNode extends AbstractLazyNode {
 
 	private static final long serialVersionUID = 1L;
 
@@ -21,6 +26,17 @@ public class TubeNode extends AbstractNode {
 		this.type = object.getType();
 	}
 
+	/**
+	 * Create the node of the FCS file of the tube.
+	 * @return FCS file node.
+	 */
+	@Override
+	public List<AbstractNode> createChildren() {
+		List<AbstractNode> children = new ArrayList<AbstractNode>();
+		children.add(new FCSFileNode(((Tube) getUserObject()).fcsFile));
+		return children;
+	}
+
 	public javax.swing.Icon getIcon() {
 		return new javax.swing.ImageIcon(
 				getClass().getResource("icons/tube.png"));
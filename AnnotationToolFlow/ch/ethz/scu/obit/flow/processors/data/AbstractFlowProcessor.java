@@ -1,16 +1,38 @@
 package ch.ethz.scu.obit.flow.processors.data;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import ch.ethz.scu.obit.common.utils.XXHash64;
 import ch.ethz.scu.obit.flow.processors.data.model.Experiment;
 import ch.ethz.scu.obit.flow.processors.data.model.UserFolder;
 import ch.ethz.scu.obit.flow.readers.FCSReader;
 import ch.ethz.scu.obit.processors.AbstractProcessor;
+import ch.ethz.scu.obit.processors.data.FolderWalker;
+import ch.ethz.scu.obit.processors.data.FolderWalker.Entry;
+import ch.ethz.scu.obit.processors.data.ScanSnapshot;
+import ch.ethz.scu.obit.processors.data.model.ExperimentDescriptor;
 import ch.ethz.scu.obit.processors.data.validator.GenericValidator;
 
 /**
@@ -21,11 +43,68 @@ import ch.ethz.scu.obit.processors.data.validator.GenericValidator;
  */
 public abstract class AbstractFlowProcessor extends AbstractProcessor {
 
+	/**
+	 * Maximum number of FCS files parsed concurrently during a scan.
+	 */
+	public static final int MAX_PARSING_THREADS = 8;
+
+	/**
+	 * Interval (in ms) at which a scan waiting for a parsed FCS file checks
+	 * whether it was cancelled.
+	 */
+	private static final long CANCEL_CHECK_INTERVAL = 100;
+
+	/* Pattern of the date (yyyyMMdd) in experiment names */
+	private static final Pattern datePattern = Pattern.compile("(\\d{8})");
+
 	/* Private instance variables */
 	protected File userFolder;
 	protected File userRootFolder;
 	protected Experiment currentExperiment;
 
+	/* FCS files parsed concurrently in the first phase of scan() */
+	private Map<File, Future<FCSReader>> parsedFCSFiles = null;
+
+	/* FCS files of the scan by size (to find the files to hash) */
+	private Map<Long, List<File>> fcsFilesByLength = null;
+
+	/* Content hashes of the FCS files that have the size of another file */
+	private Map<File, Future<Long>> contentHashes = null;
+
+	/* First FCS file found with each content hash */
+	private Map<Long, File> filesByContentHash = null;
+
+	/* Detect FCS files with identical contents */
+	private boolean detectDuplicates = true;
+
+	/* Scan session with the FCS files already parsed by the factory */
+	private FlowScanSession scanSession = null;
+
+	/* Folder walker of the current scan */
+	private FolderWalker walker = null;
+
+	/* Modification times of the sub-folders of the last scan */
+	private Map<File, Long> folderTimes = new HashMap<File, Long>();
+
+	/* Sizes of the FCS files of the last scan */
+	private Map<File, Long> fcsFileLengths = new HashMap<File, Long>();
+
+	/* Modification times of the FCS files of the last scan */
+	private Map<File, Long> fcsFileTimes = new HashMap<File, Long>();
+
+	/* Top-level folders (by name) that can be taken from a snapshot */
+	private Map<String, ReusableFolder> reusableFolders = null;
+
+	/* The part of a snapshot that belongs to an unchanged top-level folder */
+	private static class ReusableFolder {
+
+		final Map<File, Long> folderTimes = new HashMap<File, Long>();
+		final Map<File, Long> fileLengths = new HashMap<File, Long>();
+		final Map<File, Long> fileTimes = new HashMap<File, Long>();
+		final Map<String, Experiment> experiments =
+				new LinkedHashMap<String, Experiment>();
+	}
+
 	/**
 	 * A folder descriptor.
 	 */
@@ -87,31 +166,824 @@ public abstract class AbstractFlowProcessor extends AbstractProcessor {
 	}
 
 	/**
-	 * Scan the folder recursively and process all fcs files found
+	 * Set the scan session with the FCS files that were already parsed (e.g.
+	 * by the FlowProcessorFactory to detect the hardware). These files are 
+	 * not parsed again by the next scan.
+	 * 
+	 * @param scanSession Scan session for the user folder.
+	 */
+	public void setScanSession(FlowScanSession scanSession) {
+		this.scanSession = scanSession;
+	}
+
+	/**
+	 * Return the scan session for the user folder.
+	 * 
+	 * @return scan session, or null if none was set.
+	 */
+	public FlowScanSession getScanSession() {
+		return scanSession;
+	}
+
+	/**
+	 * Set the snapshot of a previous scan of the user folder. The next scan
+	 * takes the experiments and the invalid files of the top-level folders
+	 * that did not change since the snapshot from it, and only walks the
+	 * other ones. Top-level folders with invalid files or folders are always
+	 * walked again, so that the reasons are checked anew.
+	 * 
+	 * The snapshot is not used if the experiments or the invalid files it
+	 * contains cannot be assigned to a top-level folder (e.g. if there were
+	 * files in the user folder itself).
+	 * 
+	 * @param snapshot Snapshot of a previous scan with the same processor.
+	 */
+	public void setSnapshot(ScanSnapshot snapshot) {
+
+		reusableFolders = null;
+		if (!(snapshot.getModel() instanceof UserFolder)) {
+			return;
+		}
+		UserFolder model = (UserFolder) snapshot.getModel();
+		File canonicalUserFolder;
+		try {
+			canonicalUserFolder = userFolder.getCanonicalFile();
+		} catch (IOException e) {
+			return;
+		}
+
+		// Top-level folders that were scanned
+		Map<String, ReusableFolder> folders =
+				new HashMap<String, ReusableFolder>();
+		for (File folder : snapshot.getFolderTimes().keySet()) {
+			if (userFolder.equals(folder.getParentFile())) {
+				folders.put(folder.getName(), new ReusableFolder());
+			}
+		}
+
+		// Experiments (whose paths are canonical) and invalid files
+		for (Map.Entry<String, Experiment> entry :
+				model.experiments.entrySet()) {
+			ReusableFolder folder = folders.get(getTopLevelFolderName(
+					new File(entry.getKey()), canonicalUserFolder));
+			if (folder == null) {
+				return;
+			}
+			folder.experiments.put(entry.getKey(), entry.getValue());
+		}
+		Set<String> invalidFolders = new HashSet<String>();
+		for (File file : snapshot.getInvalidFilesOrFolders().keySet()) {
+			String name = getTopLevelFolderName(file, userFolder);
+			if (!folders.containsKey(name)) {
+				return;
+			}
+			invalidFolders.add(name);
+		}
+
+		// Modification times of the sub-folders, sizes and modification times
+		// of the FCS files
+		for (Map.Entry<File, Long> entry :
+				snapshot.getFolderTimes().entrySet()) {
+			ReusableFolder folder = folders.get(
+					getTopLevelFolderName(entry.getKey(), userFolder));
+			if (folder != null) {
+				folder.folderTimes.put(entry.getKey(), entry.getValue());
+			}
+		}
+		for (Map.Entry<File, Long> entry :
+				snapshot.getFileLengths().entrySet()) {
+			ReusableFolder folder = folders.get(
+					getTopLevelFolderName(entry.getKey(), userFolder));
+			if (folder != null) {
+				folder.fileLengths.put(entry.getKey(), entry.getValue());
+			}
+		}
+		for (Map.Entry<File, Long> entry :
+				snapshot.getFileTimes().entrySet()) {
+			ReusableFolder folder = folders.get(
+					getTopLevelFolderName(entry.getKey(), userFolder));
+			if (folder != null) {
+				folder.fileTimes.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		// Top-level folders with changes or with invalid files must be
+		// scanned
+		for (File folder : snapshot.getChangedFolders()) {
+			folders.remove(getTopLevelFolderName(folder, userFolder));
+		}
+		folders.keySet().removeAll(invalidFolders);
+		reusableFolders = folders;
+	}
+
+	/**
+	 * Return a snapshot of the last scan.
 	 * 
-	 * @param dir Full path to the directory to scan
+	 * @return snapshot with the folder descriptor and the invalid files and
+	 *         folders.
+	 */
+	public ScanSnapshot createSnapshot() {
+		String hardwareString = "";
+		if (scanSession != null) {
+			hardwareString = scanSession.getHardwareString();
+		}
+		return new ScanSnapshot(userFolder, hardwareString, folderTimes,
+				fcsFileLengths, fcsFileTimes, folderDescriptor,
+				validator.invalidFilesOrFolders);
+	}
+
+	/**
+	 * Enable or disable the detection of FCS files with identical contents
+	 * (enabled by default).
+	 * 
+	 * Only the files that have the same size as another FCS file in the user
+	 * folder are hashed: in a folder without duplicates, hardly any file
+	 * needs to be read completely, so the detection is cheap enough to be
+	 * always on.
+	 * 
+	 * @param detectDuplicates true to flag duplicate FCS files as invalid,
+	 *                         false otherwise.
+	 */
+	public void setDetectDuplicates(boolean detectDuplicates) {
+		this.detectDuplicates = detectDuplicates;
+	}
+
+	/**
+	 * Process a file found in an experiment folder
+	 * 
+	 * @param file File to be processed
+	 * @return FileVisitResult.CONTINUE to move on to the next file, or
+	 *         FileVisitResult.SKIP_SIBLINGS to skip the remaining files in
+	 *         the folder.
 	 * @throws IOException Thrown if a FCS file could not be processed
 	 */
-	protected abstract void recursiveDir(File dir) throws IOException;
+	protected abstract FileVisitResult processFile(File file)
+			throws IOException;
 
 	/**
-	 * Make sure that the first entry in the file list is an FCS file, if there is
-	 * at least one.
+	 * Scan the user folder in two phases.
+	 * 
+	 * In the first phase, the HEADER and TEXT segments of all FCS files in the
+	 * folder are parsed concurrently (by at most MAX_PARSING_THREADS threads).
+	 * In the second phase, the folder is walked again (from the listings
+	 * cached by the FolderWalker) and processFile() is called for every file,
+	 * in the same order as in the first phase. The processors retrieve the
+	 * parsed files with parseFCSFile(), waiting for them if needed. The
+	 * resulting folder descriptor is therefore identical to the one of a
+	 * sequential scan.
+	 * 
+	 * FCS files that were not copied completely are flagged as invalid. If
+	 * duplicate detection is enabled, the FCS files that have the same size
+	 * as another one are hashed concurrently at the end of the first phase,
+	 * and the second phase flags the copies of a file found before.
+	 * 
+	 * Before any FCS file is parsed, the structure of the folder is checked
+	 * from the folder listings alone (see checkStructure()). If it is
+	 * invalid, all structural errors are reported and no FCS file is parsed.
+	 * 
+	 * If a snapshot was set (see setSnapshot()), the top-level folders that
+	 * did not change are not walked: their experiments are taken from the
+	 * snapshot in the place they have in the walk. Unchanged folders with FCS
+	 * files that have the same size as FCS files in other folders are walked
+	 * anyway, to find the duplicates across folders.
+	 * 
+	 * @throws IOException Thrown if a FCS file could not be processed
+	 */
+	protected void scan() throws IOException {
+
+		// The walker of the scan session already has the listings read by
+		// the factory
+		if (scanSession != null) {
+			walker = scanSession.getFolderWalker();
+		} else {
+			walker = new FolderWalker(userFolder);
+		}
+
+		// Do not parse anything in a folder with an invalid structure
+		folderTimes = new HashMap<File, Long>();
+		fcsFileLengths = new HashMap<File, Long>();
+		fcsFileTimes = new HashMap<File, Long>();
+		if (!checkStructure()) {
+			return;
+		}
+
+		// Daemon threads do not keep the application alive
+		final ExecutorService executor = Executors.newFixedThreadPool(
+				MAX_PARSING_THREADS, new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "FCS parser");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+
+		parsedFCSFiles = new HashMap<File, Future<FCSReader>>();
+		fcsFilesByLength = new HashMap<Long, List<File>>();
+		contentHashes = new HashMap<File, Future<Long>>();
+		filesByContentHash = new HashMap<Long, File>();
+		try {
+
+			// Phase one: parse all FCS files concurrently
+			walker.walk(new ParsingVisitor(executor, null));
+
+			// Hash the files that may be duplicates. The unchanged folders
+			// with files of the same size as files in other folders must be
+			// walked for that.
+			if (detectDuplicates) {
+				Set<String> folders = removeFoldersWithSameSizeFiles();
+				if (!folders.isEmpty()) {
+					walker.walk(new ParsingVisitor(executor, folders));
+				}
+				submitContentHashes(executor);
+			}
+
+			// Phase two: build the model
+			walker.walk(new FolderWalker.SimpleVisitor() {
+
+				@Override
+				public FileVisitResult preVisitFolder(Entry entry, int depth) {
+
+					// Take the experiments of unchanged folders from the
+					// snapshot
+					ReusableFolder reused = getReusableFolder(entry, depth);
+					if (reused == null) {
+						return FileVisitResult.CONTINUE;
+					}
+					for (Experiment experiment : reused.experiments.values()) {
+						// The last one is the current experiment
+						currentExperiment = experiment;
+					}
+					folderDescriptor.experiments.putAll(reused.experiments);
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+
+				@Override
+				public FileVisitResult visitEntries(File folder,
+						List<Entry> entries, int depth) {
+
+					// Empty subfolders are not accepted
+					if (entries.isEmpty() && depth > 0) {
+						validator.isValid = false;
+						validator.invalidFilesOrFolders.put(folder, "Empty folder");
+						return FileVisitResult.SKIP_SUBTREE;
+					}
+
+					// To make things simple and robust, we make sure that the
+					// first thing we process at any sub-folder level is an FCS
+					// file.
+					sortEntries(entries);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFolderFailed(File folder,
+						IOException e, int depth) {
+
+					// A folder that cannot be listed is treated as empty
+					return visitEntries(folder, new ArrayList<Entry>(), depth);
+				}
+
+				@Override
+				public FileVisitResult visitFile(Entry entry, int depth)
+						throws IOException {
+
+					// Stop as soon as the scan is cancelled
+					scanContext.checkCancelled();
+
+					// No files are allowed in the root
+					if (depth == 1) {
+						validator.isValid = false;
+						validator.invalidFilesOrFolders.put(entry.getFile(),
+								"Files must be in sub-folders.");
+						return FileVisitResult.SKIP_SIBLINGS;
+					}
+
+					// Delete some known garbage
+					if (deleteIfKnownUselessFile(entry.getFile())) {
+						return FileVisitResult.CONTINUE;
+					}
+
+					FileVisitResult result = processFile(entry.getFile());
+
+					// The descriptor of the file is built: the scan session
+					// only keeps what an incremental scan needs
+					if (scanSession != null) {
+						scanSession.compactScannedFile(entry.getFile());
+					}
+					return result;
+				}
+			});
+
+		} finally {
+
+			// Discard the files that were not used (e.g. if the scan was
+			// interrupted by an invalid file)
+			executor.shutdownNow();
+			parsedFCSFiles = null;
+			fcsFilesByLength = null;
+			contentHashes = null;
+			filesByContentHash = null;
+		}
+	}
+
+	/**
+	 * Check the structure of the user folder: files in the user folder
+	 * itself, empty sub-folders and files that are invalid by their name
+	 * alone (see checkFileName()). Only the folder listings are needed: they
+	 * are cached by the walker for the rest of the scan. The unchanged
+	 * folders of a snapshot are not checked.
+	 * 
+	 * All structural errors are added to the validator at once.
+	 * 
+	 * @return true if the structure is valid, false otherwise.
+	 * @throws IOException if the scan was cancelled
+	 */
+	private boolean checkStructure() throws IOException {
+
+		final Map<File, String> errors = new HashMap<File, String>();
+		walker.walk(new FolderWalker.SimpleVisitor() {
+
+			@Override
+			public FileVisitResult preVisitFolder(Entry entry, int depth) {
+				if (getReusableFolder(entry, depth) != null) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitEntries(File folder,
+					List<Entry> entries, int depth) {
+				if (entries.isEmpty() && depth > 0) {
+					errors.put(folder, "Empty folder");
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFolderFailed(File folder,
+					IOException e, int depth) {
+				return visitEntries(folder, new ArrayList<Entry>(), depth);
+			}
+
+			@Override
+			public FileVisitResult visitFile(Entry entry, int depth)
+					throws IOException {
+
+				scanContext.checkCancelled();
+				File file = entry.getFile();
+				if (depth == 1) {
+					errors.put(file, "Files must be in sub-folders.");
+				} else if (!isKnownUselessFile(file.getName())) {
+					String reason = checkFileName(file);
+					if (reason != null) {
+						errors.put(file, reason);
+					}
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		if (errors.isEmpty()) {
+			return true;
+		}
+		validator.isValid = false;
+		validator.invalidFilesOrFolders.putAll(errors);
+		return false;
+	}
+
+	/**
+	 * Return the reason why a file found in a sub-folder makes the user
+	 * folder invalid, judging from the file name alone. These are the same
+	 * rules that processFile() applies: files that were already annotated or
+	 * registered, and files that are neither FCS files nor attachments.
+	 * 
+	 * Processors that accept other files must override this method.
+	 * 
+	 * @param file File in a sub-folder of the user folder.
+	 * @return reason why the file is invalid, or null if its name is valid.
+	 */
+	protected String checkFileName(File file) {
+
+		String fileName = file.getName();
+		int indx = fileName.lastIndexOf(".");
+		if (indx == -1) {
+			return null;
+		}
+		if (ExperimentDescriptor.isValidAttachment(file)) {
+			return null;
+		}
+		if (fileName.toLowerCase().equals("data_structure.ois")) {
+			return "Failed registration to openBIS!";
+		}
+		if (fileName.contains("_properties.oix")) {
+			return "Experiment already annotated";
+		}
+		if (!fileName.substring(indx).equalsIgnoreCase(".fcs")) {
+			return "Unsupported file format";
+		}
+		return null;
+	}
+
+	/**
+	 * Visitor of the first phase of scan(): records the modification times
+	 * of the folders and submits the FCS files for parsing.
+	 */
+	private class ParsingVisitor extends FolderWalker.SimpleVisitor {
+
+		private final ExecutorService executor;
+		private final Set<String> folders;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param executor Executor that parses the files
+		 * @param folders  Names of the top-level folders to walk, or null to
+		 *                 walk the whole user folder.
+		 */
+		ParsingVisitor(ExecutorService executor, Set<String> folders) {
+			this.executor = executor;
+			this.folders = folders;
+		}
+
+		@Override
+		public FileVisitResult preVisitFolder(Entry entry, int depth) {
+
+			if (folders != null && depth == 1
+					&& !folders.contains(entry.getName())) {
+				return FileVisitResult.SKIP_SUBTREE;
+			}
+
+			// Unchanged folders keep the times and sizes of the snapshot
+			ReusableFolder reused = getReusableFolder(entry, depth);
+			if (reused != null) {
+				folderTimes.putAll(reused.folderTimes);
+				fcsFileLengths.putAll(reused.fileLengths);
+				fcsFileTimes.putAll(reused.fileTimes);
+				return FileVisitResult.SKIP_SUBTREE;
+			}
+			folderTimes.put(entry.getFile(), entry.lastModified());
+			return FileVisitResult.CONTINUE;
+		}
+
+		@Override
+		public FileVisitResult visitEntries(File folder, List<Entry> entries,
+				int depth) {
+			sortEntries(entries);
+			return FileVisitResult.CONTINUE;
+		}
+
+		@Override
+		public FileVisitResult visitFile(Entry entry, int depth)
+				throws IOException {
+			if (folders != null && depth == 1) {
+				return FileVisitResult.CONTINUE;
+			}
+			scanContext.checkCancelled();
+			scanContext.fileVisited(entry.getFile());
+			submitFCSFile(entry, executor);
+			return FileVisitResult.CONTINUE;
+		}
+	}
+
+	/**
+	 * Stop reusing the unchanged top-level folders that contain FCS files
+	 * with the same size as FCS files in other top-level folders: these
+	 * files may be duplicates.
+	 * 
+	 * @return names of the folders that must be walked.
+	 */
+	private Set<String> removeFoldersWithSameSizeFiles() {
+
+		Set<String> removed = new HashSet<String>();
+		if (reusableFolders == null || reusableFolders.isEmpty()) {
+			return removed;
+		}
+
+		// Top-level folders (or files) with FCS files of each size
+		Map<Long, Set<String>> foldersByLength =
+				new HashMap<Long, Set<String>>();
+		for (Map.Entry<File, Long> entry : fcsFileLengths.entrySet()) {
+			Set<String> names = foldersByLength.get(entry.getValue());
+			if (names == null) {
+				names = new HashSet<String>();
+				foldersByLength.put(entry.getValue(), names);
+			}
+			names.add(getTopLevelFolderName(entry.getKey(), userFolder));
+		}
+
+		for (Set<String> names : foldersByLength.values()) {
+			if (names.size() < 2) {
+				continue;
+			}
+			for (String name : names) {
+				if (reusableFolders.remove(name) != null) {
+					removed.add(name);
+				}
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Return the part of the snapshot for a top-level folder that did not
+	 * change since the snapshot.
+	 * 
+	 * @param entry Folder entry.
+	 * @param depth Depth of the folder.
+	 * @return the part of the snapshot, or null if the folder must be
+	 *         walked.
+	 */
+	private ReusableFolder getReusableFolder(Entry entry, int depth) {
+		if (depth != 1 || reusableFolders == null) {
+			return null;
+		}
+		return reusableFolders.get(entry.getName());
+	}
+
+	/**
+	 * Return the name of the top-level folder that contains a file (or
+	 * folder).
 	 * 
-	 * @param dir Current directory
-	 * @return String[] moderately sorted files.
+	 * @param file File or folder.
+	 * @param root User folder.
+	 * @return name of the top-level folder (the name of the file itself if
+	 *         it is in the user folder), or null if the file is not in the
+	 *         user folder.
 	 */
-	protected String[] getSimplySortedList(File dir) {
+	private static String getTopLevelFolderName(File file, File root) {
+		File parent = file.getParentFile();
+		while (parent != null) {
+			if (parent.equals(root)) {
+				return file.getName();
+			}
+			file = parent;
+			parent = file.getParentFile();
+		}
+		return null;
+	}
 
-		// Go over the list, the first FCS file we find we put it in front of
-		// the list and return.
-		String[] files = dir.list();
+	/**
+	 * Submit an FCS file for parsing.
+	 * 
+	 * @param entry File entry
+	 * @param executor Executor that parses the files
+	 */
+	private void submitFCSFile(Entry entry, ExecutorService executor) {
+
+		// Skip hidden resource files (they will be deleted) and
+		// anything else that is not an FCS file
+		final File file = entry.getFile();
+		String fileName = file.getName();
+		if (fileName.startsWith("._")
+				|| !fileName.toLowerCase().endsWith(".fcs")) {
+			return;
+		}
+
+		// Group the files by size
+		fcsFileLengths.put(file, entry.length());
+		fcsFileTimes.put(file, entry.lastModified());
+		List<File> files = fcsFilesByLength.get(entry.length());
 		if (files == null) {
-			return new String[0];
+			files = new ArrayList<File>();
+			fcsFilesByLength.put(entry.length(), files);
+		}
+		files.add(file);
+
+		// Skip the files that were already parsed in this session
+		if (scanSession != null && scanSession.hasParsedFile(entry)) {
+			return;
+		}
+
+		parsedFCSFiles.put(file, executor.submit(new Callable<FCSReader>() {
+			@Override
+			public FCSReader call() throws IOException {
+				return readFCSFile(file);
+			}
+		}));
+	}
+
+	/**
+	 * Submit the FCS files that have the same size as another FCS file for
+	 * hashing. Files with different sizes cannot have the same contents.
+	 * 
+	 * @param executor Executor that hashes the files
+	 */
+	private void submitContentHashes(ExecutorService executor) {
+
+		for (List<File> files : fcsFilesByLength.values()) {
+			if (files.size() < 2) {
+				continue;
+			}
+			for (final File file : files) {
+				contentHashes.put(file, executor.submit(new Callable<Long>() {
+					@Override
+					public Long call() {
+						if (scanContext.isCancelled()) {
+							return null;
+						}
+						try {
+							return XXHash64.hash(file);
+						} catch (IOException e) {
+							// The file is not checked
+							return null;
+						}
+					}
+				}));
+			}
 		}
+	}
+
+	/**
+	 * Return the FCS file parsed (without data) by the scan session or by
+	 * the first phase of scan() or, if it was not, parse it now. The file is
+	 * recorded in the scan session.
+	 * 
+	 * @param file FCS file.
+	 * @return FCSReader with the parsed file, or null if parsing failed.
+	 * @throws IOException Thrown if the FCS file could not be processed
+	 */
+	protected FCSReader parseFCSFile(File file) throws IOException {
+
+		FCSReader processor = getParsedFCSFile(file);
+
+		// Record the file for later incremental scans
+		if (scanSession != null) {
+			scanSession.addScannedFile(getEntry(file), processor);
+		}
+
+		// Flag incomplete and duplicate files
+		if (processor != null) {
+			checkFileContents(file, processor);
+		}
+		return processor;
+	}
+
+	/**
+	 * Flag the FCS file as invalid if it was not copied completely or if it
+	 * has the same contents as an FCS file found before in the scan.
+	 * 
+	 * @param file FCS file.
+	 * @param processor FCSReader with the parsed file.
+	 * @throws IOException if the scan was cancelled while waiting for the
+	 *                     hash of the file
+	 */
+	private void checkFileContents(File file, FCSReader processor)
+			throws IOException {
+
+		// Files that are shorter than their DATA segment
+		if (processor.isTruncated()) {
+			validator.isValid = false;
+			validator.invalidFilesOrFolders.put(file,
+					"Incomplete file: the DATA segment ends at byte "
+							+ processor.getDataEnd() + " but the file only has "
+							+ processor.getFileLength() + " bytes.");
+			return;
+		}
+
+		// Only the files that have the size of another file were hashed
+		Future<Long> result = null;
+		if (contentHashes != null) {
+			result = contentHashes.remove(file);
+		}
+		if (result == null) {
+			return;
+		}
+		Long hash = waitFor(result);
+		if (hash == null) {
+			return;
+		}
+
+		// Files with the contents of a file found before
+		File original = filesByContentHash.get(hash);
+		if (original == null) {
+			filesByContentHash.put(hash, file);
+			return;
+		}
+		validator.isValid = false;
+		validator.invalidFilesOrFolders.put(file, "Duplicate of "
+				+ userFolder.toPath().relativize(original.toPath()) + ".");
+	}
+
+	/**
+	 * Return the FCS file parsed (without data) by the scan session or by
+	 * the first phase of scan() or, if it was not, parse it now.
+	 * 
+	 * @param file FCS file.
+	 * @return FCSReader with the parsed file, or null if parsing failed.
+	 * @throws IOException Thrown if the FCS file could not be processed
+	 */
+	private FCSReader getParsedFCSFile(File file) throws IOException {
+
+		if (scanSession != null && scanSession.hasParsedFile(getEntry(file))) {
+			return scanSession.takeParsedFile(file);
+		}
+
+		Future<FCSReader> result = null;
+		if (parsedFCSFiles != null) {
+			result = parsedFCSFiles.remove(file);
+		}
+		if (result == null) {
+			return readFCSFile(file);
+		}
+		return waitFor(result);
+	}
+
+	/**
+	 * Wait for a result computed by the executor of the scan.
+	 * 
+	 * @param result Result of a task of the executor.
+	 * @return the result.
+	 * @throws IOException if the task failed or if the scan was cancelled
+	 *                     while waiting
+	 */
+	private <T> T waitFor(Future<T> result) throws IOException {
+
+		try {
+			// Check regularly whether the scan was cancelled while waiting
+			while (true) {
+				try {
+					return result.get(CANCEL_CHECK_INTERVAL,
+							TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					scanContext.checkCancelled();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Scan interrupted.");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Return the entry of a file listed by the folder walker of the scan.
+	 * 
+	 * @param file File.
+	 * @return entry with the attributes of the file.
+	 * @throws IOException if the file cannot be listed.
+	 */
+	private Entry getEntry(File file) throws IOException {
+
+		Entry entry = null;
+		if (walker != null) {
+			entry = walker.getEntry(file);
+		}
+		if (entry == null) {
+			// The file was not found by the walker: list its folder
+			FolderWalker folderWalker = new FolderWalker(file.getParentFile());
+			folderWalker.list(file.getParentFile());
+			entry = folderWalker.getEntry(file);
+			if (entry == null) {
+				throw new FileNotFoundException(file.toString());
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Parse the FCS file (without data) and report the bytes read and the
+	 * time spent to the scan context.
+	 * 
+	 * @param file FCS file.
+	 * @return FCSReader with the parsed file, or null if parsing failed.
+	 * @throws IOException Thrown if the FCS file could not be processed or
+	 *                     if the scan was cancelled
+	 */
+	private FCSReader readFCSFile(File file) throws IOException {
+
+		// Do not start reading new files once the scan is cancelled
+		scanContext.checkCancelled();
+
+		long start = System.nanoTime();
+		FCSReader processor = new FCSReader(file, false);
+		boolean success = processor.parse();
+		scanContext.fileRead(file, processor.getBytesRead(),
+				System.nanoTime() - start);
+		if (!success) {
+			return null;
+		}
+		return processor;
+	}
+
+	/**
+	 * Make sure that the first entry in the file list is an FCS file, if there is
+	 * at least one.
+	 * 
+	 * @param entries Entries of the current directory (sorted in place).
+	 */
+	protected void sortEntries(List<Entry> entries) {
+
+		// Go over the list, the first FCS file we find we swap with the
+		// first entry.
 		int foundIndx = -1;
-		for (int i = 0; i < files.length; i++) {
-			String fileName = files[i];
+		for (int i = 0; i < entries.size(); i++) {
+			String fileName = entries.get(i).getName();
 			int indx = fileName.lastIndexOf(".");
 			if (indx == -1) {
 				continue;
@@ -124,11 +996,8 @@ public abstract class AbstractFlowProcessor extends AbstractProcessor {
 		}
 		// Swap the first entry with this one.
 		if (foundIndx > 0) {
-			String tmp = files[foundIndx];
-			files[foundIndx] = files[0];
-			files[0] = tmp;
+			Collections.swap(entries, 0, foundIndx);
 		}
-		return files;
 	}
 
 	/**
@@ -234,8 +1103,7 @@ public abstract class AbstractFlowProcessor extends AbstractProcessor {
 			// Extract date information from the experiment name if it
 			// exists or return UNKNOWN
 			String expName = getExperimentName(processor);
-			Pattern p = Pattern.compile("(\\d{8})");
-			Matcher m = p.matcher(expName);
+			Matcher m = datePattern.matcher(expName);
 			if (m.find()) {
 				specimenName = m.group(1);
 			} else {
@@ -2,8 +2,11 @@ package ch.ethz.scu.obit.flow.processors.data;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -49,6 +52,10 @@ public class BDLSRFortessaFlowProcessor extends AbstractFlowProcessor {
         knownHardwareStrings.put("LSRFortessa", "BD LSR Fortessa");
     }
 
+    /* Pattern of the supported software versions */
+    private static final Pattern softwareVersionPattern = Pattern.compile(
+            "(.*?)(\\d{1,2})\\.(\\d{1,2})(\\.\\d{1,2})?");
+
     /**
      * Constructor
      *
@@ -84,7 +91,7 @@ public class BDLSRFortessaFlowProcessor extends AbstractFlowProcessor {
         // indeed a folder. So we can scan it recursively to find and
         // reconstruct the structure of all contained experiments.
         try {
-            recursiveDir(this.userFolder);
+            scan();
         } catch (IOException e) {
             this.errorMessage = "Could not parse the folder.";
             System.err.println(errorMessage);
@@ -172,9 +179,7 @@ public class BDLSRFortessaFlowProcessor extends AbstractFlowProcessor {
         }
 
         // Check major and minor version (we ignore the patch)
-        Pattern p = Pattern
-                .compile("(.*?)(\\d{1,2})\\.(\\d{1,2})(\\.\\d{1,2})?");
-        Matcher m = p.matcher(acqSoftwareString);
+        Matcher m = softwareVersionPattern.matcher(acqSoftwareString);
         if (!m.matches()) {
             validator.isValid = false;
             validator.invalidFilesOrFolders.put(processor.getFile(),
@@ -209,244 +214,223 @@ public class BDLSRFortessaFlowProcessor extends AbstractFlowProcessor {
     }
 
     /**
-     * Scan the folder recursively and process all fcs files found
+     * Return the reason why a file makes the user folder invalid, judging
+     * from its name alone. The XML file of an Experiment export is not
+     * accepted (see processFile()).
      *
-     * @param dir Full path to the directory to scan
-     * @throws IOException Thrown if a FCS file could not be processed
+     * @param file File in a sub-folder of the user folder.
+     * @return reason why the file is invalid, or null if its name is valid.
      */
     @Override
-    protected void recursiveDir(File dir) throws IOException {
-
-        // To make things simple and robust, we make sure that the first
-        // thing we process at any sub-folder level is an FCS file.
-        String[] files = getSimplySortedList(dir);
+    protected String checkFileName(File file) {
+        if (file.getName().toLowerCase().endsWith(".xml")) {
+            return "Experiment export";
+        }
+        return super.checkFileName(file);
+    }
 
-        // Empty subfolders are not accepted
-        if (files.length == 0 && !dir.equals(this.userFolder)) {
+    /**
+     * Process a file found in an experiment folder
+     *
+     * @param file File to be processed
+     * @return FileVisitResult.CONTINUE to move on to the next file, or
+     *         FileVisitResult.SKIP_SIBLINGS to skip the remaining files
+     *         in the folder.
+     * @throws IOException Thrown if a FCS file could not be processed
+     */
+    @Override
+    protected FileVisitResult processFile(File file) throws IOException {
+
+        // The DIVA software can export FCS files in two modes: FCS export
+        // creates valid FCS 3.0-compliant files. Experiment export creates
+        // files that cannot be used in subsequent analysis in third-party
+        // software like FlowJo. In case of Experiment exports, an XML file
+        // is saved along with the series of FCS files. We use the presence
+        // of the XML file to discriminate between the two export modes.
+        String fileName = file.getName();
+        int indx = fileName.lastIndexOf(".");
+        if (indx == -1) {
+            return FileVisitResult.CONTINUE;
+        }
+        String ext = fileName.substring(indx);
+        if (ext.equalsIgnoreCase(".xml")) {
             validator.isValid = false;
-            validator.invalidFilesOrFolders.put(dir, "Empty folder");
-            return;
+            validator.invalidFilesOrFolders.put(file, "Experiment export");
+            return FileVisitResult.CONTINUE;
         }
 
-        // Go over the files and folders
-        for (String f : files) {
-
-            File file = new File(dir + File.separator + f);
-
-            // Is it a directory? Recurse into it
-            if (file.isDirectory()) {
-
-                // Recurse into the subfolder
-                recursiveDir(file);
-
-                // Move on to the next file
-                continue;
-            }
+        // Check whether the file is a valid attachment
+        if (ExperimentDescriptor.isValidAttachment(file)) {
 
-            // No files are allowed in the root
-            if (dir.equals(this.userFolder)) {
+            // By design, when we find an attachment, the corresponding
+            // Experiment must exist
+            if (currentExperiment == null) {
                 validator.isValid = false;
                 validator.invalidFilesOrFolders.put(file,
-                        "Files must be in sub-folders.");
-                return;
-            }
-
-            // Delete some known garbage
-            if (deleteIfKnownUselessFile(file)) {
-                continue;
+                        "This attachment does not seem to be assigned"
+                                + " to any experiment!");
+                return FileVisitResult.CONTINUE;
             }
 
-            // The DIVA software can export FCS files in two modes: FCS export
-            // creates valid FCS 3.0-compliant files. Experiment export creates
-            // files that cannot be used in subsequent analysis in third-party
-            // software like FlowJo. In case of Experiment exports, an XML file
-            // is saved along with the series of FCS files. We use the presence
-            // of the XML file to discriminate between the two export modes.
-            String fileName = file.getName();
-            int indx = fileName.lastIndexOf(".");
-            if (indx == -1) {
-                continue;
-            }
-            String ext = fileName.substring(indx);
-            if (ext.equalsIgnoreCase(".xml")) {
+            // Attach the files
+            if (!currentExperiment.addAttachment(file)) {
                 validator.isValid = false;
-                validator.invalidFilesOrFolders.put(file, "Experiment export");
-                continue;
+                validator.invalidFilesOrFolders.put(file,
+                        "Could not assign attachments to esperiment!");
+                return FileVisitResult.CONTINUE;
             }
 
-            // Check whether the file is a valid attachment
-            if (ExperimentDescriptor.isValidAttachment(file)) {
+            return FileVisitResult.CONTINUE;
+        }
 
-                // By design, when we find an attachment, the corresponding
-                // Experiment must exist
-                if (currentExperiment == null) {
-                    validator.isValid = false;
-                    validator.invalidFilesOrFolders.put(file,
-                            "This attachment does not seem to be assigned"
-                                    + " to any experiment!");
-                    continue;
-                }
+        // Check whether we find a data_structure.ois file. This
+        // means that the whole folder has apparently been annotated
+        // already, but for some unknown reason it has not been
+        // moved into Datamover's incoming folder.
+        // We break here.
+        if (fileName.toLowerCase().equals("data_structure.ois")) {
+            validator.isValid = false;
+            validator.invalidFilesOrFolders.put(file,
+                    "Failed registration to openBIS!");
+            return FileVisitResult.SKIP_SIBLINGS;
+        }
 
-                // Attach the files
-                if (!currentExperiment.addAttachment(file)) {
-                    validator.isValid = false;
-                    validator.invalidFilesOrFolders.put(file,
-                            "Could not assign attachments to esperiment!");
-                    continue;
-                }
+        // Check whether an experiment is already annotated. Please
+        // mind that at this stage we do not know WHICH experiment
+        // was annotated. We just react to the fact that at least
+        // one has been annotated, somewhere.
+        if (fileName.contains("_properties.oix")) {
+            validator.isValid = false;
+            validator.invalidFilesOrFolders.put(file,
+                    "Experiment already annotated");
+            return FileVisitResult.SKIP_SIBLINGS;
+        }
 
-                continue;
-            }
+        // Do we have an unknown file? If we do, we move on to the next.
+        if (!ext.equalsIgnoreCase(".fcs")) {
+            validator.isValid = false;
+            validator.invalidFilesOrFolders.put(file,
+                    "Unsupported file format");
+            return FileVisitResult.CONTINUE;
+        }
 
-            // Check whether we find a data_structure.ois file. This
-            // means that the whole folder has apparently been annotated
-            // already, but for some unknown reason it has not been
-            // moved into Datamover's incoming folder.
-            // We break here.
-            if (fileName.toLowerCase().equals("data_structure.ois")) {
-                validator.isValid = false;
-                validator.invalidFilesOrFolders.put(file,
-                        "Failed registration to openBIS!");
-                return;
-            }
+        // Is it an FCS file? Scan it and extract the information
+        FCSReader processor = parseFCSFile(file);
+        if (processor == null) {
+            System.err.println("File " + file.getCanonicalPath()
+                    + " could not be parsed!");
+            validator.isValid = false;
+            validator.invalidFilesOrFolders.put(file, "Parsing failed");
+            return FileVisitResult.CONTINUE;
+        }
 
-            // Check whether an experiment is already annotated. Please
-            // mind that at this stage we do not know WHICH experiment
-            // was annotated. We just react to the fact that at least
-            // one has been annotated, somewhere.
-            if (fileName.contains("_properties.oix")) {
-                validator.isValid = false;
-                validator.invalidFilesOrFolders.put(file,
-                        "Experiment already annotated");
-                return;
-            }
+        // Create a new ExperimentDescriptor or reuse an existing one
+        BDLSRFortessaExperiment expDesc = null;
+        String experimentName = getExperimentName(processor);
+        String experimentPath = getExperimentPath(processor, file);
+        if (experimentPath.equals("")) {
+            validator.isValid = false;
+            validator.invalidFilesOrFolders.put(file,
+                    "Containing folder name does not match experiment "
+                            + "name (" + experimentName + ").");
+            return FileVisitResult.CONTINUE;
+        }
+        if (folderDescriptor.experiments.containsKey(experimentPath)) {
+            expDesc = (BDLSRFortessaExperiment) folderDescriptor.experiments
+                    .get(experimentPath);
+        } else {
+            expDesc = new BDLSRFortessaExperiment(new File(experimentPath),
+                    experimentName, userRootFolder);
+            // Store attributes
+            expDesc.addAttributes(getExperimentAttributes(processor));
+            folderDescriptor.experiments.put(experimentPath, expDesc);
+        }
 
-            // Do we have an unknown file? If we do, we move on to the next.
-            if (!ext.equalsIgnoreCase(".fcs")) {
-                validator.isValid = false;
-                validator.invalidFilesOrFolders.put(file,
-                        "Unsupported file format");
-                continue;
-            }
+        // Keep track of current experiment
+        currentExperiment = expDesc;
 
-            // Is it an FCS file? Scan it and extract the information
-            FCSReader processor = new FCSReader(file, false);
-            if (!processor.parse()) {
-                System.err.println("File " + file.getCanonicalPath()
-                        + " could not be parsed!");
-                validator.isValid = false;
-                validator.invalidFilesOrFolders.put(file, "Parsing failed");
-                continue;
-            }
+        // Is the container a Tray or Specimen?
+        if (identifyContainerType(processor).equals("TRAY")) {
 
-            // Create a new ExperimentDescriptor or reuse an existing one
-            BDLSRFortessaExperiment expDesc = null;
-            String experimentName = getExperimentName(processor);
-            String experimentPath = getExperimentPath(processor, file);
-            if (experimentPath.equals("")) {
-                validator.isValid = false;
-                validator.invalidFilesOrFolders.put(file,
-                        "Containing folder name does not match experiment "
-                                + "name (" + experimentName + ").");
-                continue;
-            }
-            if (folderDescriptor.experiments.containsKey(experimentPath)) {
-                expDesc = (BDLSRFortessaExperiment) folderDescriptor.experiments
-                        .get(experimentPath);
+            // Create a new TrayDescriptor or reuse an existing one
+            Tray trayDesc;
+            String trayName = getTrayName(processor);
+            String trayKey = experimentName + "_" + trayName;
+            if (expDesc.trays.containsKey(trayKey)) {
+                trayDesc = expDesc.trays.get(trayKey);
             } else {
-                expDesc = new BDLSRFortessaExperiment(new File(experimentPath),
-                        experimentName, userRootFolder);
+                trayDesc = new Tray(trayName);
                 // Store attributes
-                expDesc.addAttributes(getExperimentAttributes(processor));
-                folderDescriptor.experiments.put(experimentPath, expDesc);
+                trayDesc.addAttributes(getTrayAttributes(processor));
+                // Store it in the experiment descriptor
+                expDesc.trays.put(trayKey, trayDesc);
             }
 
-            // Keep track of current experiment
-            currentExperiment = expDesc;
-
-            // Is the container a Tray or Specimen?
-            if (identifyContainerType(processor).equals("TRAY")) {
-
-                // Create a new TrayDescriptor or reuse an existing one
-                Tray trayDesc;
-                String trayName = getTrayName(processor);
-                String trayKey = experimentName + "_" + trayName;
-                if (expDesc.trays.containsKey(trayKey)) {
-                    trayDesc = expDesc.trays.get(trayKey);
-                } else {
-                    trayDesc = new Tray(trayName);
-                    // Store attributes
-                    trayDesc.addAttributes(getTrayAttributes(processor));
-                    // Store it in the experiment descriptor
-                    expDesc.trays.put(trayKey, trayDesc);
-                }
+            // Create a new Specimen or reuse an existing one
+            Specimen specDesc;
+            String specName = getSpecimenName(processor);
+            String specKey = trayKey + "_" + specName;
+            if (trayDesc.specimens.containsKey(specKey)) {
+                specDesc = trayDesc.specimens.get(specKey);
+            } else {
+                specDesc = new Specimen(specName);
+                // Store attributes
+                specDesc.addAttributes(getSpecimenAttributes(processor));
+                // Store it in the tray descriptor
+                trayDesc.specimens.put(specKey, specDesc);
+            }
 
-                // Create a new Specimen or reuse an existing one
-                Specimen specDesc;
-                String specName = getSpecimenName(processor);
-                String specKey = trayKey + "_" + specName;
-                if (trayDesc.specimens.containsKey(specKey)) {
-                    specDesc = trayDesc.specimens.get(specKey);
-                } else {
-                    specDesc = new Specimen(specName);
-                    // Store attributes
-                    specDesc.addAttributes(getSpecimenAttributes(processor));
-                    // Store it in the tray descriptor
-                    trayDesc.specimens.put(specKey, specDesc);
-                }
+            // Create a new Well descriptor or reuse an existing one
+            Well wellDesc;
+            String wellName = getTubeOrWellName(processor);
+            String wellKey = specKey + "_" + wellName;
+            if (!specDesc.tubes.containsKey(wellKey)) {
+                wellDesc = new Well(wellName, file, userRootFolder);
+                // Store attributes
+                wellDesc.addAttributes(getTubeOrWellAttributes(processor));
+                // Store events and parameter attributes
+                wellDesc.fcsFile.parameterList = new FCSFileParameterList(
+                        processor.numEvents(), processor.numParameters(),
+                        processor.parametersAttr);
+                // Store it in the specimen descriptor
+                specDesc.tubes.put(wellKey, wellDesc);
+            }
 
-                // Create a new Well descriptor or reuse an existing one
-                Well wellDesc;
-                String wellName = getTubeOrWellName(processor);
-                String wellKey = specKey + "_" + wellName;
-                if (!specDesc.tubes.containsKey(wellKey)) {
-                    wellDesc = new Well(wellName, file, userRootFolder);
-                    // Store attributes
-                    wellDesc.addAttributes(getTubeOrWellAttributes(processor));
-                    // Store events and parameter attributes
-                    wellDesc.fcsFile.parameterList = new FCSFileParameterList(
-                            processor.numEvents(), processor.numParameters(),
-                            processor.parametersAttr);
-                    // Store it in the specimen descriptor
-                    specDesc.tubes.put(wellKey, wellDesc);
-                }
+        } else {
 
+            // Create a new Specimen or reuse an existing one
+            Specimen specDesc;
+            String specName = getSpecimenName(processor);
+            String specKey = experimentName + "_" + specName;
+            if (expDesc.specimens.containsKey(specKey)) {
+                specDesc = expDesc.specimens.get(specKey);
             } else {
+                specDesc = new Specimen(specName);
+                // Store attributes
+                specDesc.addAttributes(getSpecimenAttributes(processor));
+                // Store it in the experiment descriptor
+                expDesc.specimens.put(specKey, specDesc);
+            }
 
-                // Create a new Specimen or reuse an existing one
-                Specimen specDesc;
-                String specName = getSpecimenName(processor);
-                String specKey = experimentName + "_" + specName;
-                if (expDesc.specimens.containsKey(specKey)) {
-                    specDesc = expDesc.specimens.get(specKey);
-                } else {
-                    specDesc = new Specimen(specName);
-                    // Store attributes
-                    specDesc.addAttributes(getSpecimenAttributes(processor));
-                    // Store it in the experiment descriptor
-                    expDesc.specimens.put(specKey, specDesc);
-                }
-
-                // Create a new Tube descriptor or reuse an existing one
-                Tube tubeDesc;
-                String tubeName = getTubeOrWellName(processor);
-                String tubeKey = specKey + "_" + tubeName;
-                if (!specDesc.tubes.containsKey(tubeKey)) {
-                    tubeDesc = new Tube(tubeName, file, userRootFolder);
-                    // Store attributes
-                    tubeDesc.addAttributes(getTubeOrWellAttributes(processor));
-                    // Store events and parameter attributes
-                    tubeDesc.fcsFile.parameterList = new FCSFileParameterList(
-                            processor.numEvents(), processor.numParameters(),
-                            processor.parametersAttr);
-                    // Store it in the specimen descriptor
-                    specDesc.tubes.put(tubeKey, tubeDesc);
-                }
-
+            // Create a new Tube descriptor or reuse an existing one
+            Tube tubeDesc;
+            String tubeName = getTubeOrWellName(processor);
+            String tubeKey = specKey + "_" + tubeName;
+            if (!specDesc.tubes.containsKey(tubeKey)) {
+                tubeDesc = new Tube(tubeName, file, userRootFolder);
+                // Store attributes
+                tubeDesc.addAttributes(getTubeOrWellAttributes(processor));
+                // Store events and parameter attributes
+                tubeDesc.fcsFile.parameterList = new FCSFileParameterList(
+                        processor.numEvents(), processor.numParameters(),
+                        processor.parametersAttr);
+                // Store it in the specimen descriptor
+                specDesc.tubes.put(tubeKey, tubeDesc);
             }
 
         }
 
+        return FileVisitResult.CONTINUE;
     }
 
     /**
@@ -481,4 +465,22 @@ public class BDLSRFortessaFlowProcessor extends AbstractFlowProcessor {
         return knownHardwareStrings.containsKey(hardwareString);
     }
 
+    /**
+     * Provider of the BD LSR Fortessa processor for the FlowProcessorRegistry.
+     *
+     * @author Aaron Ponti
+     */
+    public static class Provider implements FlowProcessorProvider {
+
+        @Override
+        public Set<String> getHardwareStrings() {
+            return Collections.unmodifiableSet(knownHardwareStrings.keySet());
+        }
+
+        @Override
+        public AbstractFlowProcessor createProcessor(String fullUserFolderName) {
+            return new BDLSRFortessaFlowProcessor(fullUserFolderName);
+        }
+    }
+
 }
\ No newline at end of file
@@ -2,8 +2,12 @@ package ch.ethz.scu.obit.flow.processors.data;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileVisitResult;
 
 import ch.ethz.scu.obit.flow.readers.FCSReader;
+import ch.ethz.scu.obit.processors.data.FolderWalker;
+import ch.ethz.scu.obit.processors.data.FolderWalker.Entry;
+import ch.ethz.scu.obit.processors.data.ScanSnapshot;
 
 /**
  * The Composite Microscopy Reader factory returns the
@@ -14,8 +18,6 @@ import ch.ethz.scu.obit.flow.readers.FCSReader;
  */
 public class FlowProcessorFactory {
 
-    private static String hardwareString = "";
-
     /**
      * Creates a composite microscope reader viewer depending on the answer of
      * their canRead() method.
@@ -26,116 +28,124 @@ public class FlowProcessorFactory {
      */
     public static AbstractFlowProcessor createProcessor(String folder)
             throws IOException {
+        return createProcessor(new FlowScanSession(new File(folder)));
+    }
 
-        hardwareString = "";
-
-        // Is there something in the folder?
-        File folderToScan = new File(folder);
-
-        if (folderToScan.list().length == 0) {
-            // Default processor
-            return new BDLSRFortessaFlowProcessor(folder);
-        }
+    /**
+     * Creates a processor for the folder and hands it the snapshot of a
+     * previous scan (see AbstractFlowProcessor.setSnapshot()). The snapshot
+     * is only used if it was taken with the same hardware.
+     *
+     * @param folder   Folder to be processed.
+     * @param snapshot Snapshot of a previous scan of the folder (can be null).
+     * @return a concrete implementation of an AbstractFlowProcessor
+     * @throws IOException if the hardware class could not be defined.
+     */
+    public static AbstractFlowProcessor createProcessor(String folder,
+            ScanSnapshot snapshot) throws IOException {
 
-        hardwareString = FlowProcessorFactory.recursiveDir(folderToScan);
-
-        if (BDLSRFortessaFlowProcessor.isValidHardwareString(hardwareString)) {
-            return new BDLSRFortessaFlowProcessor(folder);
-        } else if (BDFACSAriaFlowProcessor
-                .isValidHardwareString(hardwareString)) {
-            return new BDFACSAriaFlowProcessor(folder);
-        } else if (BDInfluxFlowProcessor
-                .isValidHardwareString(hardwareString)) {
-            return new BDInfluxFlowProcessor(folder);
-        } else if (BCMoFloXDPFlowProcessor
-                .isValidHardwareString(hardwareString)) {
-            return new BCMoFloXDPFlowProcessor(folder);
-        } else if (BIORADS3eFlowProcessor
-                .isValidHardwareString(hardwareString)) {
-            return new BIORADS3eFlowProcessor(folder);
-        } else if (SONYSH800SFlowProcessor
-                .isValidHardwareString(hardwareString)) {
-            return new SONYSH800SFlowProcessor(folder);
-        } else if (SONYMA900FlowProcessor
-                .isValidHardwareString(hardwareString)) {
-            return new SONYMA900FlowProcessor(folder);
-        } else if (BCCytoFLEXSFlowProcessor
-                .isValidHardwareString(hardwareString)) {
-            return new BCCytoFLEXSFlowProcessor(folder);
-        } else {
-            throw new IOException("Unknown hardware type!");
+        AbstractFlowProcessor processor = createProcessor(folder);
+        if (snapshot != null && snapshot.getType().equals(
+                processor.getScanSession().getHardwareString())) {
+            processor.setSnapshot(snapshot);
         }
+        return processor;
     }
 
-    private static String recursiveDir(File dir) {
+    /**
+     * Creates a processor for the folder of a scan session. If the session
+     * already knows the hardware string (e.g. for an incremental scan, see
+     * FlowScanSession.createIncrementalSession()), the folder is not searched
+     * for it again.
+     *
+     * @param session Scan session for the folder to be processed.
+     * @return a concrete implementation of an AbstractFlowProcessor
+     * @throws IOException if the hardware class could not be defined.
+     */
+    public static AbstractFlowProcessor createProcessor(
+            FlowScanSession session) throws IOException {
 
-        // Since this function is recursive, we check whether we
-        // already found the value.
-        if (!hardwareString.equals("")) {
+        // Is there something in the folder?
+        File folderToScan = session.getFolder();
+        String folder = folderToScan.getPath();
 
-            // We found the string, we can return
-            return hardwareString;
-        }
+        if (session.getHardwareString().equals("")) {
 
-        // Get the list of files
-        String[] files = dir.list();
+            if (session.getFolderWalker().list(folderToScan).isEmpty()) {
+                // Default processor
+                AbstractFlowProcessor processor =
+                        new BDLSRFortessaFlowProcessor(folder);
+                processor.setScanSession(session);
+                return processor;
+            }
 
-        // Empty subfolders are not accepted
-        if (files.length == 0) {
-            return "";
+            // The session keeps the FCS file parsed to find the hardware
+            // string for the processor
+            session.setHardwareString(findHardwareString(session));
         }
+        String hardwareString = session.getHardwareString();
 
-        // Go over the files and folders
-        for (String f : files) {
+        // Find the processor for the hardware
+        FlowProcessorProvider provider =
+                FlowProcessorRegistry.getProvider(hardwareString);
+        if (provider == null) {
+            throw new IOException("Unknown hardware type!");
+        }
+        AbstractFlowProcessor processor = provider.createProcessor(folder);
 
-            File file = new File(dir + File.separator + f);
+        // Hand the parsed file over to the processor
+        processor.setScanSession(session);
+        return processor;
+    }
 
-            // Is it a directory? Recurse into it
-            if (file.isDirectory()) {
+    /**
+     * Return the hardware string ($CYT) of the first FCS file found in the
+     * folder of the scan session. The parsed file and the folder listings
+     * are kept in the session for the processor.
+     *
+     * @param session Scan session.
+     * @return hardware string, or "" if no FCS file could be parsed.
+     * @throws IOException if the folder could not be walked.
+     */
+    private static String findHardwareString(final FlowScanSession session)
+            throws IOException {
 
-                // Recurse into the subfolder
-                hardwareString = recursiveDir(file);
+        final String[] hardwareString = { "" };
+        session.getFolderWalker().walk(new FolderWalker.SimpleVisitor() {
 
-                if (!hardwareString.equals("")) {
+            @Override
+            public FileVisitResult visitFile(Entry entry, int depth) {
 
-                    // We found the string, we can return
-                    return hardwareString;
+                // Is it an FCS file?
+                String fileName = entry.getName();
+                int indx = fileName.lastIndexOf(".");
+                if (indx == -1) {
+                    return FileVisitResult.CONTINUE;
+                }
+                String ext = fileName.substring(indx);
+                if (!ext.equalsIgnoreCase(".fcs")) {
+                    return FileVisitResult.CONTINUE;
                 }
 
-                // Move on to the next file
-                continue;
-            }
-
-            // Is it an FCS file?
-            String fileName = file.getName();
-            int indx = fileName.lastIndexOf(".");
-            if (indx == -1) {
-                continue;
-            }
-            String ext = fileName.substring(indx);
-            if (!ext.equalsIgnoreCase(".fcs")) {
-                continue;
-            }
-
-            // Is it an FCS file? Scan it and extract the information
-            FCSReader processor = new FCSReader(file, false);
-            try {
+                // Is it an FCS file? Scan it and extract the information
+                FCSReader processor = new FCSReader(entry.getFile(), false);
+                try {
 
-                // Parse the file
-                processor.parse();
+                    // Parse the file and keep it for the processor
+                    boolean success = processor.parse();
+                    session.putParsedFile(entry, success ? processor : null);
 
-                // Return the hardware string
-                return processor.getStandardKeyword("$CYT");
+                    // We found the string, we can stop
+                    hardwareString[0] = processor.getStandardKeyword("$CYT");
+                    return FileVisitResult.TERMINATE;
 
-            } catch (IOException e) {
-                continue;
+                } catch (IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
             }
+        });
 
-        }
-
-        // We haven't found any FCS file!
-        return "";
-
+        return hardwareString[0];
     }
 
 }
@@ -0,0 +1,35 @@
+package ch.ethz.scu.obit.flow.processors.data;
+
+import java.util.Set;
+
+/**
+ * A FlowProcessorProvider creates the processor for the FCS files of one or
+ * more cytometers.
+ *
+ * Providers are found by the FlowProcessorRegistry with a ServiceLoader: to
+ * add support for a new cytometer, implement a provider (with a public
+ * no-argument constructor) and list its class in
+ * META-INF/services/ch.ethz.scu.obit.flow.processors.data.FlowProcessorProvider.
+ *
+ * @author Aaron Ponti
+ */
+public interface FlowProcessorProvider {
+
+    /**
+     * Return the hardware strings ($CYT) of the FCS files the processor
+     * supports.
+     *
+     * @return set of supported hardware strings.
+     */
+    public Set<String> getHardwareStrings();
+
+    /**
+     * Create a processor for a user folder.
+     *
+     * @param fullUserFolderName Full path of the user folder containing the
+     *                           exported experiments.
+     * @return a concrete implementation of an AbstractFlowProcessor.
+     */
+    public AbstractFlowProcessor createProcessor(String fullUserFolderName);
+
+}
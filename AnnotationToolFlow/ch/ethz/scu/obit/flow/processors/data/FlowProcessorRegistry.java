@@ -0,0 +1,73 @@
+package ch.ethz.scu.obit.flow.processors.data;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+
+/**
+ * Registry of the FlowProcessorProviders found on the class path. The
+ * providers are loaded once and indexed by the hardware strings ($CYT) they
+ * support, so that finding the processor for a folder takes a single lookup.
+ *
+ * If two providers declare the same hardware string, the first one listed
+ * on the class path is used.
+ *
+ * @author Aaron Ponti
+ */
+public final class FlowProcessorRegistry {
+
+    /* Providers by hardware string (loaded on first use) */
+    private static class Holder {
+        static final Map<String, FlowProcessorProvider> providers =
+                loadProviders();
+    }
+
+    /**
+     * Private constructor: the registry only has static methods.
+     */
+    private FlowProcessorRegistry() {
+    }
+
+    /**
+     * Return the provider of the processor for a hardware string.
+     *
+     * @param hardwareString Hardware string ($CYT).
+     * @return provider, or null if the hardware string is not supported.
+     */
+    public static FlowProcessorProvider getProvider(String hardwareString) {
+        return Holder.providers.get(hardwareString);
+    }
+
+    /**
+     * Return all supported hardware strings.
+     *
+     * @return set of supported hardware strings.
+     */
+    public static Set<String> getHardwareStrings() {
+        return Collections.unmodifiableSet(Holder.providers.keySet());
+    }
+
+    /**
+     * Load all FlowProcessorProviders and index them by hardware string.
+     *
+     * @return map of providers by hardware string.
+     */
+    private static Map<String, FlowProcessorProvider> loadProviders() {
+        Map<String, FlowProcessorProvider> providers =
+                new HashMap<String, FlowProcessorProvider>();
+        ServiceLoader<FlowProcessorProvider> loader = ServiceLoader.load(
+                FlowProcessorProvider.class,
+                FlowProcessorRegistry.class.getClassLoader());
+        for (FlowProcessorProvider provider : loader) {
+            for (String hardwareString : provider.getHardwareStrings()) {
+                if (!providers.containsKey(hardwareString)) {
+                    providers.put(hardwareString, provider);
+                }
+            }
+        }
+        return providers;
+    }
+
+}
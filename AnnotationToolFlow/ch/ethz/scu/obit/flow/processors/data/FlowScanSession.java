@@ -0,0 +1,209 @@
+package ch.ethz.scu.obit.flow.processors.data;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import ch.ethz.scu.obit.flow.processors.data.model.FCSFileParameterList;
+import ch.ethz.scu.obit.flow.readers.FCSReader;
+import ch.ethz.scu.obit.processors.data.FolderWalker;
+import ch.ethz.scu.obit.processors.data.FolderWalker.Entry;
+
+/**
+ * A FlowScanSession holds the state of a single scan of a user folder: the
+ * hardware string detected by the FlowProcessorFactory, the FCS files that
+ * were already parsed to detect it, and the FolderWalker with the folder
+ * listings read so far. The processor created by the factory takes these
+ * over, so that every folder is listed and every FCS file is opened only
+ * once per scan.
+ *
+ * Each scan has its own session: scans of different folders can run at the
+ * same time. The session also records all FCS files used by the scan: an
+ * incremental session for a later scan of the same folder reuses those that
+ * did not change in the meanwhile (see createIncrementalSession()). Once
+ * the scan has built the descriptor of a file, the reader only keeps the
+ * keywords the processor looked up, and its parameter attributes are shared
+ * with the other files of the same panel (see compactScannedFile()).
+ *
+ * @author Aaron Ponti
+ */
+public class FlowScanSession {
+
+    /* Private instance variables */
+    private final File folder;
+    private final FolderWalker walker;
+    private String hardwareString = "";
+    private final Map<File, ParsedFile> parsedFiles =
+            new HashMap<File, ParsedFile>();
+    private final Map<File, ParsedFile> scannedFiles =
+            new HashMap<File, ParsedFile>();
+
+    /* A parsed FCS file, with the size and modification time it had */
+    private static class ParsedFile {
+
+        final FCSReader processor;
+        final long length;
+        final long lastModified;
+
+        ParsedFile(FCSReader processor, Entry entry) {
+            this.processor = processor;
+            this.length = entry.length();
+            this.lastModified = entry.lastModified();
+        }
+
+        boolean isUpToDate(Entry entry) {
+            return length == entry.length()
+                    && lastModified == entry.lastModified();
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param folder User folder to be scanned.
+     */
+    public FlowScanSession(File folder) {
+        this.folder = folder;
+        this.walker = new FolderWalker(folder);
+    }
+
+    /**
+     * Return the user folder to be scanned.
+     *
+     * @return user folder.
+     */
+    public File getFolder() {
+        return folder;
+    }
+
+    /**
+     * Return the folder walker of the scan. Its cached listings are shared
+     * by the factory and the processor.
+     *
+     * @return folder walker.
+     */
+    FolderWalker getFolderWalker() {
+        return walker;
+    }
+
+    /**
+     * Return the hardware string ($CYT) found in the folder.
+     *
+     * @return hardware string, or "" if it was not found.
+     */
+    public synchronized String getHardwareString() {
+        return hardwareString;
+    }
+
+    /**
+     * Set the hardware string ($CYT) found in the folder.
+     *
+     * @param hardwareString Hardware string.
+     */
+    synchronized void setHardwareString(String hardwareString) {
+        this.hardwareString = hardwareString;
+    }
+
+    /**
+     * Store an FCS file that was parsed (without data).
+     *
+     * @param entry FCS file entry (with its attributes).
+     * @param processor FCSReader with the parsed file, or null if parsing
+     *        failed.
+     */
+    synchronized void putParsedFile(Entry entry, FCSReader processor) {
+        parsedFiles.put(entry.getFile(), new ParsedFile(processor, entry));
+    }
+
+    /**
+     * Return true if the FCS file was already parsed in this session and
+     * did not change since.
+     *
+     * @param entry FCS file entry (with its current attributes).
+     * @return true if the file was parsed, false otherwise.
+     */
+    synchronized boolean hasParsedFile(Entry entry) {
+        ParsedFile parsed = parsedFiles.get(entry.getFile());
+        if (parsed == null) {
+            return false;
+        }
+        if (!parsed.isUpToDate(entry)) {
+            // The file changed: it must be parsed again
+            parsedFiles.remove(entry.getFile());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Remove and return an FCS file that was parsed in this session.
+     *
+     * Use hasParsedFile() first to tell an unknown file from a file that
+     * could not be parsed.
+     *
+     * @param file FCS file.
+     * @return FCSReader with the parsed file, or null if parsing failed or
+     *         the file is unknown.
+     */
+    synchronized FCSReader takeParsedFile(File file) {
+        ParsedFile parsed = parsedFiles.remove(file);
+        return parsed == null ? null : parsed.processor;
+    }
+
+    /**
+     * Record an FCS file used by the scan.
+     *
+     * @param entry FCS file entry (with its attributes).
+     * @param processor FCSReader with the parsed file, or null if parsing
+     *        failed.
+     */
+    synchronized void addScannedFile(Entry entry, FCSReader processor) {
+        scannedFiles.put(entry.getFile(), new ParsedFile(processor, entry));
+    }
+
+    /**
+     * Reduce the memory held by an FCS file used by the scan, once the
+     * processor has built its descriptor. The reader only keeps the keywords
+     * that were looked up (see FCSReader.discardUnusedKeywords()), and its
+     * parameter attributes are replaced by a read-only view that shares the
+     * parameter panel with the other files (see FCSFileParameterList).
+     *
+     * @param file FCS file.
+     */
+    synchronized void compactScannedFile(File file) {
+        ParsedFile scanned = scannedFiles.get(file);
+        if (scanned == null || scanned.processor == null) {
+            return;
+        }
+        FCSReader processor = scanned.processor;
+        processor.discardUnusedKeywords();
+        processor.parametersAttr = new FCSFileParameterList(
+                processor.numEvents(), processor.numParameters(),
+                processor.parametersAttr).getAttributes();
+    }
+
+    /**
+     * Create a session for a new scan of the same folder, after some of its
+     * files changed. The new session knows the hardware string and takes
+     * over all FCS files used by this scan that are not in the set of
+     * changed files. When the new scan lists them, the files that do not
+     * have the same size and modification time anymore are parsed again.
+     *
+     * @param changedFiles Files and folders that changed since this scan.
+     * @return new scan session.
+     */
+    public synchronized FlowScanSession createIncrementalSession(
+            Set<File> changedFiles) {
+
+        FlowScanSession session = new FlowScanSession(folder);
+        session.hardwareString = hardwareString;
+        for (File file : scannedFiles.keySet()) {
+            if (!changedFiles.contains(file)) {
+                session.parsedFiles.put(file, scannedFiles.get(file));
+            }
+        }
+        return session;
+    }
+
+}
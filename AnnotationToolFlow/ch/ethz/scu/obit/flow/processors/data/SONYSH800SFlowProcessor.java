@@ -2,8 +2,11 @@ package ch.ethz.scu.obit.flow.processors.data;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -68,7 +71,7 @@ public class SONYSH800SFlowProcessor extends AbstractFlowProcessor {
         // indeed a folder. So we can scan it recursively to find and
         // reconstruct the structure of all contained experiments.
         try {
-            recursiveDir(this.userFolder);
+            scan();
         } catch (IOException e) {
             this.errorMessage = "Could not parse the folder.";
             System.err.println(errorMessage);
@@ -81,178 +84,148 @@ public class SONYSH800SFlowProcessor extends AbstractFlowProcessor {
 
     }
 
+    /**
+     * Process a file found in an experiment folder
+     *
+     * @param file File to be processed
+     * @return FileVisitResult.CONTINUE to move on to the next file, or
+     *         FileVisitResult.SKIP_SIBLINGS to skip the remaining files
+     *         in the folder.
+     * @throws IOException Thrown if a FCS file could not be processed
+     */
     @Override
-    protected void recursiveDir(File dir) throws IOException {
-        // To make things simple and robust, we make sure that the first
-        // thing we process at any sub-folder level is an FCS file.
-        String[] files = getSimplySortedList(dir);
+    protected FileVisitResult processFile(File file) throws IOException {
 
-        // Empty subfolders are not accepted
-        if (files.length == 0 && !dir.equals(this.userFolder)) {
-            validator.isValid = false;
-            validator.invalidFilesOrFolders.put(dir, "Empty folder");
-            return;
+        // Get the file extension.
+        String fileName = file.getName();
+        int indx = fileName.lastIndexOf(".");
+        if (indx == -1) {
+            return FileVisitResult.CONTINUE;
         }
+        String ext = fileName.substring(indx);
 
-        // Go over the files and folders
-        for (String f : files) {
+        // Check whether the file is a valid attachment
+        if (ExperimentDescriptor.isValidAttachment(file)) {
 
-            File file = new File(dir + File.separator + f);
-
-            // Is it a directory? Recurse into it
-            if (file.isDirectory()) {
-
-                // Recurse into the subfolder
-                recursiveDir(file);
-
-                // Move on to the next file
-                continue;
-            }
-
-            // No files are allowed in the root
-            if (dir.equals(this.userFolder)) {
+            // By design, when we find an attachment, the corresponding
+            // Experiment must exist
+            if (currentExperiment == null) {
                 validator.isValid = false;
                 validator.invalidFilesOrFolders.put(file,
-                        "Files must be in sub-folders.");
-                return;
-            }
-
-            // Delete some known garbage
-            if (deleteIfKnownUselessFile(file)) {
-                continue;
-            }
-
-            // Get the file extension.
-            String fileName = file.getName();
-            int indx = fileName.lastIndexOf(".");
-            if (indx == -1) {
-                continue;
-            }
-            String ext = fileName.substring(indx);
-
-            // Check whether the file is a valid attachment
-            if (ExperimentDescriptor.isValidAttachment(file)) {
-
-                // By design, when we find an attachment, the corresponding
-                // Experiment must exist
-                if (currentExperiment == null) {
-                    validator.isValid = false;
-                    validator.invalidFilesOrFolders.put(file,
-                            "This attachment does not seem to be assigned"
-                                    + " to any experiment!");
-                    continue;
-                }
-
-                // Attach the files
-                if (!currentExperiment.addAttachment(file)) {
-                    validator.isValid = false;
-                    validator.invalidFilesOrFolders.put(file,
-                            "Could not assign attachments to esperiment!");
-                    continue;
-                }
-
-                continue;
+                        "This attachment does not seem to be assigned"
+                                + " to any experiment!");
+                return FileVisitResult.CONTINUE;
             }
 
-            // Check whether we find a data_structure.ois file. This
-            // means that the whole folder has apparently been annotated
-            // already, but for some unknown reason it has not been
-            // moved into Datamover's incoming folder.
-            // We break here.
-            if (fileName.toLowerCase().equals("data_structure.ois")) {
+            // Attach the files
+            if (!currentExperiment.addAttachment(file)) {
                 validator.isValid = false;
                 validator.invalidFilesOrFolders.put(file,
-                        "Failed registration to openBIS!");
-                return;
+                        "Could not assign attachments to esperiment!");
+                return FileVisitResult.CONTINUE;
             }
 
-            // Check whether an experiment is already annotated. Please
-            // mind that at this stage we do not know WHICH experiment
-            // was annotated. We just react to the fact that at least
-            // one has been annotated, somewhere.
-            if (fileName.contains("_properties.oix")) {
-                validator.isValid = false;
-                validator.invalidFilesOrFolders.put(file,
-                        "Experiment already annotated");
-                return;
-            }
+            return FileVisitResult.CONTINUE;
+        }
 
-            // Do we have an unknown file? If we do, we move on to the next.
-            if (!ext.equalsIgnoreCase(".fcs")) {
-                validator.isValid = false;
-                validator.invalidFilesOrFolders.put(file,
-                        "Unsupported file format");
-                continue;
-            }
+        // Check whether we find a data_structure.ois file. This
+        // means that the whole folder has apparently been annotated
+        // already, but for some unknown reason it has not been
+        // moved into Datamover's incoming folder.
+        // We break here.
+        if (fileName.toLowerCase().equals("data_structure.ois")) {
+            validator.isValid = false;
+            validator.invalidFilesOrFolders.put(file,
+                    "Failed registration to openBIS!");
+            return FileVisitResult.SKIP_SIBLINGS;
+        }
 
-            // Is it an FCS file? Scan it and extract the information
-            FCSReader processor = new FCSReader(file, false);
-            if (!processor.parse()) {
-                System.err.println("File " + file.getCanonicalPath()
-                        + " could not be parsed!");
-                validator.isValid = false;
-                validator.invalidFilesOrFolders.put(file, "Parsing failed");
-                continue;
-            }
+        // Check whether an experiment is already annotated. Please
+        // mind that at this stage we do not know WHICH experiment
+        // was annotated. We just react to the fact that at least
+        // one has been annotated, somewhere.
+        if (fileName.contains("_properties.oix")) {
+            validator.isValid = false;
+            validator.invalidFilesOrFolders.put(file,
+                    "Experiment already annotated");
+            return FileVisitResult.SKIP_SIBLINGS;
+        }
 
-            // Create a new ExperimentDescriptor or reuse an existing one
-            SorterExperiment expDesc = null;
-            String experimentName = getExperimentName(processor);
-            String experimentPath = getExperimentPath(processor, file);
-            if (experimentPath.equals("")) {
-                validator.isValid = false;
-                validator.invalidFilesOrFolders.put(file,
-                        "Containing folder name does not match experiment "
-                                + "name (" + experimentName + ").");
-                continue;
-            }
-            if (folderDescriptor.experiments.containsKey(experimentPath)) {
-                expDesc = (SorterExperiment) folderDescriptor.experiments
-                        .get(experimentPath);
-            } else {
-                expDesc = new SorterExperiment(new File(experimentPath),
-                        experimentName, userRootFolder);
-                // Store attributes
-                expDesc.addAttributes(getExperimentAttributes(processor));
-                folderDescriptor.experiments.put(experimentPath, expDesc);
-            }
+        // Do we have an unknown file? If we do, we move on to the next.
+        if (!ext.equalsIgnoreCase(".fcs")) {
+            validator.isValid = false;
+            validator.invalidFilesOrFolders.put(file,
+                    "Unsupported file format");
+            return FileVisitResult.CONTINUE;
+        }
 
-            // Keep track of current experiment
-            currentExperiment = expDesc;
-
-            // BDInflux does not have plates (TRAYs)
-            // Create a new Specimen or reuse an existing one
-            Specimen specDesc;
-            String specName = getSpecimenName(processor);
-            String specKey = experimentName + "_" + specName;
-            if (expDesc.specimens.containsKey(specKey)) {
-                specDesc = expDesc.specimens.get(specKey);
-            } else {
-                specDesc = new Specimen(specName);
-                // Store attributes
-                specDesc.addAttributes(getSpecimenAttributes(processor));
-                // Store it in the experiment descriptor
-                expDesc.specimens.put(specKey, specDesc);
-            }
+        // Is it an FCS file? Scan it and extract the information
+        FCSReader processor = parseFCSFile(file);
+        if (processor == null) {
+            System.err.println("File " + file.getCanonicalPath()
+                    + " could not be parsed!");
+            validator.isValid = false;
+            validator.invalidFilesOrFolders.put(file, "Parsing failed");
+            return FileVisitResult.CONTINUE;
+        }
 
-            // Create a new Tube descriptor or reuse an existing one
-            Tube tubeDesc;
-            String tubeName = getTubeOrWellName(processor);
-            String tubeKey = specKey + "_" + tubeName;
-            if (!specDesc.tubes.containsKey(tubeKey)) {
-                tubeDesc = new Tube(tubeName, file, userRootFolder);
-                // Store attributes
-                tubeDesc.addAttributes(getTubeOrWellAttributes(processor));
-                // Store events and parameter attributes
-                tubeDesc.fcsFile.parameterList = new FCSFileParameterList(
-                        processor.numEvents(), processor.numParameters(),
-                        processor.parametersAttr);
-                // Store it in the specimen descriptor
-                specDesc.tubes.put(tubeKey, tubeDesc);
-            }
+        // Create a new ExperimentDescriptor or reuse an existing one
+        SorterExperiment expDesc = null;
+        String experimentName = getExperimentName(processor);
+        String experimentPath = getExperimentPath(processor, file);
+        if (experimentPath.equals("")) {
+            validator.isValid = false;
+            validator.invalidFilesOrFolders.put(file,
+                    "Containing folder name does not match experiment "
+                            + "name (" + experimentName + ").");
+            return FileVisitResult.CONTINUE;
+        }
+        if (folderDescriptor.experiments.containsKey(experimentPath)) {
+            expDesc = (SorterExperiment) folderDescriptor.experiments
+                    .get(experimentPath);
+        } else {
+            expDesc = new SorterExperiment(new File(experimentPath),
+                    experimentName, userRootFolder);
+            // Store attributes
+            expDesc.addAttributes(getExperimentAttributes(processor));
+            folderDescriptor.experiments.put(experimentPath, expDesc);
+        }
 
+        // Keep track of current experiment
+        currentExperiment = expDesc;
+
+        // BDInflux does not have plates (TRAYs)
+        // Create a new Specimen or reuse an existing one
+        Specimen specDesc;
+        String specName = getSpecimenName(processor);
+        String specKey = experimentName + "_" + specName;
+        if (expDesc.specimens.containsKey(specKey)) {
+            specDesc = expDesc.specimens.get(specKey);
+        } else {
+            specDesc = new Specimen(specName);
+            // Store attributes
+            specDesc.addAttributes(getSpecimenAttributes(processor));
+            // Store it in the experiment descriptor
+            expDesc.specimens.put(specKey, specDesc);
+        }
+
+        // Create a new Tube descriptor or reuse an existing one
+        Tube tubeDesc;
+        String tubeName = getTubeOrWellName(processor);
+        String tubeKey = specKey + "_" + tubeName;
+        if (!specDesc.tubes.containsKey(tubeKey)) {
+            tubeDesc = new Tube(tubeName, file, userRootFolder);
+            // Store attributes
+            tubeDesc.addAttributes(getTubeOrWellAttributes(processor));
+            // Store events and parameter attributes
+            tubeDesc.fcsFile.parameterList = new FCSFileParameterList(
+                    processor.numEvents(), processor.numParameters(),
+                    processor.parametersAttr);
+            // Store it in the specimen descriptor
+            specDesc.tubes.put(tubeKey, tubeDesc);
         }
 
+        return FileVisitResult.CONTINUE;
     }
 
     /**
@@ -382,4 +355,23 @@ public class SONYSH800SFlowProcessor extends AbstractFlowProcessor {
     public static boolean isValidHardwareString(String hardwareString) {
         return knownHardwareStrings.containsKey(hardwareString);
     }
+
+    /**
+     * Provider of the SONY SH800S processor for the FlowProcessorRegistry.
+     *
+     * @author Aaron Ponti
+     */
+    public static class Provider implements FlowProcessorProvider {
+
+        @Override
+        public Set<String> getHardwareStrings() {
+            return Collections.unmodifiableSet(knownHardwareStrings.keySet());
+        }
+
+        @Override
+        public AbstractFlowProcessor createProcessor(String fullUserFolderName) {
+            return new SONYSH800SFlowProcessor(fullUserFolderName);
+        }
+    }
+
 }
@@ -10,6 +10,8 @@ import java.util.ArrayList;
  */
 public class AnalyzerExperiment extends Experiment {
 
+    private static final long serialVersionUID = 1L;
+
     /**
      * Support tray geometries.
      *
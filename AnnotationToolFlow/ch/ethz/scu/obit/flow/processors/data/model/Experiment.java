@@ -12,6 +12,8 @@ import ch.ethz.scu.obit.processors.data.model.ExperimentDescriptor;
  */
 public abstract class Experiment extends ExperimentDescriptor {
 
+    private static final long serialVersionUID = 1L;
+
     // An Experiment can contain TRAYS that in turn contain SPECIMENs
     // which contain TUBEs, or directly SPECIMENs containing TUBEs.
 
@@ -12,6 +12,8 @@ import ch.ethz.scu.obit.processors.data.model.DatasetDescriptor;
  */
 public class FCSFile extends DatasetDescriptor {
 
+    private static final long serialVersionUID = 1L;
+
     /**
      * List of parameters with their attributes
      */
@@ -1,16 +1,39 @@
 package ch.ethz.scu.obit.flow.processors.data.model;
 
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 import ch.ethz.scu.obit.processors.data.model.AbstractDescriptor;
 
 /**
  * Descriptor representing all parameters associated to an FCS File.
  * An FCSFileParameterList is always a child of a FCS File.
+ *
+ * The parameter attributes are stored in a shared ParameterPanel: the
+ * list only keeps the attributes that differ from the panel (e.g. the
+ * number of events and the voltages). The attributes map is read-only.
  * @author Aaron Ponti
  */
 public class FCSFileParameterList extends AbstractDescriptor {
 
+	private static final long serialVersionUID = 1L;
+
+	/* Shared panel definition */
+	private final ParameterPanel panel;
+
+	/* Sorted names and values of the attributes that differ from the panel */
+	private final String[] deltaKeys;
+	private final String[] deltaValues;
+
 	/**
 	 * Constructor
 	 * @param numEvents Number of events.
@@ -22,9 +45,35 @@ public class FCSFileParameterList extends AbstractDescriptor {
 
 		// Set the parameter number and lists and the associated event 
 		// number.
-		attributes.put("numEvents", Integer.toString(numEvents));
-		attributes.put("numParameters", Integer.toString(numParameters));
-		attributes.putAll(parameterAttrib);
+		Map<String, String> attrib = new HashMap<String, String>(
+				parameterAttrib.size() * 4 / 3 + 3);
+		attrib.put("numEvents", Integer.toString(numEvents));
+		attrib.put("numParameters", Integer.toString(numParameters));
+		attrib.putAll(parameterAttrib);
+
+		// Get the shared panel and keep the differences only
+		panel = ParameterPanel.intern(attrib);
+		List<String> keys = new ArrayList<String>();
+		List<String> values = new ArrayList<String>();
+		for (int i = 0; i < panel.size(); i++) {
+			String value = attrib.get(panel.getKey(i));
+			if (!value.equals(panel.getValue(i))) {
+				keys.add(panel.getKey(i));
+				values.add(value);
+			}
+		}
+		deltaKeys = keys.toArray(new String[keys.size()]);
+		deltaValues = values.toArray(new String[values.size()]);
+
+		attributes = new ParameterMap();
+	}
+
+	/**
+	 * Return the shared panel the parameters belong to.
+	 * @return parameter panel.
+	 */
+	public ParameterPanel getPanel() {
+		return panel;
 	}
 
 	/**
@@ -45,4 +94,100 @@ public class FCSFileParameterList extends AbstractDescriptor {
 		return "FCSFileParamList";
 	}
 
+	/**
+	 * Return the value of the attribute at given index in the panel.
+	 * @param index Index of the attribute in the panel.
+	 * @return value of the attribute for this file.
+	 */
+	private String valueAt(int index) {
+		int d = Arrays.binarySearch(deltaKeys, panel.getKey(index));
+		return (d >= 0) ? deltaValues[d] : panel.getValue(index);
+	}
+
+	/**
+	 * Read-only view of the panel attributes with the values of this file.
+	 * @author Aaron Ponti
+	 */
+	private class ParameterMap extends AbstractMap<String, String>
+			implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public int size() {
+			return panel.size();
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return panel.indexOf(key) >= 0;
+		}
+
+		@Override
+		public String get(Object key) {
+			int index = panel.indexOf(key);
+			return (index >= 0) ? valueAt(index) : null;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj instanceof FCSFileParameterList.ParameterMap) {
+				FCSFileParameterList other =
+						((FCSFileParameterList.ParameterMap) obj).list();
+				if (other.panel == panel) {
+					// Same panel: compare the differences only
+					return Arrays.equals(deltaKeys, other.deltaKeys)
+							&& Arrays.equals(deltaValues, other.deltaValues);
+				}
+			}
+			return super.equals(obj);
+		}
+
+		@Override
+		public Set<Map.Entry<String, String>> entrySet() {
+			return new AbstractSet<Map.Entry<String, String>>() {
+
+				@Override
+				public int size() {
+					return panel.size();
+				}
+
+				@Override
+				public Iterator<Map.Entry<String, String>> iterator() {
+					return new Iterator<Map.Entry<String, String>>() {
+
+						private int index = 0;
+
+						@Override
+						public boolean hasNext() {
+							return index < panel.size();
+						}
+
+						@Override
+						public Map.Entry<String, String> next() {
+							if (!hasNext()) {
+								throw new NoSuchElementException();
+							}
+							Map.Entry<String, String> entry =
+									new SimpleImmutableEntry<String, String>(
+											panel.getKey(index),
+											valueAt(index));
+							index++;
+							return entry;
+						}
+
+						@Override
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+			};
+		}
+
+		private FCSFileParameterList list() {
+			return FCSFileParameterList.this;
+		}
+	}
+
 }
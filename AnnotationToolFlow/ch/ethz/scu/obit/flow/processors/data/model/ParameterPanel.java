@@ -0,0 +1,239 @@
+package ch.ethz.scu.obit.flow.processors.data.model;
+
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Shared, immutable definition of the parameters (channels) of a panel.
+ *
+ * All FCS files acquired with the same panel have (almost) the same parameter
+ * attributes: names, labels, ranges, bits, amplification and display type of
+ * every channel. A ParameterPanel stores these attributes once; the
+ * FCSFileParameterList of each file references the panel and only keeps the
+ * attributes that differ (e.g. the number of events or the voltages).
+ *
+ * Panels are interned: intern() returns the same instance for all files with
+ * the same panel, as long as any file still uses it.
+ *
+ * @author Aaron Ponti
+ */
+public final class ParameterPanel implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/* Attributes that may change from file to file with the same panel */
+	private static final String[] PER_FILE_KEYS = { "numEvents" };
+	private static final String[] PER_FILE_SUFFIXES = { "V", "G" };
+
+	/* Interned panels */
+	private static final Map<ParameterPanel, WeakReference<ParameterPanel>>
+			panels = new WeakHashMap<ParameterPanel,
+			WeakReference<ParameterPanel>>();
+
+	/* Sorted attribute names and their values */
+	private final String[] keys;
+	private final String[] values;
+
+	/* Hash code of the panel signature */
+	private final int hash;
+
+	/**
+	 * Constructor
+	 * @param keys Sorted attribute names.
+	 * @param values Attribute values.
+	 */
+	private ParameterPanel(String[] keys, String[] values) {
+		this.keys = keys;
+		this.values = values;
+		this.hash = signatureHashCode();
+	}
+
+	/**
+	 * Return the shared panel for a set of parameter attributes. If no
+	 * file uses a panel with the same parameters yet, the attributes become
+	 * the definition of a new panel.
+	 *
+	 * Two sets of attributes belong to the same panel if they have the same
+	 * attribute names and only differ in the values of the per-file
+	 * attributes (number of events, voltages and gains).
+	 *
+	 * @param attributes Parameter attributes of an FCS file.
+	 * @return shared panel.
+	 */
+	public static ParameterPanel intern(Map<String, String> attributes) {
+
+		String[] keys = attributes.keySet().toArray(
+				new String[attributes.size()]);
+		Arrays.sort(keys);
+		String[] values = new String[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			values[i] = attributes.get(keys[i]);
+		}
+		ParameterPanel candidate = new ParameterPanel(keys, values);
+
+		synchronized (panels) {
+			WeakReference<ParameterPanel> ref = panels.get(candidate);
+			ParameterPanel panel = (ref == null) ? null : ref.get();
+			if (panel == null) {
+				panel = candidate;
+				panels.put(panel, new WeakReference<ParameterPanel>(panel));
+			}
+			return panel;
+		}
+	}
+
+	/**
+	 * Replace a deserialized panel with the shared one. The files that use
+	 * the panel only store the values that differ from it: the shared panel
+	 * can only replace it if all values (also the per-file ones) match.
+	 * @return shared panel, or this panel if it cannot be shared.
+	 */
+	private Object readResolve() {
+		synchronized (panels) {
+			WeakReference<ParameterPanel> ref = panels.get(this);
+			ParameterPanel panel = (ref == null) ? null : ref.get();
+			if (panel == null) {
+				panels.put(this, new WeakReference<ParameterPanel>(this));
+				return this;
+			}
+			return Arrays.equals(values, panel.values) ? panel : this;
+		}
+	}
+
+	/**
+	 * Return the number of attributes of the panel.
+	 * @return number of attributes.
+	 */
+	public int size() {
+		return keys.length;
+	}
+
+	/**
+	 * Return the name of an attribute.
+	 * @param index Index of the attribute (attributes are sorted by name).
+	 * @return attribute name.
+	 */
+	public String getKey(int index) {
+		return keys[index];
+	}
+
+	/**
+	 * Return the value of an attribute in the panel definition.
+	 * @param index Index of the attribute (attributes are sorted by name).
+	 * @return attribute value.
+	 */
+	public String getValue(int index) {
+		return values[index];
+	}
+
+	/**
+	 * Return the index of an attribute.
+	 * @param key Attribute name.
+	 * @return index of the attribute, or a negative number if the panel
+	 * does not have it.
+	 */
+	public int indexOf(Object key) {
+		if (!(key instanceof String)) {
+			return -1;
+		}
+		return Arrays.binarySearch(keys, (String) key);
+	}
+
+	/**
+	 * Return true if the value of an attribute may change from file to file
+	 * with the same panel.
+	 * @param key Attribute name.
+	 * @return true for per-file attributes, false otherwise.
+	 */
+	public static boolean isPerFileKey(String key) {
+		for (String perFileKey : PER_FILE_KEYS) {
+			if (key.equals(perFileKey)) {
+				return true;
+			}
+		}
+		// Per-parameter attributes have the form "P<n><suffix>"
+		if (key.length() < 3 || key.charAt(0) != 'P') {
+			return false;
+		}
+		for (String suffix : PER_FILE_SUFFIXES) {
+			if (key.endsWith(suffix)) {
+				String n = key.substring(1, key.length() - suffix.length());
+				if (isNumber(n)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Two panels are equal if they have the same attribute names and the
+	 * same values for all attributes that are not per-file attributes.
+	 * @param obj Object to compare to.
+	 * @return true if the panels are equal, false otherwise.
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof ParameterPanel)) {
+			return false;
+		}
+		ParameterPanel other = (ParameterPanel) obj;
+		if (hash != other.hash || !Arrays.equals(keys, other.keys)) {
+			return false;
+		}
+		for (int i = 0; i < keys.length; i++) {
+			if (!isPerFileKey(keys[i]) && !values[i].equals(other.values[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Return the hash code of the panel signature.
+	 * @return hash code.
+	 */
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	/**
+	 * Compute the hash code of the attribute names and of the values that
+	 * are not per-file attributes.
+	 * @return hash code.
+	 */
+	private int signatureHashCode() {
+		int h = Arrays.hashCode(keys);
+		for (int i = 0; i < keys.length; i++) {
+			if (!isPerFileKey(keys[i])) {
+				h = 31 * h + values[i].hashCode();
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * Check whether a String is a (non-empty) sequence of digits.
+	 * @param s String to check.
+	 * @return true if the String is a number, false otherwise.
+	 */
+	private static boolean isNumber(String s) {
+		if (s.isEmpty()) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			if (!Character.isDigit(s.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -8,6 +8,8 @@ import java.io.File;
  */
 public class SorterExperiment extends Experiment {
 
+    private static final long serialVersionUID = 1L;
+
     /**
      * Constructor
      * @param fullPath Full path to the experiment folder.
@@ -12,6 +12,8 @@ import ch.ethz.scu.obit.processors.data.model.SampleDescriptor;
  */
 public class Tray extends SampleDescriptor {
 
+    private static final long serialVersionUID = 1L;
+
     /**
      * ArrayList of Specimen's
      */
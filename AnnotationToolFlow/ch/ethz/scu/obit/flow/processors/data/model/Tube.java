@@ -13,6 +13,8 @@ import ch.ethz.scu.obit.processors.data.model.SampleDescriptor;
  */
 public class Tube extends SampleDescriptor {
 
+    private static final long serialVersionUID = 1L;
+
     /**
      * An FCS file processor.
      */
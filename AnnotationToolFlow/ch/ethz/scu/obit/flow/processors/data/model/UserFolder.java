@@ -12,6 +12,8 @@ import ch.ethz.scu.obit.processors.data.model.RootDescriptor;
  */
 public class UserFolder extends RootDescriptor {
 
+	private static final long serialVersionUID = 1L;
+
 	/**
 	 * Hash map of experiments.
 	 */ 
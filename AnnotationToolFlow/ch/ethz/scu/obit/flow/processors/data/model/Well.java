@@ -11,6 +11,8 @@ import java.io.IOException;
  */
 public class Well extends Tube {
 
+    private static final long serialVersionUID = 1L;
+
     /**
      * Constructor.
      * @param name Name of the Well.
@@ -6,6 +6,8 @@ import ch.ethz.scu.obit.flow.processors.data.model.AnalyzerExperiment;
 
 public class BDLSRFortessaExperiment extends AnalyzerExperiment {
 
+    private static final long serialVersionUID = 1L;
+
     /**
      * Constructor
      *
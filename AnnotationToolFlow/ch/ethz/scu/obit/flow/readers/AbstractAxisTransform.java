@@ -0,0 +1,249 @@
+package ch.ethz.scu.obit.flow.readers;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Abstract base class for axis transforms. It implements the bulk methods
+ * of the AxisTransform interface on top of the single-value transform() and
+ * inverse() methods, and splits long ranges across the common fork/join
+ * pool. Actual implementations must extend this class, and can override the
+ * sequential range methods to provide faster loops.
+ *
+ * @author Aaron Ponti
+ */
+abstract public class AbstractAxisTransform implements AxisTransform {
+
+	/**
+	 * Number of values above which the bulk transforms are split across the
+	 * common fork/join pool
+	 */
+	static public final int PARALLEL_THRESHOLD = 1 << 16;
+
+	/**
+	 * Forward transform of the values in[from] to in[to - 1] into out[from]
+	 * to out[to - 1]. The input and output arrays may be the same.
+	 *
+	 * Values that cannot be transformed are set to NaN and counted. Ranges
+	 * longer than PARALLEL_THRESHOLD are processed on the common fork/join
+	 * pool.
+	 *
+	 * @param in array of values to be transformed.
+	 * @param out array to store the transformed values.
+	 * @param from index of the first value to transform (inclusive).
+	 * @param to index of the last value to transform (exclusive).
+	 * @return number of values that could not be transformed.
+	 */
+	@Override
+	public int transform(double[] in, double[] out, int from, int to) {
+		checkRange(in.length, out.length, from, to);
+		return process(new BulkTask(in, out, null, null, false, from, to));
+	}
+
+	/**
+	 * Forward transform in single precision. Values are transformed in double
+	 * precision and rounded to float.
+	 *
+	 * @see #transform(double[], double[], int, int)
+	 * @param in array of values to be transformed.
+	 * @param out array to store the transformed values.
+	 * @param from index of the first value to transform (inclusive).
+	 * @param to index of the last value to transform (exclusive).
+	 * @return number of values that could not be transformed.
+	 */
+	@Override
+	public int transform(float[] in, float[] out, int from, int to) {
+		checkRange(in.length, out.length, from, to);
+		return process(new BulkTask(null, null, in, out, false, from, to));
+	}
+
+	/**
+	 * Inverse transform of the values in[from] to in[to - 1] into out[from]
+	 * to out[to - 1]. The input and output arrays may be the same.
+	 *
+	 * Values that cannot be inverse-transformed are set to NaN and counted.
+	 * Ranges longer than PARALLEL_THRESHOLD are processed on the common
+	 * fork/join pool.
+	 *
+	 * @param in array of values to be inverse-transformed.
+	 * @param out array to store the inverse-transformed values.
+	 * @param from index of the first value to transform (inclusive).
+	 * @param to index of the last value to transform (exclusive).
+	 * @return number of values that could not be inverse-transformed.
+	 */
+	@Override
+	public int inverseTransform(double[] in, double[] out, int from, int to) {
+		checkRange(in.length, out.length, from, to);
+		return process(new BulkTask(in, out, null, null, true, from, to));
+	}
+
+	/**
+	 * Inverse transform in single precision. Values are transformed in double
+	 * precision and rounded to float.
+	 *
+	 * @see #inverseTransform(double[], double[], int, int)
+	 * @param in array of values to be inverse-transformed.
+	 * @param out array to store the inverse-transformed values.
+	 * @param from index of the first value to transform (inclusive).
+	 * @param to index of the last value to transform (exclusive).
+	 * @return number of values that could not be inverse-transformed.
+	 */
+	@Override
+	public int inverseTransform(float[] in, float[] out, int from, int to) {
+		checkRange(in.length, out.length, from, to);
+		return process(new BulkTask(null, null, in, out, true, from, to));
+	}
+
+	/**
+	 * Sequential forward transform of a range of values.
+	 * @param in array of values to be transformed.
+	 * @param out array to store the transformed values.
+	 * @param from index of the first value to transform (inclusive).
+	 * @param to index of the last value to transform (exclusive).
+	 * @return number of values that could not be transformed.
+	 */
+	protected int transformRange(double[] in, double[] out, int from, int to) {
+		int failed = 0;
+		for (int i = from; i < to; i++) {
+			double y = transform(in[i]);
+			failed += (y != y) ? 1 : 0;
+			out[i] = y;
+		}
+		return failed;
+	}
+
+	/**
+	 * Sequential forward transform of a range of values in single precision.
+	 * @param in array of values to be transformed.
+	 * @param out array to store the transformed values.
+	 * @param from index of the first value to transform (inclusive).
+	 * @param to index of the last value to transform (exclusive).
+	 * @return number of values that could not be transformed.
+	 */
+	protected int transformRange(float[] in, float[] out, int from, int to) {
+		int failed = 0;
+		for (int i = from; i < to; i++) {
+			double y = transform(in[i]);
+			failed += (y != y) ? 1 : 0;
+			out[i] = (float) y;
+		}
+		return failed;
+	}
+
+	/**
+	 * Sequential inverse transform of a range of values.
+	 * @param in array of values to be inverse-transformed.
+	 * @param out array to store the inverse-transformed values.
+	 * @param from index of the first value to transform (inclusive).
+	 * @param to index of the last value to transform (exclusive).
+	 * @return number of values that could not be inverse-transformed.
+	 */
+	protected int inverseRange(double[] in, double[] out, int from, int to) {
+		int failed = 0;
+		for (int i = from; i < to; i++) {
+			double y = inverse(in[i]);
+			failed += (y != y) ? 1 : 0;
+			out[i] = y;
+		}
+		return failed;
+	}
+
+	/**
+	 * Sequential inverse transform of a range of values in single precision.
+	 * @param in array of values to be inverse-transformed.
+	 * @param out array to store the inverse-transformed values.
+	 * @param from index of the first value to transform (inclusive).
+	 * @param to index of the last value to transform (exclusive).
+	 * @return number of values that could not be inverse-transformed.
+	 */
+	protected int inverseRange(float[] in, float[] out, int from, int to) {
+		int failed = 0;
+		for (int i = from; i < to; i++) {
+			double y = inverse(in[i]);
+			failed += (y != y) ? 1 : 0;
+			out[i] = (float) y;
+		}
+		return failed;
+	}
+
+	/**
+	 * Check the range passed to the bulk transforms.
+	 * @param inLength length of the input array.
+	 * @param outLength length of the output array.
+	 * @param from index of the first value to transform (inclusive).
+	 * @param to index of the last value to transform (exclusive).
+	 */
+	private static void checkRange(int inLength, int outLength, int from, int to) {
+		if (from < 0 || from > to || to > inLength || to > outLength) {
+			throw new IndexOutOfBoundsException("Invalid range [" + from +
+					", " + to + ") for arrays of length " + inLength +
+					" and " + outLength);
+		}
+	}
+
+	/**
+	 * Run a bulk task, on the common fork/join pool if it is large enough.
+	 * @param task bulk task to be run.
+	 * @return number of values that could not be transformed.
+	 */
+	private static int process(BulkTask task) {
+		if (task.to - task.from > PARALLEL_THRESHOLD) {
+			return ForkJoinPool.commonPool().invoke(task);
+		}
+		return task.compute();
+	}
+
+	/**
+	 * Bulk (inverse) transform of a range of a double or float array that
+	 * splits itself in halves until the ranges are short enough to be
+	 * processed sequentially.
+	 */
+	private final class BulkTask extends RecursiveTask<Integer> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final double[] dIn, dOut;
+		private final float[] fIn, fOut;
+		private final boolean inverse;
+		private final int from, to;
+
+		BulkTask(double[] dIn, double[] dOut, float[] fIn, float[] fOut,
+				boolean inverse, int from, int to) {
+			this.dIn = dIn;
+			this.dOut = dOut;
+			this.fIn = fIn;
+			this.fOut = fOut;
+			this.inverse = inverse;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Integer compute() {
+			if (to - from <= PARALLEL_THRESHOLD) {
+				return computeDirectly();
+			}
+			int mid = (from + to) >>> 1;
+			BulkTask left = new BulkTask(dIn, dOut, fIn, fOut, inverse, from, mid);
+			BulkTask right = new BulkTask(dIn, dOut, fIn, fOut, inverse, mid, to);
+			left.fork();
+			int failed = right.compute();
+			return failed + left.join();
+		}
+
+		/**
+		 * Process the range sequentially.
+		 * @return number of values that could not be transformed.
+		 */
+		private int computeDirectly() {
+			if (dIn != null) {
+				return inverse ? inverseRange(dIn, dOut, from, to) :
+					transformRange(dIn, dOut, from, to);
+			} else {
+				return inverse ? inverseRange(fIn, fOut, from, to) :
+					transformRange(fIn, fOut, from, to);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,89 @@
+package ch.ethz.scu.obit.flow.readers;
+
+/**
+ * Common interface for the transforms used to display flow cytometry data
+ * on a plot axis (Hyperlog, Logicle, arcsinh, decade log, linear).
+ *
+ * All transforms map the (linear) data values onto a display scale where
+ * the top of scale value T is mapped to 1. The transforms are immutable
+ * once constructed and can be shared among threads.
+ *
+ * The bulk methods transform a range of a primitive array into another
+ * (or the same) array without allocating and without throwing: values that
+ * cannot be transformed are set to NaN and counted.
+ *
+ * @author Aaron Ponti
+ */
+public interface AxisTransform {
+
+	/**
+	 * Return the name of the transform (as used in the DSS plotting code).
+	 * @return name of the transform, e.g. "hyperlog".
+	 */
+	public String getName();
+
+	/**
+	 * Return the top of scale value, i.e. the data value mapped to 1.
+	 * @return top of scale value.
+	 */
+	public double getTopOfScale();
+
+	/**
+	 * Forward transform of a single value.
+	 * @param value data value to be transformed.
+	 * @return transformed value, or NaN if it cannot be transformed.
+	 */
+	public double transform(double value);
+
+	/**
+	 * Inverse transform of a single value.
+	 * @param scale display value to be inverse-transformed.
+	 * @return data value, or NaN if it cannot be inverse-transformed.
+	 */
+	public double inverse(double scale);
+
+	/**
+	 * Forward transform of the values in[from] to in[to - 1] into out[from]
+	 * to out[to - 1].
+	 * @param in array of values to be transformed.
+	 * @param out array to store the transformed values.
+	 * @param from index of the first value to transform (inclusive).
+	 * @param to index of the last value to transform (exclusive).
+	 * @return number of values that could not be transformed.
+	 */
+	public int transform(double[] in, double[] out, int from, int to);
+
+	/**
+	 * Forward transform of the values in[from] to in[to - 1] into out[from]
+	 * to out[to - 1] in single precision.
+	 * @param in array of values to be transformed.
+	 * @param out array to store the transformed values.
+	 * @param from index of the first value to transform (inclusive).
+	 * @param to index of the last value to transform (exclusive).
+	 * @return number of values that could not be transformed.
+	 */
+	public int transform(float[] in, float[] out, int from, int to);
+
+	/**
+	 * Inverse transform of the values in[from] to in[to - 1] into out[from]
+	 * to out[to - 1].
+	 * @param in array of values to be inverse-transformed.
+	 * @param out array to store the inverse-transformed values.
+	 * @param from index of the first value to transform (inclusive).
+	 * @param to index of the last value to transform (exclusive).
+	 * @return number of values that could not be inverse-transformed.
+	 */
+	public int inverseTransform(double[] in, double[] out, int from, int to);
+
+	/**
+	 * Inverse transform of the values in[from] to in[to - 1] into out[from]
+	 * to out[to - 1] in single precision.
+	 * @param in array of values to be inverse-transformed.
+	 * @param out array to store the inverse-transformed values.
+	 * @param from index of the first value to transform (inclusive).
+	 * @param to index of the last value to transform (exclusive).
+	 * @return number of values that could not be inverse-transformed.
+	 */
+	public int inverseTransform(float[] in, float[] out, int from, int to);
+
+}
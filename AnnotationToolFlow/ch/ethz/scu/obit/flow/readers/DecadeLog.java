@@ -0,0 +1,146 @@
+package ch.ethz.scu.obit.flow.readers;
+
+/**
+ * Decade logarithmic transform and inverse transform for flow cytometry data.
+ *
+ * The transform covers a fixed number of decades below the top of scale
+ * value T, which is mapped to 1:
+ * <p>
+ * {@code y = log10(x / offset) / decades}, with {@code offset = T / 10^decades}
+ * <p>
+ * The inverse transform is also how FCS files decode logarithmically
+ * amplified parameters ($PnE = decades,offset) from channel values: see
+ * fromAmplification(). Zero is mapped to -Infinity and negative values to
+ * NaN.
+ *
+ * @author Aaron Ponti
+ */
+public class DecadeLog extends AbstractAxisTransform {
+
+	/**
+	 * Default decades for the transform
+	 */
+	static public final double DEFAULT_DECADES = 4.5;
+
+	// Parameters
+	private double T, decades, offset;
+
+	// Precomputed constants
+	private double lnOffset, invDecadesLn10;
+
+	/**
+	 * Constructor.
+	 *
+	 * Default value for decades = 4.5.
+	 *
+	 * @param T top of scale value.
+	 * @throws Exception for invalid input arguments.
+	 */
+	public DecadeLog(double T) throws Exception {
+		this(T, DEFAULT_DECADES);
+	}
+
+	/**
+	 * Alternative constructor.
+	 *
+	 * @param T top of scale value.
+	 * @param decades number of decades displayed below T.
+	 * @throws Exception for invalid input arguments.
+	 */
+	public DecadeLog(double T, double decades) throws Exception {
+		this(T, decades, T / Math.pow(10, decades));
+	}
+
+	/**
+	 * Private constructor.
+	 *
+	 * @param T top of scale value.
+	 * @param decades number of decades displayed below T.
+	 * @param offset value mapped to 0.
+	 * @throws Exception for invalid input arguments.
+	 */
+	private DecadeLog(double T, double decades, double offset) throws Exception {
+
+		if (T <= 0) {
+			throw new Exception("IllegalParameter: T is not positive");
+		}
+
+		if (decades <= 0) {
+			throw new Exception("IllegalParameter: decades is not positive");
+		}
+
+		this.T = T;
+		this.decades = decades;
+		this.offset = offset;
+
+		// Precompute the constants
+		lnOffset = Math.log(offset);
+		invDecadesLn10 = 1.0 / (decades * Math.log(10.0));
+	}
+
+	/**
+	 * Create the transform corresponding to the logarithmic amplification of
+	 * an FCS parameter (keyword $PnE = decades,offset), i.e. the one that maps
+	 * the linear values onto channel / $PnR.
+	 *
+	 * @param decades number of logarithmic decades (first $PnE value, &gt; 0).
+	 * @param offset linear value corresponding to channel 0 (second $PnE
+	 *        value; FCS 3.1 requires 1.0 if 0 is stored).
+	 * @return the DecadeLog transform.
+	 * @throws Exception for invalid input arguments.
+	 */
+	public static DecadeLog fromAmplification(double decades, double offset)
+			throws Exception {
+		if (offset <= 0) {
+			throw new Exception("IllegalParameter: offset is not positive");
+		}
+		return new DecadeLog(offset * Math.pow(10, decades), decades, offset);
+	}
+
+	/**
+	 * Return the name of the transform.
+	 * @return "log".
+	 */
+	@Override
+	public String getName() {
+		return "log";
+	}
+
+	/**
+	 * Return the top of scale value.
+	 * @return top of scale value T.
+	 */
+	@Override
+	public double getTopOfScale() {
+		return T;
+	}
+
+	/**
+	 * Return the number of decades.
+	 * @return number of decades displayed below T.
+	 */
+	public double getDecades() {
+		return decades;
+	}
+
+	/**
+	 * Decade log forward transform of a single value.
+	 * @param value Raw value to be scaled.
+	 * @return scaled value (-Infinity for 0, NaN for negative values).
+	 */
+	@Override
+	public double transform(double value) {
+		return (Math.log(value) - lnOffset) * invDecadesLn10;
+	}
+
+	/**
+	 * Decade log inverse transform of a single value.
+	 * @param scale Data scale.
+	 * @return the inverse.
+	 */
+	@Override
+	public double inverse(double scale) {
+		return offset * Math.pow(10, scale * decades);
+	}
+
+}
@@ -2,6 +2,7 @@ package ch.ethz.scu.obit.flow.readers;
 
 import java.io.*;
 import java.nio.*;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 import ch.ethz.scu.obit.readers.AbstractReader;
@@ -20,6 +21,12 @@ import ch.ethz.scu.obit.readers.AbstractReader;
  */
 public final class FCSReader extends AbstractReader {
 
+	/* Number of events decoded at once when building a sketch */
+	private static final int SKETCH_BLOCK_SIZE = 4096;
+
+	/* Number of bytes read at once when sampling events from the file */
+	private static final int SAMPLE_BLOCK_SIZE = 1 << 20;
+
 	/* Private instance variables */
 	private File filename;
 	private boolean enableDataParsing;
@@ -34,13 +41,19 @@ public final class FCSReader extends AbstractReader {
 	private int OTHERbegin = 0;
 	private char DELIMITER;
 	private boolean isFileParsed = false;
+	private long bytesRead = 0;
+	private long fileLength = 0;
 	private boolean isDataLoaded = false;
 	private int[] bytesPerParameter;
-	private float[] parameterDecades;
-	private float[] parameterLogs;
-	private float[] parameterLogZeros;
 	private float[] parameterRanges;
 	private float[] parameterGains;
+	private DecadeLog[] parameterAmplifications;
+
+	/* Keywords that were looked up (kept by discardUnusedKeywords()) */
+	private final Set<String> usedKeywords = new HashSet<String>();
+
+	/* True if the keywords that were not looked up were discarded */
+	private boolean keywordsDiscarded = false;
 	
 	/* Public instance variables */
 
@@ -126,6 +139,7 @@ public final class FCSReader extends AbstractReader {
 
 			// We use a RandomAccessFile to be able to seek around freely
 			in = new RandomAccessFile(filename, "r");
+			fileLength = in.length();
 
 			// Read the HEADER
 			parseHeader();
@@ -202,6 +216,57 @@ public final class FCSReader extends AbstractReader {
 	public boolean isParsed() {
 		return isFileParsed;
 	}
+
+	/**
+	 * Return the number of bytes read from the file by parse().
+	 * 
+	 * @return number of bytes read.
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * Return the length of the file when it was parsed.
+	 * 
+	 * @return file length in bytes.
+	 */
+	public long getFileLength() {
+		return fileLength;
+	}
+
+	/**
+	 * Return the offset of the last byte of the DATA segment: $ENDDATA, or
+	 * the offset from the HEADER if $ENDDATA is not set.
+	 * 
+	 * @return offset of the last byte of the DATA segment (0 if there is no
+	 *         DATA segment).
+	 */
+	public long getDataEnd() {
+		useKeyword("$ENDDATA");
+		String endData = TEXTMapStandard.get("$ENDDATA");
+		if (endData != null) {
+			try {
+				long offset = Long.parseLong(endData.trim());
+				if (offset > 0) {
+					return offset;
+				}
+			} catch (NumberFormatException e) {
+				// Use the offset from the HEADER
+			}
+		}
+		return DATAend;
+	}
+
+	/**
+	 * Returns true if the file is shorter than its DATA segment, e.g. because
+	 * it was not copied completely.
+	 * 
+	 * @return true if the file is truncated, false otherwise.
+	 */
+	public boolean isTruncated() {
+		return isFileParsed && getDataEnd() >= fileLength;
+	}
 	
 	/**
 	 * Returns the stored File object (pointing to the FCS file being processed)
@@ -222,6 +287,7 @@ public final class FCSReader extends AbstractReader {
 		if (!isFileParsed) {
 			return "File could not be parsed.";
 		}
+		restoreKeywords();
 
 		String str = "Valid " + fcsVersion + " file with TEXT: " + TEXTbegin + " - " + TEXTend + ", DATA: " + DATAbegin
 				+ " - " + DATAend + ", ANALYSIS: " + ANALYSISbegin + " - " + ANALYSISend + ", OTHER: " + OTHERbegin
@@ -258,6 +324,73 @@ public final class FCSReader extends AbstractReader {
 
 	}
 
+	/**
+	 * Discard the TEXT keywords that were never looked up, to reduce the
+	 * memory held by a reader that is kept after its file was processed (e.g.
+	 * for incremental scans). Only readers that did not load the DATA segment
+	 * are affected.
+	 * 
+	 * The keywords that were looked up before are kept. If another keyword
+	 * is looked up later, or all keywords are requested, the TEXT segment is
+	 * read again from the file.
+	 */
+	public void discardUnusedKeywords() {
+		if (!isFileParsed || enableDataParsing) {
+			return;
+		}
+		TEXTMapStandard = retainUsedKeywords(TEXTMapStandard);
+		TEXTMapCustom = retainUsedKeywords(TEXTMapCustom);
+		keywordsDiscarded = true;
+	}
+
+	/**
+	 * Return a copy of a keyword map with the keywords that were looked up.
+	 * 
+	 * @param keywords Keyword map.
+	 * @return map with the used keywords only.
+	 */
+	private Map<String, String> retainUsedKeywords(Map<String, String> keywords) {
+		Map<String, String> retained = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, String> entry : keywords.entrySet()) {
+			if (usedKeywords.contains(entry.getKey())) {
+				retained.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return retained;
+	}
+
+	/**
+	 * Record that a keyword is looked up. If the keyword was discarded, the
+	 * keywords are read again from the file.
+	 * 
+	 * @param key Keyword.
+	 */
+	private void useKeyword(String key) {
+		if (usedKeywords.add(key) && keywordsDiscarded) {
+			restoreKeywords();
+		}
+	}
+
+	/**
+	 * Read the keywords and the parameters again from the file if they were
+	 * discarded by discardUnusedKeywords().
+	 */
+	private void restoreKeywords() {
+		if (!keywordsDiscarded) {
+			return;
+		}
+		keywordsDiscarded = false;
+		TEXTMapStandard = new LinkedHashMap<String, String>();
+		TEXTMapCustom = new LinkedHashMap<String, String>();
+		parametersAttr = new HashMap<String, String>();
+		try {
+			parse();
+		} catch (IOException e) {
+			System.err.println("Could not read the keywords of " + filename
+					+ " again!");
+		}
+	}
+
 	/**
 	 * Returns all parameter names.
 	 * 
@@ -277,6 +410,7 @@ public final class FCSReader extends AbstractReader {
 	 * @return The String - String Map of all standard FCS 3.0/3.1 keywords
 	 */
 	public Map<String, String> getStandardKeywords() {
+		restoreKeywords();
 		return TEXTMapStandard;
 	}
 
@@ -289,6 +423,7 @@ public final class FCSReader extends AbstractReader {
 	 *         not found
 	 */
 	public String getStandardKeyword(String key) {
+		useKeyword(key);
 		if (TEXTMapStandard.containsKey(key)) {
 			return TEXTMapStandard.get(key);
 		} else {
@@ -304,6 +439,7 @@ public final class FCSReader extends AbstractReader {
 	 *         keywords
 	 */
 	public Map<String, String> getCustomKeywords() {
+		restoreKeywords();
 		return TEXTMapStandard;
 	}
 
@@ -317,6 +453,7 @@ public final class FCSReader extends AbstractReader {
 	 *         not found
 	 */
 	public String getCustomKeyword(String key) {
+		useKeyword(key);
 		if (TEXTMapCustom.containsKey(key)) {
 			return TEXTMapCustom.get(key);
 		} else {
@@ -331,6 +468,7 @@ public final class FCSReader extends AbstractReader {
 	 * @return The String - String Map of all keywords
 	 */
 	public Map<String, String> getAllKeywords() {
+		restoreKeywords();
 		Map<String, String> allMap = new HashMap<String, String>();
 		allMap.putAll(TEXTMapStandard);
 		allMap.putAll(TEXTMapCustom);
@@ -344,6 +482,7 @@ public final class FCSReader extends AbstractReader {
 	 */
 	public int numEvents() {
 		int numEvents = 0;
+		useKeyword("$TOT");
 		if (TEXTMapStandard.containsKey("$TOT")) {
 			numEvents = Integer.parseInt(TEXTMapStandard.get("$TOT"));
 		}
@@ -357,6 +496,7 @@ public final class FCSReader extends AbstractReader {
 	 */
 	public int numParameters() {
 		int numParameters = 0;
+		useKeyword("$PAR");
 		if (TEXTMapStandard.containsKey("$PAR")) {
 			numParameters = Integer.parseInt(TEXTMapStandard.get("$PAR"));
 		}
@@ -473,6 +613,60 @@ public final class FCSReader extends AbstractReader {
 		return m;
 	}
 
+	/**
+	 * Return subset of measurements with optional stride for parameter with 
+	 * given column index in single precision. The measurements are returned
+	 * as is without any scaling.
+	 * 
+	 * This is the natural precision of files with $DATATYPE = F and uses half
+	 * the memory of getRawDataPerColumnIndex(). Other datatypes are converted
+	 * to float (integers larger than 2^24 and doubles lose precision).
+	 * 
+	 * @param columnIndex Index of the measurement column.
+	 * @param nValues number of values to be read. Set to 0 to read them all.
+	 * @param sampled True if the nValues must be sampled with constant stride
+	 *                throughout the total number of rows, false if the first 
+	 *                nValues rows must simply be returned. 
+	 * @return array of measurements.
+	 * @throws IOException If something unexpected with the datatype is found. 
+	 */
+	public float[] getRawFloatDataPerColumnIndex(int columnIndex, int nValues, 
+			boolean sampled) throws IOException {
+
+	    // Make sure that he data was loaded
+        if (!isDataLoaded) {
+            return new float[0];
+        }
+
+	    // Some constants
+		int nEvents = numEvents();
+
+		int step;
+		// If all values must be read, the step is 1.
+		if (nValues == 0 || nValues > nEvents) {
+			nValues = nEvents;
+			step = 1;
+		} else {
+			if (sampled) {
+				step = (int) (((float) nEvents) / nValues);
+				if (step == 0) {
+					step = 1;
+				}
+			} else {
+				step = 1;
+			}
+		}
+
+		// Allocate space for the events
+		float[] m = new float[nValues];
+
+		// Read the values
+		readRawFloatValues(columnIndex, 0, step, m, nValues);
+
+		// Return the array
+		return m;
+	}
+
     /**
      * Return subset of measurements with optional stride for parameter with 
      * given column index in double precision. The measurements are scaled as
@@ -500,28 +694,270 @@ public final class FCSReader extends AbstractReader {
         double[] n = new double[m.length];
 
         // Apply transformations
-        double decade = (double) parameterDecades[columnIndex];
         double range = (double) parameterRanges[columnIndex];
-        double log = (double) parameterLogs[columnIndex] ;
-        double logz = (double) parameterLogZeros[columnIndex];
         double gain = (double) parameterGains[columnIndex];
+        DecadeLog amplification = parameterAmplifications[columnIndex];
 
-        for (int i = 0; i < m.length; i++) {
-
-            if (gain != 1.0 && gain != 0.0) {
+        if (gain != 1.0 && gain != 0.0) {
+            for (int i = 0; i < m.length; i++) {
                 n[i] = m[i] / gain;
-            } else if (log != 0.0) {
-                n[i] = logz * Math.pow(10, m[i] / range * decade);
-            } else {
-                // No transformation
-                n[i] = m[i];
             }
+        } else if (amplification != null) {
+            // Logarithmic amplification: the channel values (relative to
+            // the range) are the DecadeLog transform of the linear values
+            for (int i = 0; i < m.length; i++) {
+                n[i] = m[i] / range;
+            }
+            amplification.inverseTransform(n, n, 0, n.length);
+        } else {
+            // No transformation
+            System.arraycopy(m, 0, n, 0, m.length);
         }
 
         // Return the transformed data
         return n;
     }
 
+    /**
+     * Return subset of measurements with optional stride for parameter with 
+     * given column index in single precision. The measurements are scaled as
+     * instructed in the FCS file (parameters 'PnR', 'PnE', 'PnG').
+     * 
+     * The values are scaled in place: only one float array is allocated, 
+     * i.e. a quarter of the memory of getDataPerColumnIndex().
+     * 
+     * @param columnIndex Index of the measurement column.
+     * @param nValues number of values to be read. Set to 0 to read them all.
+     * @param sampled True if the nValues must be sampled with constant stride
+     *                throughout the total number of rows, false if the first 
+     *                nValues rows must simply be returned. 
+     * @return array of measurements.
+     * @throws IOException If something unexpected with the datatype is found. 
+     */
+    public float[] getFloatDataPerColumnIndex(int columnIndex, int nValues, 
+            boolean sampled) throws IOException {
+
+        // Make sure that he data was loaded
+        if (!isDataLoaded) {
+            return new float[0];
+        }
+
+        // Get the unscaled parameters
+        float[] m = getRawFloatDataPerColumnIndex(columnIndex, nValues, sampled);
+
+        // Apply transformations (in place)
+        scaleFloatValues(columnIndex, m, m.length);
+
+        // Return the transformed data
+        return m;
+    }
+
+    /**
+     * Add all (scaled) measurements for parameter with given column index to
+     * a quantile sketch. The values are decoded and scaled in small blocks, 
+     * so the column is never stored in memory. Passing the same sketch for 
+     * the same parameter of several files summarizes a whole experiment 
+     * (see Hyperlog.estimateParamHeuristic(QuantileSketch)).
+     * 
+     * @param columnIndex Index of the measurement column.
+     * @param sketch Sketch to be updated; if null, a new one is created.
+     * @return the updated sketch.
+     * @throws IOException If something unexpected with the datatype is found. 
+     */
+    public QuantileSketch getSketchPerColumnIndex(int columnIndex,
+            QuantileSketch sketch) throws IOException {
+
+        if (sketch == null) {
+            sketch = new QuantileSketch();
+        }
+
+        // Make sure that he data was loaded
+        if (!isDataLoaded) {
+            return sketch;
+        }
+
+        // Decode, scale and add the values block by block
+        int nEvents = numEvents();
+        float[] block = new float[Math.min(SKETCH_BLOCK_SIZE, nEvents)];
+        for (int first = 0; first < nEvents; first += block.length) {
+            int count = Math.min(block.length, nEvents - first);
+            readRawFloatValues(columnIndex, first, 1, block, count);
+            scaleFloatValues(columnIndex, block, count);
+            sketch.update(block, 0, count);
+        }
+
+        return sketch;
+    }
+
+	/**
+	 * Read the (scaled) measurements of some parameters for a sample of 
+	 * events directly from the file: every step-th event is read, starting
+	 * at firstEvent. Unlike the other getters, this does not need the DATA 
+	 * segment in memory (the reader can be created with parseData = false): 
+	 * only the returned values are stored, so that files of any size can be
+	 * sampled with bounded memory. The file is read in blocks of 
+	 * SAMPLE_BLOCK_SIZE bytes, or event by event if the sampled events are 
+	 * further apart.
+	 * 
+	 * @param columnIndices Indices of the measurement columns.
+	 * @param firstEvent Index of the first event to be read.
+	 * @param step Stride (in events) between consecutive reads.
+	 * @param nValues Number of events to read.
+	 * @return array of measurements per column: values[c][i] is the value of
+	 *         column columnIndices[c] for the i-th sampled event.
+	 * @throws IOException If the file could not be read or something 
+	 *         unexpected with the datatype is found. 
+	 */
+	public float[][] readSampledEvents(int[] columnIndices, int firstEvent,
+			int step, int nValues) throws IOException {
+
+		// Make sure that the file was parsed
+		if (!isFileParsed || bytesPerParameter == null) {
+			return new float[columnIndices.length][0];
+		}
+
+		// Check the range of the events
+		if (firstEvent < 0 || step < 1 || nValues < 0 || (nValues > 0 &&
+				firstEvent + (long) (nValues - 1) * step >= numEvents())) {
+			throw new IllegalArgumentException(
+					"The sampled events are out of range!");
+		}
+
+		// Datatype and endianity
+		String datatype = datatype();
+		ByteOrder endian;
+		String endianity = endianity();
+		if (endianity.equals("L")) {
+			endian = ByteOrder.LITTLE_ENDIAN;
+		} else if (endianity.equals("B")) {
+			endian = ByteOrder.BIG_ENDIAN;
+		} else {
+			throw new IOException("Unknown endianity!");
+		}
+
+		// Offsets of the parameters in a row
+		int nParams = numParameters();
+		int[] offsets = new int[nParams];
+		int rowBytes = 0;
+		for (int i = 0; i < nParams; i++) {
+			offsets[i] = rowBytes;
+			rowBytes += bytesPerParameter[i];
+		}
+
+		// Offset of the DATA segment: $BEGINDATA, or the offset from the
+		// HEADER if $BEGINDATA is not set
+		long dataOffset = DATAbegin;
+		String beginData = TEXTMapStandard.get("$BEGINDATA");
+		if (beginData != null) {
+			try {
+				long offset = Long.parseLong(beginData.trim());
+				if (offset > 0) {
+					dataOffset = offset;
+				}
+			} catch (NumberFormatException e) {
+				// Use the offset from the HEADER
+			}
+		}
+
+		// Read whole blocks if they contain more than one sampled event
+		long stride = (long) step * rowBytes;
+		int blockSize = rowBytes;
+		if (stride < SAMPLE_BLOCK_SIZE) {
+			blockSize = Math.max(rowBytes,
+					SAMPLE_BLOCK_SIZE / rowBytes * rowBytes);
+		}
+		ByteBuffer block = ByteBuffer.allocate(blockSize);
+		block.order(endian);
+		long blockStart = 0;
+		int blockLength = 0;
+
+		float[][] values = new float[columnIndices.length][nValues];
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long position = dataOffset + (long) firstEvent * rowBytes;
+			for (int i = 0; i < nValues; i++, position += stride) {
+
+				// Read the block that starts with the event, unless the 
+				// event is in the current one
+				if (position + rowBytes > blockStart + blockLength) {
+					block.clear();
+					blockStart = position;
+					while (block.hasRemaining()) {
+						if (channel.read(block,
+								blockStart + block.position()) < 0) {
+							break;
+						}
+					}
+					blockLength = block.position();
+					if (blockLength < rowBytes) {
+						throw new IOException("The DATA segment is truncated!");
+					}
+				}
+
+				// Decode the values
+				int pos = (int) (position - blockStart);
+				for (int c = 0; c < columnIndices.length; c++) {
+					int columnIndex = columnIndices[c];
+					values[c][i] = readRawFloatValue(block,
+							pos + offsets[columnIndex], columnIndex, datatype);
+				}
+			}
+		} finally {
+			file.close();
+		}
+
+		// Apply transformations (in place)
+		for (int c = 0; c < columnIndices.length; c++) {
+			scaleFloatValues(columnIndices[c], values[c], nValues);
+		}
+
+		return values;
+	}
+
+    /**
+     * Return the transform to display the (scaled) measurements of the 
+     * parameter with given column index, as returned by 
+     * getDataPerColumnIndex(), as instructed in the FCS file:
+     * 
+     * - logarithmically amplified parameters ('PnE') use the DecadeLog
+     *   transform of the amplifier, i.e. they are displayed by channel;
+     * - parameters with 'PnDISPLAY' = LOG use the Logicle transform;
+     * - all other parameters use the Linear transform.
+     * 
+     * The top of scale is the parameter range ('PnR'), scaled by the gain
+     * ('PnG'). Since the transforms are independent of the decoding of the 
+     * data, any other AxisTransform can be applied to the same data.
+     * 
+     * @param columnIndex Index of the measurement column.
+     * @return display transform, or null if the parameter range is invalid.
+     */
+    public AxisTransform getDisplayTransform(int columnIndex) {
+
+        // Log-amplified parameters are displayed as acquired
+        if (parameterAmplifications[columnIndex] != null) {
+            return parameterAmplifications[columnIndex];
+        }
+
+        // Top of scale
+        double top = (double) parameterRanges[columnIndex];
+        double gain = (double) parameterGains[columnIndex];
+        if (gain != 1.0 && gain != 0.0) {
+            top /= gain;
+        }
+
+        String display = parametersAttr.get("P" + (columnIndex + 1) + "DISPLAY");
+        try {
+            if ("LOG".equalsIgnoreCase(display)) {
+                return new Logicle(top, Logicle.DEFAULT_LINEAR_DECADES);
+            } else {
+                return new Linear(top);
+            }
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
 	/**
 	 * Export the full data (not scaled!) to a CSV file.
 	 *
@@ -636,6 +1072,148 @@ public final class FCSReader extends AbstractReader {
 
 	}
 
+	/**
+	 * Read measurements for the parameter with given column index in single 
+	 * precision into an array.
+	 * @param columnIndex Index of the measurement column.
+	 * @param firstEvent Index of the first event to be read.
+	 * @param step Stride (in events) between consecutive reads. 
+	 * @param m Array to store the values.
+	 * @param nValues Number of values to read.
+	 * @throws IOException If something unexpected with the datatype is found. 
+	 */
+	private void readRawFloatValues(int columnIndex, int firstEvent, int step,
+			float[] m, int nValues) throws IOException {
+
+        // Datatype
+        String datatype = datatype();
+
+		// The values of the requested column are found at constant stride
+		// from its offset in the first row
+		int nParams = numParameters();
+		int rowBytes = 0;
+		int offset = 0;
+		for (int i = 0; i < nParams; i++) {
+			if (i == columnIndex) {
+				offset = rowBytes;
+			}
+			rowBytes += bytesPerParameter[i];
+		}
+		int stride = step * rowBytes;
+
+		// Read the values with absolute gets (the buffer position is not used)
+		int pos = offset + firstEvent * rowBytes;
+		if (datatype.equals("F")) {
+			for (int i = 0; i < nValues; i++, pos += stride) {
+				m[i] = DATA.getFloat(pos);
+			}
+		} else if (datatype.equals("I")) {
+		    // How many bytes are needed to encode the integer?
+			if (bytesPerParameter[columnIndex] == 1) {
+				for (int i = 0; i < nValues; i++, pos += stride) {
+					m[i] = (float) (DATA.get(pos) & 0xff);
+				}
+			} else if (bytesPerParameter[columnIndex] == 2) {
+				for (int i = 0; i < nValues; i++, pos += stride) {
+					m[i] = (float) (DATA.getShort(pos) & 0xffff);
+				}
+			} else if (bytesPerParameter[columnIndex] == 4) {
+				for (int i = 0; i < nValues; i++, pos += stride) {
+					m[i] = (float) (DATA.getInt(pos) & 0x00000000ffffffffL);
+				}
+			} else {
+		        // Unsupported number of bytes
+				throw new IOException("1, 2 or 4 bytes per integer value expected!");
+			}
+		} else if (datatype.equals("D")) {
+			for (int i = 0; i < nValues; i++, pos += stride) {
+				m[i] = (float) DATA.getDouble(pos);
+			}
+		} else if (datatype.equals("A")) {
+			for (int i = 0; i < nValues; i++, pos += stride) {
+				m[i] = (float) DATA.get(pos);
+			}
+		} else {
+			throw new IOException("Unknown data type!");
+		}
+	}
+
+	/**
+	 * Read a single measurement in single precision from a buffer.
+	 * @param buffer Buffer with the (endianity-corrected) DATA bytes.
+	 * @param pos Position of the value in the buffer.
+	 * @param columnIndex Index of the measurement column.
+	 * @param datatype Datatype of the measurements.
+	 * @return measurement.
+	 * @throws IOException If something unexpected with the datatype is found. 
+	 */
+	private float readRawFloatValue(ByteBuffer buffer, int pos,
+			int columnIndex, String datatype) throws IOException {
+
+		if (datatype.equals("F")) {
+			return buffer.getFloat(pos);
+		} else if (datatype.equals("I")) {
+		    // How many bytes are needed to encode the integer?
+			if (bytesPerParameter[columnIndex] == 1) {
+				return (float) (buffer.get(pos) & 0xff);
+			} else if (bytesPerParameter[columnIndex] == 2) {
+				return (float) (buffer.getShort(pos) & 0xffff);
+			} else if (bytesPerParameter[columnIndex] == 4) {
+				return (float) (buffer.getInt(pos) & 0x00000000ffffffffL);
+			} else {
+		        // Unsupported number of bytes
+				throw new IOException("1, 2 or 4 bytes per integer value expected!");
+			}
+		} else if (datatype.equals("D")) {
+			return (float) buffer.getDouble(pos);
+		} else if (datatype.equals("A")) {
+			return (float) buffer.get(pos);
+		} else {
+			throw new IOException("Unknown data type!");
+		}
+	}
+
+	/**
+	 * Scale measurements in single precision in place as instructed in the 
+	 * FCS file (parameters 'PnR', 'PnE', 'PnG').
+	 * @param columnIndex Index of the measurement column.
+	 * @param m Array of values to be scaled.
+	 * @param nValues Number of values to scale.
+	 */
+	private void scaleFloatValues(int columnIndex, float[] m, int nValues) {
+
+        float range = parameterRanges[columnIndex];
+        float gain = parameterGains[columnIndex];
+        DecadeLog amplification = parameterAmplifications[columnIndex];
+
+        if (gain != 1.0f && gain != 0.0f) {
+            for (int i = 0; i < nValues; i++) {
+                m[i] = m[i] / gain;
+            }
+        } else if (amplification != null) {
+            // Logarithmic amplification (see getDataPerColumnIndex())
+            for (int i = 0; i < nValues; i++) {
+                m[i] = m[i] / range;
+            }
+            amplification.inverseTransform(m, m, 0, nValues);
+        }
+	}
+
+	/**
+	 * Read bytes from the file at the current position, and count them.
+	 * 
+	 * @param b Buffer to be filled.
+	 * @return number of bytes read, or -1 at the end of the file.
+	 * @throws IOException if the file could not be read.
+	 */
+	private int read(byte[] b) throws IOException {
+		int n = in.read(b);
+		if (n > 0) {
+			bytesRead += n;
+		}
+		return n;
+	}
+
 	/**
 	 * Parse the header.
 	 * 
@@ -648,7 +1226,7 @@ public final class FCSReader extends AbstractReader {
 		// Read and check the version
 		in.seek(0);
 		byte[] VERSION = new byte[6];
-		in.read(VERSION);
+		read(VERSION);
 		fcsVersion = new String(VERSION);
 		if (!(fcsVersion.equals("FCS3.0") || fcsVersion.equals("FCS3.1"))) {
 			errorMessage = filename + " is not a valid FCS version 3.0 or 3.1 file!";
@@ -661,12 +1239,12 @@ public final class FCSReader extends AbstractReader {
 
 		// ASCII-encoded offset to first byte of TEXT segment (bytes 10 - 17)
 		in.seek(10);
-		in.read(eightByteArray);
+		read(eightByteArray);
 		TEXTbegin = Integer.parseInt((new String(eightByteArray)).trim());
 
 		// ASCII-encoded offset to last byte of TEXT segment (bytes 18 - 25)
 		in.seek(18);
-		in.read(eightByteArray);
+		read(eightByteArray);
 		TEXTend = Integer.parseInt((new String(eightByteArray)).trim());
 
 		// ASCII-encoded offset to first byte of DATA segment (bytes 26 - 33)
@@ -674,7 +1252,7 @@ public final class FCSReader extends AbstractReader {
 		// segment
 		// is larger than 99,999,999 bytes
 		in.seek(26);
-		in.read(eightByteArray);
+		read(eightByteArray);
 		DATAbegin = Integer.parseInt((new String(eightByteArray)).trim());
 
 		// ASCII-encoded offset to last byte of DATA segment (bytes 34 - 41)
@@ -682,7 +1260,7 @@ public final class FCSReader extends AbstractReader {
 		// segment
 		// is larger than 99,999,999 bytes
 		in.seek(34);
-		in.read(eightByteArray);
+		read(eightByteArray);
 		DATAend = Integer.parseInt((new String(eightByteArray)).trim());
 
 		// ASCII-encoded offset to first byte of ANALYSIS segment (bytes 42 -
@@ -691,7 +1269,7 @@ public final class FCSReader extends AbstractReader {
 		// must
 		// be checked
 		in.seek(42);
-		in.read(eightByteArray);
+		read(eightByteArray);
 		String tmp = (new String(eightByteArray)).trim();
 		if (tmp.length() == 0) {
 			ANALYSISbegin = 0;
@@ -739,7 +1317,7 @@ public final class FCSReader extends AbstractReader {
 		int LEN = (TEXTend - TEXTbegin + 1); // TEXT cannot be longer than
 												// 99,999,999 bytes
 		byte[] bText = new byte[LEN];
-		in.read(bText);
+		read(bText);
 
 		// Get the delimiter character
 		DELIMITER = (char) bText[0];
@@ -896,11 +1474,9 @@ public final class FCSReader extends AbstractReader {
 		bytesPerParameter = new int[numParameters];
 
 		// We also store gain and transformation details
-		parameterDecades = new float[numParameters];
-		parameterLogs = new float[numParameters];
-		parameterLogZeros = new float[numParameters];
 		parameterRanges = new float[numParameters];
 		parameterGains = new float[numParameters];
+		parameterAmplifications = new DecadeLog[numParameters];
 
 		// Keep track of the datatype
 		String datatype = datatype();
@@ -981,9 +1557,15 @@ public final class FCSReader extends AbstractReader {
 			}
 			parametersAttr.put(key + "_LOG", Float.toString(log));
 			parametersAttr.put(key + "_LOGZERO", Float.toString(log_zero));
-			parameterDecades[i - 1] = f_decade;
-			parameterLogs[i - 1] = log;
-			parameterLogZeros[i - 1] = log_zero;
+			if (log != 0.0f) {
+				try {
+					parameterAmplifications[i - 1] = 
+							DecadeLog.fromAmplification(f_decade, log_zero);
+				} catch (Exception e) {
+					// Invalid amplification: the values are not scaled
+					parameterAmplifications[i - 1] = null;
+				}
+			}
 
 			// Gain
 			key = "P" + i + "G";
@@ -1124,7 +1706,7 @@ public final class FCSReader extends AbstractReader {
 
 		// Read
 		try {
-			in.read(recordBuffer);
+			read(recordBuffer);
 		} catch (IOException e) {
 			errorMessage = "Could not read the data segment from file!";
 			System.out.println(errorMessage);
@@ -26,7 +26,7 @@ package ch.ethz.scu.obit.flow.readers;
  * {@code A: A ∈ R, −W ≤ A ≤ M − 2W} is the number of additional decades of negative
  *    data values to be included. If omitted, A has a default value of 0.0.
  */
-public class Hyperlog {
+public class Hyperlog extends AbstractAxisTransform {
 
 	// Constants
 
@@ -49,6 +49,32 @@ public class Hyperlog {
 	 * Epsilon
 	 */
 	static public final double EPSILON = 1e-14;
+
+	/**
+	 * Epsilon for results returned in single precision (the iteration is 
+	 * still carried out in double precision)
+	 */
+	static public final double FLOAT_EPSILON = 1e-7;
+
+	/**
+	 * Quantile used as robust min value by the sketch-based heuristic
+	 */
+	static public final double ROBUST_LOW_QUANTILE = 0.001;
+
+	/**
+	 * Quantile used as robust max value by the sketch-based heuristic
+	 */
+	static public final double ROBUST_HIGH_QUANTILE = 0.999;
+
+	/**
+	 * Default number of samples in the lookup table (0 disables it)
+	 */
+	static public final int DEFAULT_LUT_SIZE = 16385;
+
+	/**
+	 * Default maximum error (in scale units) accepted for the lookup table
+	 */
+	static public final double DEFAULT_LUT_TOLERANCE = 1e-6;
 	
 	// Parameters
 	private double T, W, M, A;
@@ -61,6 +87,15 @@ public class Hyperlog {
 
 	private int bins;
 
+	// Lookup table: lutValues[k] = inverse(x1 + k * lutStep), followed by
+	// a +Infinity sentinel
+	private double[] lutValues = null;
+	private int[] lutIndex = null;
+	private long lutKeyMin;
+	private int lutKeyShift;
+	private double lutStep;
+	private double lutErrorBound = 0.0;
+
     /**
      * Constructor.
      * 
@@ -132,20 +167,70 @@ public class Hyperlog {
 		initialize();
 	}
 
+    /**
+     * Alternative constructor with lookup table approximation.
+     * 
+     * The inverse transform (which is cheap to evaluate) is sampled on a 
+     * regular grid of lutSize points spanning the display scale from data
+     * zero to 1 (negative values are reflected, as in the exact transform), 
+     * and the forward transform is then answered by searching the table and
+     * interpolating linearly. If bins &gt; 0, the number of table intervals is
+     * rounded up so that the bin boundaries fall on table samples.
+     * 
+     * The maximum interpolation error is bounded analytically at construction
+     * time (see getLookupTableErrorBound()). If it exceeds tolerance, the table
+     * is discarded and the exact (Halley) path is used. Values that fall 
+     * outside the range covered by the table always use the exact path.
+     * 
+     * @param T top of scale value.
+     * @param M number of decades that the true logarithmic scale approached
+     *          at the high end of the Hyperlog scale would cover in the plot
+     *          range.
+     * @param W the number of such decades in the approximately linear region.
+     * @param A number of additional decades of negative data values to be 
+     *          included.
+     * @param bins number of bins for the data
+     * @param lutSize number of samples in the lookup table (0 to disable it).
+     * @param tolerance maximum accepted error of the lookup table in scale 
+     *          units.
+     * @throws Exception for invalid input arguments.
+     */
+	public Hyperlog(double T, double W, double M, double A, int bins,
+			int lutSize, double tolerance) throws Exception {
+
+		this.T = T;
+		this.M = M;
+		this.W = W;
+		this.A = A;
+		this.bins = bins;
+
+		// Initialize
+		initialize();
+
+		// Build the lookup table
+		if (lutSize < 0 || lutSize == 1) {
+			throw new Exception("IllegalParameter: lookup table size must be 0 or at least 2");
+		}
+		if (lutSize > 0) {
+			buildLookupTable(lutSize, tolerance);
+		}
+	}
+
 	/**
 	 * Hyperlog forward transform.
+	 * 
+	 * Thin wrapper around transform(double[], double[], int, int).
+	 * 
 	 * @param x array of values to be transformed.
 	 * @return array of transformed values.
 	 */
 	public double[] transform(double[] x) {
 
 		double[] y = new double[x.length];
-		for (int i = 0; i < x.length; i++) {
-			try {
-				y[i] = scale(x[i]);
-			} catch (Exception e) {
-				System.err.println(e.getMessage());
-			}
+		int failed = transform(x, y, 0, x.length);
+		if (failed > 0) {
+			System.err.println("DidNotConverge: scale() didn't converge for " +
+					failed + " value(s)");
 		}
 		return y;
 	}
@@ -153,22 +238,63 @@ public class Hyperlog {
     /**
 	 * Hyperlog inverse transform
 	 * 
+	 * Thin wrapper around inverseTransform(double[], double[], int, int).
+	 * 
 	 * @param x array of values to be inverse-transformed.
 	 * @return array of inverse-transformed values.
 	 */
 	public double[] inverseTransform(double[] x) {
 
 		double[] y = new double[x.length];
-		for (int i = 0; i < x.length; i++) {
-			try {
-				y[i] = inverse(x[i]);
-			} catch (Exception e) {
-				System.err.println(e.getMessage());
-			}
-		}
+		inverseTransform(x, y, 0, x.length);
 		return y;
 	}
-	 
+
+	/**
+	 * Return the name of the transform.
+	 * @return "hyperlog".
+	 */
+	@Override
+	public String getName() {
+		return "hyperlog";
+	}
+
+	/**
+	 * Return the top of scale value.
+	 * @return top of scale value T.
+	 */
+	@Override
+	public double getTopOfScale() {
+		return T;
+	}
+
+	/**
+	 * Hyperlog forward transform of a single value.
+	 * @param value Raw value to be scaled.
+	 * @return scaled value, or NaN if no convergence.
+	 */
+	@Override
+	public double transform(double value) {
+		return lutValues != null ? lookup(value, EPSILON) : scale(value);
+	}
+
+	/**
+	 * Returns true if the forward transform is answered from a lookup table.
+	 * @return true if the lookup table is in use, false otherwise.
+	 */
+	public boolean usesLookupTable() {
+		return lutValues != null;
+	}
+
+	/**
+	 * Return the guaranteed maximum error (in scale units) of the lookup 
+	 * table approximation, or 0 if the exact transform is used.
+	 * @return maximum error of the lookup table approximation.
+	 */
+	public double getLookupTableErrorBound() {
+		return lutErrorBound;
+	}
+
 	/**
 	 * Initialize the Hyperlog parameters.
 	 * @throws Exception if any of the parameters are invalid.
@@ -247,7 +373,8 @@ public class Hyperlog {
 	 * @param scale Data scale.
 	 * @return the inverse.
 	 */
-	private double inverse(double scale) {
+	@Override
+	public double inverse(double scale) {
 
 		// Reflect negative scale regions
 	    boolean negative = scale < x1;
@@ -275,10 +402,19 @@ public class Hyperlog {
 	/**
 	 * Scale
 	 * @param value Raw value to be scaled. 
-	 * @return scaled value.
-	 * @throws Exception if no convergence.
+	 * @return scaled value, or NaN if no convergence.
+	 */
+	private double scale(double value) {
+		return scale(value, EPSILON);
+	}
+
+	/**
+	 * Scale with given relative precision.
+	 * @param value Raw value to be scaled. 
+	 * @param epsilon Precision of the result (EPSILON or FLOAT_EPSILON).
+	 * @return scaled value, or NaN if no convergence.
 	 */
-	private double scale(double value) throws Exception {
+	private double scale(double value, double epsilon) {
 	    
 		// Handle true zero separately
 	    if (value == 0) {
@@ -306,9 +442,9 @@ public class Hyperlog {
 	    }
 	    
 	    // Try for double precision unless in extended range
-	    double tolerance = 3 * EPSILON;
+	    double tolerance = 3 * epsilon;
 	    if (x > 1) {
-	        tolerance = 3 * x * EPSILON;
+	        tolerance = 3 * x * epsilon;
 	    }
 
 	    for (int i = 0; i < 10; ++i) {
@@ -349,7 +485,183 @@ public class Hyperlog {
 	        }
 	    }
 
-	    throw new Exception("DidNotConverge: scale() didn't converge");
+	    // Did not converge
+	    return Double.NaN;
+	}
+
+	/**
+	 * Sample the inverse transform on a regular scale grid over [x1, 1], i.e.
+	 * the non-negative half of the data range (negative values are reflected
+	 * around data zero as in scale()), and bound the error of the linear 
+	 * interpolation of its inverse.
+	 * 
+	 * On an interval [s0, s1] the interpolation error of scale(value) is at
+	 * most (dv^2 / 8) * max|g''| / min|g'|^3, where g is the bi-exponential,
+	 * g' its slope and dv = g(s1) - g(s0). Both g' and g'' grow with the 
+	 * scale, so they are bounded by their values at s0 and s1, respectively.
+	 * 
+	 * @param lutSize requested number of samples.
+	 * @param tolerance maximum accepted error in scale units.
+	 */
+	private void buildLookupTable(int lutSize, double tolerance) {
+
+		// Make sure the bin boundaries fall on table samples
+		int intervals = lutSize - 1;
+		if (bins > 0) {
+			int binsAboveZero = bins - (int) Math.round(x1 * bins);
+			if (binsAboveZero > 0 && intervals % binsAboveZero != 0) {
+				intervals = (intervals / binsAboveZero + 1) * binsAboveZero;
+			}
+		}
+
+		double step = (1.0 - x1) / intervals;
+		double[] values = new double[intervals + 2];
+		for (int k = 0; k <= intervals; k++) {
+			values[k] = inverse(x1 + k * step);
+		}
+		values[0] = 0.0;
+		values[intervals + 1] = Double.POSITIVE_INFINITY;
+
+		// Bound the interpolation error
+		double bound = 0.0;
+		for (int k = 0; k < intervals; k++) {
+			double s0 = x1 + k * step;
+			double s1 = s0 + step;
+			double minSlope = a * b * Math.exp(b * s0) + c;
+			double maxCurvature = a * b * b * Math.exp(b * s1);
+			double dv = values[k + 1] - values[k];
+			double err = dv * dv / 8.0 * maxCurvature /
+					(minSlope * minSlope * minSlope);
+			if (err > bound) {
+				bound = err;
+			}
+		}
+
+		// Use the table only if it is accurate enough
+		if (!(bound <= tolerance)) {
+			return;
+		}
+
+		// Index the table by the exponent and leading mantissa bits of the
+		// (positive) values: since the bit patterns of positive doubles are
+		// ordered like the values, lutIndex[key - lutKeyMin] is the last
+		// table interval starting at or below the smallest value with that 
+		// key. Smaller keys are clamped to the first entry, which is 0.
+		// In the logarithmic region an octave spans ln(2) / b in scale: use
+		// enough mantissa bits to have about one sample per key there.
+		double samplesPerOctave = Math.log(2.0) / (b * step);
+		int mantissaBits = (int) Math.ceil(Math.log(samplesPerOctave) / Math.log(2.0));
+		mantissaBits = Math.max(1, Math.min(mantissaBits, 16));
+		int keyShift = 52 - mantissaBits;
+		long keyMin = (Double.doubleToRawLongBits(values[1]) >>> keyShift) - 1;
+		long keyMax = Double.doubleToRawLongBits(values[intervals]) >>> keyShift;
+		int[] index = new int[(int) (keyMax - keyMin + 1)];
+		int k = 0;
+		for (int i = 0; i < index.length; i++) {
+			double keyValue = Double.longBitsToDouble((keyMin + i) << keyShift);
+			while (k < intervals - 1 && values[k + 1] <= keyValue) {
+				k++;
+			}
+			index[i] = k;
+		}
+
+		lutValues = values;
+		lutIndex = index;
+		lutKeyMin = keyMin;
+		lutKeyShift = keyShift;
+		lutStep = step;
+		lutErrorBound = bound;
+	}
+
+	/**
+	 * Forward transform from the lookup table, falling back to the exact 
+	 * path for values outside the range covered by the table.
+	 * @param value Raw value to be scaled.
+	 * @param epsilon Precision of the exact path (EPSILON or FLOAT_EPSILON).
+	 * @return scaled value, or NaN if the exact path does not converge.
+	 */
+	private double lookup(double value, double epsilon) {
+
+		// Negative values are reflected around data zero
+		double v = Math.abs(value);
+
+		if (!(v <= lutValues[lutValues.length - 2])) {
+			// Out of table (or NaN)
+			return scale(value, epsilon);
+		}
+
+		// Find the interval [lutValues[k], lutValues[k + 1]] containing v:
+		// the index gets us there or one interval short in most cases (the
+		// sentinel stops the search at the top of the table)
+		long key = Double.doubleToRawLongBits(v) >>> lutKeyShift;
+		int k = lutIndex[(int) Math.max(key - lutKeyMin, 0)];
+		k += (lutValues[k + 1] <= v) ? 1 : 0;
+		while (lutValues[k + 1] <= v) {
+			k++;
+		}
+
+		// Interpolate linearly
+		double v0 = lutValues[k];
+		double d = (k + (v - v0) / (lutValues[k + 1] - v0)) * lutStep;
+
+		// Handle negative arguments
+		return x1 + Math.copySign(d, value);
+	}
+
+	/**
+	 * Sequential forward transform of a range of values.
+	 * @param in array of values to be transformed.
+	 * @param out array to store the transformed values.
+	 * @param from index of the first value to transform (inclusive).
+	 * @param to index of the last value to transform (exclusive).
+	 * @return number of values that could not be transformed.
+	 */
+	@Override
+	protected int transformRange(double[] in, double[] out, int from, int to) {
+		int failed = 0;
+		if (lutValues != null) {
+			for (int i = from; i < to; i++) {
+				double y = lookup(in[i], EPSILON);
+				failed += (y != y) ? 1 : 0;
+				out[i] = y;
+			}
+		} else {
+			for (int i = from; i < to; i++) {
+				double y = scale(in[i]);
+				failed += (y != y) ? 1 : 0;
+				out[i] = y;
+			}
+		}
+		return failed;
+	}
+
+	/**
+	 * Sequential forward transform of a range of values in single precision.
+	 * The iteration stops as soon as the result is accurate to float
+	 * precision (FLOAT_EPSILON).
+	 * @param in array of values to be transformed.
+	 * @param out array to store the transformed values.
+	 * @param from index of the first value to transform (inclusive).
+	 * @param to index of the last value to transform (exclusive).
+	 * @return number of values that could not be transformed.
+	 */
+	@Override
+	protected int transformRange(float[] in, float[] out, int from, int to) {
+		int failed = 0;
+		if (lutValues != null) {
+			for (int i = from; i < to; i++) {
+				double y = lookup(in[i], FLOAT_EPSILON);
+				failed += (y != y) ? 1 : 0;
+				out[i] = (float) y;
+			}
+		} else {
+			for (int i = from; i < to; i++) {
+				double y = scale(in[i], FLOAT_EPSILON);
+				failed += (y != y) ? 1 : 0;
+				out[i] = (float) y;
+			}
+		}
+		return failed;
 	}
 
 	/**
@@ -424,6 +736,49 @@ public class Hyperlog {
 		return Hyperlog.estimateParamHeuristic(bnds[0], bnds[1]);
 	}
 
+	/**
+	 * Estimate parameters for the Hyperlog transform from robust min and max
+	 * values (quantiles ROBUST_LOW_QUANTILE and ROBUST_HIGH_QUANTILE) of the
+	 * data summarized by a quantile sketch. Isolated outliers do not affect 
+	 * the estimate, and the sketch can cover several files (see 
+	 * QuantileSketch.merge()).
+	 * @param sketch quantile sketch of the values to be transformed.
+	 * @return array of parameters [T, M, W, A] (see description above).
+	 */
+	public static double[] estimateParamHeuristic(QuantileSketch sketch) {
+		return Hyperlog.estimateParamHeuristic(sketch, ROBUST_LOW_QUANTILE,
+				ROBUST_HIGH_QUANTILE);
+	}
+
+	/**
+	 * Estimate parameters for the Hyperlog transform from given quantiles of
+	 * the data summarized by a quantile sketch.
+	 * @param sketch quantile sketch of the values to be transformed.
+	 * @param lowQuantile quantile used as min value (0 for the true min).
+	 * @param highQuantile quantile used as max value (1 for the true max).
+	 * @return array of parameters [T, M, W, A] (see description above).
+	 * @throws IllegalArgumentException if the sketch is empty or the 
+	 * quantiles are invalid.
+	 */
+	public static double[] estimateParamHeuristic(QuantileSketch sketch,
+			double lowQuantile, double highQuantile) {
+
+		if (sketch.isEmpty()) {
+			throw new IllegalArgumentException(
+					"IllegalParameter: the sketch is empty");
+		}
+
+		if (lowQuantile > highQuantile) {
+			throw new IllegalArgumentException(
+					"IllegalParameter: lowQuantile is larger than highQuantile");
+		}
+
+		// Estimate the parameters from the robust bounds
+		return Hyperlog.estimateParamHeuristic(
+				sketch.getQuantile(lowQuantile),
+				sketch.getQuantile(highQuantile));
+	}
+
 	/**
 	 * Multiplies all values in the input array by a constant factor.
 	 * 
@@ -0,0 +1,73 @@
+package ch.ethz.scu.obit.flow.readers;
+
+/**
+ * Linear transform and inverse transform for flow cytometry data.
+ *
+ * The data is simply normalized so that the top of scale value T is mapped
+ * to 1: {@code y = x / T}.
+ *
+ * @author Aaron Ponti
+ */
+public class Linear extends AbstractAxisTransform {
+
+	// Parameters
+	private double T;
+
+	// Precomputed constants
+	private double invT;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param T top of scale value.
+	 * @throws Exception for invalid input arguments.
+	 */
+	public Linear(double T) throws Exception {
+
+		if (T <= 0) {
+			throw new Exception("IllegalParameter: T is not positive");
+		}
+
+		this.T = T;
+		this.invT = 1.0 / T;
+	}
+
+	/**
+	 * Return the name of the transform.
+	 * @return "linear".
+	 */
+	@Override
+	public String getName() {
+		return "linear";
+	}
+
+	/**
+	 * Return the top of scale value.
+	 * @return top of scale value T.
+	 */
+	@Override
+	public double getTopOfScale() {
+		return T;
+	}
+
+	/**
+	 * Linear forward transform of a single value.
+	 * @param value Raw value to be scaled.
+	 * @return scaled value.
+	 */
+	@Override
+	public double transform(double value) {
+		return value * invT;
+	}
+
+	/**
+	 * Linear inverse transform of a single value.
+	 * @param scale Data scale.
+	 * @return the inverse.
+	 */
+	@Override
+	public double inverse(double scale) {
+		return scale * T;
+	}
+
+}
@@ -0,0 +1,375 @@
+package ch.ethz.scu.obit.flow.readers;
+
+/**
+ * Logicle transform and inverse transform for flow cytometry data.
+ *
+ * @author Aaron Ponti
+ * <p>
+ * Original author Wayne Moore (Java/C++)
+ * <p>
+ * See also:
+ *
+ * <a href="http://onlinelibrary.wiley.com/doi/10.1002/cyto.a.22030/full">Moore WA and Parks DR, Update for the logicle data scale including operational code implementations, Cytometry A, 2012</a>
+ * <a href="http://flowcyt.sourceforge.net/gating/latest.pdf">http://flowcyt.sourceforge.net/gating/latest.pdf (chapter 6.5)</a>
+ * <p>
+ * The parameters T, W, M and A have the same meaning as for the Hyperlog
+ * transform (see Hyperlog).
+ */
+public class Logicle extends AbstractAxisTransform {
+
+	// Constants
+
+	/**
+	 * Default decades for the transform
+	 */
+	static public final double DEFAULT_DECADES = 4.5;
+
+	/**
+	 * Default decades in the approximately linear region
+	 */
+	static public final double DEFAULT_LINEAR_DECADES = 0.5;
+
+	/**
+	 * Natural logarithm of 10.
+	 */
+	static public final double LN_10 = Math.log(10.0);
+
+	/**
+	 * Length of the Taylor expansion
+	 */
+	static public final int TAYLOR_LENGTH = 16;
+
+	/**
+	 * Epsilon
+	 */
+	static public final double EPSILON = 1e-14;
+
+	// Parameters
+	private double T, W, M, A;
+	private double a, b, c, d, f;
+	private double w, x0, x1, x2;
+
+	private double xTaylor;
+	private double[] taylor;
+
+    /**
+     * Constructor.
+     *
+     * Default values for M = 4.5 and A = 0.
+     *
+     * @param T top of scale value.
+     * @param W number of decades in the approximately linear region.
+     * @throws Exception for invalid input arguments.
+     */
+	public Logicle(double T, double W) throws Exception {
+		this(T, W, DEFAULT_DECADES, 0.0);
+	}
+
+    /**
+     * Alternative constructor.
+     *
+     * @param T top of scale value.
+     * @param M number of decades that the true logarithmic scale approached
+     *          at the high end of the Logicle scale would cover in the plot
+     *          range.
+     * @param W the number of such decades in the approximately linear region.
+     * @param A number of additional decades of negative data values to be
+     *          included.
+     * @throws Exception for invalid input arguments.
+     */
+	public Logicle(double T, double W, double M, double A) throws Exception {
+
+		this.T = T;
+		this.M = M;
+		this.W = W;
+		this.A = A;
+
+		// Initialize
+		initialize();
+	}
+
+	/**
+	 * Return the name of the transform.
+	 * @return "logicle".
+	 */
+	@Override
+	public String getName() {
+		return "logicle";
+	}
+
+	/**
+	 * Return the top of scale value.
+	 * @return top of scale value T.
+	 */
+	@Override
+	public double getTopOfScale() {
+		return T;
+	}
+
+	/**
+	 * Initialize the Logicle parameters.
+	 * @throws Exception if any of the parameters are invalid.
+	 */
+	private void initialize() throws Exception {
+
+		if (T <= 0) {
+			throw new Exception("IllegalParameter: T is not positive");
+		}
+
+		if (W < 0) {
+			throw new Exception("IllegalParameter: W is negative");
+		}
+
+		if (M <= 0) {
+			throw new Exception("IllegalParameter: M is not positive");
+		}
+
+		if (2 * W > M) {
+			throw new Exception("IllegalParameter: W is too large");
+		}
+
+		if (-A > W || A + W > M - W) {
+			throw new Exception("IllegalParameter: A is too large");
+		}
+
+		// Actual parameters
+		w = W / (M + A);
+		x2 = A / (M + A);
+		x1 = x2 + w;
+		x0 = x2 + 2 * w;
+		b = (M + A) * LN_10;
+		d = solve(b, w);
+		double c_a = Math.exp(x0 * (b + d));
+		double mf_a = Math.exp(b * x1) - c_a / Math.exp(d * x1);
+		a = T / ((Math.exp(b) - mf_a) - c_a / Math.exp(d));
+		c = c_a * a;
+		f = -mf_a * a;
+
+		// Use Taylor series near x1, i.e., data zero to
+		// avoid round off problems of formal definition
+		xTaylor = x1 + w / 4;
+
+		// Compute coefficients of the Taylor series
+		double posCoef = a * Math.exp(b * x1);
+		double negCoef = -c / Math.exp(d * x1);
+
+		// 16 is enough for full precision of typical scales
+		taylor = new double[TAYLOR_LENGTH];
+		for (int i = 0; i < TAYLOR_LENGTH; ++i) {
+			posCoef *= b / (i + 1);
+			negCoef *= -d / (i + 1);
+			taylor[i] = posCoef + negCoef;
+		}
+		taylor[1] = 0; // exact result of Logicle condition
+	}
+
+	/**
+	 * Solve for d such that 2 (ln d - ln b) + w (d + b) = 0, using a
+	 * safeguarded Newton-Raphson iteration.
+	 * @param b Scale of the positive exponential.
+	 * @param w Width of the linearization region (in scale units).
+	 * @return the parameter d.
+	 * @throws Exception if no convergence.
+	 */
+	private static double solve(double b, double w) throws Exception {
+
+		// w == 0 means it's really arcsinh
+		if (w == 0) {
+			return b;
+		}
+
+		// Precision is the same as that of b
+		double tolerance = 2 * b * EPSILON;
+
+		// Bracket the root
+		double d_lo = 0;
+		double d_hi = b;
+
+		// Bisection first step
+		double d = (d_lo + d_hi) / 2;
+		double last_delta = d_hi - d_lo;
+		double delta;
+
+		// Evaluate the f(w,b) = 2 * (ln(d) - ln(b)) + w * (b + d)
+		// and its derivative
+		double f_b = -2 * Math.log(b) + w * b;
+		double f = 2 * Math.log(d) + w * d + f_b;
+		double last_f = Double.NaN;
+
+		for (int i = 1; i < 20; ++i) {
+
+			// Compute the derivative
+			double df = 2 / d + w;
+
+			// If Newton's method would step outside the bracket
+			// or if it isn't converging quickly enough
+			if (((d - d_hi) * df - f) * ((d - d_lo) * df - f) >= 0
+					|| Math.abs(1.9 * f) > Math.abs(last_delta * df)) {
+
+				// Take a bisection step
+				delta = (d_hi - d_lo) / 2;
+				d = d_lo + delta;
+				if (d == d_lo) {
+					return d; // nothing changed, we're done
+				}
+
+			} else {
+
+				// Otherwise take a Newton's method step
+				delta = f / df;
+				double t = d;
+				d -= delta;
+				if (d == t) {
+					return d; // nothing changed, we're done
+				}
+			}
+
+			// If we've reached the desired precision we're done
+			if (Math.abs(delta) < tolerance) {
+				return d;
+			}
+			last_delta = delta;
+
+			// Recompute the function
+			f = 2 * Math.log(d) + w * d + f_b;
+			if (f == 0 || f == last_f) {
+				return d; // found the root or are not going to get any closer
+			}
+			last_f = f;
+
+			// Update the bracketing interval
+			if (f < 0) {
+				d_lo = d;
+			} else {
+				d_hi = d;
+			}
+		}
+
+		throw new Exception("DidNotConverge: solve() didn't converge");
+	}
+
+	/**
+	 * Calculate the inverse.
+	 * @param scale Data scale.
+	 * @return the inverse.
+	 */
+	@Override
+	public double inverse(double scale) {
+
+		// Reflect negative scale regions
+		boolean negative = scale < x1;
+		if (negative) {
+			scale = 2 * x1 - scale;
+		}
+
+		double inverse;
+		if (scale < xTaylor) {
+			// Near x1, i.e., data zero use the series expansion
+			inverse = taylorSeries(scale);
+		} else {
+			// This formulation has better roundoff behavior
+			inverse = (a * Math.exp(b * scale) + f) - c / Math.exp(d * scale);
+		}
+
+		// Handle scale for negative values
+		if (negative) {
+			return -inverse;
+		} else {
+			return inverse;
+		}
+	}
+
+	/**
+	 * Logicle forward transform of a single value.
+	 * @param value Raw value to be scaled.
+	 * @return scaled value, or NaN if no convergence.
+	 */
+	@Override
+	public double transform(double value) {
+
+		// Handle true zero separately
+		if (value == 0) {
+			return x1;
+		}
+
+		// Reflect negative values
+		boolean negative = value < 0;
+		if (negative) {
+			value = -value;
+		}
+
+		// Initial guess at solution
+		double x;
+		if (value < f) {
+			// Use linear approximation in the quasi linear region
+			x = x1 + value / taylor[0];
+		} else {
+			// Otherwise use ordinary logarithm
+			x = Math.log(value / a) / b;
+		}
+
+		// Try for double precision unless in extended range
+		double tolerance = 3 * EPSILON;
+		if (x > 1) {
+			tolerance = 3 * x * EPSILON;
+		}
+
+		for (int i = 0; i < 10; ++i) {
+
+			// Compute the function and its first two derivatives
+			double ae2bx = a * Math.exp(b * x);
+			double ce2mdx = c / Math.exp(d * x);
+			double y;
+			if (x < xTaylor) {
+				// Near zero use the Taylor series
+				y = taylorSeries(x) - value;
+			} else {
+				// This formulation has better roundoff behavior
+				y = (ae2bx + f) - (ce2mdx + value);
+			}
+
+			double abe2bx = b * ae2bx;
+			double cde2mdx = d * ce2mdx;
+			double dy = abe2bx + cde2mdx;
+			double ddy = b * abe2bx - d * cde2mdx;
+
+			// This is Halley's method with cubic convergence
+			double delta = y / (dy * (1 - y * ddy / (2 * dy * dy)));
+			x -= delta;
+
+			// If we've reached the desired precision we're done
+			if (Math.abs(delta) < tolerance) {
+
+				// Handle negative arguments
+				if (negative) {
+					return 2 * x1 - x;
+				} else {
+					return x;
+				}
+			}
+		}
+
+		// Did not converge
+		return Double.NaN;
+	}
+
+	/**
+	 * Calculate Taylor series.
+	 * @param scale Data scale.
+	 * @return Taylor series (sum).
+	 */
+	private double taylorSeries(double scale) {
+
+		// Taylor series is around x1
+		double x = scale - x1;
+
+		// Note that taylor[1] should be identically zero according
+		// to the Logicle condition so skip it here
+		double sum = taylor[TAYLOR_LENGTH - 1] * x;
+		for (int i = TAYLOR_LENGTH - 2; i >= 2; --i) {
+			sum = (sum + taylor[i]) * x;
+		}
+		return (sum * x + taylor[0]) * x;
+	}
+
+}
@@ -0,0 +1,412 @@
+package ch.ethz.scu.obit.flow.readers;
+
+import java.util.Arrays;
+
+/**
+ * Streaming quantile sketch (KLL) for flow cytometry data.
+ *
+ * The sketch summarizes an arbitrarily long stream of values in less than a
+ * thousand doubles and answers quantile queries with a rank error below 1%
+ * for the default accuracy parameter k = 200 (the error scales as 1/k).
+ * The minimum and the maximum are exact. Sketches can be merged: this makes
+ * it possible to build one sketch per channel for a whole experiment by
+ * feeding all of its files, in any order, either into the same sketch or into
+ * separate sketches that are merged later.
+ * <p>
+ * The compaction offsets alternate deterministically, so that the same
+ * stream always produces the same sketch. NaN values are ignored.
+ * <p>
+ * See also:
+ *
+ * <a href="https://arxiv.org/abs/1603.05346">Karnin Z, Lang K and Liberty E, Optimal Quantile Approximation in Streams, FOCS 2016</a>
+ *
+ * @author Aaron Ponti
+ */
+public class QuantileSketch {
+
+	/**
+	 * Default accuracy parameter
+	 */
+	static public final int DEFAULT_K = 200;
+
+	/**
+	 * Capacity decay from one level to the next
+	 */
+	static private final double CAPACITY_DECAY = 2.0 / 3.0;
+
+	/**
+	 * Minimum capacity of a level
+	 */
+	static private final int MIN_CAPACITY = 8;
+
+	// Accuracy parameter
+	private final int k;
+
+	// Levels: items at level h have weight 2^h
+	private double[][] levels;
+	private int[] sizes;
+	private int[] capacities;
+	private boolean[] offsets;
+	private int numLevels;
+	private int retained = 0;
+	private int totalCapacity = 0;
+
+	// Stream statistics
+	private long n = 0;
+	private double min = Double.NaN;
+	private double max = Double.NaN;
+
+	// Sorted view (built on demand, discarded on update)
+	private double[] sortedValues = null;
+	private long[] cumulativeWeights = null;
+
+	/**
+	 * Constructor.
+	 *
+	 * Default accuracy parameter k = 200.
+	 */
+	public QuantileSketch() {
+		this(DEFAULT_K);
+	}
+
+	/**
+	 * Alternative constructor.
+	 *
+	 * @param k accuracy parameter (at least MIN_CAPACITY); larger values
+	 *          give more accurate quantiles at the cost of more memory.
+	 * @throws IllegalArgumentException if k is too small.
+	 */
+	public QuantileSketch(int k) {
+		if (k < MIN_CAPACITY) {
+			throw new IllegalArgumentException(
+					"IllegalParameter: k must be at least " + MIN_CAPACITY);
+		}
+		this.k = k;
+		levels = new double[0][];
+		sizes = new int[0];
+		offsets = new boolean[0];
+		numLevels = 0;
+		addLevel();
+	}
+
+	/**
+	 * Return the accuracy parameter.
+	 * @return accuracy parameter k.
+	 */
+	public int getK() {
+		return k;
+	}
+
+	/**
+	 * Return the number of values added to the sketch (NaNs excluded).
+	 * @return number of values.
+	 */
+	public long getN() {
+		return n;
+	}
+
+	/**
+	 * Return true if no values were added to the sketch.
+	 * @return true if the sketch is empty.
+	 */
+	public boolean isEmpty() {
+		return n == 0;
+	}
+
+	/**
+	 * Return the (exact) minimum of the values added to the sketch.
+	 * @return min value, or NaN if the sketch is empty.
+	 */
+	public double getMin() {
+		return min;
+	}
+
+	/**
+	 * Return the (exact) maximum of the values added to the sketch.
+	 * @return max value, or NaN if the sketch is empty.
+	 */
+	public double getMax() {
+		return max;
+	}
+
+	/**
+	 * Add a value to the sketch.
+	 * @param value Value to be added (NaN is ignored).
+	 */
+	public void update(double value) {
+
+		if (value != value) {
+			return;
+		}
+
+		// Update the statistics
+		if (n == 0) {
+			min = value;
+			max = value;
+		} else if (value < min) {
+			min = value;
+		} else if (value > max) {
+			max = value;
+		}
+		n++;
+
+		// Insert into level 0 (compacting first if needed)
+		if (retained >= totalCapacity) {
+			compress();
+		}
+		if (sizes[0] == levels[0].length) {
+			levels[0] = Arrays.copyOf(levels[0], 2 * levels[0].length);
+		}
+		levels[0][sizes[0]++] = value;
+		retained++;
+		sortedValues = null;
+	}
+
+	/**
+	 * Add a range of values to the sketch.
+	 * @param x array of values.
+	 * @param from index of the first value to add (inclusive).
+	 * @param to index of the last value to add (exclusive).
+	 */
+	public void update(double[] x, int from, int to) {
+		for (int i = from; i < to; i++) {
+			update(x[i]);
+		}
+	}
+
+	/**
+	 * Add a range of values in single precision to the sketch.
+	 * @param x array of values.
+	 * @param from index of the first value to add (inclusive).
+	 * @param to index of the last value to add (exclusive).
+	 */
+	public void update(float[] x, int from, int to) {
+		for (int i = from; i < to; i++) {
+			update(x[i]);
+		}
+	}
+
+	/**
+	 * Merge another sketch into this one. The other sketch is not modified.
+	 * Sketches with different accuracy parameters can be merged: the result
+	 * has the accuracy of this sketch.
+	 * @param other Sketch to be merged.
+	 */
+	public void merge(QuantileSketch other) {
+
+		if (other == null || other.n == 0) {
+			return;
+		}
+
+		// Update the statistics
+		if (n == 0) {
+			min = other.min;
+			max = other.max;
+		} else {
+			min = Math.min(min, other.min);
+			max = Math.max(max, other.max);
+		}
+		n += other.n;
+
+		// Append the items level by level
+		while (numLevels < other.numLevels) {
+			addLevel();
+		}
+		for (int h = 0; h < other.numLevels; h++) {
+			int size = sizes[h] + other.sizes[h];
+			if (size > levels[h].length) {
+				levels[h] = Arrays.copyOf(levels[h], size);
+			}
+			System.arraycopy(other.levels[h], 0, levels[h], sizes[h],
+					other.sizes[h]);
+			sizes[h] = size;
+			retained += other.sizes[h];
+		}
+
+		// Compact until the sketch fits its capacity again
+		while (retained > totalCapacity) {
+			compress();
+		}
+		sortedValues = null;
+	}
+
+	/**
+	 * Return the (approximate) quantile of the values added to the sketch.
+	 * @param q quantile in the range [0, 1]: 0 returns the min, 1 the max.
+	 * @return value at quantile q, or NaN if the sketch is empty.
+	 * @throws IllegalArgumentException if q is outside [0, 1].
+	 */
+	public double getQuantile(double q) {
+
+		if (!(q >= 0.0 && q <= 1.0)) {
+			throw new IllegalArgumentException(
+					"IllegalParameter: quantile must be in [0, 1]");
+		}
+
+		if (n == 0) {
+			return Double.NaN;
+		}
+		if (q == 0.0) {
+			return min;
+		}
+		if (q == 1.0) {
+			return max;
+		}
+
+		// Build the sorted view if needed
+		if (sortedValues == null) {
+			buildSortedView();
+		}
+
+		// Find the first item whose cumulative weight reaches the rank
+		long total = cumulativeWeights[cumulativeWeights.length - 1];
+		long rank = (long) Math.ceil(q * total);
+		int lo = 0;
+		int hi = cumulativeWeights.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (cumulativeWeights[mid] < rank) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return sortedValues[lo];
+	}
+
+	/**
+	 * Return the (approximate) quantiles of the values added to the sketch.
+	 * @param q array of quantiles in the range [0, 1].
+	 * @return array of values at the requested quantiles.
+	 * @throws IllegalArgumentException if any q is outside [0, 1].
+	 */
+	public double[] getQuantiles(double[] q) {
+		double[] values = new double[q.length];
+		for (int i = 0; i < q.length; i++) {
+			values[i] = getQuantile(q[i]);
+		}
+		return values;
+	}
+
+	/**
+	 * Return the number of items currently retained by the sketch.
+	 * @return number of retained items.
+	 */
+	public int getNumRetained() {
+		return retained;
+	}
+
+	/**
+	 * Return a short description of the sketch.
+	 * @return description of the sketch.
+	 */
+	@Override
+	public String toString() {
+		return "QuantileSketch (k = " + k + ", n = " + n + ", retained = "
+				+ getNumRetained() + ", min = " + min + ", max = " + max + ")";
+	}
+
+	/**
+	 * Add an empty level on top and update the capacities: the top level
+	 * has capacity k and the levels below it are smaller.
+	 */
+	private void addLevel() {
+		levels = Arrays.copyOf(levels, numLevels + 1);
+		sizes = Arrays.copyOf(sizes, numLevels + 1);
+		offsets = Arrays.copyOf(offsets, numLevels + 1);
+		levels[numLevels] = new double[k];
+		numLevels++;
+
+		capacities = new int[numLevels];
+		totalCapacity = 0;
+		for (int h = 0; h < numLevels; h++) {
+			int depth = numLevels - 1 - h;
+			capacities[h] = Math.max(MIN_CAPACITY,
+					(int) Math.ceil(k * Math.pow(CAPACITY_DECAY, depth)));
+			totalCapacity += capacities[h];
+		}
+	}
+
+	/**
+	 * Compact the lowest level that reached its capacity: sort it and 
+	 * promote every other item (with doubled weight) to the next level. This
+	 * is called when the sketch as a whole is full, so such a level exists.
+	 */
+	private void compress() {
+
+		for (int h = 0; h < numLevels; h++) {
+
+			if (sizes[h] < capacities[h]) {
+				continue;
+			}
+
+			if (h + 1 == numLevels) {
+				addLevel();
+			}
+
+			// Keep one item behind if the size is odd
+			double[] items = levels[h];
+			int size = sizes[h];
+			int start = size % 2;
+			Arrays.sort(items, start, size);
+
+			// Alternate the offset at each compaction of this level
+			int offset = offsets[h] ? 1 : 0;
+			offsets[h] = !offsets[h];
+
+			// Promote half of the items
+			int promoted = (size - start) / 2;
+			int target = sizes[h + 1] + promoted;
+			if (target > levels[h + 1].length) {
+				levels[h + 1] = Arrays.copyOf(levels[h + 1],
+						Math.max(target, 2 * levels[h + 1].length));
+			}
+			double[] next = levels[h + 1];
+			int j = sizes[h + 1];
+			for (int i = start + offset; i < size; i += 2) {
+				next[j++] = items[i];
+			}
+			sizes[h + 1] = j;
+			sizes[h] = start;
+			retained -= size - start - promoted;
+			return;
+		}
+	}
+
+	/**
+	 * Build the sorted view of the retained items and their cumulative
+	 * weights.
+	 */
+	private void buildSortedView() {
+
+		// Sort each level
+		int total = getNumRetained();
+		double[][] sorted = new double[numLevels][];
+		for (int h = 0; h < numLevels; h++) {
+			sorted[h] = Arrays.copyOf(levels[h], sizes[h]);
+			Arrays.sort(sorted[h]);
+		}
+
+		// Merge the levels
+		double[] values = new double[total];
+		long[] weights = new long[total];
+		int[] heads = new int[numLevels];
+		long cumulative = 0;
+		for (int i = 0; i < total; i++) {
+			int best = -1;
+			for (int h = 0; h < numLevels; h++) {
+				if (heads[h] < sorted[h].length && (best == -1
+						|| sorted[h][heads[h]] < sorted[best][heads[best]])) {
+					best = h;
+				}
+			}
+			values[i] = sorted[best][heads[best]++];
+			cumulative += 1L << best;
+			weights[i] = cumulative;
+		}
+
+		sortedValues = values;
+		cumulativeWeights = weights;
+	}
+
+}
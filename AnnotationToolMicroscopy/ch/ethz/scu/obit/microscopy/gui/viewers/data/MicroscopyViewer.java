@@ -29,6 +29,7 @@ import ch.ethz.scu.obit.microscopy.processors.data.MicroscopyProcessor.Experimen
 import ch.ethz.scu.obit.microscopy.processors.data.MicroscopyProcessor.MicroscopyCompositeFile;
 import ch.ethz.scu.obit.microscopy.processors.data.MicroscopyProcessor.MicroscopyFile;
 import ch.ethz.scu.obit.microscopy.processors.data.MicroscopyProcessor.MicroscopyFileSeries;
+import ch.ethz.scu.obit.processors.ScanContext;
 
 /**
  * Simple graphical viewer for the MicroscopyProcessor.
@@ -171,7 +172,7 @@ public final class MicroscopyViewer extends AbstractViewer implements TreeWillEx
      * At the end of scanning, the function MUST set isReady to true.
      */
     @Override
-    public boolean parse(File folder) {
+    public boolean parse(File folder, ScanContext context) {
 
         // Process the file or folder
         try {
@@ -183,8 +184,10 @@ public final class MicroscopyViewer extends AbstractViewer implements TreeWillEx
         }
 
         // We parse. If parsing fails, we just return (the dataset is invalid).
-        if (!microscopyProcessor.parse()) {
-            outputPane.err("Could not parse the folder " + folder + "!");
+        if (!microscopyProcessor.parse(context)) {
+            if (!context.isCancelled()) {
+                outputPane.err("Could not parse the folder " + folder + "!");
+            }
             microscopyProcessor = null;
             return false;
         }
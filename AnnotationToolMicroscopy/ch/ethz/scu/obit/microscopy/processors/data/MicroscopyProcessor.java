@@ -2,6 +2,7 @@ package ch.ethz.scu.obit.microscopy.processors.data;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileVisitResult;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -16,6 +17,8 @@ import ch.ethz.scu.obit.microscopy.readers.MicroscopyReader;
 import ch.ethz.scu.obit.microscopy.readers.composite.AbstractCompositeMicroscopyReader;
 import ch.ethz.scu.obit.microscopy.readers.composite.CompositeMicroscopyReaderFactory;
 import ch.ethz.scu.obit.processors.AbstractProcessor;
+import ch.ethz.scu.obit.processors.data.FolderWalker;
+import ch.ethz.scu.obit.processors.data.FolderWalker.Entry;
 import ch.ethz.scu.obit.processors.data.model.AbstractDescriptor;
 import ch.ethz.scu.obit.processors.data.model.DatasetDescriptor;
 import ch.ethz.scu.obit.processors.data.model.ExperimentDescriptor;
@@ -40,9 +43,6 @@ public final class MicroscopyProcessor extends AbstractProcessor {
 
     private File userRootFolder;
 
-    /* Keep track of the folder level when recursing into subfolders */
-    private int folderLevel = ROOT_LEVEL;
-
     /*
      * List of supported file formats
      *
@@ -122,8 +122,7 @@ public final class MicroscopyProcessor extends AbstractProcessor {
         // indeed a folder. So we can scan it recursively to find and
         // reconstruct the structure of all contained experiments.
         try {
-            folderLevel = ROOT_LEVEL;
-            recursiveDir(this.userFolder);
+            new FolderWalker(this.userFolder).walk(new FolderVisitor());
         } catch (IOException e) {
             this.errorMessage = "Could not parse the folder.";
             System.err.println(errorMessage);
@@ -147,276 +146,265 @@ public final class MicroscopyProcessor extends AbstractProcessor {
     }
 
     /**
-     * Scan the folder recursively and process all microscopy files found
+     * Visitor that processes all microscopy files found in the user folder.
+     *
+     * The depth of an entry in the walk is its level in the user folder:
+     * experiment folders are at EXPERIMENT_LEVEL, their files and composite
+     * datasets at DATASET_LEVEL. We do not recurse deeper than DATASET_LEVEL:
+     * deeper levels must be taken care of by the CompositeMicroscopyReaders.
      *
-     * @param dir Full path to the directory to scan
-     * @throws IOException Thrown if a file could not be processed
+     * @author Aaron Ponti
      */
-    private void recursiveDir(File dir) throws IOException {
-
-        // We do not allow recursion above folderLevel = DATASET_LEVEL == 2;
-        // deeper levels must be taken care of by the
-        // CompositeMicroscopyReaders.
-        if (folderLevel == DATASET_LEVEL) {
-            return;
-        }
-
-        // Declare an AbstractCompositeMicroscopyReader
-        AbstractCompositeMicroscopyReader reader = null;
-
-        // Keep track whether we are processing a composite microscopy dataset
-        boolean isCompositeDataset = false;
-
-        // Update the folder level
-        folderLevel++;
-
-        // Get the directory listing
-        String[] files = dir.list();
-        if (files == null) {
-            return;
-        }
-
-        // Empty subfolders are not accepted
-        if (files.length == 0 && !dir.equals(this.userFolder)) {
-            validator.isValid = false;
-            validator.invalidFilesOrFolders.put(dir, "Empty folder");
-            return;
-        }
+    private class FolderVisitor extends FolderWalker.SimpleVisitor {
 
-        // Go over the files and folders
-        String fileName = "";
-        for (String f : files) {
-
-            File file = new File(dir + File.separator + f);
+        @Override
+        public FileVisitResult preVisitFolder(Entry entry, int depth)
+                throws IOException {
 
-            // Is it a directory?
-            if (file.isDirectory()) {
+            // Stop as soon as the scan is cancelled
+            scanContext.checkCancelled();
 
-                if (folderLevel < DATASET_LEVEL) {
+            if (depth < DATASET_LEVEL) {
+                // Recurse into the subfolder
+                return FileVisitResult.CONTINUE;
+            }
 
-                    // Recurse into the subfolder
-                    recursiveDir(file);
+            // Get a reader to process the folder as a composite microscope
+            // type
+            File file = entry.getFile();
+            AbstractCompositeMicroscopyReader reader =
+                    CompositeMicroscopyReaderFactory.createReader(file);
+            if (reader == null) {
+                validator.isValid = false;
+                validator.invalidFilesOrFolders.put(file,
+                        "Unsupported composite file format in folder "
+                                + file);
+                return FileVisitResult.SKIP_SUBTREE;
+            }
 
-                    // Move on to the next file/folder
-                    continue;
+            // Now process the folder
+            long start = System.nanoTime();
+            try {
 
-                } else {
+                // Parse the folder
+                boolean success = reader.parse();
+                scanContext.fileRead(file, 0, System.nanoTime() - start);
+                if (!success) {
+                    validator.isValid = false;
+                    validator.invalidFilesOrFolders.put(file,
+                            reader.getErrorMessage());
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
 
-                    // Get a reader to process the folder as a composite
-                    // microscope type
-                    reader = CompositeMicroscopyReaderFactory
-                            .createReader(file);
-                    if (reader == null) {
-                        validator.isValid = false;
-                        validator.invalidFilesOrFolders.put(file,
-                                "Unsupported composite file format in folder "
-                                        + file);
-                        continue;
-                    }
+            } catch (Exception e) {
+                scanContext.fileRead(file, 0, System.nanoTime() - start);
+                validator.isValid = false;
+                validator.invalidFilesOrFolders.put(file,
+                        "Could not process folder " + file);
+                return FileVisitResult.SKIP_SUBTREE;
+            }
 
-                    // Now process the folder
-                    try {
-
-                        // Parse the folder
-                        if (!reader.parse()) {
-                            validator.isValid = false;
-                            validator.invalidFilesOrFolders.put(file,
-                                    reader.getErrorMessage());
-                            continue;
-                        }
-
-                        // Label the folder as composite
-                        isCompositeDataset = true;
-
-                    } catch (Exception e) {
-                        validator.isValid = false;
-                        validator.invalidFilesOrFolders.put(file,
-                                "Could not process folder " + file);
-                        continue;
-                    }
+            // Add the composite dataset to the tree
+            addDataset(file, reader);
 
-                }
+            // The reader took care of the content of the folder
+            return FileVisitResult.SKIP_SUBTREE;
+        }
 
-            } else {
+        @Override
+        public FileVisitResult visitEntries(File dir, List<Entry> entries,
+                int depth) {
 
-                // Label the file as standard (non-composite) dataset
-                if (folderLevel == DATASET_LEVEL) {
-                    isCompositeDataset = false;
-                }
+            // Empty subfolders are not accepted
+            if (entries.isEmpty() && depth > ROOT_LEVEL) {
+                validator.isValid = false;
+                validator.invalidFilesOrFolders.put(dir, "Empty folder");
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+            return FileVisitResult.CONTINUE;
+        }
 
-                // Delete some known garbage
-                if (deleteIfKnownUselessFile(file)) {
-                    continue;
-                }
+        @Override
+        public FileVisitResult visitFile(Entry entry, int depth)
+                throws IOException {
 
-                // Check the file type.
-                fileName = file.getName();
-                int indx = fileName.lastIndexOf(".");
-                if (indx == -1) {
-                    continue;
-                }
-                String ext = fileName.substring(indx);
-
-                // Check whether we find a data_structure.ois file. This
-                // means that the whole folder has apparently been annotated
-                // already, but for some unknown reason it has not been
-                // moved into Datamover's incoming folder.
-                // We break here.
-                if (fileName.toLowerCase().equals("data_structure.ois")) {
-                    validator.isValid = false;
-                    validator.invalidFilesOrFolders.put(file,
-                            "Failed registration to openBIS!");
-                    return;
-                }
+            // Stop as soon as the scan is cancelled
+            scanContext.checkCancelled();
 
-                // Check whether an experiment is already annotated. Please
-                // mind that at this stage we do not know WHICH experiment
-                // was annotated. We just react to the fact that at least
-                // one has been annotated, somewhere.
-                if (fileName.toLowerCase().contains("_properties.oix")) {
-                    validator.isValid = false;
-                    validator.invalidFilesOrFolders.put(file,
-                            "Experiment already annotated");
-                    return;
-                }
+            File file = entry.getFile();
+            scanContext.fileVisited(file);
 
-                // A microscopy file cannot be at the user folder root!
-                if (file.getParent().equals(this.userFolder.toString())) {
-                    validator.isValid = false;
-                    validator.invalidFilesOrFolders.put(file,
-                            "File must be in subfolder.");
-                    continue;
-                }
+            // Delete some known garbage
+            if (deleteIfKnownUselessFile(file)) {
+                return FileVisitResult.CONTINUE;
+            }
 
-                // Do we have an unknown file (i.e. neither a supported dataset
-                // format nor a valid attachment)? If we do, we add it to the
-                // list of invalid files and move on to the next.
-                if (!supportedFormats.contains(ext.toLowerCase())
-                        && !ExperimentDescriptor.isValidAttachment(file)) {
-                    validator.isValid = false;
-                    validator.invalidFilesOrFolders.put(file,
-                            "Invalid/unsupported file type.");
-                    continue;
-                }
+            // Check the file type.
+            String fileName = file.getName();
+            int indx = fileName.lastIndexOf(".");
+            if (indx == -1) {
+                return FileVisitResult.CONTINUE;
+            }
+            String ext = fileName.substring(indx);
+
+            // Check whether we find a data_structure.ois file. This
+            // means that the whole folder has apparently been annotated
+            // already, but for some unknown reason it has not been
+            // moved into Datamover's incoming folder.
+            // We break here.
+            if (fileName.toLowerCase().equals("data_structure.ois")) {
+                validator.isValid = false;
+                validator.invalidFilesOrFolders.put(file,
+                        "Failed registration to openBIS!");
+                return FileVisitResult.SKIP_SIBLINGS;
+            }
 
-                // Failed Nikon acquisitions are known to create a 4096-byte
-                // header
-                // only file that the bio-formats library will fail reading.
-                // Also Leica
-                // failed acquisition can result in very small files (<1kB) that
-                // are
-                // broken and cannot be read by bioformats. To prevent
-                // registration
-                // failures on the DataStore Server, we try opening any
-                // suspiciously
-                // small file to reduce the risk of failed registrations on the
-                // DSS.
-                // Since we already checked whether the file is a supported
-                // microscopy
-                // file (or an attachment), we just go ahead and try to open it.
-                if (file.length() <= 4096) {
-                    // We try opening the file -- if it fails, we flag it as
-                    // corrupted.
-                    try {
-                        BioFormatsWrapper wrapper = new BioFormatsWrapper(file);
-                        if (!wrapper.parse()) {
-                            throw new Exception("Parsing the file "
-                                    + file.getName() + " failed!");
-                        }
-                        wrapper.close();
-                    } catch (Exception e) {
-                        validator.isValid = false;
-                        validator.invalidFilesOrFolders.put(file,
-                                "The file seems to be corrupted.");
-                        continue;
-                    }
-                }
+            // Check whether an experiment is already annotated. Please
+            // mind that at this stage we do not know WHICH experiment
+            // was annotated. We just react to the fact that at least
+            // one has been annotated, somewhere.
+            if (fileName.toLowerCase().contains("_properties.oix")) {
+                validator.isValid = false;
+                validator.invalidFilesOrFolders.put(file,
+                        "Experiment already annotated");
+                return FileVisitResult.SKIP_SIBLINGS;
             }
 
-            // Create a new ExperimentDescriptor or reuse an existing one
-            // The name of the experiment is the name of the folder that
-            // contains current file
-            Experiment expDesc;
-            String experimentName = dir.getName();
-            if (folderDescriptor.experiments.containsKey(experimentName)) {
-                expDesc = folderDescriptor.experiments.get(experimentName);
-            } else {
-                expDesc = new Experiment(dir);
-                folderDescriptor.experiments.put(experimentName, expDesc);
+            // A microscopy file cannot be at the user folder root!
+            if (depth == EXPERIMENT_LEVEL) {
+                validator.isValid = false;
+                validator.invalidFilesOrFolders.put(file,
+                        "File must be in subfolder.");
+                return FileVisitResult.CONTINUE;
             }
 
-            // If the file is an attachment, add it and move on
-            if (ExperimentDescriptor.isValidAttachment(file)) {
+            // Do we have an unknown file (i.e. neither a supported dataset
+            // format nor a valid attachment)? If we do, we add it to the
+            // list of invalid files and move on to the next.
+            if (!supportedFormats.contains(ext.toLowerCase())
+                    && !ExperimentDescriptor.isValidAttachment(file)) {
+                validator.isValid = false;
+                validator.invalidFilesOrFolders.put(file,
+                        "Invalid/unsupported file type.");
+                return FileVisitResult.CONTINUE;
+            }
 
-                if (!expDesc.addAttachment(file)) {
+            // Failed Nikon acquisitions are known to create a 4096-byte
+            // header only file that the bio-formats library will fail
+            // reading. Also Leica failed acquisition can result in very
+            // small files (<1kB) that are broken and cannot be read by
+            // bioformats. To prevent registration failures on the DataStore
+            // Server, we try opening any suspiciously small file to reduce
+            // the risk of failed registrations on the DSS. Since we already
+            // checked whether the file is a supported microscopy file (or an
+            // attachment), we just go ahead and try to open it. The size
+            // comes from the folder listing.
+            if (entry.length() <= 4096) {
+                // We try opening the file -- if it fails, we flag it as
+                // corrupted.
+                long start = System.nanoTime();
+                try {
+                    BioFormatsWrapper wrapper = new BioFormatsWrapper(file);
+                    boolean success = wrapper.parse();
+                    scanContext.fileRead(file, entry.length(),
+                            System.nanoTime() - start);
+                    if (!success) {
+                        throw new Exception("Parsing the file "
+                                + file.getName() + " failed!");
+                    }
+                    wrapper.close();
+                } catch (Exception e) {
                     validator.isValid = false;
                     validator.invalidFilesOrFolders.put(file,
-                            "Could not assign attachment to esperiment!");
+                            "The file seems to be corrupted.");
+                    return FileVisitResult.CONTINUE;
                 }
+            }
 
-                // Move on to the next file
-                continue;
+            // Add the dataset (or attachment) to the tree
+            addDataset(file, null);
+            return FileVisitResult.CONTINUE;
+        }
+    }
 
-            }
+    /**
+     * Add a dataset or an attachment to the experiment of the folder that
+     * contains it.
+     *
+     * @param file   Microscopy file, attachment or composite dataset folder.
+     * @param reader Reader that parsed the composite dataset, or null for
+     *               files.
+     */
+    private void addDataset(File file, AbstractCompositeMicroscopyReader reader) {
+
+        // Create a new ExperimentDescriptor or reuse an existing one
+        // The name of the experiment is the name of the folder that
+        // contains current file
+        File dir = file.getParentFile();
+        Experiment expDesc;
+        String experimentName = dir.getName();
+        if (folderDescriptor.experiments.containsKey(experimentName)) {
+            expDesc = folderDescriptor.experiments.get(experimentName);
+        } else {
+            expDesc = new Experiment(dir);
+            folderDescriptor.experiments.put(experimentName, expDesc);
+        }
 
-            // Now add the dataset to the tree
-            if (isCompositeDataset) {
-
-                // Store the composite microscopy dataset.
-                //
-                // The isParsed() call is not strictly necessary, since in
-                // case something went wrong with the parsing, we would not
-                // reach this point (see the try .. catch block above).
-                if (reader.isParsed()) {
-
-                    // Store
-                    String microscopyCompositeFileName = reader.getName();
-                    String microscopyCompositeFileKey = experimentName + "_"
-                            + microscopyCompositeFileName;
-
-                    // Store it in the Experiment descriptor
-                    if (!expDesc.microscopyCompositeFiles
-                            .containsKey(microscopyCompositeFileKey)) {
-                        MicroscopyCompositeFile microscopyCompositeFileDesc;
-                        microscopyCompositeFileDesc = new MicroscopyCompositeFile(
-                                reader, userRootFolder);
-                        expDesc.microscopyCompositeFiles.put(
-                                microscopyCompositeFileKey,
-                                microscopyCompositeFileDesc);
-                    }
+        // If the file is an attachment, add it and move on
+        if (ExperimentDescriptor.isValidAttachment(file)) {
 
-                }
+            if (!expDesc.addAttachment(file)) {
+                validator.isValid = false;
+                validator.invalidFilesOrFolders.put(file,
+                        "Could not assign attachment to esperiment!");
+            }
+            return;
+        }
 
-            } else {
+        // Now add the dataset to the tree
+        if (reader != null) {
 
-                // Normal dataset
+            // Store the composite microscopy dataset.
+            //
+            // The isParsed() call is not strictly necessary, since in
+            // case something went wrong with the parsing, we would not
+            // reach this point (see the try .. catch block above).
+            if (reader.isParsed()) {
 
                 // Store
-                MicroscopyFile microscopyFileDesc;
-                String microscopyFileName = fileName;
-                String microscopyFileKey = experimentName + "_"
-                        + microscopyFileName;
-                microscopyFileDesc = new MicroscopyFile(file, userRootFolder);
+                String microscopyCompositeFileName = reader.getName();
+                String microscopyCompositeFileKey = experimentName + "_"
+                        + microscopyCompositeFileName;
 
                 // Store it in the Experiment descriptor
-                expDesc.microscopyFiles.put(microscopyFileKey,
-                        microscopyFileDesc);
+                if (!expDesc.microscopyCompositeFiles
+                        .containsKey(microscopyCompositeFileKey)) {
+                    MicroscopyCompositeFile microscopyCompositeFileDesc;
+                    microscopyCompositeFileDesc = new MicroscopyCompositeFile(
+                            reader, userRootFolder);
+                    expDesc.microscopyCompositeFiles.put(
+                            microscopyCompositeFileKey,
+                            microscopyCompositeFileDesc);
+                }
 
             }
 
-            // This should not happen!
-            if (folderLevel > DATASET_LEVEL) {
+        } else {
 
-                // Do we have an unknown file? If we do, we move on to the next.
-                validator.isValid = false;
-                validator.invalidFilesOrFolders.put(file,
-                        "Unexpectedly deep folder hierarchy.");
-            }
+            // Normal dataset
 
-        }
+            // Store
+            MicroscopyFile microscopyFileDesc;
+            String microscopyFileName = file.getName();
+            String microscopyFileKey = experimentName + "_"
+                    + microscopyFileName;
+            microscopyFileDesc = new MicroscopyFile(file, userRootFolder);
+
+            // Store it in the Experiment descriptor
+            expDesc.microscopyFiles.put(microscopyFileKey,
+                    microscopyFileDesc);
 
-        // We are about to leave the folder, we reduce the folder level
-        folderLevel--;
+        }
     }
 
     /**
@@ -436,13 +424,12 @@ public final class MicroscopyProcessor extends AbstractProcessor {
             return true;
         }
 
-        if (file.isDirectory()) {
-            return false;
-        }
-
         // Check for microscopy-related files that we do not need to keep
         String name = file.getName();
         if (name.toLowerCase().endsWith(".lifext")) {
+            if (file.isDirectory()) {
+                return false;
+            }
             return file.delete();
         } else {
             return false;
@@ -0,0 +1,190 @@
+package ch.ethz.scu.obit.microscopy.readers;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import ch.ethz.scu.obit.common.utils.QueryOS;
+
+/**
+ * Folder where the bio-formats Memoizer stores the initialized state of the
+ * readers (.bfmemo files).
+ *
+ * When a file is opened again and it did not change, the Memoizer restores
+ * the reader from its memo file instead of parsing the file again. The
+ * memo files are never removed by bio-formats: evict() deletes the ones that
+ * are older than the maximum age and then the oldest ones until the cache
+ * is not larger than the maximum size.
+ *
+ * @author Aaron Ponti
+ */
+public class BioFormatsMemoCache {
+
+    /**
+     * Default maximum age of a memo file: 30 days.
+     */
+    public static final long DEFAULT_MAX_AGE = 30L * 24L * 60L * 60L * 1000L;
+
+    /**
+     * Default maximum size of the cache: 1 GiB.
+     */
+    public static final long DEFAULT_MAX_SIZE = 1L << 30;
+
+    /* Extension of the memo files written by the Memoizer */
+    private static final String MEMO_EXTENSION = ".bfmemo";
+
+    /* Private instance variables */
+    private final File directory;
+    private final long maxAge;
+    private final long maxSize;
+
+    /**
+     * Constructor
+     *
+     * @param directory Cache folder (created if needed).
+     * @param maxAge    Maximum age of a memo file in milliseconds.
+     * @param maxSize   Maximum total size of the memo files in bytes.
+     */
+    public BioFormatsMemoCache(File directory, long maxAge, long maxSize) {
+        this.directory = directory;
+        this.maxAge = maxAge;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Return the cache in the default folder with the default limits.
+     *
+     * @return memo cache.
+     * @throws IOException if the operating system is not supported.
+     */
+    public static BioFormatsMemoCache createDefault() throws IOException {
+        File userDataDir;
+        try {
+            userDataDir = QueryOS.getOSSpecificUserDataFolder();
+        } catch (UnsupportedOperationException e) {
+            throw new IOException(e.getMessage());
+        }
+        File cacheDir = new File(userDataDir + File.separator + "obit"
+                + File.separator + "AnnotationTool" + File.separator
+                + "bfmemo");
+        return new BioFormatsMemoCache(cacheDir, DEFAULT_MAX_AGE,
+                DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Return the cache folder.
+     *
+     * @return cache folder.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Return the maximum age of a memo file.
+     *
+     * @return maximum age in milliseconds.
+     */
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Return the maximum total size of the memo files.
+     *
+     * @return maximum size in bytes.
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Delete the memo files that are older than the maximum age, then the
+     * oldest ones until the cache does not exceed the maximum size. Empty
+     * sub-folders are removed as well. The age of a memo file is the time
+     * since the Memoizer (re-)wrote it.
+     *
+     * @return number of deleted memo files.
+     */
+    public int evict() {
+
+        List<File> memoFiles = new ArrayList<File>();
+        collectMemoFiles(directory, memoFiles);
+
+        // Oldest first
+        Collections.sort(memoFiles, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+
+        long totalSize = 0;
+        for (File memoFile : memoFiles) {
+            totalSize += memoFile.length();
+        }
+
+        int nDeleted = 0;
+        long oldest = System.currentTimeMillis() - maxAge;
+        for (File memoFile : memoFiles) {
+            if (memoFile.lastModified() >= oldest && totalSize <= maxSize) {
+                break;
+            }
+            long length = memoFile.length();
+            if (memoFile.delete()) {
+                totalSize -= length;
+                nDeleted++;
+            }
+        }
+
+        removeEmptyFolders(directory);
+
+        return nDeleted;
+    }
+
+    /**
+     * Recursively collect the memo files in a folder.
+     *
+     * @param folder    Folder to scan.
+     * @param memoFiles List the memo files are added to.
+     */
+    private static void collectMemoFiles(File folder, List<File> memoFiles) {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collectMemoFiles(file, memoFiles);
+            } else if (file.getName().endsWith(MEMO_EXTENSION)) {
+                memoFiles.add(file);
+            }
+        }
+    }
+
+    /**
+     * Recursively delete the empty sub-folders of a folder (the folder
+     * itself is kept).
+     *
+     * @param folder Folder to clean up.
+     */
+    private static void removeEmptyFolders(File folder) {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                removeEmptyFolders(file);
+                String[] content = file.list();
+                if (content != null && content.length == 0) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+}
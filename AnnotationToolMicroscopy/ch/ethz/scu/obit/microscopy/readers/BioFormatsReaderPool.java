@@ -0,0 +1,218 @@
+package ch.ethz.scu.obit.microscopy.readers;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceFactory;
+import loci.formats.ChannelSeparator;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import loci.formats.Memoizer;
+import loci.formats.meta.DummyMetadata;
+import loci.formats.services.OMEXMLService;
+import loci.plugins.util.ImageProcessorReader;
+import loci.plugins.util.LociPrefs;
+
+/**
+ * Process-wide OME-XML service and pool of bio-formats readers.
+ *
+ * Creating a ServiceFactory, looking up the OMEXMLService and building an
+ * ImageReader (which instantiates all format readers) is expensive compared
+ * to reading the metadata of a single file. The service is created once and
+ * the readers are reused: acquire() returns an idle reader with the requested
+ * file grouping behavior (or a new one) and release() closes it and puts it
+ * back into the pool.
+ *
+ * The readers are wrapped in a bio-formats Memoizer: re-opening a file that
+ * did not change restores the reader state from the BioFormatsMemoCache
+ * instead of parsing the file again. By default the cache is in the user
+ * data folder; setMemoCache() changes it (or disables memoization).
+ *
+ * All methods are thread-safe; a reader is only used by one thread between
+ * acquire() and release(). The pool is static, so every BioFormatsWrapper in
+ * the JVM (also the ones created by the microscopy dropbox) shares it.
+ *
+ * @author Aaron Ponti
+ */
+public final class BioFormatsReaderPool {
+
+    /**
+     * Maximum number of idle readers kept per file grouping behavior.
+     */
+    public static final int MAX_IDLE_READERS = 4;
+
+    /* Shared OME-XML service */
+    private static OMEXMLService service = null;
+
+    /* Memo cache (null if memoization is disabled) */
+    private static BioFormatsMemoCache memoCache = null;
+    private static boolean isMemoCacheSet = false;
+
+    /* Idle readers with file grouping off and on */
+    private static final Deque<ImageProcessorReader> ungroupedReaders =
+            new ArrayDeque<ImageProcessorReader>();
+    private static final Deque<ImageProcessorReader> groupedReaders =
+            new ArrayDeque<ImageProcessorReader>();
+
+    /**
+     * Private constructor: all methods are static.
+     */
+    private BioFormatsReaderPool() {
+    }
+
+    /**
+     * Return the shared OME-XML service. The service is created on first
+     * use.
+     *
+     * @return OME-XML service.
+     * @throws DependencyException if the service could not be created.
+     */
+    public static synchronized OMEXMLService getService()
+            throws DependencyException {
+        if (service == null) {
+            service = new ServiceFactory().getInstance(OMEXMLService.class);
+        }
+        return service;
+    }
+
+    /**
+     * Set the cache the readers store their memo files in. Old memo files
+     * are evicted in the background. This should be called before the first
+     * file is opened: idle readers that use the previous cache are dropped.
+     *
+     * @param cache Memo cache, or null to disable memoization.
+     */
+    public static void setMemoCache(BioFormatsMemoCache cache) {
+        synchronized (BioFormatsReaderPool.class) {
+            memoCache = cache;
+            isMemoCacheSet = true;
+        }
+        clear();
+        if (cache != null) {
+            evictInBackground(cache);
+        }
+    }
+
+    /**
+     * Return the cache the readers store their memo files in. If no cache
+     * was set, the default cache is created on first use.
+     *
+     * @return memo cache, or null if memoization is disabled.
+     */
+    public static BioFormatsMemoCache getMemoCache() {
+        BioFormatsMemoCache cache;
+        synchronized (BioFormatsReaderPool.class) {
+            if (isMemoCacheSet) {
+                return memoCache;
+            }
+            try {
+                memoCache = BioFormatsMemoCache.createDefault();
+            } catch (IOException e) {
+                // Unsupported operating system: no memoization
+                memoCache = null;
+            }
+            isMemoCacheSet = true;
+            cache = memoCache;
+        }
+        if (cache != null) {
+            evictInBackground(cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Return a reader with the requested file grouping behavior. The reader
+     * has no file open; the caller must set its metadata store (if needed)
+     * and open a file with setId(), and must give it back with release().
+     *
+     * @param groupFiles Toggles the file grouping behavior of the reader.
+     * @return reader.
+     */
+    public static ImageProcessorReader acquire(boolean groupFiles) {
+        Deque<ImageProcessorReader> idle = getIdleReaders(groupFiles);
+        synchronized (idle) {
+            ImageProcessorReader reader = idle.pollFirst();
+            if (reader != null) {
+                return reader;
+            }
+        }
+
+        // No idle reader: create a new one (outside the lock)
+        ImageReader imageReader = LociPrefs.makeImageReader();
+        imageReader.setGroupFiles(groupFiles);
+        IFormatReader baseReader = imageReader;
+        BioFormatsMemoCache cache = getMemoCache();
+        if (cache != null) {
+            baseReader = new Memoizer(imageReader,
+                    Memoizer.DEFAULT_MINIMUM_ELAPSED, cache.getDirectory());
+        }
+        return new ImageProcessorReader(new ChannelSeparator(baseReader));
+    }
+
+    /**
+     * Close the file of a reader obtained with acquire() and return the
+     * reader to the pool. Readers that cannot be closed are discarded, as
+     * are readers beyond MAX_IDLE_READERS.
+     *
+     * @param reader     Reader obtained with acquire().
+     * @param groupFiles File grouping behavior the reader was acquired with.
+     * @throws IOException if the file of the reader could not be closed.
+     */
+    public static void release(ImageProcessorReader reader,
+            boolean groupFiles) throws IOException {
+
+        // Reset the reader: close the file and drop the metadata store of
+        // the previous file
+        reader.close();
+        reader.setMetadataStore(new DummyMetadata());
+
+        Deque<ImageProcessorReader> idle = getIdleReaders(groupFiles);
+        synchronized (idle) {
+            if (idle.size() < MAX_IDLE_READERS) {
+                idle.addFirst(reader);
+            }
+        }
+    }
+
+    /**
+     * Drop all idle readers.
+     */
+    public static void clear() {
+        synchronized (ungroupedReaders) {
+            ungroupedReaders.clear();
+        }
+        synchronized (groupedReaders) {
+            groupedReaders.clear();
+        }
+    }
+
+    /**
+     * Evict the old memo files of a cache in a daemon thread.
+     *
+     * @param cache Memo cache.
+     */
+    private static void evictInBackground(final BioFormatsMemoCache cache) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                cache.evict();
+            }
+        }, "Bio-Formats memo cache eviction");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Return the idle readers with the requested file grouping behavior.
+     *
+     * @param groupFiles File grouping behavior.
+     * @return idle readers.
+     */
+    private static Deque<ImageProcessorReader> getIdleReaders(
+            boolean groupFiles) {
+        return groupFiles ? groupedReaders : ungroupedReaders;
+    }
+
+}
@@ -1,5 +1,6 @@
 package ch.ethz.scu.obit.microscopy.readers;
 
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.text.Normalizer;
@@ -13,14 +14,10 @@ import java.util.Set;
 
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
-import loci.common.services.ServiceFactory;
-import loci.formats.ChannelSeparator;
 import loci.formats.FormatException;
-import loci.formats.ImageReader;
 import loci.formats.meta.IMetadata;
 import loci.formats.services.OMEXMLService;
 import loci.plugins.util.ImageProcessorReader;
-import loci.plugins.util.LociPrefs;
 import ome.units.quantity.Length;
 import ome.xml.model.primitives.Color;
 import ome.xml.model.primitives.Timestamp;
@@ -30,7 +27,7 @@ public class BioFormatsWrapper {
     /* Private instance variables */
     private File filename;
     private ImageProcessorReader reader = null;
-    private ServiceFactory factory;
+    private boolean groupFiles = false;
     private OMEXMLService service;
     private IMetadata omexmlMeta;
     private String errorMessage = "";
@@ -92,26 +89,24 @@ public class BioFormatsWrapper {
     }
 
     /**
-     * Initialize the reader and sets up the OMEXML metadata store
+     * Initialize the reader and sets up the OMEXML metadata store. The reader
+     * and the OMEXML service are shared (see BioFormatsReaderPool).
      *
      * @param groupFiles Toggles the file grouping behavior of the reader.
      * @return bool True if the initialization was successful, false otherwise.
      */
     private boolean init(Boolean groupFiles) {
 
-        // Create the reader
-        ImageReader imageReader = LociPrefs.makeImageReader();
-        imageReader.setGroupFiles(groupFiles);
-        reader = new ImageProcessorReader(new ChannelSeparator(imageReader));
+        // Get a reader from the pool
+        this.groupFiles = groupFiles;
+        reader = BioFormatsReaderPool.acquire(groupFiles);
 
         // Set OME-XML metadata
-        factory = null;
         service = null;
         omexmlMeta = null;
 
         try {
-            factory = new ServiceFactory();
-            service = factory.getInstance(OMEXMLService.class);
+            service = BioFormatsReaderPool.getService();
         } catch (DependencyException e) {
             this.errorMessage = "Could not initialize bio-formats library. "
                     + "Error was: " + e.getMessage();
@@ -145,7 +140,7 @@ public class BioFormatsWrapper {
 
     /**
      * Close file. The client is responsible to call close to release the file
-     * handle!
+     * handle! The reader is returned to the BioFormatsReaderPool.
      *
      * @return true if the file could be closed, false otherwise.
      */
@@ -156,9 +151,9 @@ public class BioFormatsWrapper {
             return true;
         }
 
-        // Try closing it
+        // Try closing it and give the reader back to the pool
         try {
-            reader.close();
+            BioFormatsReaderPool.release(reader, groupFiles);
         } catch (IOException e) {
 
             // Return failure
@@ -810,6 +805,115 @@ public class BioFormatsWrapper {
         return this.reader.openBytes(0);
     }
 
+    /**
+     * Return an iterator over the tiles of the planes of a series (see
+     * PlaneTileIterator). The z, c and t indices select the planes to visit;
+     * -1 stands for all planes along that dimension. The iterator uses the
+     * reader of the wrapper and must be closed before the file is closed.
+     *
+     * @param seriesNum index of the series in the file
+     * @param z         index of the plane along Z, or -1 for all
+     * @param c         index of the channel, or -1 for all
+     * @param t         index of the timepoint, or -1 for all
+     * @return iterator over the tiles.
+     */
+    public PlaneTileIterator iterateTiles(int seriesNum, int z, int c,
+            int t) {
+
+        // Make sure the reader is open
+        if (reader == null) {
+            throw new RuntimeException("File not opened yet!.");
+        }
+
+        return new PlaneTileIterator(reader, seriesNum, z, c, t);
+    }
+
+    /**
+     * Create an RGB thumbnail of a series. The planes are read tile by tile
+     * and downsampled on the fly, so that the thumbnail of very large images
+     * can be created without loading their planes into memory (see
+     * ThumbnailGenerator).
+     *
+     * @param seriesNum index of the series in the file
+     * @param maxSize   maximum width and height of the thumbnail
+     * @return the thumbnail, with the channels composited in their colors.
+     * @throws FormatException if the file could not be read.
+     * @throws IOException     if the file could not be read.
+     */
+    public BufferedImage createThumbnail(int seriesNum, int maxSize)
+            throws FormatException, IOException {
+
+        // Make sure the reader is open
+        if (reader == null) {
+            throw new RuntimeException("File not opened yet!.");
+        }
+
+        // Get the channel colors of the series
+        reader.setSeries(seriesNum);
+        double[][] colors = getChannelColors(seriesNum);
+
+        return new ThumbnailGenerator(filename, groupFiles, seriesNum,
+                maxSize, colors).create();
+    }
+
+    /**
+     * Project the Z stacks of a series, one projection per channel and
+     * timepoint (see ProjectionEngine). The c and t indices select the
+     * stacks to project; -1 stands for all channels or timepoints.
+     *
+     * All projections are returned at once: this is meant for small
+     * selections. Use project(int, Projection.Type, int, int,
+     * Projection.Consumer) to project whole series.
+     *
+     * @param seriesNum index of the series in the file
+     * @param type      projection type (MAX, MEAN or SUM)
+     * @param c         index of the channel, or -1 for all
+     * @param t         index of the timepoint, or -1 for all
+     * @return projections, by channel and then by timepoint.
+     * @throws FormatException if the file could not be read, or if the
+     *                         projections are too large to be kept in
+     *                         memory.
+     * @throws IOException     if the file could not be read.
+     */
+    public List<Projection> project(int seriesNum, Projection.Type type,
+            int c, int t) throws FormatException, IOException {
+
+        // Make sure the reader is open
+        if (reader == null) {
+            throw new RuntimeException("File not opened yet!.");
+        }
+
+        return new ProjectionEngine(filename, groupFiles, reader, seriesNum,
+                type, c, t).run();
+    }
+
+    /**
+     * Project the Z stacks of a series, one projection per channel and
+     * timepoint, and hand every projection over to a consumer as soon as it
+     * is complete (see ProjectionEngine). The c and t indices select the
+     * stacks to project; -1 stands for all channels or timepoints.
+     *
+     * @param seriesNum index of the series in the file
+     * @param type      projection type (MAX, MEAN or SUM)
+     * @param c         index of the channel, or -1 for all
+     * @param t         index of the timepoint, or -1 for all
+     * @param consumer  consumer of the projections
+     * @throws FormatException if the file could not be read.
+     * @throws IOException     if the file could not be read, or if the
+     *                         consumer failed.
+     */
+    public void project(int seriesNum, Projection.Type type, int c, int t,
+            Projection.Consumer consumer) throws FormatException, IOException {
+
+        // Make sure the reader is open
+        if (reader == null) {
+            throw new RuntimeException("File not opened yet!.");
+        }
+
+        new ProjectionEngine(filename, groupFiles, reader, seriesNum, type, c,
+                t).run(consumer);
+    }
+
     static public double[] getDefaultChannelColor(int channelIndex) {
         return defaultChannelColors[channelIndex % 6];
     }
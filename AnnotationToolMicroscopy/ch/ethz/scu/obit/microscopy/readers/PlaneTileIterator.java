@@ -0,0 +1,424 @@
+package ch.ethz.scu.obit.microscopy.readers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.plugins.util.ImageProcessorReader;
+
+/**
+ * Iterates over the planes of a series tile by tile.
+ *
+ * Planes of large images (e.g. stitched mosaics) can exceed the size of a
+ * Java array and cannot be read with openBytes(no). The iterator reads each
+ * plane in tiles of at most MAX_TILE_BYTES into a single buffer that is
+ * reused for all tiles, so that a consumer (projections, statistics,
+ * thumbnails...) can process a series of any size in constant memory. The
+ * buffers are taken from a small shared pool and returned by close().
+ *
+ * The planes are visited in the order in which they are stored; the tiles of
+ * a plane row by row. Usage:
+ *
+ * <pre>
+ * PlaneTileIterator tiles = wrapper.iterateTiles(series, -1, -1, -1);
+ * try {
+ *     while (tiles.next()) {
+ *         for (int i = 0; i &lt; tiles.getWidth() * tiles.getHeight(); i++) {
+ *             double value = tiles.getValue(i);
+ *             ...
+ *         }
+ *     }
+ * } finally {
+ *     tiles.close();
+ * }
+ * </pre>
+ *
+ * The iterator uses the reader it was created with: the reader must not be
+ * used by another thread until the iterator is closed.
+ *
+ * @author Aaron Ponti
+ */
+public class PlaneTileIterator {
+
+    /**
+     * Maximum size of a tile in bytes.
+     */
+    public static final int MAX_TILE_BYTES = 4 << 20;
+
+    /* Maximum number of idle buffers kept in the pool */
+    private static final int MAX_POOLED_BUFFERS = 8;
+
+    /* Idle tile buffers */
+    private static final Deque<byte[]> buffers = new ArrayDeque<byte[]>();
+
+    /* Private instance variables */
+    private final ImageProcessorReader reader;
+    private final int series;
+    private final List<Integer> planes;
+    private final int sizeX;
+    private final int sizeY;
+    private final int pixelType;
+    private final int bytesPerPixel;
+    private final boolean littleEndian;
+    private final int tileWidth;
+    private final int tileHeight;
+    private byte[] buffer;
+    private ByteBuffer pixels;
+
+    /* Current position */
+    private int planeIndex = -1;
+    private int x = 0;
+    private int y = 0;
+    private int width = 0;
+    private int height = 0;
+    private int[] zct = null;
+
+    /**
+     * Constructor. The z, c and t indices select the planes to visit; -1
+     * stands for all planes along that dimension.
+     *
+     * @param reader Reader with an open file.
+     * @param series Index of the series.
+     * @param z      Index of the plane along Z, or -1 for all.
+     * @param c      Index of the channel, or -1 for all.
+     * @param t      Index of the timepoint, or -1 for all.
+     */
+    public PlaneTileIterator(ImageProcessorReader reader, int series, int z,
+            int c, int t) {
+
+        this.reader = reader;
+        this.series = series;
+        reader.setSeries(series);
+
+        // Select the planes
+        planes = new ArrayList<Integer>();
+        for (int no = 0; no < reader.getImageCount(); no++) {
+            int[] coords = reader.getZCTCoords(no);
+            if ((z == -1 || coords[0] == z) && (c == -1 || coords[1] == c)
+                    && (t == -1 || coords[2] == t)) {
+                planes.add(no);
+            }
+        }
+
+        // Pixel format
+        sizeX = reader.getSizeX();
+        sizeY = reader.getSizeY();
+        pixelType = reader.getPixelType();
+        bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
+        littleEndian = reader.isLittleEndian();
+
+        // Tile size: the optimal size of the format, limited to
+        // MAX_TILE_BYTES
+        tileWidth = Math.max(1, Math.min(sizeX, Math.min(
+                reader.getOptimalTileWidth(), MAX_TILE_BYTES / bytesPerPixel)));
+        tileHeight = Math.max(1, Math.min(sizeY, Math.min(
+                reader.getOptimalTileHeight(),
+                MAX_TILE_BYTES / (bytesPerPixel * tileWidth))));
+
+        buffer = acquireBuffer(tileWidth * tileHeight * bytesPerPixel);
+    }
+
+    /**
+     * Read the next tile.
+     *
+     * @return true if a tile was read, false if all tiles were visited.
+     * @throws FormatException if the tile could not be read.
+     * @throws IOException     if the tile could not be read.
+     */
+    public boolean next() throws FormatException, IOException {
+
+        if (buffer == null) {
+            throw new IllegalStateException("The iterator was closed.");
+        }
+
+        // Move to the next tile (or plane)
+        if (planeIndex == -1) {
+            if (planes.isEmpty()) {
+                return false;
+            }
+            planeIndex = 0;
+            x = 0;
+            y = 0;
+        } else {
+            x += tileWidth;
+            if (x >= sizeX) {
+                x = 0;
+                y += tileHeight;
+                if (y >= sizeY) {
+                    y = 0;
+                    planeIndex++;
+                    if (planeIndex >= planes.size()) {
+                        planeIndex = planes.size();
+                        return false;
+                    }
+                }
+            }
+        }
+
+        width = Math.min(tileWidth, sizeX - x);
+        height = Math.min(tileHeight, sizeY - y);
+        zct = reader.getZCTCoords(planes.get(planeIndex));
+
+        // The series may have been changed by the caller in the meanwhile
+        if (reader.getSeries() != series) {
+            reader.setSeries(series);
+        }
+        reader.openBytes(planes.get(planeIndex), buffer, x, y, width, height);
+        pixels = ByteBuffer.wrap(buffer, 0, width * height * bytesPerPixel)
+                .order(littleEndian ? ByteOrder.LITTLE_ENDIAN
+                        : ByteOrder.BIG_ENDIAN);
+        return true;
+    }
+
+    /**
+     * Return the buffer to the pool. The iterator cannot be used any longer.
+     */
+    public void close() {
+        if (buffer != null) {
+            releaseBuffer(buffer);
+            buffer = null;
+            pixels = null;
+        }
+    }
+
+    /**
+     * Return the pixels of the current tile, row by row. The buffer has the
+     * byte order of the file and is overwritten by next().
+     *
+     * @return pixels of the tile.
+     */
+    public ByteBuffer getPixels() {
+        return pixels;
+    }
+
+    /**
+     * Return the value of a pixel of the current tile.
+     *
+     * @param index Index of the pixel in the tile (y * getWidth() + x).
+     * @return pixel value.
+     */
+    public double getValue(int index) {
+        int pos = index * bytesPerPixel;
+        switch (pixelType) {
+        case FormatTools.INT8:
+            return pixels.get(pos);
+        case FormatTools.UINT8:
+            return pixels.get(pos) & 0xFF;
+        case FormatTools.INT16:
+            return pixels.getShort(pos);
+        case FormatTools.UINT16:
+            return pixels.getShort(pos) & 0xFFFF;
+        case FormatTools.INT32:
+            return pixels.getInt(pos);
+        case FormatTools.UINT32:
+            return pixels.getInt(pos) & 0xFFFFFFFFL;
+        case FormatTools.FLOAT:
+            return pixels.getFloat(pos);
+        case FormatTools.DOUBLE:
+            return pixels.getDouble(pos);
+        default:
+            return 0.0;
+        }
+    }
+
+    /**
+     * Return the index of the series.
+     *
+     * @return series index.
+     */
+    public int getSeries() {
+        return series;
+    }
+
+    /**
+     * Return the number of planes that are visited.
+     *
+     * @return number of planes.
+     */
+    public int getPlaneCount() {
+        return planes.size();
+    }
+
+    /**
+     * Return the index of the current plane in the series.
+     *
+     * @return plane index.
+     */
+    public int getPlane() {
+        return planes.get(planeIndex);
+    }
+
+    /**
+     * Return the Z index of the current plane.
+     *
+     * @return Z index.
+     */
+    public int getZ() {
+        return zct[0];
+    }
+
+    /**
+     * Return the channel index of the current plane.
+     *
+     * @return channel index.
+     */
+    public int getC() {
+        return zct[1];
+    }
+
+    /**
+     * Return the timepoint index of the current plane.
+     *
+     * @return timepoint index.
+     */
+    public int getT() {
+        return zct[2];
+    }
+
+    /**
+     * Return the X position of the current tile in the plane.
+     *
+     * @return X position in pixels.
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * Return the Y position of the current tile in the plane.
+     *
+     * @return Y position in pixels.
+     */
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * Return the width of the current tile.
+     *
+     * @return width in pixels.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Return the height of the current tile.
+     *
+     * @return height in pixels.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Return the width of the planes.
+     *
+     * @return width in pixels.
+     */
+    public int getSizeX() {
+        return sizeX;
+    }
+
+    /**
+     * Return the height of the planes.
+     *
+     * @return height in pixels.
+     */
+    public int getSizeY() {
+        return sizeY;
+    }
+
+    /**
+     * Return the bio-formats pixel type (e.g. FormatTools.UINT16).
+     *
+     * @return pixel type.
+     */
+    public int getPixelType() {
+        return pixelType;
+    }
+
+    /**
+     * Return the data type with the names used in the series attributes.
+     *
+     * @return string datatype, one of "uint8", "uint16", "float",
+     *         "unsupported".
+     */
+    public String getDataType() {
+        switch (bytesPerPixel) {
+        case 1:
+            return "uint8";
+        case 2:
+            return "uint16";
+        case 4:
+            return "float";
+        default:
+            return "unsupported";
+        }
+    }
+
+    /**
+     * Return true if the pixel values are signed.
+     *
+     * @return true for signed pixel types, false otherwise.
+     */
+    public boolean isSigned() {
+        return FormatTools.isSigned(pixelType);
+    }
+
+    /**
+     * Return true if the pixels are stored in little endian byte order.
+     *
+     * @return true for little endian, false for big endian.
+     */
+    public boolean isLittleEndian() {
+        return littleEndian;
+    }
+
+    /**
+     * Return the number of bytes per pixel.
+     *
+     * @return bytes per pixel.
+     */
+    public int getBytesPerPixel() {
+        return bytesPerPixel;
+    }
+
+    /**
+     * Return an idle buffer of at least the requested size, or a new one.
+     *
+     * @param length Minimum size of the buffer.
+     * @return buffer.
+     */
+    private static byte[] acquireBuffer(int length) {
+        synchronized (buffers) {
+            for (byte[] buffer : buffers) {
+                if (buffer.length >= length) {
+                    buffers.remove(buffer);
+                    return buffer;
+                }
+            }
+        }
+        return new byte[length];
+    }
+
+    /**
+     * Return a buffer to the pool.
+     *
+     * @param buffer Buffer that is not used any longer.
+     */
+    private static void releaseBuffer(byte[] buffer) {
+        synchronized (buffers) {
+            if (buffers.size() < MAX_POOLED_BUFFERS) {
+                buffers.addFirst(buffer);
+            }
+        }
+    }
+
+}
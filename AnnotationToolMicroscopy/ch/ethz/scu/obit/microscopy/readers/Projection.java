@@ -0,0 +1,190 @@
+package ch.ethz.scu.obit.microscopy.readers;
+
+import java.io.IOException;
+
+import loci.formats.FormatTools;
+
+/**
+ * Projection along Z of the planes of one channel and timepoint of a series.
+ *
+ * The pixels are stored in a primitive array whose type follows the pixel
+ * type of the projection:
+ *
+ * <ul>
+ * <li>MAX: the pixel type of the series (byte[], short[], int[], float[] or
+ * double[]; unsigned values are stored in the signed Java types);</li>
+ * <li>SUM: INT32 (int[]) for 8- and 16-bit series if the sum cannot
+ * overflow, DOUBLE (double[]) otherwise;</li>
+ * <li>MEAN: FLOAT (float[]) if the sum is INT32, DOUBLE (double[])
+ * otherwise, i.e. for INT32, UINT32, FLOAT and DOUBLE series and for 8- and
+ * 16-bit stacks whose sum could overflow.</li>
+ * </ul>
+ *
+ * @author Aaron Ponti
+ */
+public final class Projection {
+
+    /**
+     * Projection types.
+     */
+    public enum Type {
+        MAX, MEAN, SUM
+    }
+
+    /**
+     * Receives the projections of a series as soon as they are complete.
+     *
+     * @author Aaron Ponti
+     */
+    public interface Consumer {
+
+        /**
+         * Called once for every projection, in no particular order. The
+         * calls are made one at a time from the projection threads. The
+         * projection is not referenced anymore after the call returns.
+         *
+         * @param projection Complete projection.
+         * @throws IOException if the projection could not be handled; the
+         *                     remaining projections are then cancelled.
+         */
+        public void accept(Projection projection) throws IOException;
+    }
+
+    /* Private instance variables */
+    private final Type type;
+    private final int c;
+    private final int t;
+    private final int sizeX;
+    private final int sizeY;
+    private final int pixelType;
+    private final int planeCount;
+    private final Object pixels;
+
+    /**
+     * Constructor
+     *
+     * @param type       Projection type.
+     * @param c          Index of the channel.
+     * @param t          Index of the timepoint.
+     * @param sizeX      Width of the projection.
+     * @param sizeY      Height of the projection.
+     * @param pixelType  Bio-formats pixel type of the projection.
+     * @param planeCount Number of projected planes.
+     * @param pixels     Primitive array of pixels, row by row.
+     */
+    Projection(Type type, int c, int t, int sizeX, int sizeY, int pixelType,
+            int planeCount, Object pixels) {
+        this.type = type;
+        this.c = c;
+        this.t = t;
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.pixelType = pixelType;
+        this.planeCount = planeCount;
+        this.pixels = pixels;
+    }
+
+    /**
+     * Return the projection type.
+     *
+     * @return projection type.
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Return the channel index.
+     *
+     * @return channel index.
+     */
+    public int getC() {
+        return c;
+    }
+
+    /**
+     * Return the timepoint index.
+     *
+     * @return timepoint index.
+     */
+    public int getT() {
+        return t;
+    }
+
+    /**
+     * Return the width of the projection.
+     *
+     * @return width in pixels.
+     */
+    public int getSizeX() {
+        return sizeX;
+    }
+
+    /**
+     * Return the height of the projection.
+     *
+     * @return height in pixels.
+     */
+    public int getSizeY() {
+        return sizeY;
+    }
+
+    /**
+     * Return the bio-formats pixel type of the projection (e.g.
+     * FormatTools.UINT16).
+     *
+     * @return pixel type.
+     */
+    public int getPixelType() {
+        return pixelType;
+    }
+
+    /**
+     * Return the number of planes that were projected.
+     *
+     * @return number of planes.
+     */
+    public int getPlaneCount() {
+        return planeCount;
+    }
+
+    /**
+     * Return the pixels, row by row, as a primitive array (see the class
+     * documentation for its type).
+     *
+     * @return array of pixels.
+     */
+    public Object getPixels() {
+        return pixels;
+    }
+
+    /**
+     * Return the value of a pixel.
+     *
+     * @param index Index of the pixel (y * getSizeX() + x).
+     * @return pixel value.
+     */
+    public double getValue(int index) {
+        switch (pixelType) {
+        case FormatTools.INT8:
+            return ((byte[]) pixels)[index];
+        case FormatTools.UINT8:
+            return ((byte[]) pixels)[index] & 0xFF;
+        case FormatTools.INT16:
+            return ((short[]) pixels)[index];
+        case FormatTools.UINT16:
+            return ((short[]) pixels)[index] & 0xFFFF;
+        case FormatTools.INT32:
+            return ((int[]) pixels)[index];
+        case FormatTools.UINT32:
+            return ((int[]) pixels)[index] & 0xFFFFFFFFL;
+        case FormatTools.FLOAT:
+            return ((float[]) pixels)[index];
+        case FormatTools.DOUBLE:
+            return ((double[]) pixels)[index];
+        default:
+            return 0.0;
+        }
+    }
+
+}
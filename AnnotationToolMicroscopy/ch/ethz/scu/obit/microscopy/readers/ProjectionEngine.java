@@ -0,0 +1,670 @@
+package ch.ethz.scu.obit.microscopy.readers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.plugins.util.ImageProcessorReader;
+
+/**
+ * Projects the Z stacks of a series (one projection per channel and
+ * timepoint) without loading the stacks into memory.
+ *
+ * The planes of each stack are streamed tile by tile with a
+ * PlaneTileIterator and reduced into an accumulator of the size of one
+ * plane, typed to the pixel type of the series (see Projection). A worker
+ * therefore holds the accumulator and one tile; only the MEAN projection
+ * needs a second plane, to convert the sums into means at the end.
+ *
+ * The (channel, timepoint) stacks are projected in parallel. Each worker
+ * thread opens the file with its own reader from the BioFormatsReaderPool
+ * and projects stacks until none is left. Every finished projection is
+ * handed to a Projection.Consumer and dropped, so that a whole series can be
+ * projected with a bounded amount of memory; run() without consumer
+ * collects the projections and is meant for small selections only.
+ *
+ * @author Aaron Ponti
+ */
+final class ProjectionEngine {
+
+    /* Largest number of pixels that fit in a Java array */
+    private static final long MAX_PLANE_PIXELS = Integer.MAX_VALUE - 8;
+
+    /* Largest fraction of the heap that run() may collect projections in */
+    private static final int MAX_COLLECTED_HEAP_FRACTION = 4;
+
+    /* Private instance variables */
+    private final File file;
+    private final boolean groupFiles;
+    private final int series;
+    private final Projection.Type type;
+    private final List<int[]> stacks;
+    private final int sizeX;
+    private final int sizeY;
+
+    /**
+     * Constructor. The c and t indices select the stacks to project; -1
+     * stands for all channels or timepoints.
+     *
+     * @param file       File to read.
+     * @param groupFiles File grouping behavior of the readers.
+     * @param reader     Reader with the file open, used to query the
+     *                   dimensions of the series.
+     * @param series     Index of the series.
+     * @param type       Projection type.
+     * @param c          Index of the channel, or -1 for all.
+     * @param t          Index of the timepoint, or -1 for all.
+     * @throws FormatException if the planes are too large to be projected.
+     */
+    ProjectionEngine(File file, boolean groupFiles,
+            ImageProcessorReader reader, int series, Projection.Type type,
+            int c, int t) throws FormatException {
+
+        this.file = file;
+        this.groupFiles = groupFiles;
+        this.series = series;
+        this.type = type;
+
+        reader.setSeries(series);
+        sizeX = reader.getSizeX();
+        sizeY = reader.getSizeY();
+        if ((long) sizeX * sizeY > MAX_PLANE_PIXELS) {
+            throw new FormatException("Planes of " + sizeX + "x" + sizeY
+                    + " pixels are too large to be projected.");
+        }
+
+        // Stacks to project, by channel and then by timepoint
+        stacks = new ArrayList<int[]>();
+        for (int channel = 0; channel < reader.getSizeC(); channel++) {
+            for (int time = 0; time < reader.getSizeT(); time++) {
+                if ((c == -1 || c == channel) && (t == -1 || t == time)) {
+                    stacks.add(new int[] { channel, time });
+                }
+            }
+        }
+    }
+
+    /**
+     * Project the stacks and collect the projections. All projections are
+     * kept in memory: use run(Projection.Consumer) for large selections.
+     *
+     * @return projections, by channel and then by timepoint.
+     * @throws FormatException if the file could not be read, or if the
+     *                         projections would take too large a part of
+     *                         the heap.
+     * @throws IOException     if the file could not be read.
+     */
+    List<Projection> run() throws FormatException, IOException {
+
+        // Projections are at most 8 bytes per pixel (double[])
+        long bytes = 8L * sizeX * sizeY * stacks.size();
+        if (bytes > Runtime.getRuntime().maxMemory()
+                / MAX_COLLECTED_HEAP_FRACTION) {
+            throw new FormatException("The " + stacks.size()
+                    + " projections of series " + series + " are too large "
+                    + "to be kept in memory; select fewer channels or "
+                    + "timepoints, or use a consumer.");
+        }
+
+        final Projection[] projections = new Projection[stacks.size()];
+        run(new Projection.Consumer() {
+            @Override
+            public void accept(Projection projection) {
+                projections[indexOfStack(projection.getC(),
+                        projection.getT())] = projection;
+            }
+        });
+        return Arrays.asList(projections);
+    }
+
+    /**
+     * Project the stacks and hand every projection over to a consumer as
+     * soon as it is complete. The engine does not keep the projections: at
+     * any time, at most one projection per worker thread is in memory.
+     *
+     * @param consumer Consumer of the projections (see Projection.Consumer).
+     * @throws FormatException if the file could not be read.
+     * @throws IOException     if the file could not be read, or if the
+     *                         consumer failed.
+     */
+    void run(final Projection.Consumer consumer)
+            throws FormatException, IOException {
+
+        if (stacks.isEmpty()) {
+            return;
+        }
+
+        int nThreads = Math.max(1, Math.min(stacks.size(),
+                Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "Projection worker");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        final AtomicInteger nextStack = new AtomicInteger(0);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < nThreads; i++) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        work(nextStack, consumer);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof FormatException) {
+                throw (FormatException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while projecting " + file);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Return the index of the stack of a channel and timepoint.
+     *
+     * @param c Index of the channel.
+     * @param t Index of the timepoint.
+     * @return index of the stack in the list of stacks to project.
+     */
+    private int indexOfStack(int c, int t) {
+        for (int i = 0; i < stacks.size(); i++) {
+            if (stacks.get(i)[0] == c && stacks.get(i)[1] == t) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(
+                "No stack for channel " + c + " and timepoint " + t);
+    }
+
+    /**
+     * Project stacks with a pooled reader until all stacks are taken.
+     *
+     * @param nextStack Index of the next stack to project.
+     * @param consumer  Consumer of the projections.
+     * @throws FormatException if the file could not be read.
+     * @throws IOException     if the file could not be read, or if the
+     *                         consumer failed.
+     */
+    private void work(AtomicInteger nextStack, Projection.Consumer consumer)
+            throws FormatException, IOException {
+
+        ImageProcessorReader reader = BioFormatsReaderPool.acquire(groupFiles);
+        try {
+            reader.setId(file.getCanonicalPath());
+            reader.setSeries(series);
+
+            int i;
+            while ((i = nextStack.getAndIncrement()) < stacks.size()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new IOException(
+                            "Interrupted while projecting " + file);
+                }
+                int[] stack = stacks.get(i);
+                Projection projection = project(reader, stack[0], stack[1]);
+
+                // The consumer is called by one worker at a time
+                synchronized (consumer) {
+                    consumer.accept(projection);
+                }
+            }
+
+        } finally {
+            BioFormatsReaderPool.release(reader, groupFiles);
+        }
+    }
+
+    /**
+     * Project the Z stack of a channel and timepoint.
+     *
+     * @param reader Reader with the file open.
+     * @param c      Index of the channel.
+     * @param t      Index of the timepoint.
+     * @return projection.
+     * @throws FormatException if the file could not be read.
+     * @throws IOException     if the file could not be read.
+     */
+    private Projection project(ImageProcessorReader reader, int c, int t)
+            throws FormatException, IOException {
+
+        PlaneTileIterator tiles = new PlaneTileIterator(reader, series, -1,
+                c, t);
+        Accumulator accumulator;
+        try {
+            accumulator = createAccumulator(tiles.getPixelType(),
+                    tiles.getPlaneCount());
+            while (tiles.next()) {
+                ByteBuffer pixels = tiles.getPixels();
+                int w = tiles.getWidth();
+                for (int y = 0; y < tiles.getHeight(); y++) {
+                    accumulator.add(pixels, y * w,
+                            (tiles.getY() + y) * sizeX + tiles.getX(), w);
+                }
+            }
+        } finally {
+            tiles.close();
+        }
+
+        int nPlanes = tiles.getPlaneCount();
+        Object data = accumulator.getData();
+        int pixelType = accumulator.getPixelType();
+        if (type == Projection.Type.MEAN) {
+            data = toMean(data, nPlanes);
+            pixelType = data instanceof double[] ? FormatTools.DOUBLE
+                    : FormatTools.FLOAT;
+        }
+        return new Projection(type, c, t, sizeX, sizeY, pixelType, nPlanes,
+                data);
+    }
+
+    /**
+     * Create the accumulator for the projection type and pixel type.
+     *
+     * @param pixelType Bio-formats pixel type of the series.
+     * @param nPlanes   Number of planes to project.
+     * @return accumulator.
+     */
+    private Accumulator createAccumulator(int pixelType, int nPlanes) {
+
+        int n = sizeX * sizeY;
+        int bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
+        boolean signed = FormatTools.isSigned(pixelType);
+
+        if (type == Projection.Type.MAX) {
+            switch (pixelType) {
+            case FormatTools.FLOAT:
+                return new FloatMaxAccumulator(n);
+            case FormatTools.DOUBLE:
+                return new DoubleMaxAccumulator(n);
+            default:
+                switch (bytesPerPixel) {
+                case 1:
+                    return new ByteMaxAccumulator(n, pixelType, signed);
+                case 2:
+                    return new ShortMaxAccumulator(n, pixelType, signed);
+                default:
+                    return new IntMaxAccumulator(n, pixelType, signed);
+                }
+            }
+        }
+
+        // Sum (and mean): 8- and 16-bit stacks are summed into integers
+        // as long as the sum cannot overflow
+        if (bytesPerPixel <= 2 && pixelType != FormatTools.FLOAT
+                && pixelType != FormatTools.DOUBLE) {
+            long maxValue = 1L << (8 * bytesPerPixel - (signed ? 1 : 0));
+            if (maxValue * Math.max(1, nPlanes) <= Integer.MAX_VALUE) {
+                return new IntSumAccumulator(n, bytesPerPixel, signed);
+            }
+        }
+        return new DoubleSumAccumulator(n, pixelType, bytesPerPixel);
+    }
+
+    /**
+     * Divide the sums by the number of planes.
+     *
+     * @param sums    Sums (int[] or double[]).
+     * @param nPlanes Number of planes.
+     * @return means (float[], or double[] if the sums are double[]).
+     */
+    private static Object toMean(Object sums, int nPlanes) {
+        int divisor = Math.max(1, nPlanes);
+        if (sums instanceof int[]) {
+            int[] s = (int[]) sums;
+            float[] means = new float[s.length];
+            for (int i = 0; i < s.length; i++) {
+                means[i] = (float) s[i] / divisor;
+            }
+            return means;
+        }
+        double[] s = (double[]) sums;
+        for (int i = 0; i < s.length; i++) {
+            s[i] /= divisor;
+        }
+        return s;
+    }
+
+    /**
+     * Reduces the rows of the tiles into a plane.
+     */
+    private abstract static class Accumulator {
+
+        /**
+         * Add a row of pixels.
+         *
+         * @param pixels Pixels of the tile, in the byte order of the file.
+         * @param src    Index of the first pixel of the row in the tile.
+         * @param dst    Index of the first pixel of the row in the plane.
+         * @param n      Number of pixels in the row.
+         */
+        abstract void add(ByteBuffer pixels, int src, int dst, int n);
+
+        /**
+         * Return the accumulated plane.
+         *
+         * @return primitive array of pixels.
+         */
+        abstract Object getData();
+
+        /**
+         * Return the bio-formats pixel type of the accumulated plane.
+         *
+         * @return pixel type.
+         */
+        abstract int getPixelType();
+    }
+
+    /**
+     * Maximum of 8-bit pixels.
+     */
+    private static class ByteMaxAccumulator extends Accumulator {
+        private final byte[] data;
+        private final int pixelType;
+        private final boolean signed;
+
+        ByteMaxAccumulator(int n, int pixelType, boolean signed) {
+            this.data = new byte[n];
+            this.pixelType = pixelType;
+            this.signed = signed;
+            if (signed) {
+                Arrays.fill(data, Byte.MIN_VALUE);
+            }
+        }
+
+        @Override
+        void add(ByteBuffer pixels, int src, int dst, int n) {
+            for (int i = 0; i < n; i++) {
+                byte v = pixels.get(src + i);
+                byte m = data[dst + i];
+                if (signed ? v > m : (v & 0xFF) > (m & 0xFF)) {
+                    data[dst + i] = v;
+                }
+            }
+        }
+
+        @Override
+        Object getData() {
+            return data;
+        }
+
+        @Override
+        int getPixelType() {
+            return pixelType;
+        }
+    }
+
+    /**
+     * Maximum of 16-bit pixels.
+     */
+    private static class ShortMaxAccumulator extends Accumulator {
+        private final short[] data;
+        private final int pixelType;
+        private final boolean signed;
+
+        ShortMaxAccumulator(int n, int pixelType, boolean signed) {
+            this.data = new short[n];
+            this.pixelType = pixelType;
+            this.signed = signed;
+            if (signed) {
+                Arrays.fill(data, Short.MIN_VALUE);
+            }
+        }
+
+        @Override
+        void add(ByteBuffer pixels, int src, int dst, int n) {
+            for (int i = 0; i < n; i++) {
+                short v = pixels.getShort((src + i) * 2);
+                short m = data[dst + i];
+                if (signed ? v > m : (v & 0xFFFF) > (m & 0xFFFF)) {
+                    data[dst + i] = v;
+                }
+            }
+        }
+
+        @Override
+        Object getData() {
+            return data;
+        }
+
+        @Override
+        int getPixelType() {
+            return pixelType;
+        }
+    }
+
+    /**
+     * Maximum of 32-bit integer pixels.
+     */
+    private static class IntMaxAccumulator extends Accumulator {
+        private final int[] data;
+        private final int pixelType;
+        private final boolean signed;
+
+        IntMaxAccumulator(int n, int pixelType, boolean signed) {
+            this.data = new int[n];
+            this.pixelType = pixelType;
+            this.signed = signed;
+            if (signed) {
+                Arrays.fill(data, Integer.MIN_VALUE);
+            }
+        }
+
+        @Override
+        void add(ByteBuffer pixels, int src, int dst, int n) {
+            for (int i = 0; i < n; i++) {
+                int v = pixels.getInt((src + i) * 4);
+                int m = data[dst + i];
+                if (signed ? v > m
+                        : (v & 0xFFFFFFFFL) > (m & 0xFFFFFFFFL)) {
+                    data[dst + i] = v;
+                }
+            }
+        }
+
+        @Override
+        Object getData() {
+            return data;
+        }
+
+        @Override
+        int getPixelType() {
+            return pixelType;
+        }
+    }
+
+    /**
+     * Maximum of float pixels (NaNs are ignored).
+     */
+    private static class FloatMaxAccumulator extends Accumulator {
+        private final float[] data;
+
+        FloatMaxAccumulator(int n) {
+            this.data = new float[n];
+            Arrays.fill(data, Float.NEGATIVE_INFINITY);
+        }
+
+        @Override
+        void add(ByteBuffer pixels, int src, int dst, int n) {
+            for (int i = 0; i < n; i++) {
+                float v = pixels.getFloat((src + i) * 4);
+                if (v > data[dst + i]) {
+                    data[dst + i] = v;
+                }
+            }
+        }
+
+        @Override
+        Object getData() {
+            return data;
+        }
+
+        @Override
+        int getPixelType() {
+            return FormatTools.FLOAT;
+        }
+    }
+
+    /**
+     * Maximum of double pixels (NaNs are ignored).
+     */
+    private static class DoubleMaxAccumulator extends Accumulator {
+        private final double[] data;
+
+        DoubleMaxAccumulator(int n) {
+            this.data = new double[n];
+            Arrays.fill(data, Double.NEGATIVE_INFINITY);
+        }
+
+        @Override
+        void add(ByteBuffer pixels, int src, int dst, int n) {
+            for (int i = 0; i < n; i++) {
+                double v = pixels.getDouble((src + i) * 8);
+                if (v > data[dst + i]) {
+                    data[dst + i] = v;
+                }
+            }
+        }
+
+        @Override
+        Object getData() {
+            return data;
+        }
+
+        @Override
+        int getPixelType() {
+            return FormatTools.DOUBLE;
+        }
+    }
+
+    /**
+     * Sum of 8- and 16-bit pixels into integers.
+     */
+    private static class IntSumAccumulator extends Accumulator {
+        private final int[] data;
+        private final int bytesPerPixel;
+        private final boolean signed;
+
+        IntSumAccumulator(int n, int bytesPerPixel, boolean signed) {
+            this.data = new int[n];
+            this.bytesPerPixel = bytesPerPixel;
+            this.signed = signed;
+        }
+
+        @Override
+        void add(ByteBuffer pixels, int src, int dst, int n) {
+            if (bytesPerPixel == 1) {
+                for (int i = 0; i < n; i++) {
+                    byte v = pixels.get(src + i);
+                    data[dst + i] += signed ? v : v & 0xFF;
+                }
+            } else {
+                for (int i = 0; i < n; i++) {
+                    short v = pixels.getShort((src + i) * 2);
+                    data[dst + i] += signed ? v : v & 0xFFFF;
+                }
+            }
+        }
+
+        @Override
+        Object getData() {
+            return data;
+        }
+
+        @Override
+        int getPixelType() {
+            return FormatTools.INT32;
+        }
+    }
+
+    /**
+     * Sum of pixels of any type into doubles.
+     */
+    private static class DoubleSumAccumulator extends Accumulator {
+        private final double[] data;
+        private final int pixelType;
+        private final int bytesPerPixel;
+
+        DoubleSumAccumulator(int n, int pixelType, int bytesPerPixel) {
+            this.data = new double[n];
+            this.pixelType = pixelType;
+            this.bytesPerPixel = bytesPerPixel;
+        }
+
+        @Override
+        void add(ByteBuffer pixels, int src, int dst, int n) {
+            for (int i = 0; i < n; i++) {
+                int pos = (src + i) * bytesPerPixel;
+                switch (pixelType) {
+                case FormatTools.INT8:
+                    data[dst + i] += pixels.get(pos);
+                    break;
+                case FormatTools.UINT8:
+                    data[dst + i] += pixels.get(pos) & 0xFF;
+                    break;
+                case FormatTools.INT16:
+                    data[dst + i] += pixels.getShort(pos);
+                    break;
+                case FormatTools.UINT16:
+                    data[dst + i] += pixels.getShort(pos) & 0xFFFF;
+                    break;
+                case FormatTools.INT32:
+                    data[dst + i] += pixels.getInt(pos);
+                    break;
+                case FormatTools.UINT32:
+                    data[dst + i] += pixels.getInt(pos) & 0xFFFFFFFFL;
+                    break;
+                case FormatTools.FLOAT:
+                    data[dst + i] += pixels.getFloat(pos);
+                    break;
+                case FormatTools.DOUBLE:
+                    data[dst + i] += pixels.getDouble(pos);
+                    break;
+                default:
+                    break;
+                }
+            }
+        }
+
+        @Override
+        Object getData() {
+            return data;
+        }
+
+        @Override
+        int getPixelType() {
+            return FormatTools.DOUBLE;
+        }
+    }
+
+}
@@ -0,0 +1,465 @@
+package ch.ethz.scu.obit.microscopy.readers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Lightweight TIFF header parser.
+ *
+ * Composite readers open hundreds or thousands of single-plane TIFF files
+ * just to learn their size and data type. Initializing bio-formats for each
+ * of them is much slower than reading the few bytes that contain this
+ * information: the probe only reads the TIFF header and the chain of image
+ * file directories (IFDs), and decodes the tags of the first IFD. Classic
+ * TIFF and BigTIFF files are supported.
+ *
+ * The probe does not interpret format-specific metadata: callers should fall
+ * back to the BioFormatsWrapper for the files it cannot describe (e.g.
+ * MetaMorph stacks, see isMetaMorphStack()).
+ *
+ * @author Aaron Ponti
+ */
+public final class TIFFHeaderProbe {
+
+    /* TIFF tags */
+    private static final int TAG_IMAGE_WIDTH = 256;
+    private static final int TAG_IMAGE_LENGTH = 257;
+    private static final int TAG_BITS_PER_SAMPLE = 258;
+    private static final int TAG_SAMPLES_PER_PIXEL = 277;
+    private static final int TAG_SAMPLE_FORMAT = 339;
+    private static final int TAG_UIC1 = 33628;
+    private static final int TAG_UIC2 = 33629;
+
+    /* TIFF field types */
+    private static final int TYPE_BYTE = 1;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_LONG8 = 16;
+
+    /* Sample formats */
+    private static final int SAMPLE_FORMAT_INT = 2;
+    private static final int SAMPLE_FORMAT_FLOAT = 3;
+
+    /* Maximum number of IFDs that are followed */
+    private static final int MAX_PAGES = 1 << 20;
+
+    /* Private instance variables */
+    private int width = 0;
+    private int height = 0;
+    private int bitsPerSample = 1;
+    private int samplesPerPixel = 1;
+    private int sampleFormat = 1;
+    private int pageCount = 0;
+    private boolean littleEndian;
+    private boolean bigTIFF;
+    private boolean metaMorphStack = false;
+
+    /**
+     * Private constructor: use probe().
+     */
+    private TIFFHeaderProbe() {
+    }
+
+    /**
+     * Read the header and the IFD chain of a TIFF file.
+     *
+     * @param file TIFF file.
+     * @return the probe, or null if the file is not a (valid) TIFF file or
+     *         could not be read.
+     */
+    public static TIFFHeaderProbe probe(File file) {
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            TIFFHeaderProbe probe = new TIFFHeaderProbe();
+            if (!probe.read(raf.getChannel())) {
+                return null;
+            }
+            return probe;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the width of the first image.
+     *
+     * @return width in pixels.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Return the height of the first image.
+     *
+     * @return height in pixels.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Return the number of bits per sample of the first image.
+     *
+     * @return bit depth.
+     */
+    public int getBitsPerSample() {
+        return bitsPerSample;
+    }
+
+    /**
+     * Return the number of samples per pixel of the first image (e.g. 3 for
+     * RGB images).
+     *
+     * @return number of samples per pixel.
+     */
+    public int getSamplesPerPixel() {
+        return samplesPerPixel;
+    }
+
+    /**
+     * Return the number of images (IFDs) in the file.
+     *
+     * @return number of pages.
+     */
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * Return true if the file is little endian.
+     *
+     * @return true for little endian files, false for big endian files.
+     */
+    public boolean isLittleEndian() {
+        return littleEndian;
+    }
+
+    /**
+     * Return true if the file is a BigTIFF file.
+     *
+     * @return true for BigTIFF files, false for classic TIFF files.
+     */
+    public boolean isBigTIFF() {
+        return bigTIFF;
+    }
+
+    /**
+     * Return true if the first IFD contains the MetaMorph UIC tags. The
+     * planes of a MetaMorph stack (STK) are not stored as separate IFDs, so
+     * the page count does not reflect the number of planes.
+     *
+     * @return true for MetaMorph stacks, false otherwise.
+     */
+    public boolean isMetaMorphStack() {
+        return metaMorphStack;
+    }
+
+    /**
+     * Return true if the samples are signed (signed integer or floating
+     * point).
+     *
+     * @return true for signed samples, false otherwise.
+     */
+    public boolean isSigned() {
+        return sampleFormat == SAMPLE_FORMAT_INT
+                || sampleFormat == SAMPLE_FORMAT_FLOAT;
+    }
+
+    /**
+     * Return the data type with the same names that the BioFormatsWrapper
+     * uses. As in the BioFormatsWrapper, the type is given by the number of
+     * bytes per sample: e.g. 12-bit samples, that bio-formats stores in 16
+     * bits, are "uint16".
+     *
+     * @return string datatype, one of "uint8", "uint16", "float",
+     *         "unsupported".
+     */
+    public String getDataType() {
+        switch ((bitsPerSample + 7) / 8) {
+        case 1:
+            return "uint8";
+        case 2:
+            return "uint16";
+        case 4:
+            return "float";
+        default:
+            return "unsupported";
+        }
+    }
+
+    /**
+     * Read the header, the first IFD and count the IFDs.
+     *
+     * @param channel File channel.
+     * @return true if the file is a valid TIFF file, false otherwise.
+     * @throws IOException if the file could not be read.
+     */
+    private boolean read(FileChannel channel) throws IOException {
+
+        // Header: byte order, magic number and offset of the first IFD
+        ByteBuffer header = readAt(channel, 0, 16, ByteOrder.BIG_ENDIAN);
+        if (header == null || header.remaining() < 8) {
+            return false;
+        }
+        short byteOrder = header.getShort(0);
+        if (byteOrder == 0x4949) {
+            littleEndian = true;
+        } else if (byteOrder == 0x4D4D) {
+            littleEndian = false;
+        } else {
+            return false;
+        }
+        header.order(littleEndian ? ByteOrder.LITTLE_ENDIAN
+                : ByteOrder.BIG_ENDIAN);
+        int magic = header.getShort(2) & 0xFFFF;
+        long ifdOffset;
+        if (magic == 42) {
+            bigTIFF = false;
+            ifdOffset = header.getInt(4) & 0xFFFFFFFFL;
+        } else if (magic == 43) {
+            if (header.remaining() < 16 || header.getShort(4) != 8) {
+                return false;
+            }
+            bigTIFF = true;
+            ifdOffset = header.getLong(8);
+        } else {
+            return false;
+        }
+
+        // Follow the IFD chain
+        long fileSize = channel.size();
+        Set<Long> visited = new HashSet<Long>();
+        while (ifdOffset != 0 && pageCount < MAX_PAGES) {
+            if (ifdOffset < 0 || ifdOffset >= fileSize
+                    || !visited.add(ifdOffset)) {
+                // Corrupt or circular chain
+                break;
+            }
+            long next = readIFD(channel, ifdOffset, pageCount == 0);
+            if (next < 0) {
+                break;
+            }
+            pageCount++;
+            ifdOffset = next;
+        }
+
+        return pageCount > 0 && width > 0 && height > 0;
+    }
+
+    /**
+     * Read an IFD.
+     *
+     * @param channel    File channel.
+     * @param offset     Offset of the IFD in the file.
+     * @param decodeTags True to decode the tags of the IFD.
+     * @return offset of the next IFD (0 if this is the last one), or -1 if
+     *         the IFD could not be read.
+     * @throws IOException if the file could not be read.
+     */
+    private long readIFD(FileChannel channel, long offset,
+            boolean decodeTags) throws IOException {
+
+        int countSize = bigTIFF ? 8 : 2;
+        int entrySize = bigTIFF ? 20 : 12;
+        int offsetSize = bigTIFF ? 8 : 4;
+
+        ByteBuffer count = readAt(channel, offset, countSize, order());
+        if (count == null || count.remaining() < countSize) {
+            return -1;
+        }
+        long nEntries = bigTIFF ? count.getLong(0) : count.getShort(0) & 0xFFFF;
+        if (nEntries < 0 || nEntries > 0xFFFF) {
+            return -1;
+        }
+        long entriesOffset = offset + countSize;
+        long nextOffsetPosition = entriesOffset + nEntries * entrySize;
+
+        if (decodeTags) {
+            ByteBuffer entries = readAt(channel, entriesOffset,
+                    (int) nEntries * entrySize, order());
+            if (entries == null
+                    || entries.remaining() < nEntries * entrySize) {
+                return -1;
+            }
+            for (int i = 0; i < nEntries; i++) {
+                decodeEntry(channel, entries, i * entrySize);
+            }
+        }
+
+        ByteBuffer next = readAt(channel, nextOffsetPosition, offsetSize,
+                order());
+        if (next == null || next.remaining() < offsetSize) {
+            return -1;
+        }
+        return bigTIFF ? next.getLong(0) : next.getInt(0) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Decode an IFD entry and store the tags the probe is interested in.
+     *
+     * @param channel File channel.
+     * @param entries Buffer with the IFD entries.
+     * @param pos     Position of the entry in the buffer.
+     * @throws IOException if the file could not be read.
+     */
+    private void decodeEntry(FileChannel channel, ByteBuffer entries, int pos)
+            throws IOException {
+
+        int tag = entries.getShort(pos) & 0xFFFF;
+        int type = entries.getShort(pos + 2) & 0xFFFF;
+        int valuePos = pos + (bigTIFF ? 12 : 8);
+
+        switch (tag) {
+        case TAG_IMAGE_WIDTH:
+            width = (int) readValue(entries, valuePos, type);
+            break;
+        case TAG_IMAGE_LENGTH:
+            height = (int) readValue(entries, valuePos, type);
+            break;
+        case TAG_BITS_PER_SAMPLE:
+            bitsPerSample = (int) readFirstValue(channel, entries, pos, type);
+            break;
+        case TAG_SAMPLES_PER_PIXEL:
+            samplesPerPixel = (int) readValue(entries, valuePos, type);
+            break;
+        case TAG_SAMPLE_FORMAT:
+            sampleFormat = (int) readFirstValue(channel, entries, pos, type);
+            break;
+        case TAG_UIC1:
+        case TAG_UIC2:
+            metaMorphStack = true;
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Read the first value of a (possibly multi-valued) entry: values that
+     * do not fit into the entry are stored elsewhere in the file.
+     *
+     * @param channel File channel.
+     * @param entries Buffer with the IFD entries.
+     * @param pos     Position of the entry in the buffer.
+     * @param type    Field type of the entry.
+     * @return first value, or 0 if it could not be read.
+     * @throws IOException if the file could not be read.
+     */
+    private long readFirstValue(FileChannel channel, ByteBuffer entries,
+            int pos, int type) throws IOException {
+
+        long count = bigTIFF ? entries.getLong(pos + 4)
+                : entries.getInt(pos + 4) & 0xFFFFFFFFL;
+        int valuePos = pos + (bigTIFF ? 12 : 8);
+        int inlineSize = bigTIFF ? 8 : 4;
+        if (count * typeSize(type) <= inlineSize) {
+            return readValue(entries, valuePos, type);
+        }
+        long valueOffset = bigTIFF ? entries.getLong(valuePos)
+                : entries.getInt(valuePos) & 0xFFFFFFFFL;
+        ByteBuffer value = readAt(channel, valueOffset, typeSize(type),
+                order());
+        if (value == null || value.remaining() < typeSize(type)) {
+            return 0;
+        }
+        return readValue(value, 0, type);
+    }
+
+    /**
+     * Read an integer value of given type.
+     *
+     * @param buffer Buffer.
+     * @param pos    Position of the value in the buffer.
+     * @param type   Field type.
+     * @return value, or 0 for unsupported types.
+     */
+    private static long readValue(ByteBuffer buffer, int pos, int type) {
+        switch (type) {
+        case TYPE_BYTE:
+            return buffer.get(pos) & 0xFF;
+        case TYPE_SHORT:
+            return buffer.getShort(pos) & 0xFFFF;
+        case TYPE_LONG:
+            return buffer.getInt(pos) & 0xFFFFFFFFL;
+        case TYPE_LONG8:
+            return buffer.getLong(pos);
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * Return the size in bytes of a field type.
+     *
+     * @param type Field type.
+     * @return size in bytes.
+     */
+    private static int typeSize(int type) {
+        switch (type) {
+        case TYPE_SHORT:
+            return 2;
+        case TYPE_LONG:
+            return 4;
+        case TYPE_LONG8:
+            return 8;
+        default:
+            return 1;
+        }
+    }
+
+    /**
+     * Return the byte order of the file.
+     *
+     * @return byte order.
+     */
+    private ByteOrder order() {
+        return littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+    }
+
+    /**
+     * Read a block of bytes from the file.
+     *
+     * @param channel File channel.
+     * @param offset  Offset in the file.
+     * @param length  Number of bytes to read.
+     * @param order   Byte order of the returned buffer.
+     * @return buffer with the bytes read (possibly fewer than requested at
+     *         the end of the file), or null if the offset is past the end
+     *         of the file.
+     * @throws IOException if the file could not be read.
+     */
+    private static ByteBuffer readAt(FileChannel channel, long offset,
+            int length, ByteOrder order) throws IOException {
+        if (offset >= channel.size()) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, offset + buffer.position());
+            if (n < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        buffer.order(order);
+        return buffer;
+    }
+
+}
@@ -0,0 +1,303 @@
+package ch.ethz.scu.obit.microscopy.readers;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import loci.formats.CoreMetadata;
+import loci.formats.FormatException;
+import loci.plugins.util.ImageProcessorReader;
+
+/**
+ * Creates a downsampled RGB thumbnail of a series without loading its planes
+ * into memory.
+ *
+ * The central plane (first timepoint) of each channel is read tile by tile
+ * with a PlaneTileIterator. Each thumbnail pixel is the mean of the
+ * image pixels it covers; the means are accumulated in buffers of the size
+ * of the thumbnail, so the memory needed does not depend on the size of the
+ * image. If the series is stored as a pyramid, the smallest resolution that
+ * is still at least as large as the thumbnail is read.
+ *
+ * The channels are read in parallel, each with its own reader from the
+ * BioFormatsReaderPool. The intensities of each channel are scaled between
+ * their 0.5th and 99.5th percentiles, and the channels are composited
+ * additively with their colors.
+ *
+ * @author Aaron Ponti
+ */
+final class ThumbnailGenerator {
+
+    /* Percentiles used to scale the intensities of each channel */
+    private static final double LOW_PERCENTILE = 0.005;
+    private static final double HIGH_PERCENTILE = 0.995;
+
+    /* Private instance variables */
+    private final File file;
+    private final boolean groupFiles;
+    private final int series;
+    private final int maxSize;
+    private final double[][] colors;
+
+    /**
+     * Constructor
+     *
+     * @param file       File to read.
+     * @param groupFiles File grouping behavior of the readers.
+     * @param series     Index of the series.
+     * @param maxSize    Maximum width and height of the thumbnail.
+     * @param colors     Colors [R, G, B, A] of the channels (0 .. 255); the
+     *                   number of colors is the number of channels.
+     */
+    ThumbnailGenerator(File file, boolean groupFiles, int series, int maxSize,
+            double[][] colors) {
+        this.file = file;
+        this.groupFiles = groupFiles;
+        this.series = series;
+        this.maxSize = maxSize;
+        this.colors = colors;
+    }
+
+    /**
+     * Create the thumbnail.
+     *
+     * @return RGB thumbnail.
+     * @throws FormatException if the file could not be read.
+     * @throws IOException     if the file could not be read.
+     */
+    BufferedImage create() throws FormatException, IOException {
+
+        int nChannels = colors.length;
+        int nThreads = Math.max(1, Math.min(nChannels,
+                Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "Thumbnail reader");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        // Read the channels
+        List<ChannelThumbnail> channels = new ArrayList<ChannelThumbnail>();
+        try {
+            List<Future<ChannelThumbnail>> results =
+                    new ArrayList<Future<ChannelThumbnail>>();
+            for (int c = 0; c < nChannels; c++) {
+                final int channel = c;
+                results.add(executor.submit(new Callable<ChannelThumbnail>() {
+                    @Override
+                    public ChannelThumbnail call() throws Exception {
+                        return readChannel(channel);
+                    }
+                }));
+            }
+            for (Future<ChannelThumbnail> result : results) {
+                channels.add(result.get());
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof FormatException) {
+                throw (FormatException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading " + file);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return composite(channels);
+    }
+
+    /**
+     * Read a channel and downsample it.
+     *
+     * @param channel Index of the channel.
+     * @return downsampled channel.
+     * @throws FormatException if the file could not be read.
+     * @throws IOException     if the file could not be read.
+     */
+    private ChannelThumbnail readChannel(int channel)
+            throws FormatException, IOException {
+
+        ImageProcessorReader reader = BioFormatsReaderPool.acquire(groupFiles);
+        try {
+            reader.setId(file.getCanonicalPath());
+            reader.setSeries(series);
+
+            // Size of the thumbnail
+            int sizeX = reader.getSizeX();
+            int sizeY = reader.getSizeY();
+            double scale = Math.max(1.0,
+                    (double) Math.max(sizeX, sizeY) / maxSize);
+            int width = Math.max(1, (int) Math.round(sizeX / scale));
+            int height = Math.max(1, (int) Math.round(sizeY / scale));
+
+            // Pick the smallest pyramid level that is not smaller than the
+            // thumbnail (the resolutions follow their series)
+            List<CoreMetadata> core = reader.getCoreMetadataList();
+            int level = series;
+            if (core != null && series < core.size()) {
+                int nLevels = core.get(series).resolutionCount;
+                for (int r = 1; r < nLevels && series + r < core.size(); r++) {
+                    CoreMetadata m = core.get(series + r);
+                    if (m.sizeX < width || m.sizeY < height) {
+                        break;
+                    }
+                    level = series + r;
+                }
+            }
+            reader.setSeries(level);
+
+            ChannelThumbnail thumbnail = new ChannelThumbnail(width, height);
+            PlaneTileIterator tiles = new PlaneTileIterator(reader, level,
+                    reader.getSizeZ() / 2, channel, 0);
+            try {
+                accumulate(tiles, thumbnail);
+            } finally {
+                tiles.close();
+            }
+            return thumbnail;
+
+        } finally {
+            BioFormatsReaderPool.release(reader, groupFiles);
+        }
+    }
+
+    /**
+     * Read a plane tile by tile and add its pixels to the thumbnail.
+     *
+     * @param tiles     Iterator over the tiles of the plane.
+     * @param thumbnail Thumbnail to accumulate into.
+     * @throws FormatException if the file could not be read.
+     * @throws IOException     if the file could not be read.
+     */
+    private static void accumulate(PlaneTileIterator tiles,
+            ChannelThumbnail thumbnail) throws FormatException, IOException {
+
+        int sizeX = tiles.getSizeX();
+        int sizeY = tiles.getSizeY();
+
+        // Map the image columns to thumbnail columns once
+        int[] column = new int[sizeX];
+        for (int x = 0; x < sizeX; x++) {
+            column[x] = (int) ((long) x * thumbnail.width / sizeX);
+        }
+
+        while (tiles.next()) {
+            int x0 = tiles.getX();
+            int y0 = tiles.getY();
+            int w = tiles.getWidth();
+            int h = tiles.getHeight();
+            for (int y = 0; y < h; y++) {
+                int row = (int) ((long) (y0 + y) * thumbnail.height / sizeY)
+                        * thumbnail.width;
+                for (int x = 0; x < w; x++) {
+                    int i = row + column[x0 + x];
+                    thumbnail.sums[i] += tiles.getValue(y * w + x);
+                    thumbnail.counts[i]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Scale the channels and composite them.
+     *
+     * @param channels Downsampled channels.
+     * @return RGB thumbnail.
+     */
+    private BufferedImage composite(List<ChannelThumbnail> channels) {
+
+        ChannelThumbnail first = channels.get(0);
+        int n = first.width * first.height;
+        double[] red = new double[n];
+        double[] green = new double[n];
+        double[] blue = new double[n];
+
+        for (int c = 0; c < channels.size(); c++) {
+            double[] values = channels.get(c).getMeans();
+            double[] sorted = values.clone();
+            Arrays.sort(sorted);
+            double low = sorted[(int) (LOW_PERCENTILE * (n - 1))];
+            double high = sorted[(int) Math.ceil(HIGH_PERCENTILE * (n - 1))];
+            double range = high > low ? high - low : 1.0;
+            for (int i = 0; i < n; i++) {
+                double v = Math.min(1.0, Math.max(0.0,
+                        (values[i] - low) / range));
+                red[i] += v * colors[c][0];
+                green[i] += v * colors[c][1];
+                blue[i] += v * colors[c][2];
+            }
+        }
+
+        BufferedImage image = new BufferedImage(first.width, first.height,
+                BufferedImage.TYPE_INT_RGB);
+        int[] rgb = new int[n];
+        for (int i = 0; i < n; i++) {
+            rgb[i] = (clamp(red[i]) << 16) | (clamp(green[i]) << 8)
+                    | clamp(blue[i]);
+        }
+        image.setRGB(0, 0, first.width, first.height, rgb, 0, first.width);
+        return image;
+    }
+
+    /**
+     * Round and clamp a color component to 0 .. 255.
+     *
+     * @param value Color component.
+     * @return clamped component.
+     */
+    private static int clamp(double value) {
+        return (int) Math.min(255, Math.max(0, Math.round(value)));
+    }
+
+    /**
+     * Downsampled channel: sums and counts of the pixels that fall into each
+     * thumbnail pixel.
+     */
+    private static class ChannelThumbnail {
+        final int width;
+        final int height;
+        final double[] sums;
+        final int[] counts;
+
+        ChannelThumbnail(int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.sums = new double[width * height];
+            this.counts = new int[width * height];
+        }
+
+        /**
+         * Return the mean of the pixels of each thumbnail pixel.
+         *
+         * @return means.
+         */
+        double[] getMeans() {
+            double[] means = new double[sums.length];
+            for (int i = 0; i < sums.length; i++) {
+                means[i] = counts[i] == 0 ? 0.0 : sums[i] / counts[i];
+            }
+            return means;
+        }
+    }
+
+}
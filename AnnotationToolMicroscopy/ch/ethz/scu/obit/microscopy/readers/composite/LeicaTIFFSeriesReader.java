@@ -21,6 +21,7 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
+import ch.ethz.scu.obit.microscopy.readers.TIFFHeaderProbe;
 import loci.formats.ChannelSeparator;
 import loci.formats.FormatException;
 import loci.plugins.util.ImageProcessorReader;
@@ -225,47 +226,60 @@ public class LeicaTIFFSeriesReader extends AbstractCompositeMicroscopyReader {
 					// And add it to the arribute map
 					attr.put(key, metadata);
 
-					// Read the file
-					if (reader == null) {
-
-						// Initialize the reader
-						reader = new ImageProcessorReader(
-								new ChannelSeparator(
-										LociPrefs.makeImageReader()));
-					}
-
-					// Try to open the image file
-					try {
-						reader.setId(file.getCanonicalPath());
-					} catch (FormatException e) {
-						reader = null;
-					} catch (IOException e) {
-						reader = null;
-					}
-
 					// Store width and height
 					int width = 0;
 					int heigth = 0;
 					String datatype = "Unknown";
-					if (reader != null) {
 
-						// Get width
-						width = reader.getSizeX();
+					// Read the size and data type from the TIFF header and only
+					// fall back to bio-formats if the header cannot be parsed
+					TIFFHeaderProbe probe = TIFFHeaderProbe.probe(file);
+					if (probe != null) {
+
+						width = probe.getWidth();
+						heigth = probe.getHeight();
+						datatype = probe.getDataType();
+
+					} else {
 
-						// Get heigth
-						heigth = reader.getSizeY();
+						// Read the file
+						if (reader == null) {
 
-						// Get datatype
-						datatype = getDataType();
+							// Initialize the reader
+							reader = new ImageProcessorReader(
+									new ChannelSeparator(
+											LociPrefs.makeImageReader()));
+						}
 
-						// Now close the file
+						// Try to open the image file
 						try {
-							reader.close();
+							reader.setId(file.getCanonicalPath());
+						} catch (FormatException e) {
+							reader = null;
 						} catch (IOException e) {
-							// Report
-							System.err.println("Could not close file!");
+							reader = null;
 						}
 
+						if (reader != null) {
+
+							// Get width
+							width = reader.getSizeX();
+
+							// Get heigth
+							heigth = reader.getSizeY();
+
+							// Get datatype
+							datatype = getDataType();
+
+							// Now close the file
+							try {
+								reader.close();
+							} catch (IOException e) {
+								// Report
+								System.err.println("Could not close file!");
+							}
+
+						}
 					}
 
 					// Store the extracted values 
@@ -7,11 +7,19 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 //import java.util.regex.Pattern;
 import ch.ethz.scu.obit.microscopy.readers.BioFormatsWrapper;
+import ch.ethz.scu.obit.microscopy.readers.TIFFHeaderProbe;
 
 
 /**
@@ -32,12 +40,19 @@ public class VisitronNDReader extends AbstractCompositeMicroscopyReader {
 
     private static Pattern FILENAME_PATTERN = Pattern.compile(FILENAME_REGEX, Pattern.CASE_INSENSITIVE);
 
+    /* Maximum number of files that are read concurrently */
+    private final static int MAX_READER_THREADS = 8;
+
     /* Protected instance variables */
     private File folder;
     private String basename = "";
     private boolean isValid = false;
 
     BioFormatsWrapper bioformatsWrapperForNDFile =  null;
+    private ExecutorService executor = null;
+    private int readerThreads = Math.max(1, Math.min(
+            Runtime.getRuntime().availableProcessors(), MAX_READER_THREADS));
+    private boolean reuseTemplateAttributes = true;
     Map<String, HashMap<String, String>> combinedAttr;
     List<Integer> combinedSeriesIndices;
 
@@ -54,6 +69,30 @@ public class VisitronNDReader extends AbstractCompositeMicroscopyReader {
         combinedSeriesIndices = new ArrayList<Integer>();
     }
 
+    /**
+     * Set the number of threads that read the files (by default, the number
+     * of processors up to 8). Must be called before parse().
+     * @param readerThreads Number of threads (at least 1).
+     */
+    public void setReaderThreads(int readerThreads) {
+        if (readerThreads < 1) {
+            throw new IllegalArgumentException(
+                    "At least one reader thread is required.");
+        }
+        this.readerThreads = readerThreads;
+    }
+
+    /**
+     * Enable or disable the reuse of the attributes of the first file of a
+     * file name template for the following single-plane files of the
+     * template (enabled by default; see readFileAttributes()). If disabled,
+     * all files are parsed by bio-formats. Must be called before parse().
+     * @param reuseTemplateAttributes true to reuse the template attributes.
+     */
+    public void setReuseTemplateAttributes(boolean reuseTemplateAttributes) {
+        this.reuseTemplateAttributes = reuseTemplateAttributes;
+    }
+
     /**
      * Return true if the reader can parse the passed folder
      * @param folder Folder to be parsed.
@@ -276,30 +315,47 @@ public class VisitronNDReader extends AbstractCompositeMicroscopyReader {
         // Reset the highestKnownSeriesNumber counter
         int minAllowedSeriesNum = 0;
 
-        // Process the files associated to the ND file
-        if (! buildSeriesFromFileList(filesAssociatedToNDFile, minAllowedSeriesNum)) {
-            // The status and the error message have been set by buildSeriesFromFiles()
-            return false;
-        }
+        // Read the files on a bounded pool of threads
+        executor = createExecutor();
+        try {
 
-        // Find the higest series number used
-        int mx = -1;
-        for (Integer s : combinedSeriesIndices) {
-            if (s > mx) {
-                mx = s;
-            }
-        }
-        minAllowedSeriesNum = mx + 1;
-
-        // The additional files are added as independent series.
-        // The basename obtained from the ND file can no longer be used.
-        for (File file : additionalFiles) {
-            // Create a list with one file
-            List<File> currentFile = new ArrayList<File>(1);
-            currentFile.add(file);
-            if (! buildSeriesFromFileList(currentFile, minAllowedSeriesNum)) {
+            // Start reading the additional files: they are read while the
+            // files associated to the ND file are processed
+            List<Future<Map<String, HashMap<String, String>>>> additionalResults =
+                    readFileAttributes(additionalFiles, null);
+
+            // Process the files associated to the ND file
+            if (! buildSeriesFromFileList(filesAssociatedToNDFile, null, minAllowedSeriesNum)) {
+                // The status and the error message have been set by buildSeriesFromFiles()
                 return false;
             }
+
+            // Find the higest series number used
+            int mx = -1;
+            for (Integer s : combinedSeriesIndices) {
+                if (s > mx) {
+                    mx = s;
+                }
+            }
+            minAllowedSeriesNum = mx + 1;
+
+            // The additional files are added as independent series.
+            // The basename obtained from the ND file can no longer be used.
+            for (int i = 0; i < additionalFiles.size(); i++) {
+                // Create a list with one file
+                List<File> currentFile = new ArrayList<File>(1);
+                currentFile.add(additionalFiles.get(i));
+                if (! buildSeriesFromFileList(currentFile, additionalResults.subList(i, i + 1),
+                        minAllowedSeriesNum)) {
+                    return false;
+                }
+            }
+
+        } finally {
+
+            // Stop the reads that are not needed any longer
+            executor.shutdownNow();
+            executor = null;
         }
 
         // Mark success
@@ -395,10 +451,14 @@ public class VisitronNDReader extends AbstractCompositeMicroscopyReader {
     /**
      * Build Series objects from the list of files.
      * @param listOfFiles List of files to process
+     * @param results Attributes of the files if they are being read already, or null
+     *        to read them here (see readFileAttributes()).
      * @return true if the parsing of the files into series was successful, false otherwise.
      * @throws Exception
      */
-    private Boolean buildSeriesFromFileList(List<File> filesAssociatedToNDFile, int minAllowedSeriesNum) throws Exception {
+    private Boolean buildSeriesFromFileList(List<File> filesAssociatedToNDFile,
+            List<Future<Map<String, HashMap<String, String>>>> results,
+            int minAllowedSeriesNum) throws Exception {
 
         // Keep track of the channels
         // Create a map of channel names and numbers
@@ -419,13 +479,16 @@ public class VisitronNDReader extends AbstractCompositeMicroscopyReader {
         // Create a map of series dimensions
         Map<Integer, Integer[]> seriesDimensions = new HashMap<Integer, Integer[]>();
 
+        // Information extracted from the file names
+        List<FileNameInfo> fileNameInfos = new ArrayList<FileNameInfo>();
+
         // Consider only the part of the file name without the basename
         int startIndex = 0; // basename.length();
 
         // Keep track of the last file extension seen
         String lastFileExtensionSeen = "";
 
-        // Process all files
+        // Parse all file names
         for (int i = 0; i < filesAssociatedToNDFile.size(); i++) {
 
             int seriesNum = 0;
@@ -514,17 +577,44 @@ public class VisitronNDReader extends AbstractCompositeMicroscopyReader {
 
             }
 
-            // Open the file
-            BioFormatsWrapper reader = new BioFormatsWrapper(filesAssociatedToNDFile.get(i), false);
+            // Store the information
+            FileNameInfo info = new FileNameInfo();
+            info.seriesNum = seriesNum;
+            info.channelNameFromFileName = channelNameFromFileName;
+            info.channelNumberFromFileName = channelNumberFromFileName;
+            info.timepoint = timepoint;
+            info.fileExtension = currentFileExtension;
+            info.basename = currentBasename;
+            fileNameInfos.add(info);
+        }
+
+        // Read the attributes of all files concurrently
+        if (results == null) {
+            List<String> templates = null;
+            if (reuseTemplateAttributes) {
+                templates = new ArrayList<String>(fileNameInfos.size());
+                for (FileNameInfo info : fileNameInfos) {
+                    templates.add(info.seriesNum + "_" + info.channelNumberFromFileName + "_" +
+                            info.channelNameFromFileName + info.fileExtension.toLowerCase());
+                }
+            }
+            results = readFileAttributes(filesAssociatedToNDFile, templates);
+        }
 
-            // Parse the file
-            reader.parse();
+        // Process all files in their original order
+        for (int i = 0; i < filesAssociatedToNDFile.size(); i++) {
 
-            // Close the file
-            reader.close();
+            // Get the information from the file name
+            FileNameInfo info = fileNameInfos.get(i);
+            int seriesNum = info.seriesNum;
+            String channelNameFromFileName = info.channelNameFromFileName;
+            int channelNumberFromFileName = info.channelNumberFromFileName;
+            int timepoint = info.timepoint;
+            String currentFileExtension = info.fileExtension;
+            String currentBasename = info.basename;
 
-            // Get the attributes
-            Map<String, HashMap<String, String>> currAttr = reader.getAttributes();
+            // Get the attributes (wait for them if needed)
+            Map<String, HashMap<String, String>> currAttr = getResult(results, i);
 
             // Get the X, Y, Z size from the file
             int seriesSizeX = Integer.parseInt(currAttr.get("series_0").get("sizeX"));
@@ -536,6 +626,7 @@ public class VisitronNDReader extends AbstractCompositeMicroscopyReader {
             int seriesSizeC = Integer.parseInt(currAttr.get("series_0").get("sizeC"));
 
             if (seriesSizeC != 1) {
+                cancel(results);
                 isValid = false;
                 errorMessage = "Only one channel expected in a file associated to an ND file!";
                 return isValid;
@@ -714,6 +805,174 @@ public class VisitronNDReader extends AbstractCompositeMicroscopyReader {
         return true;
     }
 
+    /**
+     * Create the bounded pool of threads that read the files.
+     * @return executor.
+     */
+    private ExecutorService createExecutor() {
+        return Executors.newFixedThreadPool(readerThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Visitron ND file reader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Start reading the attributes of the files on the pool of threads.
+     *
+     * Only the first file of each file name template (same series, channel and
+     * extension, different timepoint) is always parsed by bio-formats. The
+     * following files of the template reuse its attributes if the TIFF header
+     * shows that both are single-plane files with the same size and data type:
+     * this avoids initializing bio-formats for each of the (possibly thousands
+     * of) timepoints. All other files (e.g. STK stacks or multi-page TIFF
+     * files) are parsed by bio-formats.
+     *
+     * The tasks are started in the order in which they are submitted, so a
+     * task that waits for the first file of its template never waits for a
+     * task that was not started yet.
+     *
+     * @param files Files to read.
+     * @param templates File name templates of the files, or null to parse all
+     *        files with bio-formats.
+     * @return the attributes of the files, in the same order.
+     */
+    private List<Future<Map<String, HashMap<String, String>>>> readFileAttributes(
+            List<File> files, List<String> templates) {
+
+        // Map of file name templates to the first file with the template
+        Map<String, Future<Map<String, HashMap<String, String>>>> templateFiles =
+                new HashMap<String, Future<Map<String, HashMap<String, String>>>>();
+
+        List<Future<Map<String, HashMap<String, String>>>> results =
+                new ArrayList<Future<Map<String, HashMap<String, String>>>>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            final File file = files.get(i);
+            String template = templates == null ? null : templates.get(i);
+            final Future<Map<String, HashMap<String, String>>> templateResult =
+                    template == null ? null : templateFiles.get(template);
+            Future<Map<String, HashMap<String, String>>> result = executor.submit(
+                    new Callable<Map<String, HashMap<String, String>>>() {
+                        @Override
+                        public Map<String, HashMap<String, String>> call() throws Exception {
+                            return getFileAttributes(file, templateResult);
+                        }
+                    });
+            if (template != null && templateResult == null) {
+                templateFiles.put(template, result);
+            }
+            results.add(result);
+        }
+
+        return results;
+    }
+
+    /**
+     * Return the attributes of a file associated to the ND file.
+     *
+     * @param file File to process.
+     * @param templateResult Attributes of the first file with the same file name
+     *        template, or null if this is the first file.
+     * @return attributes of the file.
+     * @throws InterruptedException if the thread was interrupted while waiting
+     *         for the template attributes.
+     */
+    private static Map<String, HashMap<String, String>> getFileAttributes(File file,
+            Future<Map<String, HashMap<String, String>>> templateResult)
+                    throws InterruptedException {
+
+        // Read the TIFF header
+        TIFFHeaderProbe probe = TIFFHeaderProbe.probe(file);
+        boolean isSinglePlane = probe != null &&
+                probe.getPageCount() == 1 &&
+                probe.getSamplesPerPixel() == 1 &&
+                !probe.isMetaMorphStack();
+
+        // Reuse the attributes of the template if the file matches them
+        if (isSinglePlane && templateResult != null) {
+            Map<String, HashMap<String, String>> templateAttr;
+            try {
+                templateAttr = templateResult.get();
+            } catch (ExecutionException e) {
+                templateAttr = null;
+            } catch (CancellationException e) {
+                templateAttr = null;
+            }
+            HashMap<String, String> seriesAttr = templateAttr == null ? null : templateAttr.get("series_0");
+            if (templateAttr != null && templateAttr.size() == 1 && seriesAttr != null &&
+                    "1".equals(seriesAttr.get("sizeZ")) &&
+                    "1".equals(seriesAttr.get("sizeC")) &&
+                    "1".equals(seriesAttr.get("sizeT")) &&
+                    seriesAttr.get("sizeX").equals(Integer.toString(probe.getWidth())) &&
+                    seriesAttr.get("sizeY").equals(Integer.toString(probe.getHeight())) &&
+                    seriesAttr.get("datatype").equals(probe.getDataType()) &&
+                    seriesAttr.get("isLittleEndian").equals(Boolean.toString(probe.isLittleEndian()))) {
+                return templateAttr;
+            }
+        }
+
+        // Open the file
+        BioFormatsWrapper reader = new BioFormatsWrapper(file, false);
+
+        // Parse the file
+        reader.parse();
+
+        // Close the file
+        reader.close();
+
+        // Get the attributes
+        return reader.getAttributes();
+    }
+
+    /**
+     * Wait for the attributes of a file and return a copy of them (the
+     * attributes of a file can be shared with the other files of its template).
+     *
+     * If reading the file failed, all other reads are cancelled and the
+     * exception is rethrown.
+     *
+     * @param results Attributes of the files.
+     * @param index Index of the file.
+     * @return a copy of the attributes of the file.
+     * @throws Exception if the file could not be read.
+     */
+    private static Map<String, HashMap<String, String>> getResult(
+            List<Future<Map<String, HashMap<String, String>>>> results, int index) throws Exception {
+
+        Map<String, HashMap<String, String>> attr;
+        try {
+            attr = results.get(index).get();
+        } catch (ExecutionException e) {
+            cancel(results);
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        } catch (InterruptedException e) {
+            cancel(results);
+            throw e;
+        }
+
+        Map<String, HashMap<String, String>> copy = new HashMap<String, HashMap<String, String>>();
+        for (String key : attr.keySet()) {
+            copy.put(key, new HashMap<String, String>(attr.get(key)));
+        }
+        return copy;
+    }
+
+    /**
+     * Cancel the reads that did not complete yet.
+     * @param results Attributes of the files.
+     */
+    private static void cancel(List<Future<Map<String, HashMap<String, String>>>> results) {
+        for (Future<Map<String, HashMap<String, String>>> result : results) {
+            result.cancel(true);
+        }
+    }
+
     private HashMap<String, String> updateSeriesMetadata(HashMap<String, String> seriesAttr,
             Map<String, Integer> channels, List<Integer> timepoints, List<String> fileList, String basename) {
 
@@ -761,4 +1020,16 @@ public class VisitronNDReader extends AbstractCompositeMicroscopyReader {
 
         return newSeriesAttr;
     }
+
+    /**
+     * Information extracted from the name of a file associated to the ND file.
+     */
+    private static class FileNameInfo {
+        int seriesNum;
+        String channelNameFromFileName;
+        int channelNumberFromFileName;
+        int timepoint;
+        String fileExtension;
+        String basename;
+    }
 }
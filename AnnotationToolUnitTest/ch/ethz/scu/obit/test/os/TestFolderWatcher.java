@@ -0,0 +1,108 @@
+package ch.ethz.scu.obit.test.os;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+
+import ch.ethz.scu.obit.common.utils.FolderWatcher;
+
+/**
+ * Test FolderWatcher
+ * @author Aaron Ponti
+ *
+ */
+public class TestFolderWatcher {
+
+	/**
+	 * Create a file in a (new) subfolder of a watched folder and wait for
+	 * the change to be reported.
+	 * @param forcePolling Set to true to poll the folder.
+	 * @throws IOException if the test files could not be created.
+	 * @throws InterruptedException if the test was interrupted.
+	 */
+	private static void testWatcher(boolean forcePolling)
+			throws IOException, InterruptedException {
+
+		File folder = Files.createTempDirectory("obit_watcher").toFile();
+		final List<Set<File>> changes =
+				Collections.synchronizedList(new ArrayList<Set<File>>());
+
+		FolderWatcher watcher = new FolderWatcher(folder,
+				new FolderWatcher.Listener() {
+					@Override
+					public void folderChanged(Set<File> changedFiles) {
+						changes.add(changedFiles);
+					}
+				}, 200, 200, forcePolling);
+		watcher.start();
+		if (forcePolling) {
+			assertEquals(watcher.isPolling(), true);
+		}
+
+		// Create a subfolder with a file
+		File subFolder = new File(folder, "Experiment");
+		File file = new File(subFolder, "Tube_001.fcs");
+		try {
+			assertEquals(subFolder.mkdir(), true);
+			assertEquals(file.createNewFile(), true);
+
+			// Wait (at most 10 s) for the change to be reported
+			for (int i = 0; i < 200 && changes.isEmpty(); i++) {
+				Thread.sleep(50);
+			}
+			watcher.stop();
+
+			assertEquals(changes.isEmpty(), false);
+			assertEquals(changes.get(0).contains(subFolder), true);
+			assertEquals(changes.get(0).contains(file), true);
+
+		} finally {
+			watcher.stop();
+			file.delete();
+			subFolder.delete();
+			folder.delete();
+		}
+	}
+
+	/**
+	 * Test FolderWatcher with the WatchService (if available)
+	 * @throws Exception if the test files could not be created.
+	 */
+	@Test
+	public void testWatchedFolder() throws Exception {
+		testWatcher(false);
+	}
+
+	/**
+	 * Test FolderWatcher with polling
+	 * @throws Exception if the test files could not be created.
+	 */
+	@Test
+	public void testPolledFolder() throws Exception {
+		testWatcher(true);
+	}
+
+	/**
+	 * Entry point
+	 * @param args Ignored.
+	 */
+	public static void main(String[] args) {
+
+		Result result = JUnitCore.runClasses(TestFolderWatcher.class);
+		for (Failure failure : result.getFailures()) {
+			System.out.println(failure.toString());
+		}
+		System.out.println(result.wasSuccessful());
+	}
+}
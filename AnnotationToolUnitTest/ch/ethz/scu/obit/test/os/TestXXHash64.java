@@ -0,0 +1,93 @@
+package ch.ethz.scu.obit.test.os;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+
+import ch.ethz.scu.obit.common.utils.XXHash64;
+
+/**
+ * Test XXHash64
+ * @author Aaron Ponti
+ *
+ */
+public class TestXXHash64 {
+
+	/**
+	 * Hash a String
+	 * @param s String to hash.
+	 * @return hash of the ASCII bytes of the String.
+	 */
+	private static long hash(String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.US_ASCII);
+		XXHash64 hash = new XXHash64();
+		hash.update(bytes, 0, bytes.length);
+		return hash.getValue();
+	}
+
+	/**
+	 * Compare with the reference implementation
+	 */
+	@Test
+	public void testKnownValues() {
+		assertEquals(0xEF46DB3751D8E999L, hash(""));
+		assertEquals(0xD24EC4F1A98C6E5BL, hash("a"));
+		assertEquals(0x44BC2CF5AD770999L, hash("abc"));
+		assertEquals(0xFBCEA83C8A378BF1L,
+				hash("Nobody inspects the spammish repetition"));
+	}
+
+	/**
+	 * Hashing in pieces, at once and from a file must give the same value
+	 * @throws IOException if the test file could not be written.
+	 */
+	@Test
+	public void testStreaming() throws IOException {
+
+		byte[] bytes = new byte[100003];
+		Random random = new Random(42);
+		random.nextBytes(bytes);
+
+		XXHash64 atOnce = new XXHash64();
+		atOnce.update(bytes, 0, bytes.length);
+
+		XXHash64 inPieces = new XXHash64();
+		int position = 0;
+		while (position < bytes.length) {
+			int n = Math.min(1 + random.nextInt(70), bytes.length - position);
+			inPieces.update(bytes, position, n);
+			position += n;
+		}
+		assertEquals(atOnce.getValue(), inPieces.getValue());
+
+		File file = File.createTempFile("obit_hash", ".bin");
+		try {
+			Files.write(file.toPath(), bytes);
+			assertEquals(atOnce.getValue(), XXHash64.hash(file));
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Entry point
+	 * @param args Ignored.
+	 */
+	public static void main(String[] args) {
+
+		Result result = JUnitCore.runClasses(TestXXHash64.class);
+		for (Failure failure : result.getFailures()) {
+			System.out.println(failure.toString());
+		}
+		System.out.println(result.wasSuccessful());
+	}
+}
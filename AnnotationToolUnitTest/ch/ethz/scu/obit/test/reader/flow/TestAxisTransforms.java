@@ -0,0 +1,131 @@
+package ch.ethz.scu.obit.test.reader.flow;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+
+import ch.ethz.scu.obit.flow.readers.Arcsinh;
+import ch.ethz.scu.obit.flow.readers.AxisTransform;
+import ch.ethz.scu.obit.flow.readers.DecadeLog;
+import ch.ethz.scu.obit.flow.readers.Hyperlog;
+import ch.ethz.scu.obit.flow.readers.Linear;
+import ch.ethz.scu.obit.flow.readers.Logicle;
+
+/**
+ * Test the axis transforms.
+ * @author Aaron Ponti
+ *
+ */
+public class TestAxisTransforms {
+
+    /**
+     * Test routine: the top of scale maps to 1, and the inverse transform
+     * recovers the input values (single values and bulk).
+     * @param t transform to be tested.
+     * @param x array of values to be transformed.
+     * @param tol relative tolerance of the test.
+     */
+    private static void test(AxisTransform t, double[] x, double tol) {
+
+        // Top of scale
+        assertEquals(1.0, t.transform(t.getTopOfScale()), tol);
+
+        // Single values
+        for (int i = 0; i < x.length; i++) {
+            double z = t.inverse(t.transform(x[i]));
+            assertEquals(x[i], z, tol * Math.max(1.0, Math.abs(x[i])));
+        }
+
+        // Bulk
+        double[] y = new double[x.length];
+        assertEquals(t.transform(x, y, 0, x.length), 0);
+        for (int i = 0; i < x.length; i++) {
+            assertEquals(t.transform(x[i]), y[i], 0.0);
+        }
+        assertEquals(t.inverseTransform(y, y, 0, y.length), 0);
+        for (int i = 0; i < x.length; i++) {
+            assertEquals(x[i], y[i], tol * Math.max(1.0, Math.abs(x[i])));
+        }
+    }
+
+    /**
+     * Test the transforms that support negative values.
+     * @throws Exception If the transform parameters are not valid.
+     */
+    @Test
+    public void testBiexponentialTransforms() throws Exception {
+
+        double[] x = {-1000.0, -10.0, -1.0, 0.0, 0.3, 1.0, 3.0, 10.0, 100.0,
+                1000.0, 10000.0, 262144.0};
+
+        // Logicle
+        Logicle L = new Logicle(262144.0, 0.5);
+        assertEquals(L.getName(), "logicle");
+        assertEquals(0.5 / 4.5, L.transform(0.0), 1e-12);
+        test(L, x, 1e-9);
+        test(new Logicle(10000.0, 1.0, 4.0, 1.0), x, 1e-9);
+        test(new Logicle(10000.0, 0.0, 4.5, 0.0), x, 1e-9);
+
+        // Hyperlog
+        Hyperlog H = new Hyperlog(262144.0, 0.5, 4.5, 0.0);
+        assertEquals(H.getName(), "hyperlog");
+        test(H, x, 1e-9);
+
+        // Arcsinh
+        Arcsinh S = new Arcsinh(262144.0);
+        assertEquals(S.getName(), "arcsinh");
+        assertEquals(0.0, S.transform(0.0), 0.0);
+        assertEquals(-S.transform(150.0), S.transform(-150.0), 0.0);
+        test(S, x, 1e-9);
+        test(new Arcsinh(1000.0, 5.0), x, 1e-9);
+
+        // Linear
+        Linear N = new Linear(262144.0);
+        assertEquals(N.getName(), "linear");
+        test(N, x, 1e-12);
+    }
+
+    /**
+     * Test the decade log transform.
+     * @throws Exception If the transform parameters are not valid.
+     */
+    @Test
+    public void testDecadeLogTransform() throws Exception {
+
+        double[] x = {0.1, 1.0, 3.0, 10.0, 100.0, 1000.0, 10000.0, 262144.0};
+
+        DecadeLog D = new DecadeLog(10000.0, 4.0);
+        assertEquals(D.getName(), "log");
+        assertEquals(0.0, D.transform(1.0), 1e-12);
+        assertEquals(0.5, D.transform(100.0), 1e-12);
+        test(D, x, 1e-9);
+
+        // FCS amplification ($PnE = 4,1): channel / range -> linear value
+        DecadeLog E = DecadeLog.fromAmplification(4.0, 1.0);
+        assertEquals(10000.0, E.getTopOfScale(), 1e-9);
+        assertEquals(1.0 * Math.pow(10, 512.0 / 1024.0 * 4.0),
+                E.inverse(512.0 / 1024.0), 0.0);
+
+        // Non-positive values cannot be transformed
+        double[] y = new double[2];
+        assertEquals(D.transform(new double[] {-1.0, 1.0}, y, 0, 2), 1);
+        assertEquals(Double.isNaN(y[0]), true);
+    }
+
+    /**
+     * Entry point
+     * @param args Ignored.
+     */
+    public static void main(String[] args) {
+
+        Result result = JUnitCore.runClasses(TestAxisTransforms.class);
+        for (Failure failure : result.getFailures()) {
+            System.out.println(failure.toString());
+        }
+
+    }
+
+}
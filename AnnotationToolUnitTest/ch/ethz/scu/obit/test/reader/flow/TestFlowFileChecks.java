@@ -0,0 +1,206 @@
+package ch.ethz.scu.obit.test.reader.flow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+
+import ch.ethz.scu.obit.flow.processors.data.BDLSRFortessaFlowProcessor;
+import ch.ethz.scu.obit.flow.readers.FCSReader;
+
+/**
+ * Test that the flow processors flag FCS files that were not copied
+ * completely and FCS files that have the same contents as another one.
+ *
+ * @author Aaron Ponti
+ *
+ */
+public class TestFlowFileChecks {
+
+    /**
+     * Entry point
+     *
+     * @param args Ignored.
+     */
+    public static void main(String[] args) {
+
+        Result result = JUnitCore.runClasses(TestFlowFileChecks.class);
+        for (Failure failure : result.getFailures()) {
+            System.out.println(failure.toString());
+        }
+
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /* Copy of the Fortessa user folder */
+    private File userFolder;
+
+    /* Experiment folder in the copy */
+    private File experimentFolder;
+
+    /**
+     * Copy the Fortessa user folder to a temporary folder, so that its
+     * files can be modified.
+     *
+     * @throws IOException if the folder could not be copied.
+     */
+    @Before
+    public void copyUserFolder() throws IOException {
+        final Path source = Paths.get(this.getClass().getResource(
+                "data/fortessa/6").getFile());
+        userFolder = folder.newFolder("6");
+        final Path target = userFolder.toPath();
+        try (Stream<Path> paths = Files.walk(source)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                Path copy = target.resolve(source.relativize(path).toString());
+                if (Files.isDirectory(path)) {
+                    Files.createDirectories(copy);
+                } else {
+                    Files.copy(path, copy,
+                            StandardCopyOption.COPY_ATTRIBUTES);
+                }
+            }
+        }
+        experimentFolder = new File(userFolder, "Eva Spore Counting 190612");
+    }
+
+    /**
+     * Scan the copy of the user folder.
+     *
+     * @return processor after the scan.
+     */
+    private BDLSRFortessaFlowProcessor scan() {
+        BDLSRFortessaFlowProcessor processor = new BDLSRFortessaFlowProcessor(
+                userFolder.getAbsolutePath());
+        assertTrue(processor.parse());
+        return processor;
+    }
+
+    /**
+     * The unmodified copy is valid
+     */
+    @Test
+    public void testValidCopy() {
+        BDLSRFortessaFlowProcessor processor = scan();
+        assertTrue(processor.validator.invalidFilesOrFolders.toString(),
+                processor.validator.isValid);
+        assertTrue(processor.validator.invalidFilesOrFolders.isEmpty());
+    }
+
+    /**
+     * A file that is shorter than its DATA segment is flagged as incomplete
+     * @throws IOException if the test file could not be truncated.
+     */
+    @Test
+    public void testTruncatedFile() throws IOException {
+
+        File file = new File(experimentFolder, "Specimen_001_Tube_001.fcs");
+        long length = file.length();
+
+        // The complete file is not truncated
+        FCSReader reader = new FCSReader(file, false);
+        assertTrue(reader.parse());
+        assertFalse(reader.isTruncated());
+        long dataEnd = reader.getDataEnd();
+        assertTrue(dataEnd < length);
+
+        // Cut the file in the middle of the DATA segment
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(dataEnd - 100);
+        } finally {
+            out.close();
+        }
+        reader = new FCSReader(file, false);
+        assertTrue(reader.parse());
+        assertTrue(reader.isTruncated());
+
+        // The processor reports the file
+        BDLSRFortessaFlowProcessor processor = scan();
+        assertFalse(processor.validator.isValid);
+        assertEquals(1, processor.validator.invalidFilesOrFolders.size());
+        String message = processor.validator.invalidFilesOrFolders.get(file);
+        assertNotNull(processor.validator.invalidFilesOrFolders.toString(),
+                message);
+        assertEquals("Incomplete file: the DATA segment ends at byte "
+                + dataEnd + " but the file only has " + (dataEnd - 100)
+                + " bytes.", message);
+    }
+
+    /**
+     * A file with the same contents as a file found before is flagged as a
+     * duplicate of that file
+     * @throws IOException if the test file could not be copied.
+     */
+    @Test
+    public void testDuplicateFile() throws IOException {
+
+        // Copy a file of the tray next to the tube of the experiment
+        File original = new File(new File(experimentFolder,
+                "96 Well - beads 10 ul"), "Specimen_001_A1_A01.fcs");
+        File copy = new File(experimentFolder, "Specimen_001_Tube_002.fcs");
+        Files.copy(original.toPath(), copy.toPath());
+
+        // Exactly one of the two files is reported, as a copy of the other
+        BDLSRFortessaFlowProcessor processor = scan();
+        assertFalse(processor.validator.isValid);
+        assertEquals(processor.validator.invalidFilesOrFolders.toString(), 1,
+                processor.validator.invalidFilesOrFolders.size());
+        File duplicate = processor.validator.invalidFilesOrFolders.keySet()
+                .iterator().next();
+        assertTrue(duplicate.equals(original) || duplicate.equals(copy));
+        File first = duplicate.equals(original) ? copy : original;
+        assertEquals("Duplicate of "
+                + userFolder.toPath().relativize(first.toPath()) + ".",
+                processor.validator.invalidFilesOrFolders.get(duplicate));
+    }
+
+    /**
+     * Files that only have the same size are not duplicates
+     * @throws IOException if the test file could not be modified.
+     */
+    @Test
+    public void testSameSizeFile() throws IOException {
+
+        // Copy a file and change its last byte
+        File original = new File(experimentFolder,
+                "Specimen_001_Tube_001.fcs");
+        File copy = new File(experimentFolder, "Specimen_001_Tube_002.fcs");
+        Files.copy(original.toPath(), copy.toPath());
+        RandomAccessFile out = new RandomAccessFile(copy, "rw");
+        try {
+            out.seek(out.length() - 1);
+            int last = out.read();
+            out.seek(out.length() - 1);
+            out.write(last ^ 0xFF);
+        } finally {
+            out.close();
+        }
+
+        BDLSRFortessaFlowProcessor processor = scan();
+        for (String message : processor.validator.invalidFilesOrFolders
+                .values()) {
+            assertFalse(message, message.startsWith("Duplicate of"));
+        }
+    }
+
+}
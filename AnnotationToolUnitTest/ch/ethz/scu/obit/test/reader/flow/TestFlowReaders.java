@@ -20,8 +20,10 @@ import ch.ethz.scu.obit.flow.processors.data.model.FCSFile;
 import ch.ethz.scu.obit.flow.processors.data.model.Specimen;
 import ch.ethz.scu.obit.flow.processors.data.model.Tray;
 import ch.ethz.scu.obit.flow.processors.data.model.Tube;
+import ch.ethz.scu.obit.flow.readers.AxisTransform;
 import ch.ethz.scu.obit.flow.readers.FCSReader;
 import ch.ethz.scu.obit.flow.readers.Hyperlog;
+import ch.ethz.scu.obit.flow.readers.QuantileSketch;
 
 /**
  * Test flow cytometry readers and processors.
@@ -424,6 +426,19 @@ public class TestFlowReaders {
             assertEquals(d, true);
         }
 
+        // The data type is F: the single precision values are exact
+        float[] fscaColumnStrideFloat = {};
+        try {
+            fscaColumnStrideFloat = reader.getRawFloatDataPerColumnIndex(0, 10,
+                    true);
+        } catch (IOException e) {
+            // Keep the array empty
+        }
+        assertEquals(fscaColumnStrideFloat.length, 10);
+        for (int i = 0; i < fscaColumnStrideFloat.length; i++) {
+            assertEquals(fscaColumnStrideFloat[i], fscaColumnStride[i], 0.0);
+        }
+
     }
 
     /**
@@ -593,6 +608,78 @@ public class TestFlowReaders {
             assertEquals(d, true);
         }
 
+        // The FCSPerf column is log-amplified ($P13E = 4,1): its display
+        // transform maps the scaled values back to the relative channels
+        AxisTransform transform = reader.getDisplayTransform(12);
+        assertEquals(transform.getName(), "log");
+        assertEquals(transform.getTopOfScale(), 10000.0, 1e-6);
+        double range = Double.parseDouble(reader.parametersAttr.get("P13R"));
+        double[] fscPerfChannels = new double[fscPerfScaling.length];
+        assertEquals(transform.transform(fscPerfScaling, fscPerfChannels, 0,
+                fscPerfScaling.length), 0);
+        for (int i = 0; i < fscPerfChannels.length; i++) {
+            assertEquals(fscPerfChannels[i] * range, fscPerf[i], 1e-6);
+        }
+
+        // The 'Time 1' column is linear
+        assertEquals(reader.getDisplayTransform(1).getName(), "linear");
+
+        // Single precision
+        float[] fscPerfStrideFloat = {};
+        float[] fscPerfScalingFloat = {};
+        try {
+            fscPerfStrideFloat = reader.getRawFloatDataPerColumnIndex(12, 10,
+                    true);
+            fscPerfScalingFloat = reader.getFloatDataPerColumnIndex(12, 10,
+                    false);
+        } catch (IOException e) {
+            // Keep the arrays empty
+        }
+        assertEquals(fscPerfStrideFloat.length, 10);
+        assertEquals(fscPerfScalingFloat.length, 10);
+        for (int i = 0; i < fscPerfStrideFloat.length; i++) {
+            assertEquals(fscPerfStrideFloat[i], fscPerfStride[i], 0.0);
+        }
+        for (int i = 0; i < fscPerfScalingFloat.length; i++) {
+            assertEquals(fscPerfScalingFloat[i], fscPerfScaling[i],
+                    1e-5 * fscPerfScaling[i]);
+        }
+
+        // The sketch summarizes the whole (scaled) column
+        QuantileSketch sketch = null;
+        double[] fscPerfAll = {};
+        try {
+            sketch = reader.getSketchPerColumnIndex(12, null);
+            fscPerfAll = reader.getDataPerColumnIndex(12, 0, false);
+        } catch (IOException e) {
+            // Keep the sketch null
+        }
+        assertEquals(sketch.getN(), reader.numEvents());
+        double[] bounds = Hyperlog.bounds(fscPerfAll);
+        assertEquals(sketch.getMin(), bounds[0], 1e-5 * bounds[0]);
+        assertEquals(sketch.getMax(), bounds[1], 1e-5 * bounds[1]);
+
+        // Events sampled from the file without loading the data must match
+        FCSReader sampler = new FCSReader(fcsFile, false);
+        float[][] sampled = {};
+        float[] timeAll = {};
+        float[] fscPerfAllFloat = {};
+        try {
+            sampler.parse();
+            sampled = sampler.readSampledEvents(new int[] { 1, 12 }, 3, 7,
+                    1000);
+            timeAll = reader.getFloatDataPerColumnIndex(1, 0, false);
+            fscPerfAllFloat = reader.getFloatDataPerColumnIndex(12, 0, false);
+        } catch (IOException e) {
+            // Keep the arrays empty
+        }
+        assertEquals(sampled.length, 2);
+        assertEquals(sampled[0].length, 1000);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(sampled[0][i], timeAll[3 + 7 * i], 0.0);
+            assertEquals(sampled[1][i], fscPerfAllFloat[3 + 7 * i], 0.0);
+        }
+
     }
 
     /**
@@ -1,5 +1,6 @@
 package ch.ethz.scu.obit.test.reader.flow;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 import org.junit.Test;
@@ -8,6 +9,7 @@ import org.junit.runner.Result;
 import org.junit.runner.notification.Failure;
 
 import ch.ethz.scu.obit.flow.readers.Hyperlog;
+import ch.ethz.scu.obit.flow.readers.QuantileSketch;
 
 /**
  * Test flow cytometry readers and processors.
@@ -134,6 +136,172 @@ public class TestHyperlog {
         assertEquals(testM, true);
     }
     
+    /**
+     * Test the lookup table approximation of the Hyperlog transform against
+     * the exact transform.
+     * @throws Exception If the Hyperlog transform throws an Exception.
+     */
+    @Test
+    public void testHyperlogLookupTable() throws Exception {
+
+        // Values spanning the negative, linear and logarithmic regions and
+        // beyond the top of scale (where the exact transform is used)
+        double[] x = new double[10001];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = Math.signum(i - 2000) * Math.pow(10, (i % 2000) / 400.0) - 1.0;
+        }
+        x[0] = 0.0;
+        x[1] = -0.0;
+
+        double T = 10000.0, W = 0.5, M = 4.5, A = 0.5;
+        Hyperlog exact = new Hyperlog(T, W, M, A);
+        Hyperlog approx = new Hyperlog(T, W, M, A, 0,
+                Hyperlog.DEFAULT_LUT_SIZE, Hyperlog.DEFAULT_LUT_TOLERANCE);
+
+        // The table is used and its error bound is within tolerance
+        assertEquals(approx.usesLookupTable(), true);
+        double bound = approx.getLookupTableErrorBound();
+        assertEquals(bound > 0 && bound <= Hyperlog.DEFAULT_LUT_TOLERANCE, true);
+
+        // The approximation respects the error bound
+        double[] y_exp = exact.transform(x);
+        double[] y = approx.transform(x);
+        for (int i = 0; i < y.length; i++) {
+            assertEquals(y_exp[i], y[i], bound + 1e-12);
+        }
+
+        // A table that cannot meet the tolerance is discarded
+        Hyperlog coarse = new Hyperlog(T, W, M, A, 0, 16, 1e-12);
+        assertEquals(coarse.usesLookupTable(), false);
+        assertEquals(coarse.getLookupTableErrorBound(), 0.0, 0.0);
+        assertArrayEquals(y_exp, coarse.transform(x), 0.0);
+
+        // With bins, the table still respects its error bound
+        Hyperlog binned = new Hyperlog(T, W, M, A, 256, 1000, 1e-3);
+        Hyperlog binnedExact = new Hyperlog(T, W, M, A, 256);
+        assertEquals(binned.usesLookupTable(), true);
+        assertArrayEquals(binnedExact.transform(x), binned.transform(x),
+                binned.getLookupTableErrorBound() + 1e-12);
+    }
+
+    /**
+     * Test the bulk (range, single precision and parallel) transforms.
+     * @throws Exception If the Hyperlog parameters are not valid.
+     */
+    @Test
+    public void testHyperlogBulkTransform() throws Exception {
+
+        // Long enough to be split across the fork/join pool
+        int n = 3 * Hyperlog.PARALLEL_THRESHOLD + 17;
+        double[] x = new double[n];
+        float[] xf = new float[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = (i % 1000) * 1.5 - 100.0;
+            xf[i] = (float) x[i];
+        }
+
+        Hyperlog H = new Hyperlog(1000.0, 0.5, 4.0, 0.5);
+
+        // The parallel bulk transform matches the wrapper
+        double[] y_exp = H.transform(x);
+        double[] y = new double[n];
+        assertEquals(H.transform(x, y, 0, n), 0);
+        assertArrayEquals(y_exp, y, 0.0);
+
+        // Only the requested range is written
+        double[] z = new double[n];
+        assertEquals(H.transform(x, z, 10, 20), 0);
+        for (int i = 0; i < n; i++) {
+            assertEquals(z[i], (i >= 10 && i < 20) ? y_exp[i] : 0.0, 0.0);
+        }
+
+        // Inverse transform in place
+        assertEquals(H.inverseTransform(y, y, 0, n), 0);
+        assertArrayEquals(x, y, 1e-6);
+
+        // Single precision
+        float[] yf = new float[n];
+        assertEquals(H.transform(xf, yf, 0, n), 0);
+        for (int i = 0; i < n; i++) {
+            assertEquals(y_exp[i], yf[i], 1e-6);
+        }
+        assertEquals(H.inverseTransform(yf, yf, 0, n), 0);
+        for (int i = 0; i < n; i++) {
+            assertEquals(xf[i], yf[i], 1e-3);
+        }
+
+        // Values that cannot be transformed are counted and set to NaN
+        x[3] = Double.NaN;
+        x[n - 1] = Double.NaN;
+        assertEquals(H.transform(x, y, 0, n), 2);
+        assertEquals(Double.isNaN(y[3]), true);
+        assertEquals(Double.isNaN(y[n - 1]), true);
+    }
+
+    /**
+     * Test the quantile sketch and the robust parameter estimation.
+     */
+    @Test
+    public void testHyperlogSketchHeuristic() {
+
+        // Uniform values 0..99999 in scrambled order
+        int n = 100000;
+        double[] x = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = (i * 7919L) % n;
+        }
+
+        QuantileSketch sketch = new QuantileSketch();
+        sketch.update(x, 0, n);
+        assertEquals(sketch.getN(), n);
+        assertEquals(sketch.getNumRetained() < 10 * QuantileSketch.DEFAULT_K,
+                true);
+
+        // Exact bounds, approximate quantiles (rank error within 2%)
+        assertEquals(sketch.getMin(), 0.0, 0.0);
+        assertEquals(sketch.getMax(), n - 1.0, 0.0);
+        assertEquals(sketch.getQuantile(0.0), 0.0, 0.0);
+        assertEquals(sketch.getQuantile(1.0), n - 1.0, 0.0);
+        double[] q = {0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99};
+        double[] v = sketch.getQuantiles(q);
+        for (int i = 0; i < q.length; i++) {
+            assertEquals(q[i] * n, v[i], 0.02 * n);
+        }
+
+        // Merging the sketches of two halves summarizes the whole stream
+        QuantileSketch first = new QuantileSketch();
+        QuantileSketch second = new QuantileSketch();
+        first.update(x, 0, n / 2);
+        second.update(x, n / 2, n);
+        first.merge(second);
+        assertEquals(first.getN(), n);
+        assertEquals(first.getMin(), 0.0, 0.0);
+        assertEquals(first.getMax(), n - 1.0, 0.0);
+        for (int i = 0; i < q.length; i++) {
+            assertEquals(q[i] * n, first.getQuantile(q[i]), 0.02 * n);
+        }
+
+        // The same stream always produces the same sketch
+        QuantileSketch again = new QuantileSketch();
+        again.update(x, 0, n);
+        assertArrayEquals(v, again.getQuantiles(q), 0.0);
+
+        // A single outlier does not change the robust estimate
+        double[] params = Hyperlog.estimateParamHeuristic(sketch);
+        x[0] = 1e9;
+        x[1] = -1e9;
+        QuantileSketch outliers = new QuantileSketch();
+        outliers.update(x, 0, n);
+        assertEquals(Hyperlog.estimateParamHeuristic(x)[0], 1e9, 0.0);
+        assertArrayEquals(params, Hyperlog.estimateParamHeuristic(outliers),
+                0.02 * params[0]);
+        assertEquals(params[3], 0.0, 0.0);
+
+        // With the extreme quantiles, the min and max are used
+        double[] paramsB = Hyperlog.estimateParamHeuristic(outliers, 0.0, 1.0);
+        assertArrayEquals(Hyperlog.estimateParamHeuristic(x), paramsB, 0.0);
+    }
+
     /** 
      * Entry point
      * @param args Ignored.
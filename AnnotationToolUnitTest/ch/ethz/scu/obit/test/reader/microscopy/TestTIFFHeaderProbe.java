@@ -0,0 +1,187 @@
+package ch.ethz.scu.obit.test.reader.microscopy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+
+import ch.ethz.scu.obit.microscopy.readers.TIFFHeaderProbe;
+
+/**
+ * Test the TIFF header probe on files written by ImageIO.
+ * @author Aaron Ponti
+ *
+ */
+public class TestTIFFHeaderProbe {
+
+    /**
+     * Entry point
+     *
+     * @param args Ignored.
+     */
+    public static void main(String[] args) {
+
+        Result result = JUnitCore.runClasses(TestTIFFHeaderProbe.class);
+        for (Failure failure : result.getFailures()) {
+            System.out.println(failure.toString());
+        }
+
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Write images as a (multi-page) TIFF file.
+     *
+     * @param name   Name of the file.
+     * @param images Images to write (one per page).
+     * @return written file.
+     * @throws IOException if the file could not be written.
+     */
+    private File writeTIFF(String name, BufferedImage... images)
+            throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(
+                "tiff");
+        // ImageIO only has a TIFF writer since Java 9
+        Assume.assumeTrue(writers.hasNext());
+        ImageWriter writer = writers.next();
+        File file = folder.newFile(name);
+        file.delete();
+        ImageOutputStream out = ImageIO.createImageOutputStream(file);
+        try {
+            writer.setOutput(out);
+            writer.prepareWriteSequence(null);
+            for (BufferedImage image : images) {
+                writer.writeToSequence(new IIOImage(image, null, null), null);
+            }
+            writer.endWriteSequence();
+        } finally {
+            out.close();
+            writer.dispose();
+        }
+        return file;
+    }
+
+    /**
+     * Test a single-plane 8-bit image
+     * @throws IOException if the test file could not be written.
+     */
+    @Test
+    public void testGray8() throws IOException {
+        File file = writeTIFF("gray8.tif",
+                new BufferedImage(123, 45, BufferedImage.TYPE_BYTE_GRAY));
+        TIFFHeaderProbe probe = TIFFHeaderProbe.probe(file);
+        assertNotNull(probe);
+        assertEquals(123, probe.getWidth());
+        assertEquals(45, probe.getHeight());
+        assertEquals(8, probe.getBitsPerSample());
+        assertEquals(1, probe.getSamplesPerPixel());
+        assertEquals(1, probe.getPageCount());
+        assertEquals("uint8", probe.getDataType());
+        assertFalse(probe.isSigned());
+        assertFalse(probe.isMetaMorphStack());
+    }
+
+    /**
+     * Test a multi-page 16-bit image
+     * @throws IOException if the test file could not be written.
+     */
+    @Test
+    public void testGray16Pages() throws IOException {
+        File file = writeTIFF("gray16.tif",
+                new BufferedImage(300, 200, BufferedImage.TYPE_USHORT_GRAY),
+                new BufferedImage(300, 200, BufferedImage.TYPE_USHORT_GRAY),
+                new BufferedImage(300, 200, BufferedImage.TYPE_USHORT_GRAY));
+        TIFFHeaderProbe probe = TIFFHeaderProbe.probe(file);
+        assertNotNull(probe);
+        assertEquals(300, probe.getWidth());
+        assertEquals(200, probe.getHeight());
+        assertEquals(3, probe.getPageCount());
+        assertEquals("uint16", probe.getDataType());
+    }
+
+    /**
+     * Test an RGB image (the bits per sample are stored outside of the IFD)
+     * @throws IOException if the test file could not be written.
+     */
+    @Test
+    public void testRGB() throws IOException {
+        File file = writeTIFF("rgb.tif",
+                new BufferedImage(64, 32, BufferedImage.TYPE_INT_RGB));
+        TIFFHeaderProbe probe = TIFFHeaderProbe.probe(file);
+        assertNotNull(probe);
+        assertEquals(3, probe.getSamplesPerPixel());
+        assertEquals(8, probe.getBitsPerSample());
+    }
+
+    /**
+     * Test a 12-bit image: its data type is the one of the 16-bit samples
+     * that bio-formats returns
+     * @throws IOException if the test file could not be written.
+     */
+    @Test
+    public void testGray12() throws IOException {
+
+        // Little-endian header and an IFD with width, height, bits per
+        // sample and samples per pixel (no image data is needed)
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 2 + 4 * 12 + 4)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 'I').put((byte) 'I').putShort((short) 42)
+                .putInt(8);
+        buffer.putShort((short) 4);
+        int[][] tags = { { 256, 40 }, { 257, 30 }, { 258, 12 }, { 277, 1 } };
+        for (int[] tag : tags) {
+            buffer.putShort((short) tag[0]).putShort((short) 3).putInt(1)
+                    .putShort((short) tag[1]).putShort((short) 0);
+        }
+        buffer.putInt(0);
+        File file = folder.newFile("gray12.tif");
+        Files.write(file.toPath(), buffer.array());
+
+        TIFFHeaderProbe probe = TIFFHeaderProbe.probe(file);
+        assertNotNull(probe);
+        assertEquals(40, probe.getWidth());
+        assertEquals(30, probe.getHeight());
+        assertEquals(12, probe.getBitsPerSample());
+        assertEquals("uint16", probe.getDataType());
+    }
+
+    /**
+     * Files that are not TIFF files are rejected
+     * @throws IOException if the test file could not be written.
+     */
+    @Test
+    public void testNotTIFF() throws IOException {
+        File file = folder.newFile("text.tif");
+        Files.write(file.toPath(),
+                "Not a TIFF file".getBytes(StandardCharsets.US_ASCII));
+        assertNull(TIFFHeaderProbe.probe(file));
+        assertNull(TIFFHeaderProbe.probe(folder.newFile("empty.tif")));
+        assertNull(TIFFHeaderProbe.probe(new File(folder.getRoot(),
+                "missing.tif")));
+    }
+
+}
@@ -0,0 +1,177 @@
+package ch.ethz.scu.obit.test.reader.microscopy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+
+import ch.ethz.scu.obit.microscopy.readers.composite.VisitronNDReader;
+
+/**
+ * Test that the Visitron ND reader returns the same attributes whether the
+ * files are read by one or more threads, and whether the attributes of the
+ * first file of a file name template are reused or not.
+ * @author Aaron Ponti
+ *
+ */
+public class TestVisitronNDReader {
+
+    /**
+     * Entry point
+     *
+     * @param args Ignored.
+     */
+    public static void main(String[] args) {
+
+        Result result = JUnitCore.runClasses(TestVisitronNDReader.class);
+        for (Failure failure : result.getFailures()) {
+            System.out.println(failure.toString());
+        }
+
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /* Folder of the synthetic dataset */
+    private File dataset;
+
+    /**
+     * Write a TIFF file into the dataset folder.
+     *
+     * @param name   Name of the file.
+     * @param images Images to write (one per page).
+     * @throws IOException if the file could not be written.
+     */
+    private void writeTIFF(String name, BufferedImage... images)
+            throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(
+                "tiff");
+        // ImageIO only has a TIFF writer since Java 9
+        Assume.assumeTrue(writers.hasNext());
+        ImageWriter writer = writers.next();
+        ImageOutputStream out = ImageIO.createImageOutputStream(
+                new File(dataset, name));
+        try {
+            writer.setOutput(out);
+            writer.prepareWriteSequence(null);
+            for (BufferedImage image : images) {
+                writer.writeToSequence(new IIOImage(image, null, null), null);
+            }
+            writer.endWriteSequence();
+        } finally {
+            out.close();
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Create a dataset with two series of two channels and 12 timepoints.
+     * In the first series, the size of the images changes after the 6th
+     * timepoint (the files must not reuse the attributes of their template
+     * then); in the second series, the files of the second channel have two
+     * planes. A file without timepoint does not match the file name pattern
+     * of the others and is read as an additional file.
+     *
+     * @throws IOException if the dataset could not be written.
+     */
+    @Before
+    public void createDataset() throws IOException {
+        dataset = folder.newFolder("visitron");
+        assertTrue(new File(dataset, "exp.nd").createNewFile());
+        for (int s = 1; s <= 2; s++) {
+            for (int c = 1; c <= 2; c++) {
+                for (int t = 1; t <= 12; t++) {
+                    int size = (s == 1 && t > 6) ? 48 : 32;
+                    int planes = (s == 2 && c == 2) ? 2 : 1;
+                    BufferedImage[] images = new BufferedImage[planes];
+                    for (int p = 0; p < planes; p++) {
+                        images[p] = new BufferedImage(size, size,
+                                BufferedImage.TYPE_USHORT_GRAY);
+                    }
+                    writeTIFF("exp_w" + c + "_s" + s + "_t" + t + ".TIF",
+                            images);
+                }
+            }
+        }
+        writeTIFF("exp_w1_s3.TIF",
+                new BufferedImage(16, 16, BufferedImage.TYPE_BYTE_GRAY));
+    }
+
+    /**
+     * Parse the dataset.
+     *
+     * @param readerThreads           Number of threads that read the files.
+     * @param reuseTemplateAttributes true to reuse the template attributes.
+     * @return parsed reader.
+     * @throws Exception if the dataset could not be parsed.
+     */
+    private VisitronNDReader parse(int readerThreads,
+            boolean reuseTemplateAttributes) throws Exception {
+        VisitronNDReader reader = new VisitronNDReader(dataset);
+        reader.setReaderThreads(readerThreads);
+        reader.setReuseTemplateAttributes(reuseTemplateAttributes);
+        boolean isParsed = reader.parse();
+        assertTrue(reader.getLastError(), isParsed);
+        return reader;
+    }
+
+    /**
+     * Parallel, single-thread and template-reuse reads give the same
+     * combined attributes
+     * @throws Exception if the dataset could not be parsed.
+     */
+    @Test
+    public void testSameAttributes() throws Exception {
+
+        // Reference: one thread, every file parsed by bio-formats
+        VisitronNDReader reference = parse(1, false);
+        Map<String, HashMap<String, String>> expected =
+                reference.getAttributes();
+        List<Integer> expectedIndices = reference.getSeriesIndices();
+        assertTrue(expected.size() > 1);
+
+        // Single thread, template reuse
+        VisitronNDReader singleThread = parse(1, true);
+        assertEquals(expected, singleThread.getAttributes());
+        assertEquals(expectedIndices, singleThread.getSeriesIndices());
+
+        // Parallel, without and with template reuse
+        VisitronNDReader parallel = parse(4, false);
+        assertEquals(expected, parallel.getAttributes());
+        assertEquals(expectedIndices, parallel.getSeriesIndices());
+
+        VisitronNDReader parallelReuse = parse(4, true);
+        assertEquals(expected, parallelReuse.getAttributes());
+        assertEquals(expectedIndices, parallelReuse.getSeriesIndices());
+    }
+
+    /**
+     * The number of reader threads must be positive
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidReaderThreads() {
+        new VisitronNDReader(dataset).setReaderThreads(0);
+    }
+
+}